@@ -53,6 +53,7 @@ import ch.deletescape.lawnchair.folder.FolderIcon;
 import ch.deletescape.lawnchair.graphics.IconPalette;
 import ch.deletescape.lawnchair.model.PackageItemInfo;
 import ch.deletescape.lawnchair.pixelify.ClockIconDrawable;
+import ch.deletescape.lawnchair.preferences.PreferenceSnapshot;
 
 /**
  * TextView that draws a bubble behind the text. We cannot use a LineBackgroundSpan
@@ -142,19 +143,20 @@ public class BubbleTextView extends TextView
         mDeferShadowGenerationOnTouch =
                 a.getBoolean(R.styleable.BubbleTextView_deferShadowGeneration, false);
 
+        PreferenceSnapshot prefs = Utilities.getPrefs(context).getSnapshot();
         int display = a.getInteger(R.styleable.BubbleTextView_iconDisplay, DISPLAY_WORKSPACE);
         int defaultIconSize = grid.iconSizePx;
         if (display == DISPLAY_WORKSPACE) {
-            mHideText = Utilities.getPrefs(context).getHideAppLabels();
+            mHideText = prefs.getHideAppLabels();
             setTextSize(TypedValue.COMPLEX_UNIT_PX, mHideText ? 0 : grid.iconTextSizePx);
-            setTextColor(Utilities.getPrefs(context).getWorkSpaceLabelColor());
+            setTextColor(prefs.getWorkSpaceLabelColor());
         } else if (display == DISPLAY_ALL_APPS) {
-            mHideText = Utilities.getPrefs(context).getHideAllAppsAppLabels();
+            mHideText = prefs.getHideAllAppsAppLabels();
             setTextSize(TypedValue.COMPLEX_UNIT_PX, mHideText ? 0 : grid.allAppsIconTextSizePx);
             setCompoundDrawablePadding(grid.allAppsIconDrawablePaddingPx);
             defaultIconSize = grid.allAppsIconSizePx;
         } else if (display == DISPLAY_FOLDER) {
-            mHideText = Utilities.getPrefs(context).getHideAppLabels();
+            mHideText = prefs.getHideAppLabels();
             setTextSize(TypedValue.COMPLEX_UNIT_PX, mHideText ? 0 : grid.iconTextSizePx);
             setCompoundDrawablePadding(grid.folderChildDrawablePaddingPx);
         }
@@ -164,7 +166,7 @@ public class BubbleTextView extends TextView
                 defaultIconSize);
         a.recycle();
 
-        if (Utilities.getPrefs(context).getIconLabelsInTwoLines()) {
+        if (prefs.getIconLabelsInTwoLines()) {
             setMaxLines(2);
             setEllipsize(TextUtils.TruncateAt.END);
             setHorizontallyScrolling(false);
@@ -32,7 +32,7 @@ import android.widget.FrameLayout;
 import java.util.ArrayList;
 
 import ch.deletescape.lawnchair.badge.BadgeRenderer;
-import ch.deletescape.lawnchair.preferences.IPreferenceProvider;
+import ch.deletescape.lawnchair.preferences.PreferenceSnapshot;
 
 public class DeviceProfile {
 
@@ -132,7 +132,7 @@ public class DeviceProfile {
                          Point minSize, Point maxSize,
                          int width, int height, boolean isLandscape) {
         mContext = context;
-        IPreferenceProvider prefs = Utilities.getPrefs(mContext);
+        PreferenceSnapshot prefs = Utilities.getPrefs(mContext).getSnapshot();
 
         this.inv = inv;
         this.isLandscape = isLandscape;
@@ -286,7 +286,8 @@ public class DeviceProfile {
 
     private void updateIconSize(float workspaceScale, float allAppsScale, float hotseatScale, int workspaceDrawablePadding, int allAppsDrawablePadding,
                                 Resources res, DisplayMetrics dm) {
-        boolean iconLabelsInTwoLines = Utilities.getPrefs(mContext).getIconLabelsInTwoLines();
+        PreferenceSnapshot prefs = Utilities.getPrefs(mContext).getSnapshot();
+        boolean iconLabelsInTwoLines = prefs.getIconLabelsInTwoLines();
         iconSizePx = (int) (Utilities.pxFromDp(inv.iconSize, dm) * workspaceScale);
         iconSizePxOriginal = (int) (Utilities.pxFromDp(inv.iconSizeOriginal, dm) * workspaceScale);
         iconTextSizePx = (int) (Utilities.pxFromSp(inv.iconTextSize, dm) * workspaceScale);
@@ -294,27 +295,27 @@ public class DeviceProfile {
         hotseatIconSizePx = (int) (Utilities.pxFromDp(inv.hotseatIconSize, dm) * hotseatScale);
         hotseatIconSizePxOriginal = (int) (Utilities.pxFromDp(inv.hotseatIconSizeOriginal, dm) * hotseatScale);
         allAppsIconSizePx = (int) (Utilities.pxFromDp(inv.allAppsIconSize, dm) * allAppsScale);
-        float allAppsPaddingScale = Utilities.getPrefs(mContext).getAllAppsIconPaddingScale();
+        float allAppsPaddingScale = prefs.getAllAppsIconPaddingScale();
         allAppsIconDrawablePaddingPx = Math.round(allAppsDrawablePadding * allAppsPaddingScale);
         allAppsIconTextSizePx = (int) (Utilities.pxFromSp(inv.allAppsIconTextSize, dm) * allAppsScale);
 
         cellWidthPx = iconSizePx;
         cellHeightPx = iconSizePx + iconDrawablePaddingPx;
-        if (!Utilities.getPrefs(mContext).getHideAppLabels()) {
+        if (!prefs.getHideAppLabels()) {
             cellHeightPx += Utilities.calculateTextHeight(iconTextSizePx, iconLabelsInTwoLines);
         }
         allAppsCellWidthPx = allAppsIconSizePx;
         allAppsCellHeightPx = allAppsIconSizePx + allAppsIconDrawablePaddingPx;
-        if (!Utilities.getPrefs(mContext).getHideAllAppsAppLabels()) {
+        if (!prefs.getHideAllAppsAppLabels()) {
             allAppsCellHeightPx += Utilities.calculateTextHeight(allAppsIconTextSizePx, iconLabelsInTwoLines);
         }
         cellHeightPx = iconSizePx;
-        if (!Utilities.getPrefs(mContext).getHideAppLabels()) {
+        if (!prefs.getHideAppLabels()) {
             cellHeightPx += iconDrawablePaddingPx + Utilities.calculateTextHeight(iconTextSizePx, iconLabelsInTwoLines);
         }
         allAppsCellWidthPx = allAppsIconSizePx;
         allAppsCellHeightPx = allAppsIconSizePx;
-        if (!Utilities.getPrefs(mContext).getHideAllAppsAppLabels()) {
+        if (!prefs.getHideAllAppsAppLabels()) {
             allAppsCellHeightPx += allAppsIconDrawablePaddingPx + Utilities.calculateTextHeight(allAppsIconTextSizePx, iconLabelsInTwoLines);
         }
 
@@ -419,6 +420,7 @@ public class DeviceProfile {
      */
     public Rect getWorkspacePadding(Rect recycle) {
         Rect padding = recycle == null ? new Rect() : recycle;
+        PreferenceSnapshot prefs = Utilities.getPrefs(mContext).getSnapshot();
         if (isVerticalBarLayout()) {
             if (mInsets.left > 0) {
                 padding.set(mInsets.left + pageIndicatorLandGutterLeftNavBarPx, 0,
@@ -428,8 +430,8 @@ public class DeviceProfile {
                         getHotseatHeight() + hotseatLandGutterPx, 2 * edgeMarginPx);
             }
         } else {
-            int paddingBottom = (Utilities.getPrefs(mContext).getTransparentHotseat() && Utilities.getPrefs(mContext).getHideHotseat() ? 0 : getHotseatHeight()) + pageIndicatorHeightPx;
-            if (Utilities.getPrefs(mContext).getAllowFullWidthWidgets()) {
+            int paddingBottom = (prefs.getTransparentHotseat() && prefs.getHideHotseat() ? 0 : getHotseatHeight()) + pageIndicatorHeightPx;
+            if (prefs.getAllowFullWidthWidgets()) {
                 padding.set(0, 0, 0, paddingBottom);
             } else if (isTablet) {
                 // Pad the left and right of the workspace to ensure consistent spacing
@@ -560,8 +562,9 @@ public class DeviceProfile {
         // this, we pad the left and right of the hotseat with half of the difference of a workspace
         // cell vs a hotseat cell.
         int hotseatAdjustment = getHotseatAdjustment();
-        boolean transparentHotseat = Utilities.getPrefs(mContext).getTransparentHotseat();
-        boolean hideHotseat = transparentHotseat && Utilities.getPrefs(mContext).getHideHotseat();
+        PreferenceSnapshot prefs = Utilities.getPrefs(mContext).getSnapshot();
+        boolean transparentHotseat = prefs.getTransparentHotseat();
+        boolean hideHotseat = transparentHotseat && prefs.getHideHotseat();
         if (hasVerticalBarLayout) {
             // Vertical hotseat -- The hotseat is fixed in the layout to be on the right of the
             //                     screen regardless of RTL
@@ -31,6 +31,8 @@ import android.util.SparseArray;
 
 import java.nio.ByteBuffer;
 
+import ch.deletescape.lawnchair.util.BitmapPool;
+
 /**
  * Utility class to generate shadow and outline effect, which are used for click feedback
  * and drag-n-drop respectively.
@@ -145,9 +147,10 @@ public class HolographicOutlineHelper {
 
         // cleanup
         srcDstCanvas.setBitmap(null);
-        brightOutline.recycle();
-        thickOuterBlur.recycle();
-        thickInnerBlur.recycle();
+        BitmapPool pool = BitmapPool.getInstance();
+        pool.release(brightOutline);
+        pool.release(thickOuterBlur);
+        pool.release(thickInnerBlur);
     }
 
     Bitmap createMediumDropShadow(BubbleTextView view) {
@@ -174,7 +177,7 @@ public class HolographicOutlineHelper {
         int key = (bitmapWidth << 16) | bitmapHeight;
         Bitmap cache = shouldCache ? mBitmapCache.get(key) : null;
         if (cache == null) {
-            cache = Bitmap.createBitmap(bitmapWidth, bitmapHeight, Bitmap.Config.ALPHA_8);
+            cache = BitmapPool.getInstance().get(bitmapWidth, bitmapHeight, Bitmap.Config.ALPHA_8);
             mCanvas.setBitmap(cache);
 
             if (shouldCache) {
@@ -201,7 +204,7 @@ public class HolographicOutlineHelper {
         key = (resultWidth << 16) | resultHeight;
         Bitmap result = shouldCache ? mBitmapCache.get(key) : null;
         if (result == null) {
-            result = Bitmap.createBitmap(resultWidth, resultHeight, Bitmap.Config.ALPHA_8);
+            result = BitmapPool.getInstance().get(resultWidth, resultHeight, Bitmap.Config.ALPHA_8);
             mCanvas.setBitmap(result);
         } else {
             // Use put instead of delete, to avoid unnecessary shrinking of cache array
@@ -211,6 +214,10 @@ public class HolographicOutlineHelper {
         }
         mCanvas.drawBitmap(cache, mShadowBitmapShift, mShadowBitmapShift, mBlurPaint);
         mCanvas.setBitmap(null);
+        if (!shouldCache) {
+            // Only used as the source of the blur
+            BitmapPool.getInstance().release(cache);
+        }
         return result;
     }
 
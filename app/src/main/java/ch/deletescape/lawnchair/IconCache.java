@@ -16,6 +16,8 @@
 
 package ch.deletescape.lawnchair;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.ContentValues;
 import android.content.Context;
@@ -44,19 +46,29 @@ import android.os.UserHandle;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
 
 import ch.deletescape.lawnchair.compat.LauncherActivityInfoCompat;
 import ch.deletescape.lawnchair.compat.LauncherAppsCompat;
 import ch.deletescape.lawnchair.compat.UserManagerCompat;
+import ch.deletescape.lawnchair.graphics.IconRenderPipeline;
 import ch.deletescape.lawnchair.model.PackageItemInfo;
 import ch.deletescape.lawnchair.pixelify.PixelIconProvider;
+import ch.deletescape.lawnchair.util.BitmapPackStore;
+import ch.deletescape.lawnchair.util.BitmapPool;
 import ch.deletescape.lawnchair.util.ComponentKey;
 import ch.deletescape.lawnchair.util.SQLiteCacheHelper;
 import ch.deletescape.lawnchair.util.Thunk;
@@ -70,6 +82,14 @@ public class IconCache {
 
     private static final int INITIAL_ICON_CACHE_CAPACITY = 50;
 
+    // Fraction of the app heap which may be used by full-res icons held in memory.
+    private static final int MEM_CACHE_HEAP_FRACTION = 8;
+    private static final int MEM_CACHE_HEAP_FRACTION_LOW_RAM = 16;
+    // Evicted entries are kept as low-res icons in a second tier of this fraction of the budget.
+    private static final int LOW_RES_TIER_FRACTION = 8;
+    // Stays well below SQLite's limit of 999 arguments per statement
+    private static final int MAX_PREFETCH_QUERY_ARGS = 500;
+
     // Empty class name is used for storing package default entry.
     private static final String EMPTY_CLASS_NAME = ".";
 
@@ -84,6 +104,9 @@ public class IconCache {
         public CharSequence title = "";
         public CharSequence contentDescription = "";
         public boolean isLowResIcon;
+
+        // Number of bytes this entry was accounted with when it was added to the memory cache.
+        int accountedBytes;
     }
 
     private final HashMap<UserHandle, Bitmap> mDefaultIcons = new HashMap<>();
@@ -95,11 +118,12 @@ public class IconCache {
     @Thunk
     final UserManagerCompat mUserManager;
     private final LauncherAppsCompat mLauncherApps;
-    private final HashMap<ComponentKey, CacheEntry> mCache =
-            new HashMap<>(INITIAL_ICON_CACHE_CAPACITY);
+    private final MemoryCache mCache;
     private final int mIconDpi;
     @Thunk
     final IconDB mIconDb;
+    // Pixels of the icons in mIconDb, which only holds their labels and versions
+    private final BitmapPackStore mIconStore;
 
     @Thunk
     final Handler mWorkerHandler;
@@ -115,7 +139,20 @@ public class IconCache {
 
     public PixelIconProvider pip;
 
-    private Canvas mLowResCanvas;
+    private final IconRenderPipeline mRenderPipeline;
+
+    // Loader statistics, guarded by the IconCache lock
+    private int mPrefetchQueryCount;
+    private int mPrefetchedCount;
+    private long mPrefetchTimeMs;
+    private int mDbLookupCount;
+    private long mDbLookupTimeMs;
+    private final ThreadLocal<Canvas> mLowResCanvas = new ThreadLocal<Canvas>() {
+        @Override
+        protected Canvas initialValue() {
+            return new Canvas();
+        }
+    };
     private Paint mLowResPaint;
 
     public IconCache(Context context, InvariantDeviceProfile inv) {
@@ -124,13 +161,25 @@ public class IconCache {
         mUserManager = UserManagerCompat.getInstance(mContext);
         mLauncherApps = LauncherAppsCompat.getInstance(mContext);
         mIconDpi = inv.fillResIconDpi;
-        mIconDb = new IconDB(context, inv.iconBitmapSize);
-        mLowResCanvas = new Canvas();
+        // The pack can be rebuilt from the apps at any time, so it belongs into the cache dir
+        mIconStore = new BitmapPackStore(
+                new File(context.getCacheDir(), LauncherFiles.APP_ICONS_PACK));
+        mIconDb = new IconDB(context, inv.iconBitmapSize, mIconStore);
+        mRenderPipeline = IconRenderPipeline.getInstance();
+        mCache = new MemoryCache(getDefaultMemCacheSize(context));
         mLowResPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
 
         pip = new PixelIconProvider(context);
 
         mWorkerHandler = new Handler(LauncherModel.getWorkerLooper());
+        // Older versions kept the pack in the files dir
+        final File oldIconStore = new File(context.getFilesDir(), LauncherFiles.APP_ICONS_PACK);
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                oldIconStore.delete();
+            }
+        });
 
         mActivityBgColor = context.getResources().getColor(R.color.quantum_panel_bg_color);
         TypedArray ta = context.obtainStyledAttributes(new int[]{R.attr.colorSecondary});
@@ -142,6 +191,13 @@ public class IconCache {
         mLowResOptions.inPreferredConfig = Bitmap.Config.RGB_565;
     }
 
+    private static int getDefaultMemCacheSize(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int fraction = am.isLowRamDevice()
+                ? MEM_CACHE_HEAP_FRACTION_LOW_RAM : MEM_CACHE_HEAP_FRACTION;
+        return am.getMemoryClass() * 1024 * 1024 / fraction;
+    }
+
     private Drawable getFullResDefaultActivityIcon() {
         return getFullResIcon(Resources.getSystem(), android.R.mipmap.sym_def_app_icon);
     }
@@ -200,7 +256,7 @@ public class IconCache {
      */
     private void removeFromMemCacheLocked(String packageName, UserHandle user) {
         HashSet<ComponentKey> forDeletion = new HashSet<>();
-        for (ComponentKey key : mCache.keySet()) {
+        for (ComponentKey key : mCache.keys()) {
             if (key.componentName.getPackageName().equals(packageName)
                     && key.user.equals(user)) {
                 forDeletion.add(key);
@@ -212,17 +268,17 @@ public class IconCache {
     }
 
     /**
-     * Updates the entries related to the given package in memory and persistent DB.
+     * Updates the entries related to the given package in memory and persistent DB. The icons
+     * are rendered without holding the cache lock, which is only taken to publish each of them.
      */
-    public synchronized void updateIconsForPkg(String packageName, UserHandle user) {
+    public void updateIconsForPkg(String packageName, UserHandle user) {
         removeIconsForPkg(packageName, user);
         try {
             PackageInfo info = mPackageManager.getPackageInfo(packageName,
                     PackageManager.GET_UNINSTALLED_PACKAGES);
             long userSerial = mUserManager.getSerialNumberForUser(user);
-            for (LauncherActivityInfoCompat app : mLauncherApps.getActivityList(packageName, user)) {
-                addIconToDBAndMemCache(app, info, userSerial);
-            }
+            addIconsToDBAndMemCache(mLauncherApps.getActivityList(packageName, user),
+                    Collections.singletonMap(packageName, info), userSerial, false);
         } catch (NameNotFoundException e) {
             Log.d(TAG, "Package not found", e);
         }
@@ -237,6 +293,7 @@ public class IconCache {
         mIconDb.delete(
                 IconDB.COLUMN_COMPONENT + " LIKE ? AND " + IconDB.COLUMN_USER + " = ?",
                 new String[]{packageName + "/%", Long.toString(userSerial)});
+        mIconStore.removeAll(userSerial + "/" + packageName + "/");
     }
 
     public void updateDbIcons(Set<String> ignorePackagesForMainUser) {
@@ -307,6 +364,7 @@ public class IconCache {
                 if (info == null) {
                     if (!ignorePackages.contains(component.getPackageName())) {
                         remove(component, user);
+                        removeFromIconStore(component, userSerial);
                         itemsToRemove.add(c.getInt(rowIndex));
                     }
                     continue;
@@ -325,6 +383,7 @@ public class IconCache {
                 }
                 if (app == null) {
                     remove(component, user);
+                    removeFromIconStore(component, userSerial);
                     itemsToRemove.add(c.getInt(rowIndex));
                 } else {
                     appsToUpdate.add(app);
@@ -352,13 +411,64 @@ public class IconCache {
         }
     }
 
+    /**
+     * Renders the icons for {@param apps} in parallel and adds them to the memory cache and the
+     * persistent DB in list order.
+     *
+     * @param replaceExisting if false, entries which already have a high-res icon in memory are
+     *                        reused instead of being rendered again.
+     */
     @Thunk
-    void addIconToDBAndMemCache(LauncherActivityInfoCompat app, PackageInfo info,
-                                long userSerial) {
-        // Reuse the existing entry if it already exists in the DB. This ensures that we do not
-        // create bitmap if it was already created during loader.
-        ContentValues values = updateCacheAndGetContentValues(app, false);
-        addIconToDB(values, app.getComponentName(), info, userSerial);
+    void addIconsToDBAndMemCache(List<LauncherActivityInfoCompat> apps,
+                                 final Map<String, PackageInfo> pkgInfoMap, final long userSerial,
+                                 final boolean replaceExisting) {
+        final HashSet<ComponentKey> reusable = new HashSet<>();
+        if (!replaceExisting) {
+            // Reuse the existing entry if it already exists in the DB. This ensures that we do not
+            // create bitmap if it was already created during loader.
+            synchronized (this) {
+                for (LauncherActivityInfoCompat app : apps) {
+                    ComponentKey key = new ComponentKey(app.getComponentName(), app.getUser());
+                    CacheEntry entry = mCache.get(key);
+                    if (entry != null && !entry.isLowResIcon && entry.icon != null) {
+                        reusable.add(key);
+                    }
+                }
+            }
+        }
+        pip.preloadIconPacks(apps);
+        mRenderPipeline.renderInOrder(apps, new IconRenderPipeline.Renderer<LauncherActivityInfoCompat>() {
+            @Override
+            public Bitmap render(LauncherActivityInfoCompat app) {
+                if (pkgInfoMap.get(app.getComponentName().getPackageName()) == null
+                        || reusable.contains(new ComponentKey(app.getComponentName(), app.getUser()))) {
+                    return null;
+                }
+                return renderIcon(app);
+            }
+        }, new IconRenderPipeline.Callback<LauncherActivityInfoCompat>() {
+            @Override
+            public void onIconRendered(LauncherActivityInfoCompat app, Bitmap icon) {
+                PackageInfo info = pkgInfoMap.get(app.getComponentName().getPackageName());
+                if (info == null) {
+                    return;
+                }
+                synchronized (IconCache.this) {
+                    ContentValues values = updateCacheAndGetContentValues(app, replaceExisting, icon);
+                    addIconToDB(values, app.getComponentName(), info, userSerial);
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates the badged full-res icon for {@param app}. This does not touch the cache and is safe
+     * to call from any thread without holding the lock.
+     */
+    private Bitmap renderIcon(LauncherActivityInfoCompat app) {
+        return Utilities.createBadgedIconBitmap(
+                pip.getIcon(app, mIconDpi), app.getUser(),
+                mContext);
     }
 
     /**
@@ -375,9 +485,12 @@ public class IconCache {
         mIconDb.insertOrReplace(values);
     }
 
+    /**
+     * @param prerenderedIcon icon to use if the entry needs a new icon, or null to render it here.
+     */
     @Thunk
     ContentValues updateCacheAndGetContentValues(LauncherActivityInfoCompat app,
-                                                 boolean replaceExisting) {
+                                                 boolean replaceExisting, Bitmap prerenderedIcon) {
         final ComponentKey key = new ComponentKey(app.getComponentName(), app.getUser());
         CacheEntry entry = null;
         if (!replaceExisting) {
@@ -389,17 +502,248 @@ public class IconCache {
         }
         if (entry == null) {
             entry = new CacheEntry();
-            entry.icon = Utilities.createBadgedIconBitmap(
-                    pip.getIcon(app, mIconDpi), app.getUser(),
-                    mContext);
+            entry.icon = prerenderedIcon != null ? prerenderedIcon : renderIcon(app);
         }
         entry.title = app.getLabel();
         entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, app.getUser());
         mCache.put(new ComponentKey(app.getComponentName(), app.getUser()), entry);
 
         Bitmap lowResIcon = generateLowResIcon(entry.icon, mActivityBgColor);
-        return newContentValues(entry.icon, lowResIcon, entry.title.toString()
-        );
+        ContentValues values = newContentValues(key.componentName,
+                mUserManager.getSerialNumberForUser(app.getUser()), entry.icon, lowResIcon,
+                entry.title.toString());
+        // The icon store has a copy of the pixels
+        BitmapPool.getInstance().release(lowResIcon);
+        return values;
+    }
+
+    /**
+     * Makes sure that the memory cache holds an entry for each of {@param apps}. Icons which are
+     * neither in memory nor in the DB are rendered in parallel, instead of one by one while holding
+     * the cache lock as {@link #getTitleAndIcon} would do, and added to the DB. Icons which are in
+     * the DB but don't fit into the memory cache any more are left to be loaded when needed.
+     */
+    public void cacheIcons(List<LauncherActivityInfoCompat> apps, final boolean useLowResIcon) {
+        ArrayList<ComponentKey> keys = new ArrayList<>(apps.size());
+        for (LauncherActivityInfoCompat app : apps) {
+            keys.add(new ComponentKey(app.getComponentName(), app.getUser()));
+        }
+        Set<ComponentKey> notFound = prefetchIcons(keys, useLowResIcon, null);
+        ArrayList<LauncherActivityInfoCompat> missing = new ArrayList<>(notFound.size());
+        if (!notFound.isEmpty()) {
+            for (int i = 0; i < apps.size(); i++) {
+                if (notFound.contains(keys.get(i))) {
+                    missing.add(apps.get(i));
+                }
+            }
+        }
+        pip.preloadIconPacks(missing);
+        final HashMap<String, PackageInfo> pkgInfoMap = new HashMap<>();
+        mRenderPipeline.renderInOrder(missing, new IconRenderPipeline.Renderer<LauncherActivityInfoCompat>() {
+            @Override
+            public Bitmap render(LauncherActivityInfoCompat app) {
+                return renderIcon(app);
+            }
+        }, new IconRenderPipeline.Callback<LauncherActivityInfoCompat>() {
+            @Override
+            public void onIconRendered(LauncherActivityInfoCompat app, Bitmap icon) {
+                if (icon == null) {
+                    return;
+                }
+                UserHandle user = app.getUser();
+                ComponentName cn = app.getComponentName();
+                Bitmap lowResIcon = generateLowResIcon(icon, mActivityBgColor);
+                CacheEntry entry = new CacheEntry();
+                entry.icon = useLowResIcon ? lowResIcon : icon;
+                entry.isLowResIcon = useLowResIcon;
+                entry.title = app.getLabel();
+                entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
+
+                String packageName = cn.getPackageName();
+                if (!pkgInfoMap.containsKey(packageName)) {
+                    pkgInfoMap.put(packageName, getPackageInfo(packageName, user));
+                }
+                PackageInfo info = pkgInfoMap.get(packageName);
+                synchronized (IconCache.this) {
+                    mCache.put(new ComponentKey(cn, user), entry);
+                    if (info != null) {
+                        // Add the icon to the DB, so that the next load finds it there
+                        long userSerial = mUserManager.getSerialNumberForUser(user);
+                        addIconToDB(newContentValues(cn, userSerial, icon, lowResIcon,
+                                entry.title.toString()), cn, info, userSerial);
+                    }
+                }
+                if (!useLowResIcon) {
+                    // The icon store has a copy of the pixels
+                    BitmapPool.getInstance().release(lowResIcon);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the {@link PackageInfo} of {@param packageName}, or null if it is not installed.
+     */
+    private PackageInfo getPackageInfo(String packageName, UserHandle user) {
+        try {
+            int flags = Utilities.myUserHandle().equals(user) ? 0 :
+                    PackageManager.GET_UNINSTALLED_PACKAGES;
+            return mPackageManager.getPackageInfo(packageName, flags);
+        } catch (NameNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Loads the persisted entries of all {@param keys} which are not in the memory cache yet using
+     * a few bulk queries, instead of one query per component when each item is bound. Rows are
+     * decoded without holding the cache lock, and prefetching stops once the memory cache is full
+     * so that it does not evict entries which are already in use.
+     *
+     * @return the keys which are not in the DB.
+     */
+    public Set<ComponentKey> prefetchIcons(Collection<ComponentKey> keys, boolean lowRes) {
+        return prefetchIcons(keys, lowRes, null);
+    }
+
+    /**
+     * @param outSkipped if not null, receives the keys which may be in the DB but were not loaded
+     *                   because the memory cache was full.
+     * @return the keys which are not in the DB.
+     * @see #prefetchIcons(Collection, boolean)
+     */
+    public Set<ComponentKey> prefetchIcons(Collection<ComponentKey> keys, boolean lowRes,
+                                           Set<ComponentKey> outSkipped) {
+        long start = SystemClock.uptimeMillis();
+        HashSet<ComponentKey> notFound = new HashSet<>();
+        HashSet<ComponentKey> absent = new HashSet<>();
+        HashMap<UserHandle, ArrayList<ComponentKey>> componentsByUser = new HashMap<>();
+        synchronized (this) {
+            for (ComponentKey key : keys) {
+                CacheEntry entry = mCache.peek(key);
+                if (entry != null && (lowRes || !entry.isLowResIcon)) {
+                    continue;
+                }
+                if (notFound.add(key)) {
+                    ArrayList<ComponentKey> components = componentsByUser.get(key.user);
+                    if (components == null) {
+                        components = new ArrayList<>();
+                        componentsByUser.put(key.user, components);
+                    }
+                    components.add(key);
+                }
+            }
+        }
+
+        int queries = 0;
+        int loaded = 0;
+        String[] columns = new String[]{IconDB.COLUMN_COMPONENT,
+                lowRes ? IconDB.COLUMN_ICON_LOW_RES : IconDB.COLUMN_ICON, IconDB.COLUMN_LABEL};
+        prefetch:
+        for (Map.Entry<UserHandle, ArrayList<ComponentKey>> userComponents
+                : componentsByUser.entrySet()) {
+            UserHandle user = userComponents.getKey();
+            long userSerial = mUserManager.getSerialNumberForUser(user);
+            String serial = Long.toString(userSerial);
+            ArrayList<ComponentKey> components = userComponents.getValue();
+            ArrayList<ComponentName> rowsWithoutIcon = new ArrayList<>();
+            for (int from = 0; from < components.size(); from += MAX_PREFETCH_QUERY_ARGS) {
+                int to = Math.min(from + MAX_PREFETCH_QUERY_ARGS, components.size());
+                String[] args = new String[to - from + 1];
+                args[0] = serial;
+                StringBuilder selection = new StringBuilder(IconDB.COLUMN_USER)
+                        .append(" = ? AND ").append(IconDB.COLUMN_COMPONENT).append(" IN (");
+                for (int i = from; i < to; i++) {
+                    selection.append(i == from ? "?" : ",?");
+                    args[i - from + 1] = components.get(i).componentName.flattenToString();
+                }
+                selection.append(')');
+
+                Cursor c = null;
+                try {
+                    c = mIconDb.query(columns, selection.toString(), args);
+                    queries++;
+                    while (c.moveToNext()) {
+                        ComponentName cn = ComponentName.unflattenFromString(c.getString(0));
+                        if (cn == null) {
+                            continue;
+                        }
+                        ComponentKey key = new ComponentKey(cn, user);
+                        CacheEntry entry = new CacheEntry();
+                        entry.icon = loadIcon(c, 1, cn, userSerial, lowRes);
+                        if (entry.icon == null) {
+                            rowsWithoutIcon.add(cn);
+                            continue;
+                        }
+                        entry.isLowResIcon = lowRes;
+                        entry.title = c.getString(2);
+                        if (entry.title == null) {
+                            entry.title = "";
+                            entry.contentDescription = "";
+                        } else {
+                            entry.contentDescription =
+                                    mUserManager.getBadgedLabelForUser(entry.title, user);
+                        }
+                        synchronized (this) {
+                            if (!notFound.remove(key)) {
+                                continue;
+                            }
+                            if (mCache.isFull()) {
+                                // Stop here, this and the remaining keys were not loaded.
+                                notFound.add(key);
+                                break prefetch;
+                            }
+                            CacheEntry existing = mCache.peek(key);
+                            if (existing == null || (existing.isLowResIcon && !lowRes)) {
+                                mCache.put(key, entry);
+                                loaded++;
+                            }
+                        }
+                    }
+                    // What is left of this query has no row, or one without an icon
+                    markAbsent(components.subList(from, to), notFound, absent);
+                } catch (SQLiteException e) {
+                    Log.d(TAG, "Error prefetching icon cache", e);
+                    markAbsent(components.subList(from, to), notFound, absent);
+                } finally {
+                    if (c != null) {
+                        c.close();
+                    }
+                    for (ComponentName cn : rowsWithoutIcon) {
+                        removeRowWithoutIcon(cn, userSerial);
+                    }
+                    rowsWithoutIcon.clear();
+                }
+            }
+        }
+
+        long duration = SystemClock.uptimeMillis() - start;
+        synchronized (this) {
+            mPrefetchQueryCount += queries;
+            mPrefetchedCount += loaded;
+            mPrefetchTimeMs += duration;
+        }
+        if (queries > 0) {
+            Log.d(TAG, "Prefetched " + loaded + " " + (lowRes ? "low-res " : "") + "icons with "
+                    + queries + " queries in " + duration + "ms");
+        }
+        if (outSkipped != null) {
+            for (ComponentKey key : notFound) {
+                if (!absent.contains(key)) {
+                    outSkipped.add(key);
+                }
+            }
+        }
+        return absent;
+    }
+
+    private static void markAbsent(List<ComponentKey> keys, Set<ComponentKey> notFound,
+                                   Set<ComponentKey> outAbsent) {
+        for (ComponentKey key : keys) {
+            if (notFound.contains(key)) {
+                outAbsent.add(key);
+            }
+        }
     }
 
     /**
@@ -560,14 +904,11 @@ public class IconCache {
         CacheEntry entry = mCache.get(cacheKey);
         if (entry == null || (entry.isLowResIcon && !useLowResIcon)) {
             entry = new CacheEntry();
-            mCache.put(cacheKey, entry);
 
             // Check the DB first.
             if (!getEntryFromDB(cacheKey, entry, useLowResIcon)) {
                 if (info != null) {
-                    entry.icon = Utilities.createBadgedIconBitmap(
-                            pip.getIcon(info, mIconDpi), info.getUser(),
-                            mContext);
+                    entry.icon = renderIcon(info);
                 } else {
                     if (usePackageIcon) {
                         CacheEntry packageEntry = getEntryForPackageLocked(
@@ -588,11 +929,13 @@ public class IconCache {
                 entry.title = info.getLabel();
                 entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
             }
+            mCache.put(cacheKey, entry);
         }
         return entry;
     }
 
     public synchronized void clear() {
+        // Also clears mIconStore
         mIconDb.clear();
     }
 
@@ -610,7 +953,6 @@ public class IconCache {
         // For icon caching, do not go through DB. Just update the in-memory entry.
         if (entry == null) {
             entry = new CacheEntry();
-            mCache.put(cacheKey, entry);
         }
         if (!TextUtils.isEmpty(title)) {
             entry.title = title;
@@ -618,6 +960,8 @@ public class IconCache {
         if (icon != null) {
             entry.icon = Utilities.createIconBitmap(icon, mContext);
         }
+        // (Re-)add the entry after changing it, so that its new size is accounted for.
+        mCache.put(cacheKey, entry);
     }
 
     private static ComponentKey getPackageKey(String packageName, UserHandle user) {
@@ -625,6 +969,10 @@ public class IconCache {
         return new ComponentKey(cn, user);
     }
 
+    private static boolean isPackageKey(ComponentKey key) {
+        return key.componentName.getClassName().endsWith(EMPTY_CLASS_NAME);
+    }
+
     /**
      * Gets an entry for the package, which can be used as a fallback entry for various components.
      * This method is not thread safe, it must be called from a synchronized method.
@@ -661,10 +1009,13 @@ public class IconCache {
 
                     // Add the icon in the DB here, since these do not get written during
                     // package updates.
-                    ContentValues values =
-                            newContentValues(icon, lowResIcon, entry.title.toString());
-                    addIconToDB(values, cacheKey.componentName, info,
-                            mUserManager.getSerialNumberForUser(user));
+                    long userSerial = mUserManager.getSerialNumberForUser(user);
+                    ContentValues values = newContentValues(cacheKey.componentName, userSerial,
+                            icon, lowResIcon, entry.title.toString());
+                    addIconToDB(values, cacheKey.componentName, info, userSerial);
+                    if (!useLowResIcon) {
+                        BitmapPool.getInstance().release(lowResIcon);
+                    }
 
                 } catch (NameNotFoundException e) {
                     entryUpdated = false;
@@ -680,6 +1031,10 @@ public class IconCache {
     }
 
     private boolean getEntryFromDB(ComponentKey cacheKey, CacheEntry entry, boolean lowRes) {
+        long start = SystemClock.uptimeMillis();
+        mDbLookupCount++;
+        long userSerial = mUserManager.getSerialNumberForUser(cacheKey.user);
+        boolean iconMissing = false;
         Cursor c = null;
         try {
             c = mIconDb.query(
@@ -687,9 +1042,13 @@ public class IconCache {
                             IconDB.COLUMN_LABEL},
                     IconDB.COLUMN_COMPONENT + " = ? AND " + IconDB.COLUMN_USER + " = ?",
                     new String[]{cacheKey.componentName.flattenToString(),
-                            Long.toString(mUserManager.getSerialNumberForUser(cacheKey.user))});
+                            Long.toString(userSerial)});
             if (c.moveToNext()) {
-                entry.icon = loadIconNoResize(c, 0, lowRes ? mLowResOptions : null);
+                entry.icon = loadIcon(c, 0, cacheKey.componentName, userSerial, lowRes);
+                if (entry.icon == null) {
+                    iconMissing = true;
+                    return false;
+                }
                 entry.isLowResIcon = lowRes;
                 entry.title = c.getString(1);
                 if (entry.title == null) {
@@ -707,6 +1066,10 @@ public class IconCache {
             if (c != null) {
                 c.close();
             }
+            if (iconMissing) {
+                removeRowWithoutIcon(cacheKey.componentName, userSerial);
+            }
+            mDbLookupTimeMs += SystemClock.uptimeMillis() - start;
         }
         return false;
     }
@@ -727,8 +1090,8 @@ public class IconCache {
 
     /**
      * A runnable that updates invalid icons and adds missing icons in the DB for the provided
-     * LauncherActivityInfoCompat list. Items are updated/added one at a time, so that the
-     * worker thread doesn't get blocked.
+     * LauncherActivityInfoCompat list. Items are updated/added in small batches which are rendered
+     * in parallel, so that the worker thread doesn't get blocked.
      */
     @Thunk
     class SerializedIconUpdateTask implements Runnable {
@@ -751,15 +1114,13 @@ public class IconCache {
         @Override
         public void run() {
             if (!mAppsToUpdate.isEmpty()) {
-                LauncherActivityInfoCompat app = mAppsToUpdate.pop();
-                String pkg = app.getComponentName().getPackageName();
-                PackageInfo info = mPkgInfoMap.get(pkg);
-                if (info != null) {
-                    synchronized (IconCache.this) {
-                        ContentValues values = updateCacheAndGetContentValues(app, true);
-                        addIconToDB(values, app.getComponentName(), info, mUserSerial);
+                List<LauncherActivityInfoCompat> batch = popBatch(mAppsToUpdate);
+                addIconsToDBAndMemCache(batch, mPkgInfoMap, mUserSerial, true);
+                for (LauncherActivityInfoCompat app : batch) {
+                    String pkg = app.getComponentName().getPackageName();
+                    if (mPkgInfoMap.containsKey(pkg)) {
+                        mUpdatedPackages.add(pkg);
                     }
-                    mUpdatedPackages.add(pkg);
                 }
                 if (mAppsToUpdate.isEmpty() && !mUpdatedPackages.isEmpty()) {
                     // No more app to update. Notify model.
@@ -770,13 +1131,7 @@ public class IconCache {
                 // Let it run one more time.
                 scheduleNext();
             } else if (!mAppsToAdd.isEmpty()) {
-                LauncherActivityInfoCompat app = mAppsToAdd.pop();
-                PackageInfo info = mPkgInfoMap.get(app.getComponentName().getPackageName());
-                if (info != null) {
-                    synchronized (IconCache.this) {
-                        addIconToDBAndMemCache(app, info, mUserSerial);
-                    }
-                }
+                addIconsToDBAndMemCache(popBatch(mAppsToAdd), mPkgInfoMap, mUserSerial, false);
 
                 if (!mAppsToAdd.isEmpty()) {
                     scheduleNext();
@@ -784,11 +1139,259 @@ public class IconCache {
             }
         }
 
+        /**
+         * Takes as many apps as the render pipeline can handle at once, so that the worker thread
+         * is only blocked for roughly the time of a single icon.
+         */
+        private List<LauncherActivityInfoCompat> popBatch(Stack<LauncherActivityInfoCompat> apps) {
+            int size = Math.min(apps.size(), mRenderPipeline.getParallelism());
+            List<LauncherActivityInfoCompat> batch = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                batch.add(apps.pop());
+            }
+            return batch;
+        }
+
         public void scheduleNext() {
             mWorkerHandler.postAtTime(this, ICON_UPDATE_TOKEN, SystemClock.uptimeMillis() + 1);
         }
     }
 
+    /**
+     * Trims the memory cache in response to {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            // Everything can be restored from the DB, so just start from scratch.
+            mCache.evictAll(false);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            // Keep what is cheap to keep, without rendering low-res copies now.
+            mCache.evictAll(true);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mCache.trimToSize(mCache.getMaxSize() / 2);
+        }
+    }
+
+    /**
+     * Changes the byte budget of the memory cache, e.g. to tune it for a device class.
+     */
+    public synchronized void setMemCacheMaxSize(int maxBytes) {
+        mCache.setMaxSize(maxBytes);
+    }
+
+    public synchronized void dumpMemCacheStats(String prefix, PrintWriter writer) {
+        writer.println(prefix + "IconCache memory: size=" + mCache.mSize + "/" + mCache.mMaxSize
+                + " lowResSize=" + mCache.mLowResSize + "/" + mCache.mLowResMaxSize
+                + " entries=" + mCache.mEntries.size() + "+" + mCache.mLowResEntries.size());
+        int requests = mCache.mHitCount + mCache.mMissCount;
+        writer.println(prefix + "  hits=" + mCache.mHitCount
+                + " lowResTierHits=" + mCache.mLowResHitCount
+                + " misses=" + mCache.mMissCount
+                + " hitRate=" + (requests == 0 ? 0 : 100 * mCache.mHitCount / requests) + "%"
+                + " evictions=" + mCache.mEvictionCount
+                + " demotions=" + mCache.mDemotionCount);
+        writer.println(prefix + "  prefetched=" + mPrefetchedCount
+                + " prefetchQueries=" + mPrefetchQueryCount
+                + " prefetchTime=" + mPrefetchTimeMs + "ms"
+                + " dbLookups=" + mDbLookupCount
+                + " dbLookupTime=" + mDbLookupTimeMs + "ms");
+    }
+
+    /**
+     * In-memory LRU cache of {@link CacheEntry}s bounded by the byte size of their icons.
+     * <p>
+     * Entries evicted from the main tier are demoted to a low-res copy which is kept in a much
+     * smaller second tier, and dropped from there on. The IconDB still holds the full and low-res
+     * version of every persisted entry, so a dropped entry only costs a DB read when needed again.
+     * Not thread safe, all access is guarded by the {@link IconCache} lock.
+     */
+    private final class MemoryCache {
+        @Thunk
+        final LinkedHashMap<ComponentKey, CacheEntry> mEntries =
+                new LinkedHashMap<>(INITIAL_ICON_CACHE_CAPACITY, 0.75f, true);
+        @Thunk
+        final LinkedHashMap<ComponentKey, CacheEntry> mLowResEntries =
+                new LinkedHashMap<>(INITIAL_ICON_CACHE_CAPACITY, 0.75f, true);
+
+        @Thunk
+        int mMaxSize;
+        @Thunk
+        int mLowResMaxSize;
+        @Thunk
+        int mSize;
+        @Thunk
+        int mLowResSize;
+
+        @Thunk
+        int mHitCount;
+        @Thunk
+        int mLowResHitCount;
+        @Thunk
+        int mMissCount;
+        @Thunk
+        int mEvictionCount;
+        @Thunk
+        int mDemotionCount;
+
+        MemoryCache(int maxSize) {
+            setMaxSize(maxSize);
+        }
+
+        int getMaxSize() {
+            return mMaxSize;
+        }
+
+        void setMaxSize(int maxSize) {
+            mMaxSize = maxSize;
+            mLowResMaxSize = maxSize / LOW_RES_TIER_FRACTION;
+            trimToSize(mMaxSize);
+        }
+
+        CacheEntry get(ComponentKey key) {
+            CacheEntry entry = mEntries.get(key);
+            if (entry != null) {
+                mHitCount++;
+                return entry;
+            }
+            entry = mLowResEntries.remove(key);
+            if (entry != null) {
+                // Promote back into the main tier, callers needing the full-res icon will
+                // replace it anyway.
+                mLowResSize -= entry.accountedBytes;
+                mLowResHitCount++;
+                mHitCount++;
+                put(key, entry);
+                return entry;
+            }
+            mMissCount++;
+            return null;
+        }
+
+        /**
+         * Returns the entry for {@param key} without counting the lookup or promoting it.
+         */
+        CacheEntry peek(ComponentKey key) {
+            CacheEntry entry = mEntries.get(key);
+            return entry != null ? entry : mLowResEntries.get(key);
+        }
+
+        boolean isFull() {
+            return mSize >= mMaxSize;
+        }
+
+        void put(ComponentKey key, CacheEntry entry) {
+            remove(key);
+            entry.accountedBytes = sizeOf(entry);
+            mEntries.put(key, entry);
+            mSize += entry.accountedBytes;
+            trimToSize(mMaxSize);
+        }
+
+        void remove(ComponentKey key) {
+            CacheEntry entry = mEntries.remove(key);
+            if (entry != null) {
+                mSize -= entry.accountedBytes;
+            }
+            entry = mLowResEntries.remove(key);
+            if (entry != null) {
+                mLowResSize -= entry.accountedBytes;
+            }
+        }
+
+        /**
+         * Returns a copy of the keys in both tiers.
+         */
+        List<ComponentKey> keys() {
+            ArrayList<ComponentKey> keys =
+                    new ArrayList<>(mEntries.size() + mLowResEntries.size());
+            keys.addAll(mEntries.keySet());
+            keys.addAll(mLowResEntries.keySet());
+            return keys;
+        }
+
+        void trimToSize(int maxSize) {
+            Iterator<Map.Entry<ComponentKey, CacheEntry>> it =
+                    mEntries.entrySet().iterator();
+            while (mSize > maxSize && it.hasNext()) {
+                Map.Entry<ComponentKey, CacheEntry> eldest = it.next();
+                it.remove();
+                mSize -= eldest.getValue().accountedBytes;
+                mEvictionCount++;
+                demote(eldest.getKey(), eldest.getValue());
+            }
+        }
+
+        /**
+         * Drops all entries from the main tier. Unlike {@link #trimToSize}, this never creates
+         * low-res copies, which would allocate while the memory is needed elsewhere and hold the
+         * cache lock for all of them.
+         *
+         * @param keepLowRes whether to keep the low-res tier and move the entries which only hold
+         *                   a low-res icon anyway there.
+         */
+        void evictAll(boolean keepLowRes) {
+            if (keepLowRes) {
+                Iterator<Map.Entry<ComponentKey, CacheEntry>> it =
+                        mEntries.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<ComponentKey, CacheEntry> entry = it.next();
+                    it.remove();
+                    mEvictionCount++;
+                    if (entry.getValue().isLowResIcon && entry.getValue().icon != null
+                            && !isSharedIcon(entry.getValue().icon)) {
+                        addLowRes(entry.getKey(), entry.getValue());
+                    }
+                }
+                mSize = 0;
+            } else {
+                mEvictionCount += mEntries.size();
+                mEntries.clear();
+                mLowResEntries.clear();
+                mSize = 0;
+                mLowResSize = 0;
+            }
+        }
+
+        private void demote(ComponentKey key, CacheEntry entry) {
+            if (entry.icon == null || isSharedIcon(entry.icon)) {
+                return;
+            }
+            CacheEntry lowRes = entry;
+            if (!entry.isLowResIcon) {
+                lowRes = new CacheEntry();
+                lowRes.icon = generateLowResIcon(entry.icon,
+                        isPackageKey(key) ? mPackageBgColor : mActivityBgColor);
+                lowRes.title = entry.title;
+                lowRes.contentDescription = entry.contentDescription;
+                lowRes.isLowResIcon = true;
+            }
+            addLowRes(key, lowRes);
+            mDemotionCount++;
+        }
+
+        private void addLowRes(ComponentKey key, CacheEntry lowRes) {
+            lowRes.accountedBytes = sizeOf(lowRes);
+            mLowResEntries.put(key, lowRes);
+            mLowResSize += lowRes.accountedBytes;
+
+            Iterator<CacheEntry> it = mLowResEntries.values().iterator();
+            while (mLowResSize > mLowResMaxSize && it.hasNext()) {
+                mLowResSize -= it.next().accountedBytes;
+                it.remove();
+            }
+        }
+
+        private int sizeOf(CacheEntry entry) {
+            // Default icons are shared between entries and never freed, don't account for them.
+            return entry.icon == null || isSharedIcon(entry.icon)
+                    ? 0 : entry.icon.getAllocationByteCount();
+        }
+
+        private boolean isSharedIcon(Bitmap icon) {
+            return mDefaultIcons.containsValue(icon);
+        }
+    }
+
     private static final class IconDB extends SQLiteCacheHelper {
         private final static int DB_VERSION = 10;
 
@@ -805,10 +1408,20 @@ public class IconCache {
         private final static String COLUMN_LABEL = "label";
         private final static String COLUMN_SYSTEM_STATE = "system_state";
 
-        public IconDB(Context context, int iconPixelSize) {
+        private final BitmapPackStore mIconStore;
+
+        public IconDB(Context context, int iconPixelSize, BitmapPackStore iconStore) {
             super(context, LauncherFiles.APP_ICONS_DB,
                     (RELEASE_VERSION << 16) + iconPixelSize,
                     TABLE_NAME);
+            mIconStore = iconStore;
+            setBatchedWrites(COLUMN_COMPONENT, COLUMN_USER);
+        }
+
+        @Override
+        protected void onTableReset() {
+            // The pixels are only valid together with the rows which refer to them
+            mIconStore.clear();
         }
 
         @Override
@@ -827,10 +1440,18 @@ public class IconCache {
         }
     }
 
-    private ContentValues newContentValues(Bitmap icon, Bitmap lowResIcon, String label) {
+    /**
+     * Stores the icons of the entry in the pack file and returns the values for the DB row.
+     */
+    private ContentValues newContentValues(ComponentName cn, long userSerial, Bitmap icon,
+                                           Bitmap lowResIcon, String label) {
+        mIconStore.put(getIconStoreKey(cn, userSerial, false), icon);
+        mIconStore.put(getIconStoreKey(cn, userSerial, true), lowResIcon);
+
         ContentValues values = new ContentValues();
-        values.put(IconDB.COLUMN_ICON, Utilities.flattenBitmap(icon));
-        values.put(IconDB.COLUMN_ICON_LOW_RES, Utilities.flattenBitmap(lowResIcon));
+        // Rows written before the pack file existed may still hold PNG blobs, clear them.
+        values.putNull(IconDB.COLUMN_ICON);
+        values.putNull(IconDB.COLUMN_ICON_LOW_RES);
 
         values.put(IconDB.COLUMN_LABEL, label);
         values.put(IconDB.COLUMN_SYSTEM_STATE, Locale.getDefault().toString());
@@ -844,21 +1465,52 @@ public class IconCache {
     private Bitmap generateLowResIcon(Bitmap icon, int lowResBackgroundColor) {
         int dstWidth = Math.max(1, icon.getWidth() / LOW_RES_SCALE_FACTOR);
         int dstHeight = Math.max(1, icon.getHeight() / LOW_RES_SCALE_FACTOR);
-        if (lowResBackgroundColor == Color.TRANSPARENT) {
-            return Bitmap.createScaledBitmap(icon, dstWidth, dstHeight, true);
-        } else {
-            Bitmap lowResIcon = Bitmap.createBitmap(dstWidth,
-                    dstHeight, Bitmap.Config.RGB_565);
-            synchronized (this) {
-                mLowResCanvas.setBitmap(lowResIcon);
-                mLowResCanvas.drawColor(lowResBackgroundColor);
-                mLowResCanvas.drawBitmap(icon, new Rect(0, 0, icon.getWidth(), icon.getHeight()),
-                        new Rect(0, 0, lowResIcon.getWidth(), lowResIcon.getHeight()),
-                        mLowResPaint);
-                mLowResCanvas.setBitmap(null);
-            }
-            return lowResIcon;
+        boolean opaque = lowResBackgroundColor != Color.TRANSPARENT;
+        Bitmap lowResIcon = BitmapPool.getInstance().get(dstWidth, dstHeight,
+                opaque ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888);
+        Canvas canvas = mLowResCanvas.get();
+        canvas.setBitmap(lowResIcon);
+        if (opaque) {
+            canvas.drawColor(lowResBackgroundColor);
+        }
+        canvas.drawBitmap(icon, new Rect(0, 0, icon.getWidth(), icon.getHeight()),
+                new Rect(0, 0, lowResIcon.getWidth(), lowResIcon.getHeight()),
+                mLowResPaint);
+        canvas.setBitmap(null);
+        return lowResIcon;
+    }
+
+    private static String getIconStoreKey(ComponentName cn, long userSerial, boolean lowRes) {
+        // Keys start with the user and package so that all icons of a package can be removed
+        // by prefix.
+        return userSerial + "/" + cn.flattenToString() + (lowRes ? "#low" : "");
+    }
+
+    /**
+     * Drops a row whose icon is missing from the pack file, e.g. because the file was deleted,
+     * so that the next {@link #updateDbIcons} adds the icon again.
+     */
+    private void removeRowWithoutIcon(ComponentName cn, long userSerial) {
+        mIconDb.delete(IconDB.COLUMN_COMPONENT + " = ? AND " + IconDB.COLUMN_USER + " = ?",
+                new String[]{cn.flattenToString(), Long.toString(userSerial)});
+    }
+
+    private void removeFromIconStore(ComponentName cn, long userSerial) {
+        mIconStore.remove(getIconStoreKey(cn, userSerial, false));
+        mIconStore.remove(getIconStoreKey(cn, userSerial, true));
+    }
+
+    /**
+     * Loads the icon of the current row from the pack file, or from the PNG blob at
+     * {@param iconIndex} for rows written before the pack file existed.
+     */
+    private Bitmap loadIcon(Cursor c, int iconIndex, ComponentName cn, long userSerial,
+                            boolean lowRes) {
+        Bitmap icon = mIconStore.get(getIconStoreKey(cn, userSerial, lowRes));
+        if (icon == null && !c.isNull(iconIndex)) {
+            icon = loadIconNoResize(c, iconIndex, lowRes ? mLowResOptions : null);
         }
+        return icon;
     }
 
     private static Bitmap loadIconNoResize(Cursor c, int iconIndex, BitmapFactory.Options options) {
@@ -0,0 +1,219 @@
+package ch.deletescape.lawnchair;
+
+import android.content.ComponentName;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import ch.deletescape.lawnchair.shortcuts.ShortcutKey;
+import ch.deletescape.lawnchair.util.ComponentKey;
+import ch.deletescape.lawnchair.util.PackageUserKey;
+
+/**
+ * Index of values bound to {@link ItemInfo}s, like their views, by the package, component or deep
+ * shortcut they target.
+ * <p>
+ * Items are indexed by their target when they are added. Items which changed their target in
+ * place, like promise icons of restored apps, have to be re-indexed with {@link #reindex}.
+ * The lists returned by lookups must not be modified.
+ */
+class ItemKeyIndex<T> {
+
+    private final HashMap<PackageUserKey, ArrayList<T>> mByPackage = new HashMap<>();
+    private final HashMap<ComponentKey, ArrayList<T>> mByComponent = new HashMap<>();
+    private final HashMap<ShortcutKey, ArrayList<T>> mByShortcut = new HashMap<>();
+    private final ArrayList<T> mWithoutPackage = new ArrayList<>();
+    // ItemInfo does not override equals, so this is keyed by instance
+    private final HashMap<ItemInfo, Entry<T>> mEntries = new HashMap<>();
+
+    void add(ItemInfo info, T value) {
+        Entry<T> entry = new Entry<>(value, Keys.of(info));
+        Entry<T> previous = mEntries.put(info, entry);
+        if (previous != null) {
+            remove(previous);
+        }
+        add(entry);
+    }
+
+    /**
+     * Moves the value of {@code info} to the keys of its current target.
+     *
+     * @return false if it is not indexed or its target did not change.
+     */
+    boolean reindex(ItemInfo info) {
+        Entry<T> entry = mEntries.get(info);
+        if (entry == null) {
+            return false;
+        }
+        Keys keys = Keys.of(info);
+        if (keys.equals(entry.keys)) {
+            return false;
+        }
+        remove(entry);
+        entry.keys = keys;
+        add(entry);
+        return true;
+    }
+
+    void clear() {
+        mByPackage.clear();
+        mByComponent.clear();
+        mByShortcut.clear();
+        mWithoutPackage.clear();
+        mEntries.clear();
+    }
+
+    int size() {
+        return mEntries.size();
+    }
+
+    int getPackageCount() {
+        return mByPackage.size();
+    }
+
+    /**
+     * Returns the value of {@code info}, or null if it is not indexed.
+     */
+    T get(ItemInfo info) {
+        Entry<T> entry = mEntries.get(info);
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Returns the values of all items targeting the package of {@code key}.
+     */
+    List<T> getForPackage(PackageUserKey key) {
+        return nonNull(mByPackage.get(key));
+    }
+
+    /**
+     * Returns the values of all apps, shortcuts and widgets targeting the component of
+     * {@code key}, not including deep shortcuts.
+     */
+    List<T> getForComponent(ComponentKey key) {
+        return nonNull(mByComponent.get(key));
+    }
+
+    /**
+     * Returns the values of all deep shortcuts for {@code key}.
+     */
+    List<T> getForShortcut(ShortcutKey key) {
+        return nonNull(mByShortcut.get(key));
+    }
+
+    /**
+     * Returns the values of items which don't target a component, like bookmarks.
+     */
+    List<T> getWithoutPackage() {
+        return mWithoutPackage;
+    }
+
+    private void add(Entry<T> entry) {
+        Keys keys = entry.keys;
+        if (keys.packageKey == null) {
+            mWithoutPackage.add(entry.value);
+            return;
+        }
+        put(mByPackage, keys.packageKey, entry.value);
+        if (keys.shortcutKey != null) {
+            put(mByShortcut, keys.shortcutKey, entry.value);
+        } else {
+            put(mByComponent, keys.componentKey, entry.value);
+        }
+    }
+
+    private void remove(Entry<T> entry) {
+        Keys keys = entry.keys;
+        if (keys.packageKey == null) {
+            mWithoutPackage.remove(entry.value);
+            return;
+        }
+        remove(mByPackage, keys.packageKey, entry.value);
+        if (keys.shortcutKey != null) {
+            remove(mByShortcut, keys.shortcutKey, entry.value);
+        } else {
+            remove(mByComponent, keys.componentKey, entry.value);
+        }
+    }
+
+    private static <K, T> void put(HashMap<K, ArrayList<T>> map, K key, T value) {
+        ArrayList<T> values = map.get(key);
+        if (values == null) {
+            values = new ArrayList<>(1);
+            map.put(key, values);
+        }
+        values.add(value);
+    }
+
+    private static <K, T> void remove(HashMap<K, ArrayList<T>> map, K key, T value) {
+        ArrayList<T> values = map.get(key);
+        if (values != null && values.remove(value) && values.isEmpty()) {
+            map.remove(key);
+        }
+    }
+
+    private List<T> nonNull(ArrayList<T> values) {
+        return values == null ? Collections.<T>emptyList() : values;
+    }
+
+    private static class Entry<T> {
+        final T value;
+        Keys keys;
+
+        Entry(T value, Keys keys) {
+            this.value = value;
+            this.keys = keys;
+        }
+    }
+
+    /**
+     * The keys an item is indexed by.
+     */
+    private static class Keys {
+        final PackageUserKey packageKey;
+        final ComponentKey componentKey;
+        final ShortcutKey shortcutKey;
+
+        private Keys(PackageUserKey packageKey, ComponentKey componentKey,
+                     ShortcutKey shortcutKey) {
+            this.packageKey = packageKey;
+            this.componentKey = componentKey;
+            this.shortcutKey = shortcutKey;
+        }
+
+        static Keys of(ItemInfo info) {
+            ComponentName target = info instanceof LauncherAppWidgetInfo
+                    ? ((LauncherAppWidgetInfo) info).providerName : info.getTargetComponent();
+            if (target == null || info.user == null) {
+                return new Keys(null, null, null);
+            }
+            PackageUserKey packageKey = new PackageUserKey(target.getPackageName(), info.user);
+            if (info.itemType == LauncherSettings.Favorites.ITEM_TYPE_DEEP_SHORTCUT) {
+                return new Keys(packageKey, null, ShortcutKey.fromItemInfo(info));
+            }
+            return new Keys(packageKey, new ComponentKey(target, info.user), null);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Keys)) {
+                return false;
+            }
+            Keys other = (Keys) o;
+            return equals(packageKey, other.packageKey)
+                    && equals(componentKey, other.componentKey)
+                    && equals(shortcutKey, other.shortcutKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return packageKey == null ? 0 : packageKey.hashCode();
+        }
+
+        private static boolean equals(Object a, Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
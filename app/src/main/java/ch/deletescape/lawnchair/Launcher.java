@@ -81,6 +81,8 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -92,6 +94,7 @@ import ch.deletescape.lawnchair.DropTarget.DragObject;
 import ch.deletescape.lawnchair.LauncherSettings.Favorites;
 import ch.deletescape.lawnchair.accessibility.LauncherAccessibilityDelegate;
 import ch.deletescape.lawnchair.allapps.AllAppsContainerView;
+import ch.deletescape.lawnchair.allapps.AppLaunchTracker;
 import ch.deletescape.lawnchair.allapps.AllAppsIconRowView;
 import ch.deletescape.lawnchair.allapps.AllAppsTransitionController;
 import ch.deletescape.lawnchair.allapps.UnicodeStrippedAppSearchController;
@@ -122,12 +125,14 @@ import ch.deletescape.lawnchair.shortcuts.DeepShortcutManager;
 import ch.deletescape.lawnchair.shortcuts.ShortcutKey;
 import ch.deletescape.lawnchair.shortcuts.ShortcutsItemView;
 import ch.deletescape.lawnchair.util.ActivityResultInfo;
+import ch.deletescape.lawnchair.util.BitmapPool;
 import ch.deletescape.lawnchair.util.ComponentKey;
 import ch.deletescape.lawnchair.util.ItemInfoMatcher;
 import ch.deletescape.lawnchair.util.MultiHashMap;
 import ch.deletescape.lawnchair.util.PackageManagerHelper;
 import ch.deletescape.lawnchair.util.PackageUserKey;
 import ch.deletescape.lawnchair.util.PendingRequestArgs;
+import ch.deletescape.lawnchair.util.TaskScheduler;
 import ch.deletescape.lawnchair.util.Thunk;
 import ch.deletescape.lawnchair.util.ViewOnDrawExecutor;
 import ch.deletescape.lawnchair.widget.PendingAddWidgetInfo;
@@ -2109,13 +2114,14 @@ public class Launcher extends Activity
         if (appWidgetHost != null && widgetInfo.isWidgetIdAllocated()) {
             // Deleting an app widget ID is a void call but writes to disk before returning
             // to the caller...
-            new AsyncTask<Void, Void, Void>() {
-                @Override
-                public Void doInBackground(Void... args) {
-                    appWidgetHost.deleteAppWidgetId(widgetInfo.appWidgetId);
-                    return null;
-                }
-            }.executeOnExecutor(Utilities.THREAD_POOL_EXECUTOR);
+            TaskScheduler.getInstance().executeAsyncTask(TaskScheduler.LANE_BACKGROUND,
+                    new AsyncTask<Void, Void, Void>() {
+                        @Override
+                        public Void doInBackground(Void... args) {
+                            appWidgetHost.deleteAppWidgetId(widgetInfo.appWidgetId);
+                            return null;
+                        }
+                    });
         }
         LauncherModel.deleteItemFromDatabase(this, widgetInfo);
     }
@@ -2594,6 +2600,7 @@ public class Launcher extends Activity
                 LauncherAppsCompat.getInstance(this).startActivityForProfile(
                         intent.getComponent(), user, intent.getSourceBounds(), optsBundle);
             }
+            AppLaunchTracker.getInstance(this).onItemLaunched(item);
             return true;
         } catch (ActivityNotFoundException | SecurityException e) {
             Toast.makeText(this, R.string.activity_not_found, Toast.LENGTH_SHORT).show();
@@ -2909,6 +2916,22 @@ public class Launcher extends Activity
             // This clears all widget bitmaps from the widget tray
             // TODO(hyunyoungs)
         }
+        mIconCache.trimMemory(level);
+        BitmapPool.getInstance().trimMemory(level);
+    }
+
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        mIconCache.dumpMemCacheStats(prefix, writer);
+        mBlurWallpaperProvider.dump(prefix, writer, args);
+        TaskScheduler.getInstance().dump(prefix, writer);
+        BitmapPool.getInstance().dump(prefix, writer);
+        NotificationListener.dump(prefix, writer);
+        LauncherAppState.getInstance().getWidgetCache().dump(prefix, writer);
+        if (mWorkspace != null) {
+            mWorkspace.dumpItemIndex(prefix, writer);
+        }
     }
 
     public boolean showWorkspace(boolean animated) {
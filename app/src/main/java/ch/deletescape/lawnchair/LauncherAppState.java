@@ -36,6 +36,7 @@ public class LauncherAppState {
     final LauncherModel mModel;
     private final IconCache mIconCache;
     private final WidgetPreviewLoader mWidgetCache;
+    private final PreferenceAppFilter mAppFilter;
 
     @Thunk
     boolean mWallpaperChangedSinceLastCheck;
@@ -88,7 +89,8 @@ public class LauncherAppState {
         mIconCache = new IconCache(sContext, mInvariantDeviceProfile);
         mWidgetCache = new WidgetPreviewLoader(sContext, mIconCache);
 
-        mModel = new LauncherModel(this, mIconCache, new StringSetAppFilter(), DeepShortcutManager.getInstance(getContext()));
+        mAppFilter = new StringSetAppFilter();
+        mModel = new LauncherModel(this, mIconCache, mAppFilter, DeepShortcutManager.getInstance(getContext()));
 
         LauncherAppsCompat.getInstance(sContext).addOnAppsChangedCallback(mModel);
 
@@ -160,6 +162,13 @@ public class LauncherAppState {
         return mWidgetCache;
     }
 
+    /**
+     * Returns the filter shared by all app lists, which also knows which apps are hidden.
+     */
+    public PreferenceAppFilter getAppFilter() {
+        return mAppFilter;
+    }
+
     public boolean hasWallpaperChangedSinceLastCheck() {
         boolean result = mWallpaperChangedSinceLastCheck;
         mWallpaperChangedSinceLastCheck = false;
@@ -9,8 +9,15 @@ public class LauncherFiles {
     public static final String SHARED_PREFERENCES_KEY = BuildConfig.APPLICATION_ID + "_preferences";
     public static final String OLD_SHARED_PREFERENCES_KEY = "ch.deletescape.lawnchair.prefs";
     public static final String MANAGED_USER_PREFERENCES_KEY = "ch.deletescape.lawnchair.managedusers.prefs";
+    public static final String APP_LAUNCH_COUNTS_PREFERENCES_KEY = "ch.deletescape.lawnchair.launchcounts.prefs";
+    public static final String WALLPAPER_COLORS_PREFERENCES_KEY = "ch.deletescape.lawnchair.wallpapercolors.prefs";
+    public static final String WEATHER_CACHE_PREFERENCES_KEY = "ch.deletescape.lawnchair.weathercache.prefs";
 
     public static final String WIDGET_PREVIEWS_DB = "widgetpreviews.db";
     public static final String APP_ICONS_DB = "app_icons.db";
+    public static final String APP_ICONS_PACK = "app_icons.pack";
     public static final String APP_SHORTCUTS_DB = "app_shortcuts.db";
+
+    public static final String ICON_PACK_CACHE_DIR = "icon_packs";
+    public static final String BLURRED_WALLPAPER_CACHE = "blurred_wallpaper";
 }
@@ -36,6 +36,7 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Parcelable;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.BaseColumns;
 import android.support.annotation.NonNull;
@@ -60,7 +61,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 import ch.deletescape.lawnchair.blur.BlurWallpaperProvider;
 import ch.deletescape.lawnchair.compat.AppWidgetManagerCompat;
@@ -93,6 +97,7 @@ import ch.deletescape.lawnchair.util.PackageManagerHelper;
 import ch.deletescape.lawnchair.util.PackageUserKey;
 import ch.deletescape.lawnchair.util.Provider;
 import ch.deletescape.lawnchair.util.StringFilter;
+import ch.deletescape.lawnchair.util.TaskScheduler;
 import ch.deletescape.lawnchair.util.Thunk;
 import ch.deletescape.lawnchair.util.ViewOnDrawExecutor;
 
@@ -1466,6 +1471,39 @@ public class LauncherModel extends BroadcastReceiver
                 screensUri, null, null, null, LauncherSettings.WorkspaceScreens.SCREEN_RANK));
     }
 
+    /**
+     * The launchable activities of a single profile, as queried by {@link ProfileActivitiesQuery}.
+     */
+    private static class ProfileActivities {
+        final UserHandle user;
+        final List<LauncherActivityInfoCompat> apps;
+        final boolean quietMode;
+
+        ProfileActivities(UserHandle user, List<LauncherActivityInfoCompat> apps,
+                          boolean quietMode) {
+            this.user = user;
+            this.apps = apps;
+            this.quietMode = quietMode;
+        }
+    }
+
+    private class ProfileActivitiesQuery implements Callable<ProfileActivities> {
+        private final UserHandle mUser;
+
+        ProfileActivitiesQuery(UserHandle user) {
+            mUser = user;
+        }
+
+        @Override
+        public ProfileActivities call() {
+            List<LauncherActivityInfoCompat> apps = mLauncherApps.getActivityList(null, mUser);
+            if (apps == null) {
+                apps = Collections.emptyList();
+            }
+            return new ProfileActivities(mUser, apps, mUserManager.isQuietModeEnabled(mUser));
+        }
+    }
+
     /**
      * Runnable for the thread that loads the contents of the launcher:
      * - workspace icons
@@ -1752,6 +1790,46 @@ public class LauncherModel extends BroadcastReceiver
             }
         }
 
+        /**
+         * Reads the icons of all apps on the workspace from the IconDB with a few bulk queries,
+         * so that loading the items does not query the DB once per item. Leaves the cursor
+         * before the first row.
+         */
+        private void prefetchWorkspaceIcons(Cursor c, int itemTypeIndex, int intentIndex,
+                                            int containerIndex, int rankIndex, int profileIdIndex,
+                                            LongSparseArray<UserHandle> allUsers) {
+            ArrayList<ComponentKey> icons = new ArrayList<>();
+            ArrayList<ComponentKey> lowResIcons = new ArrayList<>();
+            while (!mStopped && c.moveToNext()) {
+                if (c.getInt(itemTypeIndex) != LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
+                    continue;
+                }
+                UserHandle user = allUsers.get(c.getInt(profileIdIndex));
+                String intentDescription = c.getString(intentIndex);
+                if (user == null || intentDescription == null) {
+                    continue;
+                }
+                try {
+                    ComponentName cn = Intent.parseUri(intentDescription, 0).getComponent();
+                    if (cn == null) {
+                        continue;
+                    }
+                    // Same as when the item is loaded, only folder previews need full-res icons
+                    if (c.getInt(containerIndex) >= 0 &&
+                            c.getInt(rankIndex) >= FolderIcon.NUM_ITEMS_IN_PREVIEW) {
+                        lowResIcons.add(new ComponentKey(cn, user));
+                    } else {
+                        icons.add(new ComponentKey(cn, user));
+                    }
+                } catch (URISyntaxException e) {
+                    // The item is removed when it is loaded
+                }
+            }
+            c.moveToPosition(-1);
+            mIconCache.prefetchIcons(icons, false);
+            mIconCache.prefetchIcons(lowResIcons, true);
+        }
+
         private void loadWorkspace() {
             final Context context = mContext;
             final ContentResolver contentResolver = context.getContentResolver();
@@ -1859,6 +1937,9 @@ public class LauncherModel extends BroadcastReceiver
                         unlockedUsers.put(serialNo, userUnlocked);
                     }
 
+                    prefetchWorkspaceIcons(c, itemTypeIndex, intentIndex, containerIndex,
+                            rankIndex, profileIdIndex, allUsers);
+
                     ShortcutInfo info;
                     String intentDescription;
                     LauncherAppWidgetInfo appWidgetInfo;
@@ -2771,6 +2852,7 @@ public class LauncherModel extends BroadcastReceiver
         }
 
         public void loadAllApps() {
+            final long loadStartTime = SystemClock.uptimeMillis();
 
             final Callbacks oldCallbacks = mCallbacks.get();
             if (oldCallbacks == null) {
@@ -2783,24 +2865,60 @@ public class LauncherModel extends BroadcastReceiver
 
             // Clear the list of apps
             mBgAllAppsList.clear();
-            for (UserHandle user : profiles) {
-                // Query for the set of apps
-                final List<LauncherActivityInfoCompat> apps = mLauncherApps.getActivityList(null, user);
+
+            // Query the profiles concurrently, every profile is a separate round trip to the
+            // system server. The first one is queried on this thread while the others are running.
+            ArrayList<FutureTask<ProfileActivities>> queries = new ArrayList<>(profiles.size());
+            for (int i = 1; i < profiles.size(); i++) {
+                FutureTask<ProfileActivities> query =
+                        new FutureTask<>(new ProfileActivitiesQuery(profiles.get(i)));
+                TaskScheduler.getInstance().execute(TaskScheduler.LANE_UI, query);
+                queries.add(query);
+            }
+            ArrayList<ProfileActivities> profileActivities = new ArrayList<>(profiles.size());
+            if (!profiles.isEmpty()) {
+                profileActivities.add(new ProfileActivitiesQuery(profiles.get(0)).call());
+            }
+            for (int i = 0; i < queries.size(); i++) {
+                try {
+                    profileActivities.add(queries.get(i).get());
+                } catch (InterruptedException | ExecutionException e) {
+                    // Query it again on this thread as if it was loaded sequentially, rather than
+                    // binding all apps without those of this profile.
+                    Log.w(TAG, "Failed to query apps for " + profiles.get(i + 1) + ", retrying", e);
+                    profileActivities.add(new ProfileActivitiesQuery(profiles.get(i + 1)).call());
+                }
+            }
+            final long queryTime = SystemClock.uptimeMillis();
+
+            // Render all missing icons up front, so that they don't get created one by one below.
+            // All profiles go through the render pipeline together to keep every worker busy.
+            ArrayList<LauncherActivityInfoCompat> allActivities = new ArrayList<>();
+            for (ProfileActivities profile : profileActivities) {
+                allActivities.addAll(profile.apps);
+            }
+            mIconCache.cacheIcons(allActivities, true);
+            final long iconTime = SystemClock.uptimeMillis();
+
+            // Merge the profiles in their original order, so that the list is the same as if they
+            // were loaded one by one.
+            for (ProfileActivities profile : profileActivities) {
+                final List<LauncherActivityInfoCompat> apps = profile.apps;
                 // Fail if we don't have any apps
                 // TODO: Fix this. Only fail for the current user.
-                if (apps == null || apps.isEmpty()) {
-                    //return;
+                if (apps.isEmpty()) {
                     continue;
                 }
-                boolean quietMode = mUserManager.isQuietModeEnabled(user);
                 // Create the ApplicationInfos
                 for (int i = 0; i < apps.size(); i++) {
                     LauncherActivityInfoCompat app = apps.get(i);
-                    // This builds the icon bitmaps.
-                    mBgAllAppsList.add(new AppInfo(mContext, app, user, mIconCache, quietMode), mContext);
+                    // The icons are already cached, so this is only a lookup.
+                    mBgAllAppsList.add(new AppInfo(mContext, app, profile.user, mIconCache,
+                            profile.quietMode), mContext);
                 }
 
-                final ManagedProfileHeuristic heuristic = ManagedProfileHeuristic.get(mContext, user);
+                final ManagedProfileHeuristic heuristic =
+                        ManagedProfileHeuristic.get(mContext, profile.user);
                 if (heuristic != null) {
                     final Runnable r = new Runnable() {
 
@@ -2829,6 +2947,12 @@ public class LauncherModel extends BroadcastReceiver
             // Huh? Shouldn't this be inside the Runnable below?
             final ArrayList<AppInfo> added = mBgAllAppsList.added;
             mBgAllAppsList.added = new ArrayList<>();
+            final long mergeTime = SystemClock.uptimeMillis();
+
+            Log.d(TAG, "loadAllApps: " + added.size() + " apps in " + profiles.size()
+                    + " profiles, query " + (queryTime - loadStartTime)
+                    + "ms, icons " + (iconTime - queryTime)
+                    + "ms, merge " + (mergeTime - iconTime) + "ms");
 
             // Post callback on main thread
             mHandler.post(new Runnable() {
@@ -2836,7 +2960,12 @@ public class LauncherModel extends BroadcastReceiver
                 public void run() {
                     final Callbacks callbacks = tryGetCallbacks(oldCallbacks);
                     if (callbacks != null) {
+                        final long bindStartTime = SystemClock.uptimeMillis();
                         callbacks.bindAllApplications(added);
+                        final long bindEndTime = SystemClock.uptimeMillis();
+                        Log.d(TAG, "bindAllApplications: waited "
+                                + (bindStartTime - mergeTime) + "ms, bound in "
+                                + (bindEndTime - bindStartTime) + "ms");
                     } else {
                         Log.i(TAG, "not binding apps: no Launcher activity");
                     }
@@ -2,16 +2,98 @@ package ch.deletescape.lawnchair;
 
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 import ch.deletescape.lawnchair.preferences.IPreferenceProvider;
+import ch.deletescape.lawnchair.preferences.PreferenceFlags;
+
+/**
+ * Hides the apps which the user chose to hide, unless hidden apps should be shown.
+ * <p>
+ * The preferences are compiled into an immutable snapshot, which is only rebuilt when they
+ * change, so that filtering an app is a single set lookup and safe on any thread.
+ */
+public class PreferenceAppFilter implements AppFilter,
+        SharedPreferences.OnSharedPreferenceChangeListener {
 
-public class PreferenceAppFilter implements AppFilter {
+    private volatile Snapshot mSnapshot;
 
     @Override
     public boolean shouldShowApp(ComponentName app, Context context) {
-        if (app.getPackageName().equals(context.getPackageName()))
+        Snapshot snapshot = getSnapshot(context);
+        if (app.getPackageName().equals(snapshot.ownPackage))
             return false;
-        IPreferenceProvider prefs = Utilities.getPrefs(context);
-        return prefs.getShowHidden() || !Utilities.isAppHidden(context, app.flattenToString());
+        return snapshot.showHidden || !snapshot.hiddenComponents.contains(app);
+    }
+
+    /**
+     * Returns whether the component flattened to {@code key} is hidden by the user.
+     */
+    public boolean isHidden(Context context, String key) {
+        return getSnapshot(context).hiddenKeys.contains(key);
+    }
+
+    /**
+     * Returns the flattened components hidden by the user. The set must not be modified.
+     */
+    public Set<String> getHiddenApps(Context context) {
+        return getSnapshot(context).hiddenKeys;
+    }
+
+    private Snapshot getSnapshot(Context context) {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            synchronized (this) {
+                snapshot = mSnapshot;
+                if (snapshot == null) {
+                    // Register first, so that no change can get lost in between. The preferences
+                    // only hold a weak reference to the listener, which is fine as long as the
+                    // filter is in use.
+                    IPreferenceProvider prefs = Utilities.getPrefs(context);
+                    prefs.registerOnSharedPreferenceChangeListener(this);
+                    snapshot = new Snapshot(context.getApplicationContext());
+                    mSnapshot = snapshot;
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot != null && (PreferenceFlags.KEY_HIDDEN_APPS_SET.equals(key)
+                || PreferenceFlags.KEY_SHOW_HIDDEN.equals(key))) {
+            mSnapshot = new Snapshot(snapshot.context);
+        }
+    }
+
+    private static class Snapshot {
+        final Context context;
+        final String ownPackage;
+        final boolean showHidden;
+        final Set<String> hiddenKeys;
+        final Set<ComponentName> hiddenComponents;
+
+        Snapshot(Context context) {
+            this.context = context;
+            IPreferenceProvider prefs = Utilities.getPrefs(context);
+            ownPackage = context.getPackageName();
+            showHidden = prefs.getShowHidden();
+            Set<String> keys = prefs.getHiddenAppsSet();
+            Set<ComponentName> components = new HashSet<>(keys.size());
+            for (String key : keys) {
+                ComponentName component = ComponentName.unflattenFromString(key);
+                if (component != null) {
+                    components.add(component);
+                }
+            }
+            hiddenKeys = Collections.unmodifiableSet(keys);
+            hiddenComponents = Collections.unmodifiableSet(components);
+        }
     }
 }
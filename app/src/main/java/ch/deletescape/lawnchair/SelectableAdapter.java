@@ -17,14 +17,9 @@ abstract class SelectableAdapter<VH extends RecyclerView.ViewHolder> extends Rec
 
         mContext = LauncherAppState.getInstanceNoCreate().getContext();
 
-        Set<String> hiddenApps = PreferenceProvider.INSTANCE.getPreferences(mContext).getHiddenAppsSet();
-
-        mSelections = new HashSet<>();
-
         //add already hidden apps to selections
-        if (hiddenApps != null && !hiddenApps.isEmpty()) {
-            mSelections.addAll(hiddenApps);
-        }
+        mSelections = new HashSet<>(
+                LauncherAppState.getInstanceNoCreate().getAppFilter().getHiddenApps(mContext));
     }
 
     boolean isSelected(String packageName) {
@@ -45,10 +45,36 @@ public class ShortcutAndWidgetContainer extends ViewGroup {
 
     private boolean mInvertIfRtl = false;
 
+    // Changed whenever views are added to or removed from any container, only used on the UI
+    // thread
+    private static int sStructureGeneration;
+
+    private static final OnHierarchyChangeListener sStructureListener =
+            new OnHierarchyChangeListener() {
+                @Override
+                public void onChildViewAdded(View parent, View child) {
+                    sStructureGeneration++;
+                }
+
+                @Override
+                public void onChildViewRemoved(View parent, View child) {
+                    sStructureGeneration++;
+                }
+            };
+
     public ShortcutAndWidgetContainer(Context context) {
         super(context);
         mLauncher = Launcher.getLauncher(context);
         mWallpaperManager = WallpaperManager.getInstance(context);
+        setOnHierarchyChangeListener(sStructureListener);
+    }
+
+    /**
+     * Returns a number which changes whenever views are added to or removed from any container,
+     * so that indices over their views can tell when they are outdated.
+     */
+    public static int getStructureGeneration() {
+        return sStructureGeneration;
     }
 
     public void setCellDimensions(int cellWidth, int cellHeight, int widthGap, int heightGap,
@@ -27,12 +27,14 @@ import android.support.v4.graphics.ColorUtils;
 import android.util.Log;
 import android.util.LongSparseArray;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 
@@ -41,8 +43,10 @@ import ch.deletescape.lawnchair.compat.ShortcutConfigActivityInfo;
 import ch.deletescape.lawnchair.compat.UserManagerCompat;
 import ch.deletescape.lawnchair.graphics.LauncherIcons;
 import ch.deletescape.lawnchair.model.WidgetItem;
+import ch.deletescape.lawnchair.util.BitmapPool;
 import ch.deletescape.lawnchair.util.ComponentKey;
 import ch.deletescape.lawnchair.util.SQLiteCacheHelper;
+import ch.deletescape.lawnchair.util.TaskScheduler;
 import ch.deletescape.lawnchair.util.Thunk;
 import ch.deletescape.lawnchair.widget.WidgetCell;
 
@@ -52,26 +56,32 @@ public class WidgetPreviewLoader {
 
     private static final float WIDGET_PREVIEW_ICON_PADDING_PERCENTAGE = 0.25f;
 
-    private final HashMap<String, long[]> mPackageVersions = new HashMap<>();
+    private static final long MAX_MEMORY_CACHE_BYTES = 24 * 1024 * 1024;
 
-    /**
-     * Weak reference objects, do not prevent their referents from being made finalizable,
-     * finalized, and then reclaimed.
-     * Note: synchronized block used for this variable is expensive and the block should always
-     * be posted to a background thread.
-     */
-    @Thunk
-    final Set<Bitmap> mUnusedBitmaps =
-            Collections.newSetFromMap(new WeakHashMap<Bitmap, Boolean>());
+    private static final int MAX_RUNNING_PREFETCHES = 2;
+
+    private final HashMap<String, long[]> mPackageVersions = new HashMap<>();
 
     private final Context mContext;
     private final IconCache mIconCache;
     private final UserManagerCompat mUserManager;
     private final AppWidgetManagerCompat mWidgetManager;
     private final CacheDb mDb;
+    @Thunk
+    final PreviewCache mPreviewCache = new PreviewCache(
+            (int) Math.min(Runtime.getRuntime().maxMemory() / 16, MAX_MEMORY_CACHE_BYTES));
     private final int mProfileBadgeMargin;
 
     private final MainThreadExecutor mMainThreadExecutor = new MainThreadExecutor();
+
+    // Prefetch state, only accessed on the UI thread
+    private final LinkedHashMap<WidgetCacheKey, WidgetItem> mPrefetchQueue = new LinkedHashMap<>();
+    @Thunk
+    final ArrayList<PreviewLoadTask> mRunningPrefetches = new ArrayList<>();
+    private Launcher mPrefetchLauncher;
+    private int mPrefetchSize;
+    @Thunk
+    int mActiveLoadCount;
     @Thunk
     final Handler mWorkerHandler;
 
@@ -87,8 +97,8 @@ public class WidgetPreviewLoader {
     }
 
     /**
-     * Generates the widget preview on {@link AsyncTask#THREAD_POOL_EXECUTOR}. Must be
-     * called on UI thread
+     * Applies the preview right away if it is in the memory cache, otherwise loads or generates
+     * it in the UI lane of the {@link TaskScheduler}. Must be called on UI thread
      *
      * @return a request id which can be used to cancel the request.
      */
@@ -97,17 +107,90 @@ public class WidgetPreviewLoader {
         String size = previewWidth + "x" + previewHeight;
         WidgetCacheKey key = new WidgetCacheKey(item.componentName, item.user, size);
 
-        PreviewLoadTask task = new PreviewLoadTask(key, item, previewWidth, previewHeight, caller);
-        task.executeOnExecutor(Utilities.THREAD_POOL_EXECUTOR);
+        Bitmap cached;
+        synchronized (mPreviewCache) {
+            cached = mPreviewCache.get(key);
+        }
+        if (cached != null) {
+            caller.applyPreview(cached);
+            return new PreviewLoadRequest(null);
+        }
+        mPrefetchQueue.remove(key);
+
+        PreviewLoadTask task = new PreviewLoadTask(key, item, previewWidth, previewHeight, caller,
+                Launcher.getLauncher(caller.getContext()));
+        mActiveLoadCount++;
+        TaskScheduler.getInstance().executeAsyncTask(TaskScheduler.LANE_UI, task);
         return new PreviewLoadRequest(task);
     }
 
+    /**
+     * Replaces the set of previews to load into the memory cache ahead of binding. Items are
+     * loaded in order, those of {@code nextScreen} before those of {@code ahead}, and only while
+     * no bound cell is waiting for its preview. Prefetches for items which are not part of the new
+     * set are cancelled. Must be called on UI thread
+     */
+    public void setPrefetchItems(Launcher launcher, List<WidgetItem> nextScreen,
+                                 List<WidgetItem> ahead, int previewSize) {
+        mPrefetchQueue.clear();
+        mPrefetchLauncher = launcher;
+        mPrefetchSize = previewSize;
+        String size = previewSize + "x" + previewSize;
+        queuePrefetch(nextScreen, size);
+        queuePrefetch(ahead, size);
+
+        for (PreviewLoadTask task : mRunningPrefetches) {
+            if (task.isCancelled()) {
+                continue;
+            }
+            if (mPrefetchQueue.remove(task.mKey) == null) {
+                task.cancel(false);
+            }
+        }
+        schedulePrefetch();
+    }
+
+    private void queuePrefetch(List<WidgetItem> items, String size) {
+        synchronized (mPreviewCache) {
+            for (WidgetItem item : items) {
+                WidgetCacheKey key = new WidgetCacheKey(item.componentName, item.user, size);
+                if (!mPreviewCache.contains(key) && !mPrefetchQueue.containsKey(key)) {
+                    mPrefetchQueue.put(key, item);
+                }
+            }
+        }
+    }
+
+    @Thunk
+    void schedulePrefetch() {
+        Iterator<Map.Entry<WidgetCacheKey, WidgetItem>> it = mPrefetchQueue.entrySet().iterator();
+        while (mActiveLoadCount == 0 && mRunningPrefetches.size() < MAX_RUNNING_PREFETCHES
+                && it.hasNext()) {
+            Map.Entry<WidgetCacheKey, WidgetItem> entry = it.next();
+            it.remove();
+            boolean cached;
+            synchronized (mPreviewCache) {
+                cached = mPreviewCache.contains(entry.getKey());
+            }
+            if (cached) {
+                continue;
+            }
+            PreviewLoadTask task = new PreviewLoadTask(entry.getKey(), entry.getValue(),
+                    mPrefetchSize, mPrefetchSize, null, mPrefetchLauncher);
+            mRunningPrefetches.add(task);
+            TaskScheduler.getInstance().executeAsyncTask(TaskScheduler.LANE_PREFETCH, task);
+        }
+        if (mPrefetchQueue.isEmpty()) {
+            mPrefetchLauncher = null;
+        }
+    }
+
     /**
      * The DB holds the generated previews for various components. Previews can also have different
      * sizes (landscape vs portrait).
      */
     private static class CacheDb extends SQLiteCacheHelper {
-        private static final int DB_VERSION = 4;
+        private static final int DB_VERSION = 5;
 
         private static final String TABLE_NAME = "shortcut_and_widget_previews";
         private static final String COLUMN_COMPONENT = "componentName";
@@ -120,6 +203,7 @@ public class WidgetPreviewLoader {
 
         public CacheDb(Context context) {
             super(context, LauncherFiles.WIDGET_PREVIEWS_DB, DB_VERSION, TABLE_NAME);
+            setBatchedWrites(COLUMN_COMPONENT, COLUMN_USER, COLUMN_SIZE);
         }
 
         @Override
@@ -140,7 +224,7 @@ public class WidgetPreviewLoader {
     @Thunk
     void writeToDb(WidgetCacheKey key, long[] versions, Bitmap preview) {
         ContentValues values = new ContentValues();
-        values.put(CacheDb.COLUMN_COMPONENT, key.componentName.flattenToShortString());
+        values.put(CacheDb.COLUMN_COMPONENT, key.componentName.flattenToString());
         values.put(CacheDb.COLUMN_USER, mUserManager.getSerialNumberForUser(key.user));
         values.put(CacheDb.COLUMN_SIZE, key.size);
         values.put(CacheDb.COLUMN_PACKAGE, key.componentName.getPackageName());
@@ -158,6 +242,9 @@ public class WidgetPreviewLoader {
         synchronized (mPackageVersions) {
             mPackageVersions.remove(packageName);
         }
+        synchronized (mPreviewCache) {
+            mPreviewCache.removePackage(packageName, userSerial);
+        }
 
         mDb.delete(
                 CacheDb.COLUMN_PACKAGE + " = ? AND " + CacheDb.COLUMN_USER + " = ?",
@@ -495,6 +582,7 @@ public class WidgetPreviewLoader {
      */
     public class PreviewLoadRequest {
 
+        // Null if the preview was served from the memory cache
         @Thunk
         final PreviewLoadTask mTask;
 
@@ -503,30 +591,13 @@ public class WidgetPreviewLoader {
         }
 
         public void cleanup() {
-            if (mTask != null) {
-                mTask.cancel(true);
-            }
-
-            // This only handles the case where the PreviewLoadTask is cancelled after the task has
-            // successfully completed (including having written to disk when necessary).  In the
-            // other cases where it is cancelled while the task is running, it will be cleaned up
-            // in the tasks's onCancelled() call, and if cancelled while the task is writing to
-            // disk, it will be cancelled in the task's onPostExecute() call.
-            if (mTask.mBitmapToRecycle != null) {
-                mWorkerHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        synchronized (mUnusedBitmaps) {
-                            mUnusedBitmaps.add(mTask.mBitmapToRecycle);
-                        }
-                        mTask.mBitmapToRecycle = null;
-                    }
-                });
-            }
+            cancel();
         }
 
         public void cancel() {
-            mTask.cancel(true);
+            if (mTask != null) {
+                mTask.cancel(true);
+            }
         }
     }
 
@@ -536,51 +607,40 @@ public class WidgetPreviewLoader {
         private final WidgetItem mInfo;
         private final int mPreviewHeight;
         private final int mPreviewWidth;
+        // Null for prefetches
         private final WidgetCell mCaller;
+        private final Launcher mLauncher;
         @Thunk
         long[] mVersions;
-        @Thunk
-        Bitmap mBitmapToRecycle;
 
         PreviewLoadTask(WidgetCacheKey key, WidgetItem info, int previewWidth,
-                        int previewHeight, WidgetCell caller) {
+                        int previewHeight, WidgetCell caller, Launcher launcher) {
             mKey = key;
             mInfo = info;
             mPreviewHeight = previewHeight;
             mPreviewWidth = previewWidth;
             mCaller = caller;
+            mLauncher = launcher;
         }
 
         @Override
         protected Bitmap doInBackground(Void... params) {
-            Bitmap unusedBitmap = null;
-
             // If already cancelled before this gets to run in the background, then return early
             if (isCancelled()) {
                 return null;
             }
-            synchronized (mUnusedBitmaps) {
-                // Check if we can re-use a bitmap
-                for (Bitmap candidate : mUnusedBitmaps) {
-                    if (candidate != null && candidate.isMutable() &&
-                            candidate.getWidth() == mPreviewWidth &&
-                            candidate.getHeight() == mPreviewHeight) {
-                        unusedBitmap = candidate;
-                        mUnusedBitmaps.remove(unusedBitmap);
-                        break;
-                    }
-                }
-            }
-
-            // creating a bitmap is expensive. Do not do this inside synchronized block.
-            if (unusedBitmap == null) {
-                unusedBitmap = Bitmap.createBitmap(mPreviewWidth, mPreviewHeight, Config.ARGB_8888);
-            }
+            Bitmap unusedBitmap = BitmapPool.getInstance().get(
+                    mPreviewWidth, mPreviewHeight, Config.ARGB_8888);
             // If cancelled now, don't bother reading the preview from the DB
             if (isCancelled()) {
                 return unusedBitmap;
             }
             Bitmap preview = readFromDb(mKey, unusedBitmap, this);
+            if (preview != null) {
+                synchronized (mPreviewCache) {
+                    mPreviewCache.mDbHitCount++;
+                }
+            }
             // Only consider generating the preview if we have not cancelled the task already
             if (!isCancelled() && preview == null) {
                 // Fetch the version info before we generate the preview, so that, in-case the
@@ -588,58 +648,160 @@ public class WidgetPreviewLoader {
                 // which would gets re-written next time.
                 mVersions = getPackageVersion(mKey.componentName.getPackageName());
 
-                Launcher launcher = Launcher.getLauncher(mCaller.getContext());
-
                 // it's not in the db... we need to generate it
-                preview = generatePreview(launcher, mInfo, unusedBitmap, mPreviewWidth, mPreviewHeight);
+                preview = generatePreview(mLauncher, mInfo, unusedBitmap, mPreviewWidth, mPreviewHeight);
+                synchronized (mPreviewCache) {
+                    mPreviewCache.mGeneratedCount++;
+                }
+            }
+            if (preview != unusedBitmap) {
+                // Not decoded or drawn into, or copied into a badged bitmap
+                BitmapPool.getInstance().release(unusedBitmap);
             }
             return preview;
         }
 
         @Override
         protected void onPostExecute(final Bitmap preview) {
-            mCaller.applyPreview(preview);
+            if (mCaller != null) {
+                mCaller.applyPreview(preview);
+            }
+            if (preview == null) {
+                onLoadFinished();
+                return;
+            }
+
+            // The memory cache now owns the preview, other cells may show the same bitmap so it
+            // must never be released to the bitmap pool.
+            synchronized (mPreviewCache) {
+                mPreviewCache.put(mKey, preview);
+                if (mCaller == null) {
+                    mPreviewCache.mPrefetchedCount++;
+                }
+            }
+            onLoadFinished();
 
             // Write the generated preview to the DB in the worker thread
             if (mVersions != null) {
                 mWorkerHandler.post(new Runnable() {
                     @Override
                     public void run() {
-                        if (!isCancelled()) {
-                            // If we are still using this preview, then write it to the DB and then
-                            // let the normal clear mechanism recycle the bitmap
-                            writeToDb(mKey, mVersions, preview);
-                            mBitmapToRecycle = preview;
-                        } else {
-                            // If we've already cancelled, then skip writing the bitmap to the DB
-                            // and manually add the bitmap back to the recycled set
-                            synchronized (mUnusedBitmaps) {
-                                mUnusedBitmaps.add(preview);
-                            }
-                        }
+                        writeToDb(mKey, mVersions, preview);
                     }
                 });
-            } else {
-                // If we don't need to write to disk, then ensure the preview gets recycled by
-                // the normal clear mechanism
-                mBitmapToRecycle = preview;
             }
         }
 
         @Override
-        protected void onCancelled(final Bitmap preview) {
-            // If we've cancelled while the task is running, then can return the bitmap to the
-            // recycled set immediately. Otherwise, it will be recycled after the preview is written
-            // to disk.
+        protected void onCancelled(Bitmap preview) {
+            // The preview never made it to a cell or the memory cache, so it can be reused
+            BitmapPool.getInstance().release(preview);
+            onLoadFinished();
+        }
+
+        private void onLoadFinished() {
+            if (mCaller == null) {
+                mRunningPrefetches.remove(this);
+            } else {
+                mActiveLoadCount--;
+            }
+            schedulePrefetch();
+        }
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        synchronized (mPreviewCache) {
+            PreviewCache cache = mPreviewCache;
+            int requests = cache.mHitCount + cache.mMissCount;
+            writer.println(prefix + "WidgetPreviewLoader memory: size=" + cache.mSize + "/"
+                    + cache.mMaxSize + " entries=" + cache.mEntries.size());
+            writer.println(prefix + "  memoryHits=" + cache.mHitCount
+                    + " memoryMisses=" + cache.mMissCount
+                    + " dbHits=" + cache.mDbHitCount
+                    + " regenerated=" + cache.mGeneratedCount
+                    + " memoryHitRate=" + (requests == 0 ? 0 : 100 * cache.mHitCount / requests) + "%"
+                    + " evictions=" + cache.mEvictionCount
+                    + " prefetched=" + cache.mPrefetchedCount);
+        }
+    }
+
+    /**
+     * In-memory LRU cache of previews bounded by their byte size, sitting in front of the DB.
+     * <p>
+     * Bitmaps which made it into this cache are never recycled or reused for other previews, not
+     * even after they got evicted, as cells might still show them. Not thread safe, all access is
+     * guarded by synchronizing on the cache.
+     */
+    private final class PreviewCache {
+        @Thunk
+        final LinkedHashMap<WidgetCacheKey, Bitmap> mEntries =
+                new LinkedHashMap<>(16, 0.75f, true);
+
+        @Thunk
+        final int mMaxSize;
+        @Thunk
+        int mSize;
+
+        @Thunk
+        int mHitCount;
+        @Thunk
+        int mMissCount;
+        @Thunk
+        int mDbHitCount;
+        @Thunk
+        int mGeneratedCount;
+        @Thunk
+        int mEvictionCount;
+        @Thunk
+        int mPrefetchedCount;
+
+        PreviewCache(int maxSize) {
+            mMaxSize = maxSize;
+        }
+
+        Bitmap get(WidgetCacheKey key) {
+            Bitmap preview = mEntries.get(key);
             if (preview != null) {
-                mWorkerHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        synchronized (mUnusedBitmaps) {
-                            mUnusedBitmaps.add(preview);
-                        }
-                    }
-                });
+                mHitCount++;
+            } else {
+                mMissCount++;
+            }
+            return preview;
+        }
+
+        boolean contains(WidgetCacheKey key) {
+            return mEntries.containsKey(key);
+        }
+
+        void put(WidgetCacheKey key, Bitmap preview) {
+            Bitmap old = mEntries.put(key, preview);
+            if (old != null) {
+                mSize -= old.getAllocationByteCount();
+            }
+            mSize += preview.getAllocationByteCount();
+            Iterator<Map.Entry<WidgetCacheKey, Bitmap>> it = mEntries.entrySet().iterator();
+            while (mSize > mMaxSize && it.hasNext()) {
+                Map.Entry<WidgetCacheKey, Bitmap> eldest = it.next();
+                if (eldest.getKey().equals(key)) {
+                    // Never evict what was just added, even if it alone exceeds the limit
+                    continue;
+                }
+                mSize -= eldest.getValue().getAllocationByteCount();
+                it.remove();
+                mEvictionCount++;
+            }
+        }
+
+        void removePackage(String packageName, long userSerial) {
+            Iterator<Map.Entry<WidgetCacheKey, Bitmap>> it = mEntries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<WidgetCacheKey, Bitmap> entry = it.next();
+                WidgetCacheKey key = entry.getKey();
+                if (key.componentName.getPackageName().equals(packageName)
+                        && mUserManager.getSerialNumberForUser(key.user) == userSerial) {
+                    mSize -= entry.getValue().getAllocationByteCount();
+                    it.remove();
+                }
             }
         }
     }
@@ -56,6 +56,7 @@ import android.view.animation.DecelerateInterpolator;
 import android.view.animation.Interpolator;
 import android.widget.TextView;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -81,11 +82,15 @@ import ch.deletescape.lawnchair.folder.FolderIcon;
 import ch.deletescape.lawnchair.graphics.DragPreviewProvider;
 import ch.deletescape.lawnchair.pixelify.BaseQsbView;
 import ch.deletescape.lawnchair.popup.PopupContainerWithArrow;
+import ch.deletescape.lawnchair.shortcuts.DeepShortcutManager;
 import ch.deletescape.lawnchair.shortcuts.ShortcutDragPreviewProvider;
+import ch.deletescape.lawnchair.shortcuts.ShortcutKey;
+import ch.deletescape.lawnchair.util.ComponentKey;
 import ch.deletescape.lawnchair.util.ItemInfoMatcher;
 import ch.deletescape.lawnchair.util.LongArrayMap;
 import ch.deletescape.lawnchair.util.MultiStateAlphaController;
 import ch.deletescape.lawnchair.util.PackageUserKey;
+import ch.deletescape.lawnchair.util.TaskScheduler;
 import ch.deletescape.lawnchair.util.Thunk;
 import ch.deletescape.lawnchair.util.WallpaperOffsetInterpolator;
 import ch.deletescape.lawnchair.widget.PendingAddShortcutInfo;
@@ -305,6 +310,8 @@ public class Workspace extends PagedView
     private SparseArray<Parcelable> mSavedStates;
     private final ArrayList<Integer> mRestoredPages = new ArrayList<>();
 
+    private final WorkspaceItemIndex mItemIndex = new WorkspaceItemIndex(this);
+
     private float mCurrentScale;
     private float mTransitionProgress;
 
@@ -537,9 +544,17 @@ public class Workspace extends PagedView
         cl.setOnInterceptTouchListener(this);
         cl.setClickable(true);
         cl.setImportantForAccessibility(IMPORTANT_FOR_ACCESSIBILITY_NO);
+        mItemIndex.invalidate();
         super.onChildViewAdded(parent, child);
     }
 
+    @Override
+    public void onChildViewRemoved(View parent, View child) {
+        // The views of the page are removed along with it, without their container noticing
+        mItemIndex.invalidate();
+        super.onChildViewRemoved(parent, child);
+    }
+
     @Override
     protected boolean shouldDrawChild(View child) {
         final CellLayout cl = (CellLayout) child;
@@ -567,6 +582,16 @@ public class Workspace extends PagedView
         return null;
     }
 
+    /**
+     * Lets the open folder re-blur its background, which shows the items of the workspace.
+     */
+    private void onItemsChanged() {
+        Folder folder = getOpenFolder();
+        if (folder != null) {
+            folder.onBlurredViewChanged();
+        }
+    }
+
     boolean isTouchActive() {
         return mTouchState != TOUCH_STATE_REST;
     }
@@ -985,6 +1010,7 @@ public class Workspace extends PagedView
      */
     void addInScreen(View child, long container, long screenId, int x, int y, int spanX, int spanY,
                      boolean insert, boolean computeXYFromRank) {
+        onItemsChanged();
         if (container == LauncherSettings.Favorites.CONTAINER_DESKTOP) {
             if (getScreenWithId(screenId) == null) {
                 Log.e(TAG, "Skipping child, screenId " + screenId + " not found");
@@ -1494,17 +1520,18 @@ public class Workspace extends PagedView
     }
 
     protected void setWallpaperDimension() {
-        Utilities.THREAD_POOL_EXECUTOR.execute(new Runnable() {
-            @Override
-            public void run() {
-                final Point size = LauncherAppState.getInstance()
-                        .getInvariantDeviceProfile().defaultWallpaperSize;
-                if (size.x != mWallpaperManager.getDesiredMinimumWidth()
-                        || size.y != mWallpaperManager.getDesiredMinimumHeight()) {
-                    mWallpaperManager.suggestDesiredDimensions(size.x, size.y);
-                }
-            }
-        });
+        TaskScheduler.getInstance().execute(TaskScheduler.LANE_BACKGROUND,
+                "setWallpaperDimension", new Runnable() {
+                    @Override
+                    public void run() {
+                        final Point size = LauncherAppState.getInstance()
+                                .getInvariantDeviceProfile().defaultWallpaperSize;
+                        if (size.x != mWallpaperManager.getDesiredMinimumWidth()
+                                || size.y != mWallpaperManager.getDesiredMinimumHeight()) {
+                            mWallpaperManager.suggestDesiredDimensions(size.x, size.y);
+                        }
+                    }
+                });
     }
 
     public void lockWallpaperToDefaultPage() {
@@ -3427,6 +3454,7 @@ public class Workspace extends PagedView
      * For opposite operation. See {@link #addInScreen}.
      */
     public void removeWorkspaceItem(View v) {
+        onItemsChanged();
         CellLayout parentCell = getParentCellLayoutForView(v);
         if (parentCell != null) {
             parentCell.removeView(v);
@@ -3653,13 +3681,7 @@ public class Workspace extends PagedView
     }
 
     public View getHomescreenIconByItemId(final long id) {
-        return getFirstMatch(new ItemOperator() {
-
-            @Override
-            public boolean evaluate(ItemInfo info, View v) {
-                return info != null && info.id == id;
-            }
-        });
+        return mItemIndex.getTopLevelView(id);
     }
 
     public View getViewForTag(final Object tag) {
@@ -3717,6 +3739,7 @@ public class Workspace extends PagedView
      * shortcuts are not removed.
      */
     public void removeItemsByMatcher(final ItemInfoMatcher matcher) {
+        onItemsChanged();
         ArrayList<CellLayout> cellLayouts = getWorkspaceAndHotseatCellLayouts();
         for (final CellLayout layoutParent : cellLayouts) {
             final ViewGroup layout = layoutParent.getShortcutsAndWidgets();
@@ -3834,6 +3857,7 @@ public class Workspace extends PagedView
     }
 
     void updateShortcuts(ArrayList<ShortcutInfo> shortcuts) {
+        onItemsChanged();
         int total = shortcuts.size();
         final HashSet<ShortcutInfo> updates = new HashSet<>(total);
         final HashSet<Long> folderIds = new HashSet<>();
@@ -3844,63 +3868,84 @@ public class Workspace extends PagedView
             folderIds.add(s.container);
         }
 
-        mapOverItems(MAP_RECURSE, new ItemOperator() {
-            @Override
-            public boolean evaluate(ItemInfo info, View v) {
-                if (info instanceof ShortcutInfo && v instanceof BubbleTextView &&
-                        updates.contains(info)) {
-                    ShortcutInfo si = (ShortcutInfo) info;
-                    BubbleTextView shortcut = (BubbleTextView) v;
-                    Drawable oldIcon = getTextViewIcon(shortcut);
-                    boolean oldPromiseState = (oldIcon instanceof PreloadIconDrawable)
-                            && ((PreloadIconDrawable) oldIcon).hasNotCompleted();
-                    shortcut.applyFromShortcutInfo(si, si.isPromise() != oldPromiseState);
-                }
-                // process all the shortcuts
-                return false;
+        // The model updates items in place, so their targets may differ from the indexed ones
+        mItemIndex.reindex(updates);
+        for (View v : getViewsForItems(updates)) {
+            Object info = v.getTag();
+            if (info instanceof ShortcutInfo && v instanceof BubbleTextView &&
+                    updates.contains(info)) {
+                ShortcutInfo si = (ShortcutInfo) info;
+                BubbleTextView shortcut = (BubbleTextView) v;
+                Drawable oldIcon = getTextViewIcon(shortcut);
+                boolean oldPromiseState = (oldIcon instanceof PreloadIconDrawable)
+                        && ((PreloadIconDrawable) oldIcon).hasNotCompleted();
+                shortcut.applyFromShortcutInfo(si, si.isPromise() != oldPromiseState);
             }
-        });
+        }
 
         // Update folder icons
-        mapOverItems(MAP_NO_RECURSE, new ItemOperator() {
-            @Override
-            public boolean evaluate(ItemInfo info, View v) {
-                if (info instanceof FolderInfo && folderIds.contains(info.id)) {
-                    ((FolderInfo) info).itemsChanged(false);
-                }
-                // process all the shortcuts
-                return false;
+        for (long folderId : folderIds) {
+            View v = mItemIndex.getTopLevelView(folderId);
+            if (v != null && v.getTag() instanceof FolderInfo) {
+                ((FolderInfo) v.getTag()).itemsChanged(false);
             }
-        });
+        }
+    }
+
+    /**
+     * Returns the views which might be bound to one of {@code items}, that is all views of their
+     * components or deep shortcuts and those without a package. Callers still need to check the
+     * tag of each view.
+     */
+    private ArrayList<View> getViewsForItems(HashSet<? extends ItemInfo> items) {
+        HashSet<ComponentKey> components = new HashSet<>();
+        HashSet<ShortcutKey> shortcuts = new HashSet<>();
+        for (ItemInfo info : items) {
+            ComponentName target = info instanceof LauncherAppWidgetInfo
+                    ? ((LauncherAppWidgetInfo) info).providerName : info.getTargetComponent();
+            if (target == null || info.user == null) {
+                continue;
+            }
+            if (info.itemType == LauncherSettings.Favorites.ITEM_TYPE_DEEP_SHORTCUT) {
+                shortcuts.add(ShortcutKey.fromItemInfo(info));
+            } else {
+                components.add(new ComponentKey(target, info.user));
+            }
+        }
+        ArrayList<View> views = new ArrayList<>(mItemIndex.getViewsWithoutPackage());
+        for (ComponentKey componentKey : components) {
+            views.addAll(mItemIndex.getViewsForComponent(componentKey));
+        }
+        for (ShortcutKey shortcutKey : shortcuts) {
+            views.addAll(mItemIndex.getViewsForShortcut(shortcutKey));
+        }
+        return views;
     }
 
 
     public void updateIconBadges(final Set set) {
-        final PackageUserKey packageUserKey = new PackageUserKey(null, null);
-        final HashSet hashSet = new HashSet();
-        mapOverItems(true, new ItemOperator() {
-            @Override
-            public boolean evaluate(ItemInfo itemInfo, View view) {
-                if ((itemInfo instanceof ShortcutInfo) && (view instanceof BubbleTextView) && packageUserKey.updateFromItemInfo(itemInfo) && set.contains(packageUserKey)) {
-                    ((BubbleTextView) view).applyBadgeState(itemInfo, true);
-                    hashSet.add(itemInfo.container);
+        onItemsChanged();
+        final HashSet<Long> folderIds = new HashSet<>();
+        for (Object packageUserKey : set) {
+            for (View view : mItemIndex.getViewsForPackage((PackageUserKey) packageUserKey)) {
+                Object itemInfo = view.getTag();
+                if ((itemInfo instanceof ShortcutInfo) && (view instanceof BubbleTextView)
+                        && DeepShortcutManager.supportsShortcuts((ItemInfo) itemInfo)) {
+                    ((BubbleTextView) view).applyBadgeState((ItemInfo) itemInfo, true);
+                    folderIds.add(((ItemInfo) itemInfo).container);
                 }
-                return false;
             }
-        });
-        mapOverItems(false, new ItemOperator() {
-            @Override
-            public boolean evaluate(ItemInfo itemInfo, View view) {
-                if ((itemInfo instanceof FolderInfo) && hashSet.contains(itemInfo.id) && (view instanceof FolderIcon)) {
-                    FolderBadgeInfo folderBadgeInfo = new FolderBadgeInfo();
-                    for (ShortcutInfo badgeInfoForItem : ((FolderInfo) itemInfo).contents) {
-                        folderBadgeInfo.addBadgeInfo(Workspace.this.mLauncher.getPopupDataProvider().getBadgeInfoForItem(badgeInfoForItem));
-                    }
-                    ((FolderIcon) view).setBadgeInfo(folderBadgeInfo);
+        }
+        for (long folderId : folderIds) {
+            View view = mItemIndex.getTopLevelView(folderId);
+            if ((view instanceof FolderIcon) && (view.getTag() instanceof FolderInfo)) {
+                FolderBadgeInfo folderBadgeInfo = new FolderBadgeInfo();
+                for (ShortcutInfo badgeInfoForItem : ((FolderInfo) view.getTag()).contents) {
+                    folderBadgeInfo.addBadgeInfo(mLauncher.getPopupDataProvider().getBadgeInfoForItem(badgeInfoForItem));
                 }
-                return false;
+                ((FolderIcon) view).setBadgeInfo(folderBadgeInfo);
             }
-        });
+        }
     }
 
     public void removeAbandonedPromise(String packageName, UserHandle user) {
@@ -3911,21 +3956,23 @@ public class Workspace extends PagedView
     }
 
     public void updateRestoreItems(final HashSet<ItemInfo> updates) {
-        mapOverItems(MAP_RECURSE, new ItemOperator() {
-            @Override
-            public boolean evaluate(ItemInfo info, View v) {
-                if (info instanceof ShortcutInfo && v instanceof BubbleTextView
-                        && updates.contains(info)) {
-                    ((BubbleTextView) v).applyState(false);
-                } else if (v instanceof PendingAppWidgetHostView
-                        && info instanceof LauncherAppWidgetInfo
-                        && updates.contains(info)) {
-                    ((PendingAppWidgetHostView) v).applyState();
-                }
-                // process all the shortcuts
-                return false;
+        onItemsChanged();
+        mItemIndex.reindex(updates);
+        for (View v : getViewsForItems(updates)) {
+            Object info = v.getTag();
+            if (info instanceof ShortcutInfo && v instanceof BubbleTextView
+                    && updates.contains(info)) {
+                ((BubbleTextView) v).applyState(false);
+            } else if (v instanceof PendingAppWidgetHostView
+                    && info instanceof LauncherAppWidgetInfo
+                    && updates.contains(info)) {
+                ((PendingAppWidgetHostView) v).applyState();
             }
-        });
+        }
+    }
+
+    void dumpItemIndex(String prefix, PrintWriter writer) {
+        mItemIndex.dump(prefix, writer);
     }
 
     public void widgetsRestored(final ArrayList<LauncherAppWidgetInfo> changedInfo) {
@@ -0,0 +1,169 @@
+package ch.deletescape.lawnchair;
+
+import android.view.View;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import ch.deletescape.lawnchair.folder.FolderIcon;
+import ch.deletescape.lawnchair.shortcuts.ShortcutKey;
+import ch.deletescape.lawnchair.util.ComponentKey;
+import ch.deletescape.lawnchair.util.LongArrayMap;
+import ch.deletescape.lawnchair.util.PackageUserKey;
+
+/**
+ * Index of the views bound in the workspace and hotseat, so that updates for a package or an
+ * item only touch the affected views instead of mapping over all of them.
+ * <p>
+ * Views are indexed by the package, component or deep shortcut of their target, including the
+ * contents of folders, and top level views by item id. The index is rebuilt lazily by a single
+ * pass over the workspace, after views were added to or removed from any
+ * {@link ShortcutAndWidgetContainer}, or pages were added or removed, so binding many items at
+ * once costs one rebuild. Items which changed their target in place are moved with
+ * {@link #reindex}. Must only be used on the UI thread.
+ */
+class WorkspaceItemIndex {
+
+    private final Workspace mWorkspace;
+
+    private final ItemKeyIndex<View> mViews = new ItemKeyIndex<>();
+    private final LongArrayMap<View> mTopLevelViewsById = new LongArrayMap<>();
+    private int mGeneration = -1;
+    private boolean mInvalidated = true;
+
+    private int mRebuildCount;
+    private int mReindexCount;
+    private int mLookupCount;
+    private int mLookupViewCount;
+
+    WorkspaceItemIndex(Workspace workspace) {
+        mWorkspace = workspace;
+    }
+
+    /**
+     * Marks the index as outdated, for changes which are not caught otherwise, like pages being
+     * removed together with their views.
+     */
+    void invalidate() {
+        mInvalidated = true;
+    }
+
+    /**
+     * Moves the views of {@code items} to the keys of their current targets, after the model
+     * updated them in place. Only touches the given items, unless the index is outdated anyway.
+     */
+    void reindex(Collection<? extends ItemInfo> items) {
+        if (ensureUpToDate()) {
+            return;
+        }
+        for (ItemInfo info : items) {
+            if (mViews.reindex(info)) {
+                mReindexCount++;
+            }
+        }
+    }
+
+    /**
+     * Returns the views of all shortcuts, apps and widgets targeting the package of
+     * {@code packageUserKey}, including those in folders. The list must not be modified.
+     */
+    List<View> getViewsForPackage(PackageUserKey packageUserKey) {
+        ensureUpToDate();
+        return countLookup(mViews.getForPackage(packageUserKey));
+    }
+
+    /**
+     * Returns the views of all shortcuts, apps and widgets targeting the component of
+     * {@code componentKey}, not including deep shortcuts. The list must not be modified.
+     */
+    List<View> getViewsForComponent(ComponentKey componentKey) {
+        ensureUpToDate();
+        return countLookup(mViews.getForComponent(componentKey));
+    }
+
+    /**
+     * Returns the views of the deep shortcuts for {@code shortcutKey}. The list must not be
+     * modified.
+     */
+    List<View> getViewsForShortcut(ShortcutKey shortcutKey) {
+        ensureUpToDate();
+        return countLookup(mViews.getForShortcut(shortcutKey));
+    }
+
+    /**
+     * Returns the views of shortcuts whose intent does not target a component, like bookmarks.
+     * The list must not be modified.
+     */
+    List<View> getViewsWithoutPackage() {
+        ensureUpToDate();
+        return countLookup(mViews.getWithoutPackage());
+    }
+
+    /**
+     * Returns the view of the item with {@code id} on the workspace or hotseat, not looking
+     * into folders.
+     */
+    View getTopLevelView(long id) {
+        ensureUpToDate();
+        mLookupCount++;
+        return mTopLevelViewsById.get(id);
+    }
+
+    private List<View> countLookup(List<View> views) {
+        mLookupCount++;
+        mLookupViewCount += views.size();
+        return views;
+    }
+
+    /**
+     * Rebuilds the index if it is outdated.
+     *
+     * @return true if it was rebuilt.
+     */
+    private boolean ensureUpToDate() {
+        int generation = ShortcutAndWidgetContainer.getStructureGeneration();
+        if (!mInvalidated && generation == mGeneration) {
+            return false;
+        }
+        mInvalidated = false;
+        mGeneration = generation;
+        mRebuildCount++;
+        mViews.clear();
+        mTopLevelViewsById.clear();
+
+        ArrayList<ShortcutAndWidgetContainer> containers =
+                mWorkspace.getAllShortcutAndWidgetContainers();
+        for (ShortcutAndWidgetContainer container : containers) {
+            int itemCount = container.getChildCount();
+            for (int i = 0; i < itemCount; i++) {
+                View view = container.getChildAt(i);
+                if (!(view.getTag() instanceof ItemInfo)) {
+                    continue;
+                }
+                ItemInfo info = (ItemInfo) view.getTag();
+                mTopLevelViewsById.put(info.id, view);
+                if (view instanceof FolderIcon) {
+                    for (View child : ((FolderIcon) view).getFolder().getItemsInReadingOrder()) {
+                        if (child.getTag() instanceof ItemInfo) {
+                            mViews.add((ItemInfo) child.getTag(), child);
+                        }
+                    }
+                } else {
+                    mViews.add(info, view);
+                }
+            }
+        }
+        return true;
+    }
+
+    void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "WorkspaceItemIndex: views=" + mViews.size()
+                + " packages=" + mViews.getPackageCount()
+                + " rebuilds=" + mRebuildCount
+                + " reindexed=" + mReindexCount
+                + " lookups=" + mLookupCount
+                + " avgFanOut=" + (mLookupCount == 0 ? 0 : mLookupViewCount / mLookupCount));
+    }
+}
@@ -260,6 +260,26 @@ public class AllAppsRecyclerView extends BaseRecyclerView {
             public void onChanged() {
                 mCachedScrollPositions.clear();
             }
+
+            @Override
+            public void onItemRangeChanged(int positionStart, int itemCount) {
+                mCachedScrollPositions.clear();
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                mCachedScrollPositions.clear();
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                mCachedScrollPositions.clear();
+            }
+
+            @Override
+            public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+                mCachedScrollPositions.clear();
+            }
         });
         mFastScrollHelper.onSetAdapter((AllAppsGridAdapter) adapter);
     }
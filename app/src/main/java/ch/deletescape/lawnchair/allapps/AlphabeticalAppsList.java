@@ -16,10 +16,15 @@
 package ch.deletescape.lawnchair.allapps;
 
 import android.content.Context;
+import android.support.v7.util.DiffUtil;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -82,8 +87,8 @@ public class AlphabeticalAppsList {
         /**
          * App-only properties
          */
-        // The section name of this app.  Note that there can be multiple items with different
-        // sectionNames in the same section
+        // The section name of this app, or of the section started by this section break.  Note
+        // that there can be multiple items with different sectionNames in the same section
         public String sectionName = null;
         // The index of this app in the section
         public int sectionAppIndex = -1;
@@ -149,12 +154,20 @@ public class AlphabeticalAppsList {
         boolean continueMerging(SectionInfo section);
     }
 
+    // Above this share of changed apps, re-sorting everything is cheaper than inserting each app
+    // on its own and diffing the adapter items.
+    private static final float MAX_INCREMENTAL_CHANGE_FRACTION = 0.25f;
+
     private Launcher mLauncher;
 
     // The set of apps from the system
     private final List<AppInfo> mApps = new ArrayList<>();
     private final List<AppInfo> mUnfilteredApps = new ArrayList<>();
     private final HashMap<ComponentKey, AppInfo> mComponentToAppMap = new HashMap<>();
+    // The apps which are hidden by the app filter
+    private final HashSet<ComponentKey> mFilteredOutApps = new HashSet<>();
+    // Search index over all apps, including the filtered ones
+    private final AppSearchIndex mSearchIndex;
 
     // The set of filtered apps with the current filter
     private List<AppInfo> mFilteredApps = new ArrayList<>();
@@ -178,6 +191,7 @@ public class AlphabeticalAppsList {
         mLauncher = Launcher.getLauncher(context);
         mIndexer = new AlphabeticIndexCompat(context);
         mAppNameComparator = new AppNameComparator(context);
+        mSearchIndex = new AppSearchIndex(mAppNameComparator.getAppInfoComparator());
     }
 
     /**
@@ -190,6 +204,10 @@ public class AlphabeticalAppsList {
         updateAdapterItems();
     }
 
+    public int getNumAppsPerRow() {
+        return mNumAppsPerRow;
+    }
+
     /**
      * Sets the adapter to notify when this dataset changes.
      */
@@ -208,6 +226,20 @@ public class AlphabeticalAppsList {
         return mUnfilteredApps;
     }
 
+    /**
+     * Returns the search index over all apps, which is kept in sync with this list.
+     */
+    public AppSearchIndex getSearchIndex() {
+        return mSearchIndex;
+    }
+
+    /**
+     * Returns whether the app is hidden from the list by the app filter.
+     */
+    public boolean isFilteredOut(ComponentKey key) {
+        return mFilteredOutApps.contains(key);
+    }
+
     /**
      * Returns fast scroller sections of all the current filtered applications.
      */
@@ -268,7 +300,12 @@ public class AlphabeticalAppsList {
      */
     public void setApps(List<AppInfo> apps) {
         mComponentToAppMap.clear();
-        addApps(apps);
+        mSearchIndex.clear();
+        for (AppInfo app : apps) {
+            mComponentToAppMap.put(app.toComponentKey(), app);
+        }
+        mSearchIndex.addOrUpdate(apps);
+        onAppsUpdated();
     }
 
     /**
@@ -282,20 +319,101 @@ public class AlphabeticalAppsList {
      * Updates existing apps in the list
      */
     public void updateApps(List<AppInfo> apps) {
+        boolean incremental = canUpdateIncrementally(apps.size());
         for (AppInfo app : apps) {
             mComponentToAppMap.put(app.toComponentKey(), app);
         }
-        onAppsUpdated();
+        mSearchIndex.addOrUpdate(apps);
+        if (incremental) {
+            onAppsChanged(apps, Collections.<AppInfo>emptyList());
+        } else {
+            onAppsUpdated();
+        }
     }
 
     /**
      * Removes some apps from the list.
      */
     public void removeApps(List<AppInfo> apps) {
+        boolean incremental = canUpdateIncrementally(apps.size());
         for (AppInfo app : apps) {
             mComponentToAppMap.remove(app.toComponentKey());
         }
-        onAppsUpdated();
+        mSearchIndex.remove(apps);
+        if (incremental) {
+            onAppsChanged(Collections.<AppInfo>emptyList(), apps);
+        } else {
+            onAppsUpdated();
+        }
+    }
+
+    private boolean canUpdateIncrementally(int changeCount) {
+        // Apps are regrouped by section for some locales, which does not follow the comparator
+        // used for the binary search.
+        return !mUnfilteredApps.isEmpty() && !localeRequiresSectionSorting()
+                && changeCount <= mUnfilteredApps.size() * MAX_INCREMENTAL_CHANGE_FRACTION;
+    }
+
+    private boolean localeRequiresSectionSorting() {
+        Locale curLocale = mLauncher.getResources().getConfiguration().locale;
+        return curLocale.equals(Locale.SIMPLIFIED_CHINESE);
+    }
+
+    /**
+     * Applies a small set of changes to the sorted lists without sorting or filtering all apps
+     * again, and only notifies the adapter about the items which actually changed.
+     */
+    private void onAppsChanged(List<AppInfo> updated, List<AppInfo> removed) {
+        HashSet<ComponentKey> changedKeys = new HashSet<>(updated.size() + removed.size());
+        for (AppInfo info : updated) {
+            changedKeys.add(info.toComponentKey());
+        }
+        for (AppInfo info : removed) {
+            ComponentKey key = info.toComponentKey();
+            changedKeys.add(key);
+            mFilteredOutApps.remove(key);
+        }
+
+        // Updated apps are usually modified in place, so their old position can not be found
+        // with a binary search. A linear scan over the keys is cheap compared to comparing titles.
+        removeAppsWithKeys(mUnfilteredApps, changedKeys);
+        removeAppsWithKeys(mApps, changedKeys);
+
+        Comparator<? super AppInfo> comparator = mAppNameComparator.getAppInfoComparator();
+        Context context = LauncherAppState.getInstance().getContext();
+        AppFilter appFilter = getAppFilter();
+        for (AppInfo info : updated) {
+            getAndUpdateCachedSectionName(info.title);
+            insertSorted(mUnfilteredApps, info, comparator);
+            if (appFilter == null || appFilter.shouldShowApp(info.componentName, context)) {
+                mFilteredOutApps.remove(info.toComponentKey());
+                insertSorted(mApps, info, comparator);
+            } else {
+                mFilteredOutApps.add(info.toComponentKey());
+            }
+        }
+
+        List<AdapterItem> oldItems = new ArrayList<>(mAdapterItems);
+        refillAdapterItems();
+        if (mAdapter != null) {
+            DiffUtil.calculateDiff(new AdapterItemDiff(oldItems, mAdapterItems, changedKeys), false)
+                    .dispatchUpdatesTo(mAdapter);
+        }
+    }
+
+    private static void removeAppsWithKeys(List<AppInfo> apps, Collection<ComponentKey> keys) {
+        Iterator<AppInfo> iterator = apps.iterator();
+        while (iterator.hasNext()) {
+            if (keys.contains(iterator.next().toComponentKey())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static void insertSorted(List<AppInfo> apps, AppInfo info,
+                                     Comparator<? super AppInfo> comparator) {
+        int index = Collections.binarySearch(apps, info, comparator);
+        apps.add(index < 0 ? -index - 1 : index, info);
     }
 
     /**
@@ -309,10 +427,8 @@ public class AlphabeticalAppsList {
 
         // As a special case for some languages (currently only Simplified Chinese), we may need to
         // coalesce sections
-        Locale curLocale = mLauncher.getResources().getConfiguration().locale;
         TreeMap<String, ArrayList<AppInfo>> sectionMap;
-        boolean localeRequiresSectionSorting = curLocale.equals(Locale.SIMPLIFIED_CHINESE);
-        if (localeRequiresSectionSorting) {
+        if (localeRequiresSectionSorting()) {
             // Compute the section headers.  We use a TreeMap with the section name comparator to
             // ensure that the sections are ordered when we iterate over it later
             sectionMap = new TreeMap<>(mAppNameComparator.getSectionNameComparator());
@@ -355,19 +471,38 @@ public class AlphabeticalAppsList {
         mUnfilteredApps.clear();
         mUnfilteredApps.addAll(mApps);
         mApps.clear();
+        mFilteredOutApps.clear();
         Context context = LauncherAppState.getInstance().getContext();
-        AppFilter appFilter = LauncherAppState.getInstance().getLauncher().getModel().getAllAppsList().getAppFilter();
+        AppFilter appFilter = getAppFilter();
         for (AppInfo info : mUnfilteredApps) {
             if (appFilter == null || appFilter.shouldShowApp(info.componentName, context))
                 mApps.add(info);
+            else
+                mFilteredOutApps.add(info.toComponentKey());
         }
     }
 
+    private AppFilter getAppFilter() {
+        return LauncherAppState.getInstance().getAppFilter();
+    }
+
     /**
      * Updates the set of filtered apps with the current filter.  At this point, we expect
      * mCachedSectionNames to have been calculated for the set of all apps in mApps.
      */
     private void updateAdapterItems() {
+        refillAdapterItems();
+
+        // Refresh the recycler view
+        if (mAdapter != null) {
+            mAdapter.notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Recomputes the adapter items, sections and fast scroller sections from the sorted apps.
+     */
+    private void refillAdapterItems() {
         SectionInfo lastSectionInfo = null;
         String lastSectionName = null;
         FastScrollSectionInfo lastFastScrollerSectionInfo = null;
@@ -398,6 +533,7 @@ public class AlphabeticalAppsList {
                 // Create a new section item to break the flow of items in the list
                 if (!hasFilter()) {
                     AdapterItem sectionItem = AdapterItem.asSectionBreak(position++, lastSectionInfo);
+                    sectionItem.sectionName = sectionName;
                     mAdapterItems.add(sectionItem);
                 }
             }
@@ -462,11 +598,6 @@ public class AlphabeticalAppsList {
                 cumulativeTouchFraction += perSectionTouchFraction;
             }
         }
-
-        // Refresh the recycler view
-        if (mAdapter != null) {
-            mAdapter.notifyDataSetChanged();
-        }
     }
 
     private List<AppInfo> getFiltersAppInfos() {
@@ -539,4 +670,53 @@ public class AlphabeticalAppsList {
         }
         return sectionName;
     }
+
+    /**
+     * Matches the adapter items before and after an incremental update. Both lists follow the
+     * same order, so the diff only has to walk over the few changed items.
+     */
+    private static class AdapterItemDiff extends DiffUtil.Callback {
+        private final List<AdapterItem> mOldItems;
+        private final List<AdapterItem> mNewItems;
+        private final HashSet<ComponentKey> mChangedKeys;
+
+        AdapterItemDiff(List<AdapterItem> oldItems, List<AdapterItem> newItems,
+                        HashSet<ComponentKey> changedKeys) {
+            mOldItems = oldItems;
+            mNewItems = newItems;
+            mChangedKeys = changedKeys;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldItems.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewItems.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            AdapterItem oldItem = mOldItems.get(oldItemPosition);
+            AdapterItem newItem = mNewItems.get(newItemPosition);
+            if (oldItem.viewType != newItem.viewType) {
+                return false;
+            }
+            if (oldItem.appInfo != null && newItem.appInfo != null) {
+                return oldItem.appInfo.toComponentKey().equals(newItem.appInfo.toComponentKey());
+            }
+            return oldItem.sectionName == null ? newItem.sectionName == null
+                    : oldItem.sectionName.equals(newItem.sectionName);
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            // Updated apps are modified in place, so their content can not be compared.
+            AdapterItem newItem = mNewItems.get(newItemPosition);
+            return newItem.appInfo == null
+                    || !mChangedKeys.contains(newItem.appInfo.toComponentKey());
+        }
+    }
 }
@@ -0,0 +1,85 @@
+package ch.deletescape.lawnchair.allapps;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.UserHandle;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import ch.deletescape.lawnchair.ItemInfo;
+import ch.deletescape.lawnchair.LauncherFiles;
+import ch.deletescape.lawnchair.LauncherSettings;
+import ch.deletescape.lawnchair.compat.UserManagerCompat;
+import ch.deletescape.lawnchair.util.ComponentKey;
+
+/**
+ * Counts how often each app was launched from the launcher. The counts are used to rank search
+ * results, so apps which are used a lot win over equally good matches.
+ * <p>
+ * Must only be accessed on the UI thread.
+ */
+public class AppLaunchTracker {
+
+    private static AppLaunchTracker sInstance;
+
+    private final SharedPreferences mPrefs;
+    private final UserManagerCompat mUserManager;
+
+    // Lazily loaded copy of the persisted counts
+    private HashMap<String, Integer> mCounts;
+
+    public static AppLaunchTracker getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AppLaunchTracker(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private AppLaunchTracker(Context context) {
+        // Opening the file starts loading it in the background, so it is usually ready by the
+        // time the first search runs.
+        mPrefs = context.getSharedPreferences(
+                LauncherFiles.APP_LAUNCH_COUNTS_PREFERENCES_KEY, Context.MODE_PRIVATE);
+        mUserManager = UserManagerCompat.getInstance(context);
+    }
+
+    /**
+     * Records a launch of {@param item} if it points to an app.
+     */
+    public void onItemLaunched(ItemInfo item) {
+        if (item == null || item.itemType != LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
+            return;
+        }
+        ComponentName cn = item.getTargetComponent();
+        if (cn == null || item.user == null) {
+            return;
+        }
+        String key = getKey(cn, item.user);
+        int count = getCounts().containsKey(key) ? getCounts().get(key) + 1 : 1;
+        mCounts.put(key, count);
+        mPrefs.edit().putInt(key, count).apply();
+    }
+
+    public int getLaunchCount(ComponentKey key) {
+        Integer count = getCounts().get(getKey(key.componentName, key.user));
+        return count != null ? count : 0;
+    }
+
+    private HashMap<String, Integer> getCounts() {
+        if (mCounts == null) {
+            mCounts = new HashMap<>();
+            for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+                if (entry.getValue() instanceof Integer) {
+                    mCounts.put(entry.getKey(), (Integer) entry.getValue());
+                }
+            }
+        }
+        return mCounts;
+    }
+
+    private String getKey(ComponentName cn, UserHandle user) {
+        return cn.flattenToString() + "#" + mUserManager.getSerialNumberForUser(user);
+    }
+}
@@ -0,0 +1,426 @@
+package ch.deletescape.lawnchair.allapps;
+
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import ch.deletescape.lawnchair.AppInfo;
+import ch.deletescape.lawnchair.util.ComponentKey;
+import ch.deletescape.lawnchair.util.UnicodeFilter;
+
+/**
+ * A precomputed index over the app titles used by the all apps search.
+ * <p>
+ * Titles are lowercased and diacritic-stripped once when an app is added, and every app is
+ * registered in a posting list for each character of its title. A query can only match titles
+ * which contain all of its characters, so the candidates are narrowed to the smallest posting
+ * list before the actual subsequence check runs.
+ * <p>
+ * The index is kept up to date by {@link AlphabeticalAppsList} and must only be accessed on the
+ * UI thread.
+ */
+public class AppSearchIndex {
+
+    /**
+     * The indexed form of a single app.
+     */
+    public static class Entry {
+        public final AppInfo app;
+        public final ComponentKey key;
+        // The lowercased title
+        public final String title;
+        // The lowercased title with all diacritics removed
+        public final String strippedTitle;
+        // Offsets in the title at which a new word starts, see {@link #isBreak}
+        public final int[] wordStarts;
+
+        Entry(AppInfo app) {
+            this.app = app;
+            key = app.toComponentKey();
+            String original = app.title.toString();
+            title = original.toLowerCase();
+            strippedTitle = isAscii(title) ? title : UnicodeFilter.filter(title);
+            // Lowercasing may change the length for some locales, in which case the offsets
+            // of the original title would no longer line up and the camel case breaks are lost.
+            wordStarts = findWordStarts(original.length() == title.length() ? original : title);
+        }
+    }
+
+    private static class ScoredEntry {
+        final Entry entry;
+        final int score;
+
+        ScoredEntry(Entry entry, int score) {
+            this.entry = entry;
+            this.score = score;
+        }
+    }
+
+    // Match quality tiers used by {@link #rank}. The launch frequency bonus is always smaller than
+    // the gap between two tiers, so it only reorders matches of the same quality.
+    private static final int SCORE_PREFIX = 4000;
+    private static final int SCORE_WORD_START = 3000;
+    private static final int SCORE_BREAK = 2000;
+    private static final int SCORE_SUBSEQUENCE = 1000;
+    private static final int MAX_FREQUENCY_BONUS = 900;
+    private static final int FREQUENCY_BONUS_PER_DOUBLING = 100;
+
+    private static final Comparator<ScoredEntry> SCORE_COMPARATOR = new Comparator<ScoredEntry>() {
+        @Override
+        public int compare(ScoredEntry a, ScoredEntry b) {
+            if (a.score != b.score) {
+                return a.score < b.score ? -1 : 1;
+            }
+            // Prefer shorter titles, they are closer to what was typed
+            return b.entry.title.length() - a.entry.title.length();
+        }
+    };
+
+    private final HashMap<ComponentKey, Entry> mEntries = new HashMap<>();
+    private final SparseArray<HashSet<Entry>> mPostings = new SparseArray<>();
+    private final Comparator<Entry> mEntryComparator;
+
+    // Incremented on every change, so that cached search results can be invalidated.
+    private int mVersion;
+
+    public AppSearchIndex(final Comparator<? super AppInfo> appComparator) {
+        mEntryComparator = new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return appComparator.compare(a.app, b.app);
+            }
+        };
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public void clear() {
+        mEntries.clear();
+        mPostings.clear();
+        mVersion++;
+    }
+
+    /**
+     * Adds the given apps, replacing the existing entries for the same components.
+     */
+    public void addOrUpdate(Collection<AppInfo> apps) {
+        for (AppInfo app : apps) {
+            Entry entry = new Entry(app);
+            removeEntry(mEntries.put(entry.key, entry));
+            addPostings(entry, entry.title);
+            if (entry.strippedTitle != entry.title) {
+                addPostings(entry, entry.strippedTitle);
+            }
+        }
+        mVersion++;
+    }
+
+    public void remove(Collection<AppInfo> apps) {
+        for (AppInfo app : apps) {
+            removeEntry(mEntries.remove(app.toComponentKey()));
+        }
+        mVersion++;
+    }
+
+    /**
+     * Returns all entries whose title contains {@param query} as a subsequence, in the order of the
+     * all apps list.
+     *
+     * @param query      the query, already normalized using {@link #normalizeQuery}
+     * @param stripped   whether to match against the diacritic-stripped titles
+     * @param candidates if not null, only these entries are considered. This is used to narrow
+     *                   down the search to the results of a query of which {@param query} is an
+     *                   extension.
+     */
+    public ArrayList<Entry> search(String query, boolean stripped, List<Entry> candidates) {
+        ArrayList<Entry> result = new ArrayList<>();
+        if (query.isEmpty()) {
+            return result;
+        }
+        Collection<Entry> pool = candidates;
+        if (pool == null) {
+            pool = getSmallestPosting(query);
+            if (pool == null) {
+                return result;
+            }
+        }
+        for (Entry entry : pool) {
+            if (isSubsequence(stripped ? entry.strippedTitle : entry.title, query)) {
+                result.add(entry);
+            }
+        }
+        if (candidates == null) {
+            // Posting lists are unordered, previous results are already sorted.
+            Collections.sort(result, mEntryComparator);
+        }
+        return result;
+    }
+
+    /**
+     * Moves the {@param topCount} best matches of {@param matches} to the front, ordered by
+     * descending score. The remaining matches keep their relative order. Only the best matches are
+     * kept in a bounded heap, so this runs in O(n log topCount) instead of sorting all matches.
+     *
+     * @param matches the result of {@link #search} for the same query
+     * @param tracker used to weigh the matches by launch frequency, may be null
+     */
+    public ArrayList<Entry> rank(List<Entry> matches, String query, boolean stripped,
+                                 int topCount, AppLaunchTracker tracker) {
+        if (topCount <= 0 || matches.size() <= 1) {
+            return new ArrayList<>(matches);
+        }
+        PriorityQueue<ScoredEntry> best = new PriorityQueue<>(topCount + 1, SCORE_COMPARATOR);
+        for (Entry entry : matches) {
+            int score = getMatchScore(entry, query, stripped);
+            if (tracker != null) {
+                score += getFrequencyBonus(tracker.getLaunchCount(entry.key));
+            }
+            ScoredEntry scored = new ScoredEntry(entry, score);
+            if (best.size() < topCount) {
+                best.add(scored);
+            } else if (SCORE_COMPARATOR.compare(scored, best.peek()) > 0) {
+                best.poll();
+                best.add(scored);
+            }
+        }
+
+        int bestCount = best.size();
+        Entry[] top = new Entry[bestCount];
+        HashSet<Entry> topSet = new HashSet<>(bestCount);
+        for (int i = bestCount - 1; i >= 0; i--) {
+            top[i] = best.poll().entry;
+            topSet.add(top[i]);
+        }
+        ArrayList<Entry> result = new ArrayList<>(matches.size());
+        Collections.addAll(result, top);
+        for (Entry entry : matches) {
+            if (!topSet.contains(entry)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the quality tier of a match of {@param query} against {@param entry}.
+     */
+    static int getMatchScore(Entry entry, String query, boolean stripped) {
+        String title = stripped ? entry.strippedTitle : entry.title;
+        if (title.startsWith(query)) {
+            return SCORE_PREFIX;
+        }
+        // The word starts are computed on the original title, and are meaningless if stripping
+        // the diacritics changed the length.
+        boolean hasBreaks = title.length() == entry.title.length();
+        int breakScore = 0;
+        if (hasBreaks) {
+            for (int start : entry.wordStarts) {
+                if (start > 0 && title.startsWith(query, start)) {
+                    if (!Character.isLetterOrDigit(title.charAt(start - 1))) {
+                        return SCORE_WORD_START;
+                    }
+                    // Starts in the middle of a word, eg. "store" in "PlayStore"
+                    breakScore = SCORE_BREAK;
+                }
+            }
+        } else {
+            for (int i = title.indexOf(query, 1); i > 0; i = title.indexOf(query, i + 1)) {
+                if (!Character.isLetterOrDigit(title.charAt(i - 1))) {
+                    return SCORE_WORD_START;
+                }
+            }
+        }
+        if (breakScore != 0) {
+            return breakScore;
+        }
+        if (hasBreaks && matchesInitials(title, entry.wordStarts, query)) {
+            // eg. "gm" for "Google Maps" or "ps" for "PlayStore"
+            return SCORE_BREAK;
+        }
+        return SCORE_SUBSEQUENCE;
+    }
+
+    /**
+     * Returns whether each character of {@param query} matches the first character of a
+     * following word in {@param title}.
+     */
+    private static boolean matchesInitials(String title, int[] wordStarts, String query) {
+        int qi = 0;
+        for (int i = 0; i < wordStarts.length && qi < query.length(); i++) {
+            if (title.charAt(wordStarts[i]) == query.charAt(qi)) {
+                qi++;
+            }
+        }
+        return qi == query.length();
+    }
+
+    private static int getFrequencyBonus(int launchCount) {
+        if (launchCount <= 0) {
+            return 0;
+        }
+        // Logarithmic, so a handful of launches already matters but heavy use does not drown
+        // out everything else.
+        int doublings = 32 - Integer.numberOfLeadingZeros(launchCount);
+        return Math.min(MAX_FREQUENCY_BONUS, doublings * FREQUENCY_BONUS_PER_DOUBLING);
+    }
+
+    /**
+     * Brings a raw query into the form used by {@link #search}.
+     */
+    public static String normalizeQuery(String query, boolean stripped) {
+        String lower = query.toLowerCase();
+        return stripped ? UnicodeFilter.filter(lower.trim()) : lower;
+    }
+
+    private Collection<Entry> getSmallestPosting(String query) {
+        HashSet<Entry> smallest = null;
+        for (int i = 0; i < query.length(); i++) {
+            HashSet<Entry> posting = mPostings.get(query.charAt(i));
+            if (posting == null) {
+                // No title contains this character
+                return null;
+            }
+            if (smallest == null || posting.size() < smallest.size()) {
+                smallest = posting;
+            }
+        }
+        return smallest;
+    }
+
+    private void addPostings(Entry entry, String title) {
+        for (int i = 0; i < title.length(); i++) {
+            char c = title.charAt(i);
+            HashSet<Entry> posting = mPostings.get(c);
+            if (posting == null) {
+                posting = new HashSet<>();
+                mPostings.put(c, posting);
+            }
+            posting.add(entry);
+        }
+    }
+
+    private void removeEntry(Entry entry) {
+        if (entry == null) {
+            return;
+        }
+        removePostings(entry, entry.title);
+        if (entry.strippedTitle != entry.title) {
+            removePostings(entry, entry.strippedTitle);
+        }
+    }
+
+    private void removePostings(Entry entry, String title) {
+        for (int i = 0; i < title.length(); i++) {
+            HashSet<Entry> posting = mPostings.get(title.charAt(i));
+            if (posting != null) {
+                posting.remove(entry);
+            }
+        }
+    }
+
+    /**
+     * Returns whether all characters of {@param needle} appear in {@param haystack} in order. For
+     * instance, "ffox" matches "firefox".
+     */
+    static boolean isSubsequence(String haystack, String needle) {
+        int queryLength = needle.length();
+        int titleLength = haystack.length();
+
+        if (titleLength < queryLength || queryLength <= 0) {
+            return false;
+        }
+
+        int ni = 0;
+        for (int hi = 0; hi < titleLength; hi++) {
+            if (haystack.charAt(hi) == needle.charAt(ni)) {
+                ni++;
+                if (ni == queryLength)
+                    return true; // All characters consumed, the query matched
+            }
+        }
+        return false;
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] findWordStarts(String title) {
+        int length = title.length();
+        int[] starts = new int[length];
+        int count = 0;
+        int prevType;
+        int thisType = Character.UNASSIGNED;
+        int nextType = length > 0 ? Character.getType(title.codePointAt(0)) : Character.UNASSIGNED;
+        for (int i = 0; i < length; i++) {
+            prevType = thisType;
+            thisType = nextType;
+            nextType = i < length - 1
+                    ? Character.getType(title.codePointAt(i + 1)) : Character.UNASSIGNED;
+            if (isBreak(thisType, prevType, nextType)) {
+                starts[count++] = i;
+            }
+        }
+        int[] result = new int[count];
+        System.arraycopy(starts, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Returns true if the current point should be a break point. Following cases
+     * are considered as break points:
+     * 1) Any non space character after a space character
+     * 2) Any digit after a non-digit character
+     * 3) Any capital character after a digit or small character
+     * 4) Any capital character before a small character
+     */
+    static boolean isBreak(int thisType, int prevType, int nextType) {
+        switch (thisType) {
+            case Character.UPPERCASE_LETTER:
+                if (nextType == Character.UPPERCASE_LETTER) {
+                    return true;
+                }
+                // Follow through
+            case Character.TITLECASE_LETTER:
+                // Break point if previous was not a upper case
+                return prevType != Character.UPPERCASE_LETTER;
+            case Character.LOWERCASE_LETTER:
+                // Break point if previous was not a letter.
+                return prevType > Character.OTHER_LETTER || prevType <= Character.UNASSIGNED;
+            case Character.DECIMAL_DIGIT_NUMBER:
+            case Character.LETTER_NUMBER:
+            case Character.OTHER_NUMBER:
+                // Break point if previous was not a number
+                return !(prevType == Character.DECIMAL_DIGIT_NUMBER
+                        || prevType == Character.LETTER_NUMBER
+                        || prevType == Character.OTHER_NUMBER);
+            case Character.MATH_SYMBOL:
+            case Character.CURRENCY_SYMBOL:
+            case Character.OTHER_PUNCTUATION:
+            case Character.DASH_PUNCTUATION:
+            case Character.OTHER_LETTER:
+                // Always a break point for a symbol
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -15,12 +15,14 @@
  */
 package ch.deletescape.lawnchair.allapps;
 
+import android.content.Context;
 import android.os.Handler;
 
 import java.util.ArrayList;
 import java.util.List;
 
 import ch.deletescape.lawnchair.AppInfo;
+import ch.deletescape.lawnchair.Utilities;
 import ch.deletescape.lawnchair.util.ComponentKey;
 
 /**
@@ -28,10 +30,22 @@ import ch.deletescape.lawnchair.util.ComponentKey;
  */
 public class DefaultAppSearchAlgorithm {
 
-    private final List<AppInfo> mApps;
+    // Number of rows of ranked results shown before the remaining matches, see
+    // {@link AppSearchIndex#rank}.
+    private static final int RANKED_ROWS = 2;
+    private static final int DEFAULT_RANKED_COUNT = 8;
+
+    protected final Context mContext;
+    protected final AlphabeticalAppsList mApps;
     protected final Handler mResultHandler;
 
-    public DefaultAppSearchAlgorithm(List<AppInfo> apps) {
+    // The matches of the last query, used to narrow down the search when the query is extended.
+    private String mLastQuery;
+    private ArrayList<AppSearchIndex.Entry> mLastMatches;
+    private int mLastIndexVersion;
+
+    public DefaultAppSearchAlgorithm(Context context, AlphabeticalAppsList apps) {
+        mContext = context;
         mApps = apps;
         mResultHandler = new Handler();
     }
@@ -55,83 +69,54 @@ public class DefaultAppSearchAlgorithm {
     }
 
     protected ArrayList<ComponentKey> getTitleMatchResult(String query) {
-        // Do an intersection of the words in the query and each title, and filter out all the
-        // apps that don't match all of the words in the query.
-        final String queryTextLower = query.toLowerCase();
-        final ArrayList<ComponentKey> result = new ArrayList<>();
-        for (AppInfo info : mApps) {
-            if (matches(info, queryTextLower)) {
-                result.add(info.toComponentKey());
-            }
-        }
-        return result;
-    }
-
-    protected boolean matches(AppInfo info, String query) {
-        return matches(info.title.toString().toLowerCase(), query);
-    }
-
-    protected boolean matches(String haystack, String needle) {
-        // Assumes both haystack and needle are lowercase
-        int queryLength = needle.length();
-        int titleLength = haystack.length();
+        AppSearchIndex index = mApps.getSearchIndex();
+        String normalizedQuery = AppSearchIndex.normalizeQuery(query, stripDiacritics());
 
-        if (titleLength < queryLength || queryLength <= 0) {
-            return false;
+        // Every title matching the extended query also matched the previous one, so only those
+        // need to be checked again.
+        List<AppSearchIndex.Entry> candidates = null;
+        if (mLastMatches != null && mLastIndexVersion == index.getVersion()
+                && !mLastQuery.isEmpty() && normalizedQuery.startsWith(mLastQuery)) {
+            candidates = mLastMatches;
         }
+        ArrayList<AppSearchIndex.Entry> matches =
+                index.search(normalizedQuery, stripDiacritics(), candidates);
+        mLastQuery = normalizedQuery;
+        mLastMatches = matches;
+        mLastIndexVersion = index.getVersion();
 
-        // This algorithms works by iterating over the "haystack" string,
-        // and the "needle" query is searched character by character on it
-        // without going back. For instance, "ffox" would match in "firefox".
-        int hi;
-        int ni = 0;
-        for (hi = 0; hi < titleLength; hi++) {
-            if (haystack.charAt(hi) == needle.charAt(ni)) {
-                ni++;
-                if (ni == queryLength)
-                    return true; // All characters consumed, the query matched
+        List<AppSearchIndex.Entry> searchable = new ArrayList<>(matches.size());
+        for (AppSearchIndex.Entry entry : matches) {
+            if (isSearchable(entry.app)) {
+                searchable.add(entry);
             }
         }
+        if (Utilities.getPrefs(mContext).getRankedSearch()) {
+            // The cached matches above must stay in list order, only the returned copy is ranked.
+            int numAppsPerRow = mApps.getNumAppsPerRow();
+            int rankedCount = numAppsPerRow > 0 ? numAppsPerRow * RANKED_ROWS : DEFAULT_RANKED_COUNT;
+            searchable = index.rank(searchable, normalizedQuery, stripDiacritics(), rankedCount,
+                    AppLaunchTracker.getInstance(mContext));
+        }
+
+        final ArrayList<ComponentKey> result = new ArrayList<>(searchable.size());
+        for (AppSearchIndex.Entry entry : searchable) {
+            result.add(entry.key);
+        }
+        return result;
+    }
+
+    /**
+     * Whether titles and queries should be compared without diacritics.
+     */
+    protected boolean stripDiacritics() {
         return false;
     }
 
     /**
-     * Returns true if the current point should be a break point. Following cases
-     * are considered as break points:
-     * 1) Any non space character after a space character
-     * 2) Any digit after a non-digit character
-     * 3) Any capital character after a digit or small character
-     * 4) Any capital character before a small character
+     * Returns whether {@param info} may show up in the search results.
      */
-    protected boolean isBreak(int thisType, int prevType, int nextType) {
-        switch (thisType) {
-            case Character.UPPERCASE_LETTER:
-                if (nextType == Character.UPPERCASE_LETTER) {
-                    return true;
-                }
-                // Follow through
-            case Character.TITLECASE_LETTER:
-                // Break point if previous was not a upper case
-                return prevType != Character.UPPERCASE_LETTER;
-            case Character.LOWERCASE_LETTER:
-                // Break point if previous was not a letter.
-                return prevType > Character.OTHER_LETTER || prevType <= Character.UNASSIGNED;
-            case Character.DECIMAL_DIGIT_NUMBER:
-            case Character.LETTER_NUMBER:
-            case Character.OTHER_NUMBER:
-                // Break point if previous was not a number
-                return !(prevType == Character.DECIMAL_DIGIT_NUMBER
-                        || prevType == Character.LETTER_NUMBER
-                        || prevType == Character.OTHER_NUMBER);
-            case Character.MATH_SYMBOL:
-            case Character.CURRENCY_SYMBOL:
-            case Character.OTHER_PUNCTUATION:
-            case Character.DASH_PUNCTUATION:
-            case Character.OTHER_LETTER:
-                // Always a break point for a symbol
-                return true;
-            default:
-                return false;
-        }
+    protected boolean isSearchable(AppInfo info) {
+        return !mApps.isFilteredOut(info.toComponentKey());
     }
 }
@@ -21,6 +21,6 @@ package ch.deletescape.lawnchair.allapps;
 public class DefaultAppSearchController extends AllAppsSearchBarController {
 
     public DefaultAppSearchAlgorithm onInitializeSearch() {
-        return new DefaultAppSearchAlgorithm(mApps.getApps());
+        return new DefaultAppSearchAlgorithm(mLauncher, mApps);
     }
 }
@@ -1,28 +1,26 @@
 package ch.deletescape.lawnchair.allapps;
 
-import java.util.List;
+import android.content.Context;
 
 import ch.deletescape.lawnchair.AppInfo;
 import ch.deletescape.lawnchair.LauncherAppState;
-import ch.deletescape.lawnchair.util.UnicodeFilter;
 
 /**
  * A search algorithm that changes every non-ascii characters to theirs ascii equivalents and
  * then performs comparison.
  */
 public class UnicodeStrippedAppSearchAlgorithm extends DefaultAppSearchAlgorithm {
-    public UnicodeStrippedAppSearchAlgorithm(List<AppInfo> apps) {
-        super(apps);
+    public UnicodeStrippedAppSearchAlgorithm(Context context, AlphabeticalAppsList apps) {
+        super(context, apps);
     }
 
     @Override
-    protected boolean matches(AppInfo info, String query) {
-        if (info.componentName.getPackageName().equals(LauncherAppState.getInstanceNoCreate().getContext().getPackageName()))
-            return false;
-
-        String title = UnicodeFilter.filter(info.title.toString().toLowerCase());
-        String strippedQuery = UnicodeFilter.filter(query.trim());
+    protected boolean stripDiacritics() {
+        return true;
+    }
 
-        return super.matches(title, strippedQuery);
+    @Override
+    protected boolean isSearchable(AppInfo info) {
+        return !info.componentName.getPackageName().equals(LauncherAppState.getInstanceNoCreate().getContext().getPackageName());
     }
 }
@@ -10,6 +10,7 @@ import android.graphics.Shader.TileMode;
 import android.graphics.drawable.Drawable;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import ch.deletescape.lawnchair.notification.NotificationInfo;
@@ -57,6 +58,29 @@ public class BadgeInfo {
         return remove;
     }
 
+    /**
+     * Replaces the notification keys with {@code notificationKeys}, keeping the order of the
+     * ones which stay.
+     *
+     * @return whether notifications were added or removed, or their count changed.
+     */
+    public boolean setNotificationKeys(List<NotificationKeyData> notificationKeys) {
+        boolean changed = false;
+        Iterator<NotificationKeyData> iterator = mNotificationKeys.iterator();
+        while (iterator.hasNext()) {
+            NotificationKeyData notificationKeyData = iterator.next();
+            if (!notificationKeys.contains(notificationKeyData)) {
+                iterator.remove();
+                mTotalCount -= notificationKeyData.count;
+                changed = true;
+            }
+        }
+        for (NotificationKeyData notificationKeyData : notificationKeys) {
+            changed |= addOrUpdateNotificationKey(notificationKeyData);
+        }
+        return changed;
+    }
+
     public List<NotificationKeyData> getNotificationKeys() {
         return mNotificationKeys;
     }
@@ -82,6 +106,8 @@ public class BadgeInfo {
             Drawable newDrawable = mNotificationInfo.getIconForBackground(context, i).getConstantState().newDrawable();
             int i4 = i2 - (i3 * 2);
             newDrawable.setBounds(0, 0, i4, i4);
+            // Not pooled, the recorded display lists of badged views keep drawing the shader
+            // until they are rebound, so there is no safe point to release the bitmap.
             Bitmap createBitmap = Bitmap.createBitmap(i2, i2, Config.ARGB_8888);
             Canvas canvas = new Canvas(createBitmap);
             canvas.translate((float) i3, (float) i3);
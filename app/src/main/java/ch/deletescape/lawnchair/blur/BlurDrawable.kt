@@ -1,14 +1,13 @@
 package ch.deletescape.lawnchair.blur
 
-import android.content.Context
 import android.graphics.*
 import android.graphics.drawable.Drawable
-import android.renderscript.Allocation
-import android.renderscript.Element
-import android.renderscript.RenderScript
-import android.renderscript.ScriptIntrinsicBlur
-import android.util.Log
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
 import android.view.View
+import ch.deletescape.lawnchair.util.TaskScheduler
+import java.util.*
 
 class BlurDrawable internal constructor(private val mProvider: BlurWallpaperProvider, private val mRadius: Float, private val mAllowTransparencyMode: Boolean) : Drawable(), BlurWallpaperProvider.Listener {
 
@@ -35,15 +34,41 @@ class BlurDrawable internal constructor(private val mProvider: BlurWallpaperProv
 
     private var mDownsampleFactorChanged: Boolean = false
     private var mBitmapToBlur: Bitmap? = null
+    // Front buffer, drawn on the UI thread
     private var mBlurredBitmap: Bitmap? = null
+    // Back buffer, written by the blur thread
+    private var mBlurringBitmap: Bitmap? = null
+    private var mHasBlurredBitmap: Boolean = false
     private var mBlurringCanvas: Canvas? = null
-    private var mRenderScript: RenderScript? = null
-    private var mBlurScript: ScriptIntrinsicBlur? = null
-    private var mBlurInput: Allocation? = null
-    private var mBlurOutput: Allocation? = null
+    // Only used on the blur thread in async mode
+    private var mBlurEngine: BlurEngine? = null
+    private var mBlurEngineType: Int = -1
     private var mTempBitmap: Bitmap? = null
     private var mBlurInvalid: Boolean = false
 
+    // Pixels of the last blurred snapshot, to skip blurs if the view did not change. Only used on
+    // the blur thread in async mode, replaced along with the bitmaps.
+    private var mSnapshotPixels = SnapshotPixels(0)
+    // Whether anything which is part of the snapshot may have changed since the last one
+    private var mViewDirty = true
+    private val mLayoutChangeListener = View.OnLayoutChangeListener { _, _, _, _, _, _, _, _, _ ->
+        invalidateBlurredView()
+    }
+    private var mBlurredRadius: Int = -1
+    private var mAsyncBlur = true
+    private var mFrameBudgetMs = DEFAULT_FRAME_BUDGET_MS
+    private var mBlurInFlight = false
+    private var mBlurPending = false
+    private var mLastBlurStart: Long = 0
+    var lastBlurLatencyMs: Long = -1
+        private set
+    private val mMainHandler = Handler(Looper.getMainLooper())
+    private val mPendingBlurRunnable = Runnable {
+        mBlurPending = false
+        mBlurInvalid = true
+        invalidateSelf()
+    }
+
     private var mBlurredX: Float = 0.toFloat()
     private var mBlurredY: Float = 0.toFloat()
     private var mShouldProvideOutline: Boolean = false
@@ -59,16 +84,45 @@ class BlurDrawable internal constructor(private val mProvider: BlurWallpaperProv
         }
 
         mDownsampleFactor = BlurWallpaperProvider.DOWNSAMPLE_FACTOR
-        initializeRenderScript(mProvider.context)
     }
 
     fun setBlurredView(blurredView: View) {
+        mBlurredView?.removeOnLayoutChangeListener(mLayoutChangeListener)
         mBlurredView = blurredView
+        blurredView.addOnLayoutChangeListener(mLayoutChangeListener)
+        mViewDirty = true
+    }
+
+    /**
+     * Whether the blurred view is blurred on a background thread, in which case the previous
+     * blur is shown until the new one is ready. Enabled by default.
+     */
+    fun setAsyncBlur(async: Boolean) {
+        mAsyncBlur = async
+    }
+
+    /**
+     * Sets the minimum time between two blurs of the blurred view. Changes within that time are
+     * picked up by a single blur once it is over.
+     */
+    fun setBlurFrameBudget(budgetMs: Long) {
+        mFrameBudgetMs = budgetMs
+    }
+
+    /**
+     * Re-blurs the blurred view, e.g. after its content changed. Layout changes of the view are
+     * picked up automatically.
+     */
+    fun invalidateBlurredView() {
+        mViewDirty = true
+        mBlurInvalid = true
+        invalidateSelf()
     }
 
     fun setOverlayColor(color: Int) {
         if (mOverlayColor != color) {
             mOverlayColor = color
+            mViewDirty = true
             mColorPaint.color = color
             invalidateSelf()
         }
@@ -105,35 +159,28 @@ class BlurDrawable internal constructor(private val mProvider: BlurWallpaperProv
             drawTo.drawRect(mRect, mOpacityPaint)
         }
 
-        drawTo.drawBitmap(toDraw, blurTranslateX, translateY - mProvider.wallpaperYOffset, mPaint)
+        // The wallpaper is kept at the downsampled size
+        drawTo.save()
+        drawTo.translate(blurTranslateX, translateY - mProvider.wallpaperYOffset)
+        drawTo.scale(mDownsampleFactor.toFloat(), mDownsampleFactor.toFloat())
+        drawTo.drawBitmap(toDraw, 0f, 0f, mPaint)
+        drawTo.restore()
 
         if (prepare()) {
             if (mBlurInvalid) {
                 mBlurInvalid = false
                 mBlurredX = mOverscroll
                 mBlurredY = mTranslation
-
-                val startTime = System.currentTimeMillis()
-
-                mBlurredView!!.draw(mBlurringCanvas)
-                mBlurringCanvas!!.drawColor(mProvider.tintColor)
-                if (mOverlayColor != 0)
-                    mBlurringCanvas!!.drawColor(mOverlayColor)
-                blur()
-
-                mBlurringCanvas = null
-                mBitmapToBlur = null
-                mBlurInput = null
-                mBlurOutput = null
-
-                Log.d("BlurView", "Took " + (System.currentTimeMillis() - startTime) + "ms to blur")
+                requestBlur()
             }
 
-            mClipCanvas.save()
-            mClipCanvas.translate(mBlurredView!!.x + translateX, mBlurredView!!.y + translateY)
-            mClipCanvas.scale(mDownsampleFactor.toFloat(), mDownsampleFactor.toFloat())
-            mClipCanvas.drawBitmap(mBlurredBitmap!!, 0f, 0f, mBlurPaint)
-            mClipCanvas.restore()
+            if (mHasBlurredBitmap) {
+                mClipCanvas.save()
+                mClipCanvas.translate(mBlurredView!!.x + translateX, mBlurredView!!.y + translateY)
+                mClipCanvas.scale(mDownsampleFactor.toFloat(), mDownsampleFactor.toFloat())
+                mClipCanvas.drawBitmap(mBlurredBitmap!!, 0f, 0f, mBlurPaint)
+                mClipCanvas.restore()
+            }
         }
 
         if (mBlurredView != null) {
@@ -143,11 +190,6 @@ class BlurDrawable internal constructor(private val mProvider: BlurWallpaperProv
         }
     }
 
-    private fun initializeRenderScript(context: Context) {
-        mRenderScript = RenderScript.create(context)
-        mBlurScript = ScriptIntrinsicBlur.create(mRenderScript, Element.U8_4(mRenderScript))
-    }
-
     private fun prepare(): Boolean {
         if (mBlurredView == null) return false
         if (!mBlurInvalid) return true
@@ -172,33 +214,123 @@ class BlurDrawable internal constructor(private val mProvider: BlurWallpaperProv
             if (mBitmapToBlur == null || mBlurredBitmap == null
                     || mBlurredBitmap!!.width != scaledWidth
                     || mBlurredBitmap!!.height != scaledHeight) {
+                // A blur which is still running keeps using the old bitmaps, its result is
+                // dropped as it does not match the new size.
                 mBitmapToBlur = Bitmap.createBitmap(scaledWidth, scaledHeight,
                         Bitmap.Config.ARGB_8888)
-                if (mBitmapToBlur == null) {
-                    return false
-                }
-
                 mBlurredBitmap = Bitmap.createBitmap(scaledWidth, scaledHeight,
                         Bitmap.Config.ARGB_8888)
-                if (mBlurredBitmap == null) {
-                    return false
-                }
+                mBlurringBitmap = Bitmap.createBitmap(scaledWidth, scaledHeight,
+                        Bitmap.Config.ARGB_8888)
+                mHasBlurredBitmap = false
+                mSnapshotPixels = SnapshotPixels(scaledWidth * scaledHeight)
+                mBlurredRadius = -1
             }
 
             mBlurringCanvas = Canvas(mBitmapToBlur!!)
             mBlurringCanvas!!.scale(1f / mDownsampleFactor, 1f / mDownsampleFactor)
-            mBlurInput = Allocation.createFromBitmap(mRenderScript, mBitmapToBlur,
-                    Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_SCRIPT)
-            mBlurOutput = Allocation.createTyped(mRenderScript, mBlurInput!!.type)
         }
         return true
     }
 
-    private fun blur() {
-        mBlurInput!!.copyFrom(mBitmapToBlur)
-        mBlurScript!!.setInput(mBlurInput)
-        mBlurScript!!.forEach(mBlurOutput)
-        mBlurOutput!!.copyTo(mBlurredBitmap)
+    /**
+     * Snapshots the blurred view and blurs it if it changed since the last blur, at most once per
+     * frame budget and, in async mode, without blocking the UI thread.
+     * <p>
+     * Nothing is snapshotted unless the view was invalidated, its layout, the overlay or the
+     * wallpaper changed. The snapshot is then compared with the last one on the blur thread, which
+     * still skips the blur if the view looks the same.
+     */
+    private fun requestBlur() {
+        val radius = mProvider.blurRadius
+        if (mHasBlurredBitmap && !mViewDirty && radius == mBlurredRadius) {
+            mProvider.onViewBlurSkipped()
+            return
+        }
+        if (mBlurInFlight || mBlurPending) {
+            // Picked up once the current blur is done
+            mBlurPending = true
+            return
+        }
+        val now = SystemClock.uptimeMillis()
+        if (now < mLastBlurStart + mFrameBudgetMs) {
+            mBlurPending = true
+            mMainHandler.postAtTime(mPendingBlurRunnable, mLastBlurStart + mFrameBudgetMs)
+            return
+        }
+
+        mViewDirty = false
+        val input = mBitmapToBlur!!
+        input.eraseColor(Color.TRANSPARENT)
+        mBlurredView!!.draw(mBlurringCanvas)
+        mBlurringCanvas!!.drawColor(mProvider.tintColor)
+        if (mOverlayColor != 0)
+            mBlurringCanvas!!.drawColor(mOverlayColor)
+
+        mLastBlurStart = now
+        val output = mBlurringBitmap!!
+        val snapshotPixels = mSnapshotPixels
+        val force = !mHasBlurredBitmap || radius != mBlurredRadius
+        if (!mAsyncBlur) {
+            val blurred = blurIfChanged(input, output, snapshotPixels, radius, force)
+            onBlurFinished(input, output, radius, now, blurred)
+            return
+        }
+        mBlurInFlight = true
+        TaskScheduler.getInstance().execute(TaskScheduler.LANE_UI) {
+            val blurred = blurIfChanged(input, output, snapshotPixels, radius, force)
+            mMainHandler.post { onBlurFinished(input, output, radius, now, blurred) }
+        }
+    }
+
+    /**
+     * Blurs [input] into [output] unless it looks the same as the last blurred snapshot.
+     *
+     * @return false if the blur was skipped.
+     */
+    private fun blurIfChanged(input: Bitmap, output: Bitmap, snapshotPixels: SnapshotPixels,
+                              radius: Int, force: Boolean): Boolean {
+        input.getPixels(snapshotPixels.current, 0, input.width, 0, 0, input.width, input.height)
+        if (!force && Arrays.equals(snapshotPixels.current, snapshotPixels.last)) {
+            return false
+        }
+        snapshotPixels.swap()
+        blur(input, output, radius)
+        return true
+    }
+
+    private fun blur(input: Bitmap, output: Bitmap, radius: Int) {
+        val type = BlurEngine.selectedEngine(mProvider.context)
+        var engine = mBlurEngine
+        if (engine == null || type != mBlurEngineType) {
+            engine?.release()
+            engine = BlurEngine.create(mProvider.context, type)
+            mBlurEngine = engine
+            mBlurEngineType = type
+        }
+        engine.blur(input, output, radius)
+    }
+
+    private fun onBlurFinished(input: Bitmap, output: Bitmap, radius: Int, startTime: Long,
+                               blurred: Boolean) {
+        mBlurInFlight = false
+        if (!blurred) {
+            mProvider.onViewBlurSkipped()
+        } else if (input === mBitmapToBlur) {
+            // Swap the buffers
+            mBlurringBitmap = mBlurredBitmap
+            mBlurredBitmap = output
+            mHasBlurredBitmap = true
+            mBlurredRadius = radius
+            lastBlurLatencyMs = SystemClock.uptimeMillis() - startTime
+            mProvider.onViewBlurred(lastBlurLatencyMs)
+        }
+        if (mBlurPending) {
+            mBlurPending = false
+            mMainHandler.removeCallbacks(mPendingBlurRunnable)
+            mBlurInvalid = true
+        }
+        invalidateSelf()
     }
 
     val bitmap: Bitmap?
@@ -224,6 +356,10 @@ class BlurDrawable internal constructor(private val mProvider: BlurWallpaperProv
 
     fun startListening() {
         mProvider.addListener(this)
+        // Nothing tracks the blurred view while this is not shown, e.g. icons added to the
+        // workspace while a folder was closed, so start over with a new snapshot.
+        mViewDirty = true
+        mBlurInvalid = true
     }
 
     fun stopListening() {
@@ -231,7 +367,9 @@ class BlurDrawable internal constructor(private val mProvider: BlurWallpaperProv
     }
 
     override fun onWallpaperChanged() {
-        mBlurScript!!.setRadius(mProvider.blurRadius.toFloat())
+        // The snapshot includes the tint and the radius is compared, so this only re-blurs if
+        // either of them changed.
+        mViewDirty = true
         mBlurInvalid = true
         if (!mUseTransparency)
             invalidateSelf()
@@ -285,4 +423,26 @@ class BlurDrawable internal constructor(private val mProvider: BlurWallpaperProv
         }
         mOpacity = opacity
     }
+
+    /**
+     * The pixels of the current and the last snapshot of a size.
+     */
+    private class SnapshotPixels(size: Int) {
+        var current = IntArray(size)
+            private set
+        var last = IntArray(size)
+            private set
+
+        fun swap() {
+            val pixels = last
+            last = current
+            current = pixels
+        }
+    }
+
+    companion object {
+
+        // About three frames, a blur of the blurred view takes about one
+        private const val DEFAULT_FRAME_BUDGET_MS = 48L
+    }
 }
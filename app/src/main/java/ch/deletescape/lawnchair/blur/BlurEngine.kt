@@ -0,0 +1,43 @@
+package ch.deletescape.lawnchair.blur
+
+import android.content.Context
+import android.graphics.Bitmap
+import ch.deletescape.lawnchair.Utilities
+
+/**
+ * Blurs bitmaps for [BlurWallpaperProvider] and [BlurDrawable]. Instances keep their scratch
+ * buffers between calls and are not thread safe.
+ */
+interface BlurEngine {
+
+    /**
+     * Writes a blurred copy of [input] to [output], which must have the same size.
+     * [radius] is in pixels of [input], between 1 and 25 like for ScriptIntrinsicBlur.
+     */
+    fun blur(input: Bitmap, output: Bitmap, radius: Int)
+
+    /**
+     * Frees the buffers of this engine, it must not be used afterwards.
+     */
+    fun release()
+
+    companion object {
+
+        const val ENGINE_RENDERSCRIPT = 0
+        const val ENGINE_CPU = 1
+
+        fun create(context: Context): BlurEngine = create(context, selectedEngine(context))
+
+        fun create(context: Context, engine: Int): BlurEngine {
+            return if (engine == ENGINE_CPU) BoxBlurEngine() else RenderScriptBlurEngine(context)
+        }
+
+        fun selectedEngine(context: Context): Int {
+            return try {
+                Integer.parseInt(Utilities.getPrefs(context).blurEngine)
+            } catch (e: NumberFormatException) {
+                ENGINE_RENDERSCRIPT
+            }
+        }
+    }
+}
@@ -5,18 +5,22 @@ import android.app.WallpaperManager
 import android.content.Context
 import android.graphics.*
 import android.graphics.drawable.BitmapDrawable
-import android.renderscript.Allocation
-import android.renderscript.Element
-import android.renderscript.RenderScript
-import android.renderscript.ScriptIntrinsicBlur
+import android.os.SystemClock
 import android.support.v4.graphics.ColorUtils
+import android.util.AtomicFile
 import android.util.DisplayMetrics
+import android.util.Log
 import android.view.View
 import android.view.WindowManager
 import ch.deletescape.lawnchair.LauncherAppState
+import ch.deletescape.lawnchair.LauncherFiles
 import ch.deletescape.lawnchair.R
 import ch.deletescape.lawnchair.Utilities
 import ch.deletescape.lawnchair.config.FeatureFlags
+import ch.deletescape.lawnchair.dynamicui.ExtractionUtils
+import ch.deletescape.lawnchair.util.TaskScheduler
+import java.io.*
+import java.nio.ByteBuffer
 import java.util.*
 
 class BlurWallpaperProvider(context: Context) {
@@ -33,7 +37,7 @@ class BlurWallpaperProvider(context: Context) {
     var blurRadius = 25
         private set
     private val mNotifyRunnable = Runnable {
-        if (Utilities.getPrefs(context).centerWallpaper)
+        if (Utilities.getPrefs(context).snapshot.centerWallpaper)
             setWallpaperOffset(0.5f)
         for (listener in mListeners) {
             listener.onWallpaperChanged()
@@ -53,24 +57,43 @@ class BlurWallpaperProvider(context: Context) {
 
     private val mUpdateRunnable = Runnable { updateWallpaper() }
 
+    // Only used by the update runnable, which never runs concurrently with itself
+    private var mBlurEngine: BlurEngine? = null
+    private var mBlurEngineType = -1
+    private var mLastBlurTimeMs = -1L
+    // Cache key of the current wallpaper
+    private var mWallpaperKey: String? = null
+
+    // Blurs of the views behind BlurDrawables, only accessed on the UI thread
+    private var mViewBlurCount = 0
+    private var mViewBlurSkippedCount = 0
+    private var mViewBlurTotalLatencyMs = 0L
+    private var mViewBlurMaxLatencyMs = 0L
+
     init {
-        isEnabled = mWallpaperManager.wallpaperInfo == null && Utilities.getPrefs(context).enableBlur
+        isEnabled = mWallpaperManager.wallpaperInfo == null && Utilities.getPrefs(context).snapshot.enableBlur
         sEnabledFlag = enabledFlag
 
         updateBlurRadius()
+
+        // The cached wallpaper is small, show it right away instead of waiting for the update
+        val cacheKey = if (isEnabled) getCacheKey() else null
+        if (cacheKey != null) {
+            loadCachedWallpaper(cacheKey)
+        }
     }
 
     private fun updateBlurRadius() {
-        blurRadius = Utilities.getPrefs(context).blurRadius.toInt() / DOWNSAMPLE_FACTOR
+        blurRadius = Utilities.getPrefs(context).snapshot.blurRadius.toInt() / DOWNSAMPLE_FACTOR
         blurRadius = Math.max(1, Math.min(blurRadius, 25))
     }
 
     private val enabledFlag: Int
-        get() = Utilities.getPrefs(context).blurMode
+        get() = Utilities.getPrefs(context).snapshot.blurMode
 
     private fun updateWallpaper() {
         val launcher = LauncherAppState.getInstance().launcher
-        val enabled = mWallpaperManager.wallpaperInfo == null && Utilities.getPrefs(context).enableBlur
+        val enabled = mWallpaperManager.wallpaperInfo == null && Utilities.getPrefs(context).snapshot.enableBlur
         if (enabled != isEnabled || enabledFlag != sEnabledFlag) {
             launcher.scheduleKill()
         }
@@ -79,34 +102,45 @@ class BlurWallpaperProvider(context: Context) {
 
         updateBlurRadius()
 
-        var wallpaper = upscaleToScreenSize((mWallpaperManager.drawable as BitmapDrawable).bitmap)
-        val wallpaperHeight = wallpaper.height
-        if (wallpaperHeight > mDisplayHeight) {
-            wallpaperYOffset = (wallpaperHeight - mDisplayHeight) * 0.5f
-        } else {
-            wallpaperYOffset = 0f
+        val cacheKey = getCacheKey()
+        if (cacheKey != null && (cacheKey == mWallpaperKey || loadCachedWallpaper(cacheKey))) {
+            launcher.runOnUiThread(mNotifyRunnable)
+            return
         }
 
-        mWallpaperWidth = wallpaper.width
+        var wallpaper = createDownsampledWallpaper((mWallpaperManager.drawable as BitmapDrawable).bitmap)
 
         this.wallpaper = null
+        mWallpaperKey = null
         placeholder = createPlaceholder(wallpaper.width, wallpaper.height)
         launcher.runOnUiThread(mNotifyRunnable)
         if (Utilities.getPrefs(context).enableVibrancy) {
             wallpaper = applyVibrancy(wallpaper, tintColor)
         }
-        this.wallpaper = blur(wallpaper)
+        val blurred = blur(wallpaper)
+        this.wallpaper = blurred
+        if (cacheKey != null) {
+            mWallpaperKey = cacheKey
+            saveCachedWallpaper(cacheKey, blurred)
+        }
         launcher.runOnUiThread(mNotifyRunnable)
     }
 
-    private fun upscaleToScreenSize(bitmap: Bitmap): Bitmap {
+    private fun updateDisplayMetrics() {
         val wm = context.getSystemService(Context.WINDOW_SERVICE) as WindowManager
-        val display = wm.defaultDisplay
-        display.getRealMetrics(mDisplayMetrics)
+        wm.defaultDisplay.getRealMetrics(mDisplayMetrics)
+        mDisplayHeight = mDisplayMetrics.heightPixels
+    }
+
+    /**
+     * Scales [bitmap] the way the system draws it to at least the screen size and returns it at
+     * 1/[DOWNSAMPLE_FACTOR] of that size, without creating a full size copy first.
+     */
+    private fun createDownsampledWallpaper(bitmap: Bitmap): Bitmap {
+        updateDisplayMetrics()
 
         val width = mDisplayMetrics.widthPixels
         val height = mDisplayMetrics.heightPixels
-        mDisplayHeight = height
 
         var widthFactor = 0f
         var heightFactor = 0f
@@ -118,57 +152,194 @@ class BlurWallpaperProvider(context: Context) {
         }
 
         val upscaleFactor = Math.max(widthFactor, heightFactor)
+        val matrix = Matrix()
+        val fullWidth: Int
+        val fullHeight: Int
         if (upscaleFactor <= 0) {
-            return bitmap
+            fullWidth = bitmap.width
+            fullHeight = bitmap.height
+        } else {
+            fullWidth = width
+            fullHeight = height
+            val scaledWidth = (bitmap.width * upscaleFactor).toInt()
+            val scaledHeight = (bitmap.height * upscaleFactor).toInt()
+            matrix.setScale(upscaleFactor, upscaleFactor)
+            if (widthFactor > heightFactor) {
+                matrix.postTranslate(0f, ((height - scaledHeight) / 2).toFloat())
+            } else {
+                matrix.postTranslate(((width - scaledWidth) / 2).toFloat(), 0f)
+            }
         }
+        matrix.postScale(1f / DOWNSAMPLE_FACTOR, 1f / DOWNSAMPLE_FACTOR)
 
-        val scaledWidth = (bitmap.width * upscaleFactor).toInt()
-        val scaledHeight = (bitmap.height * upscaleFactor).toInt()
-        val scaled = Bitmap.createScaledBitmap(
-                bitmap,
-                scaledWidth,
-                scaledHeight, false)
+        mWallpaperWidth = fullWidth
+        wallpaperYOffset = if (fullHeight > mDisplayHeight) (fullHeight - mDisplayHeight) * 0.5f else 0f
 
-        val result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
-        val canvas = Canvas()
-        canvas.setBitmap(result)
+        val result = Bitmap.createBitmap(Math.max(1, fullWidth / DOWNSAMPLE_FACTOR),
+                Math.max(1, fullHeight / DOWNSAMPLE_FACTOR), Bitmap.Config.ARGB_8888)
+        Canvas(result).drawBitmap(bitmap, matrix, mPaint)
+        return result
+    }
 
-        val paint = Paint(Paint.FILTER_BITMAP_FLAG or Paint.ANTI_ALIAS_FLAG)
-        if (widthFactor > heightFactor) {
-            canvas.drawBitmap(scaled, 0f, ((height - scaledHeight) / 2).toFloat(), paint)
-        } else {
-            canvas.drawBitmap(scaled, ((width - scaledWidth) / 2).toFloat(), 0f, paint)
+    /**
+     * Returns a blurred copy of the downsampled [image], which [BlurDrawable] scales up by
+     * [DOWNSAMPLE_FACTOR] when drawing it.
+     */
+    fun blur(image: Bitmap): Bitmap {
+        val outputBitmap = Bitmap.createBitmap(image.width, image.height, Bitmap.Config.ARGB_8888)
+
+        val startTime = SystemClock.uptimeMillis()
+        getBlurEngine().blur(image, outputBitmap, blurRadius)
+        mLastBlurTimeMs = SystemClock.uptimeMillis() - startTime
+
+        return outputBitmap
+    }
+
+    /**
+     * Returns the key of the blurred wallpaper for the current settings, or null if the
+     * wallpaper can not be identified.
+     */
+    private fun getCacheKey(): String? {
+        val wallpaperId = ExtractionUtils.getWallpaperId(mWallpaperManager)
+        if (wallpaperId == -1) return null
+        updateDisplayMetrics()
+        val prefs = Utilities.getPrefs(context)
+        return "$wallpaperId/${BlurEngine.selectedEngine(context)}/$blurRadius" +
+                "/${prefs.enableVibrancy}/${FeatureFlags.useDarkTheme}" +
+                "/${Integer.toHexString(tintColor)}/${mDisplayMetrics.widthPixels}x$mDisplayHeight"
+    }
+
+    private fun getCacheFile() = AtomicFile(File(context.cacheDir, LauncherFiles.BLURRED_WALLPAPER_CACHE))
+
+    /**
+     * Loads the blurred wallpaper stored for [key].
+     *
+     * @return false if there is none.
+     */
+    private fun loadCachedWallpaper(key: String): Boolean {
+        var input: DataInputStream? = null
+        try {
+            input = DataInputStream(BufferedInputStream(getCacheFile().openRead()))
+            if (input.readInt() != CACHE_VERSION || input.readUTF() != key) return false
+            val wallpaperWidth = input.readInt()
+            val yOffset = input.readFloat()
+            val width = input.readInt()
+            val height = input.readInt()
+            val pixels = ByteArray(input.readInt())
+            input.readFully(pixels)
+            val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+            bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels))
+
+            mWallpaperWidth = wallpaperWidth
+            wallpaperYOffset = yOffset
+            placeholder = createPlaceholder(width, height)
+            wallpaper = bitmap
+            mWallpaperKey = key
+            return true
+        } catch (e: FileNotFoundException) {
+            return false
+        } catch (e: Exception) {
+            Log.w(TAG, "Failed to read blurred wallpaper", e)
+            return false
+        } finally {
+            try {
+                input?.close()
+            } catch (ignored: IOException) {
+            }
         }
+    }
 
-        return result
+    private fun saveCachedWallpaper(key: String, bitmap: Bitmap) {
+        val file = getCacheFile()
+        var fos: FileOutputStream? = null
+        try {
+            fos = file.startWrite()
+            val out = DataOutputStream(BufferedOutputStream(fos))
+            val pixels = ByteBuffer.allocate(bitmap.byteCount)
+            bitmap.copyPixelsToBuffer(pixels)
+            out.writeInt(CACHE_VERSION)
+            out.writeUTF(key)
+            out.writeInt(mWallpaperWidth)
+            out.writeFloat(wallpaperYOffset)
+            out.writeInt(bitmap.width)
+            out.writeInt(bitmap.height)
+            out.writeInt(pixels.capacity())
+            out.write(pixels.array())
+            out.flush()
+            file.finishWrite(fos)
+        } catch (e: IOException) {
+            Log.w(TAG, "Failed to write blurred wallpaper", e)
+            if (fos != null) {
+                file.failWrite(fos)
+            }
+        }
     }
 
-    fun blur(image: Bitmap): Bitmap {
-        val width = Math.round((image.width / DOWNSAMPLE_FACTOR).toFloat())
-        val height = Math.round((image.height / DOWNSAMPLE_FACTOR).toFloat())
-
-        val inputBitmap = Bitmap.createScaledBitmap(image, width, height, false)
-        val outputBitmap = Bitmap.createBitmap(inputBitmap)
-
-        val rs = RenderScript.create(context)
-        val theIntrinsic = ScriptIntrinsicBlur.create(rs, Element.U8_4(rs))
-        val tmpIn = Allocation.createFromBitmap(rs, inputBitmap)
-        val tmpOut = Allocation.createFromBitmap(rs, outputBitmap)
-        theIntrinsic.setRadius(blurRadius.toFloat())
-        theIntrinsic.setInput(tmpIn)
-        theIntrinsic.forEach(tmpOut)
-        tmpOut.copyTo(outputBitmap)
-
-        // Have to scale it back to full resolution because antialiasing is too expensive to be done each frame
-        val bitmap = Bitmap.createBitmap(image.width, image.height, Bitmap.Config.ARGB_8888)
-
-        val canvas = Canvas(bitmap)
-        canvas.save()
-        canvas.scale(DOWNSAMPLE_FACTOR.toFloat(), DOWNSAMPLE_FACTOR.toFloat())
-        canvas.drawBitmap(outputBitmap, 0f, 0f, mPaint)
-        canvas.restore()
+    private fun getBlurEngine(): BlurEngine {
+        val type = BlurEngine.selectedEngine(context)
+        var engine = mBlurEngine
+        if (engine == null || type != mBlurEngineType) {
+            engine?.release()
+            engine = BlurEngine.create(context, type)
+            mBlurEngine = engine
+            mBlurEngineType = type
+        }
+        return engine
+    }
 
-        return bitmap
+    /**
+     * Called by [BlurDrawable] with the time from the snapshot of its blurred view until the
+     * blurred bitmap was ready.
+     */
+    fun onViewBlurred(latencyMs: Long) {
+        mViewBlurCount++
+        mViewBlurTotalLatencyMs += latencyMs
+        mViewBlurMaxLatencyMs = Math.max(mViewBlurMaxLatencyMs, latencyMs)
+    }
+
+    /**
+     * Called by [BlurDrawable] when a blur was skipped as the blurred view did not change.
+     */
+    fun onViewBlurSkipped() {
+        mViewBlurSkippedCount++
+    }
+
+    fun dump(prefix: String, writer: PrintWriter, args: Array<String>?) {
+        writer.println("${prefix}BlurWallpaperProvider: enabled=$isEnabled"
+                + " engine=${BlurEngine.selectedEngine(context)} radius=$blurRadius"
+                + " lastBlur=${mLastBlurTimeMs}ms")
+        val averageLatency = if (mViewBlurCount == 0) 0L else mViewBlurTotalLatencyMs / mViewBlurCount
+        writer.println("$prefix  viewBlurs=$mViewBlurCount skipped=$mViewBlurSkippedCount"
+                + " avgLatency=${averageLatency}ms maxLatency=${mViewBlurMaxLatencyMs}ms")
+        if (isEnabled && args != null && args.contains(ARG_BENCHMARK)) {
+            benchmark(prefix + "  ", writer)
+        }
+    }
+
+    /**
+     * Blurs the current wallpaper at the size and radius used for the drawer background with
+     * each engine and prints the timings.
+     */
+    private fun benchmark(prefix: String, writer: PrintWriter) {
+        val drawable = mWallpaperManager.drawable as? BitmapDrawable ?: return
+        val input = createDownsampledWallpaper(drawable.bitmap)
+        val output = Bitmap.createBitmap(input.width, input.height, Bitmap.Config.ARGB_8888)
+        for (type in intArrayOf(BlurEngine.ENGINE_RENDERSCRIPT, BlurEngine.ENGINE_CPU)) {
+            val engine = BlurEngine.create(context, type)
+            // The first run allocates the buffers
+            engine.blur(input, output, blurRadius)
+            val times = LongArray(BENCHMARK_RUNS)
+            for (i in times.indices) {
+                val startTime = System.nanoTime()
+                engine.blur(input, output, blurRadius)
+                times[i] = System.nanoTime() - startTime
+            }
+            engine.release()
+            times.sort()
+            writer.println("$prefix${engine.javaClass.simpleName}: ${input.width}x${input.height}"
+                    + " radius=$blurRadius median=${times[times.size / 2] / 1000}us"
+                    + " min=${times[0] / 1000}us max=${times[times.size - 1] / 1000}us")
+        }
     }
 
     private fun createPlaceholder(width: Int, height: Int): Bitmap {
@@ -190,7 +361,7 @@ class BlurWallpaperProvider(context: Context) {
         get() = Utilities.resolveAttributeData(context, R.attr.blurTintColor)
 
     fun updateAsync() {
-        Utilities.THREAD_POOL_EXECUTOR.execute(mUpdateRunnable)
+        TaskScheduler.getInstance().execute(TaskScheduler.LANE_BACKGROUND, mUpdateRunnable, mUpdateRunnable)
     }
 
     private fun applyVibrancy(wallpaper: Bitmap, color: Int): Bitmap {
@@ -268,6 +439,12 @@ class BlurWallpaperProvider(context: Context) {
         const val BLUR_ALLAPPS = 4
         const val DOWNSAMPLE_FACTOR = 8
 
+        private const val TAG = "BlurWallpaperProvider"
+        private const val CACHE_VERSION = 1
+
+        private const val ARG_BENCHMARK = "--blur-benchmark"
+        private const val BENCHMARK_RUNS = 10
+
         fun applyBlurBackground(activity: Activity) {
             if (!isEnabled) return
 
@@ -0,0 +1,132 @@
+package ch.deletescape.lawnchair.blur
+
+import android.graphics.Bitmap
+import ch.deletescape.lawnchair.util.TaskScheduler
+import java.util.concurrent.Callable
+import java.util.concurrent.FutureTask
+
+/**
+ * Blurs on the CPU by running three box blurs, which together closely approximate the gaussian
+ * used by ScriptIntrinsicBlur for the same radius. Each box blur is split into a horizontal pass
+ * over rows and a vertical pass over columns, and each pass is split into slices which run in
+ * parallel in the UI lane of the [TaskScheduler].
+ *
+ * Channels are blurred without premultiplying, which only makes a difference at the edges of
+ * translucent content.
+ */
+class BoxBlurEngine : BlurEngine {
+
+    private val mSliceCount = Math.max(1, Runtime.getRuntime().availableProcessors())
+    private var mPixels = IntArray(0)
+    private var mScratch = IntArray(0)
+
+    override fun blur(input: Bitmap, output: Bitmap, radius: Int) {
+        val width = input.width
+        val height = input.height
+        val size = width * height
+        if (mPixels.size < size) {
+            mPixels = IntArray(size)
+            mScratch = IntArray(size)
+        }
+        val pixels = mPixels
+        val scratch = mScratch
+        input.getPixels(pixels, 0, width, 0, 0, width, height)
+        for (boxRadius in getBoxRadii(radius)) {
+            forEachSlice(height) { from, to ->
+                blurLines(pixels, scratch, from, to, width, width, 1, boxRadius)
+            }
+            forEachSlice(width) { from, to ->
+                blurLines(scratch, pixels, from, to, height, 1, width, boxRadius)
+            }
+        }
+        output.setPixels(pixels, 0, width, 0, 0, width, height)
+    }
+
+    override fun release() {
+        mPixels = IntArray(0)
+        mScratch = IntArray(0)
+    }
+
+    /**
+     * Runs [block] for slices of [0, count), one of them on the calling thread.
+     */
+    private fun forEachSlice(count: Int, block: (Int, Int) -> Unit) {
+        val slices = Math.min(mSliceCount, count)
+        if (slices <= 1) {
+            block(0, count)
+            return
+        }
+        val tasks = ArrayList<FutureTask<Unit>>(slices)
+        for (i in 0 until slices) {
+            val from = count * i / slices
+            val to = count * (i + 1) / slices
+            val task = FutureTask(Callable { block(from, to) })
+            tasks.add(task)
+            if (i > 0) {
+                TaskScheduler.getInstance().execute(TaskScheduler.LANE_UI, task)
+            }
+        }
+        // Also run the slices which the pool did not start yet on this thread, blurs are started
+        // from pool threads as well and must not wait for a busy pool.
+        for (task in tasks) {
+            task.run()
+        }
+        for (task in tasks) {
+            task.get()
+        }
+    }
+
+    companion object {
+
+        private const val PASSES = 3
+
+        /**
+         * Box blurs the lines [from, to) of [src] into [dst]. Line i starts at i * [lineStride]
+         * and consists of [length] pixels which are [pixelStride] apart. Pixels beyond the edges
+         * repeat the edge pixel.
+         */
+        private fun blurLines(src: IntArray, dst: IntArray, from: Int, to: Int, length: Int,
+                              lineStride: Int, pixelStride: Int, radius: Int) {
+            val div = radius * 2 + 1
+            val last = length - 1
+            for (line in from until to) {
+                val start = line * lineStride
+                var a = 0
+                var r = 0
+                var g = 0
+                var b = 0
+                for (i in -radius..radius) {
+                    val p = src[start + Math.min(Math.max(i, 0), last) * pixelStride]
+                    a += p ushr 24
+                    r += (p shr 16) and 0xff
+                    g += (p shr 8) and 0xff
+                    b += p and 0xff
+                }
+                for (i in 0..last) {
+                    dst[start + i * pixelStride] =
+                            ((a / div) shl 24) or ((r / div) shl 16) or ((g / div) shl 8) or (b / div)
+                    val added = src[start + Math.min(i + radius + 1, last) * pixelStride]
+                    val removed = src[start + Math.max(i - radius, 0) * pixelStride]
+                    a += (added ushr 24) - (removed ushr 24)
+                    r += ((added shr 16) and 0xff) - ((removed shr 16) and 0xff)
+                    g += ((added shr 8) and 0xff) - ((removed shr 8) and 0xff)
+                    b += (added and 0xff) - (removed and 0xff)
+                }
+            }
+        }
+
+        /**
+         * Returns the radii of [PASSES] box blurs which approximate the gaussian that
+         * ScriptIntrinsicBlur uses for [radius].
+         */
+        private fun getBoxRadii(radius: Int): IntArray {
+            val sigma = 0.4 * radius + 0.6
+            var lower = Math.floor(Math.sqrt(12 * sigma * sigma / PASSES + 1)).toInt()
+            if (lower % 2 == 0) lower--
+            val upper = lower + 2
+            val lowerCount = Math.round((12 * sigma * sigma - PASSES * lower * lower
+                    - 4 * PASSES * lower - 3 * PASSES) / (-4 * lower - 4)).toInt()
+            return IntArray(PASSES) { i -> ((if (i < lowerCount) lower else upper) - 1) / 2 }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package ch.deletescape.lawnchair.blur
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.renderscript.Allocation
+import android.renderscript.Element
+import android.renderscript.RenderScript
+import android.renderscript.ScriptIntrinsicBlur
+
+/**
+ * Blurs with ScriptIntrinsicBlur. The RenderScript context, script and allocations are created
+ * once and reused as long as the bitmap size does not change.
+ */
+class RenderScriptBlurEngine(context: Context) : BlurEngine {
+
+    private val mRenderScript = RenderScript.create(context)
+    private val mBlurScript = ScriptIntrinsicBlur.create(mRenderScript, Element.U8_4(mRenderScript))
+    private var mInput: Allocation? = null
+    private var mOutput: Allocation? = null
+
+    override fun blur(input: Bitmap, output: Bitmap, radius: Int) {
+        var inAlloc = mInput
+        if (inAlloc == null || inAlloc.type.x != input.width || inAlloc.type.y != input.height) {
+            releaseAllocations()
+            inAlloc = Allocation.createFromBitmap(mRenderScript, input,
+                    Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_SCRIPT)
+            mInput = inAlloc
+            mOutput = Allocation.createTyped(mRenderScript, inAlloc.type)
+        } else {
+            inAlloc.copyFrom(input)
+        }
+        mBlurScript.setRadius(radius.toFloat())
+        mBlurScript.setInput(inAlloc)
+        mBlurScript.forEach(mOutput)
+        mOutput!!.copyTo(output)
+    }
+
+    private fun releaseAllocations() {
+        mInput?.destroy()
+        mOutput?.destroy()
+        mInput = null
+        mOutput = null
+    }
+
+    override fun release() {
+        releaseAllocations()
+        mBlurScript.destroy()
+        mRenderScript.destroy()
+    }
+}
@@ -35,6 +35,7 @@ object FeatureFlags {
     const val KEY_PREF_HOTSEAT_EXTRACTED_COLORS = "pref_hotseatShouldUseExtractedColors"
     const val KEY_PREF_HAPTIC_FEEDBACK = "pref_enableHapticFeedback"
     const val KEY_PREF_KEEP_SCROLL_STATE = "pref_keepScrollState"
+    const val KEY_PREF_RANKED_SEARCH = "pref_rankedSearch"
     const val KEY_FULL_WIDTH_SEARCHBAR = "pref_fullWidthSearchbar"
     const val KEY_SHOW_PIXEL_BAR = "pref_showPixelBar"
     const val KEY_HOME_OPENS_DRAWER = "pref_homeOpensDrawer"
@@ -47,6 +48,7 @@ object FeatureFlags {
     const val KEY_PREF_TRANSPARENT_HOTSEAT = "pref_isHotseatTransparent"
     const val KEY_PREF_ENABLE_DYNAMIC_UI = "pref_enableDynamicUi"
     const val KEY_PREF_ENABLE_BLUR = "pref_enableBlur"
+    const val KEY_PREF_BLUR_ENGINE = "pref_blurEngine"
     const val KEY_PREF_WHITE_GOOGLE_ICON = "pref_enableWhiteGoogleIcon"
     const val KEY_PREF_DARK_THEME = "pref_enableDarkTheme"
     const val KEY_PREF_ROUND_SEARCH_BAR = "pref_useRoundSearchBar"
@@ -19,12 +19,18 @@ package ch.deletescape.lawnchair.dynamicui;
 import android.app.IntentService;
 import android.app.WallpaperManager;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Bundle;
 import android.support.v7.graphics.Palette;
+import android.text.TextUtils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import ch.deletescape.lawnchair.LauncherFiles;
 import ch.deletescape.lawnchair.LauncherProvider;
 import ch.deletescape.lawnchair.LauncherSettings;
 import ch.deletescape.lawnchair.R;
@@ -39,6 +45,9 @@ public class ColorExtractionService extends IntentService {
      */
     private static final float HOTSEAT_FRACTION = 0.5f;
 
+    private static final int MAX_CACHED_WALLPAPERS = 4;
+    private static final String KEY_RECENT_WALLPAPERS = "recent_wallpapers";
+
     public ColorExtractionService() {
         super("ColorExtractionService");
     }
@@ -47,23 +56,27 @@ public class ColorExtractionService extends IntentService {
     protected void onHandleIntent(Intent intent) {
         WallpaperManager wallpaperManager = WallpaperManager.getInstance(this);
         int wallpaperId = ExtractionUtils.getWallpaperId(wallpaperManager);
-        ExtractedColors extractedColors = new ExtractedColors();
-        PackageManager pm = getApplicationContext().getPackageManager();
-        if (wallpaperManager.getWallpaperInfo() != null) {
-            try {
-                Bitmap wallpaper = ((BitmapDrawable) wallpaperManager.getWallpaperInfo().loadThumbnail(pm)).getBitmap();
+        String colorsString = getCachedColors(wallpaperId);
+        if (colorsString == null) {
+            ExtractedColors extractedColors = new ExtractedColors();
+            PackageManager pm = getApplicationContext().getPackageManager();
+            if (wallpaperManager.getWallpaperInfo() != null) {
+                try {
+                    Bitmap wallpaper = ((BitmapDrawable) wallpaperManager.getWallpaperInfo().loadThumbnail(pm)).getBitmap();
+                    generatePaletteFromWallpaper(wallpaper, extractedColors);
+                } catch (NullPointerException ignored) {
+                    extractedColors.updatePalette(null);
+                    extractedColors.updateHotseatPalette(null);
+                }
+            } else {
+                Bitmap wallpaper = ((BitmapDrawable) wallpaperManager.getDrawable()).getBitmap();
                 generatePaletteFromWallpaper(wallpaper, extractedColors);
-            } catch (NullPointerException ignored) {
-                extractedColors.updatePalette(null);
-                extractedColors.updateHotseatPalette(null);
             }
-        } else {
-            Bitmap wallpaper = ((BitmapDrawable) wallpaperManager.getDrawable()).getBitmap();
-            generatePaletteFromWallpaper(wallpaper, extractedColors);
+            colorsString = extractedColors.encodeAsString();
+            putCachedColors(wallpaperId, colorsString);
         }
 
         // Save the extracted colors and wallpaper id to LauncherProvider.
-        String colorsString = extractedColors.encodeAsString();
         Bundle extras = new Bundle();
         extras.putInt(LauncherSettings.Settings.EXTRA_WALLPAPER_ID, wallpaperId);
         extras.putString(LauncherSettings.Settings.EXTRA_EXTRACTED_COLORS, colorsString);
@@ -74,31 +87,57 @@ public class ColorExtractionService extends IntentService {
     }
 
     private void generatePaletteFromWallpaper(Bitmap wallpaper, ExtractedColors extractedColors) {
-        Palette palette = Palette.from(wallpaper).generate();
-        extractedColors.updatePalette(palette);
         // We extract colors for the hotseat and status bar separately,
         // since they only consider part of the wallpaper.
-        Palette hotseatPalette = Palette.from(wallpaper)
-                .setRegion(0, (int) (wallpaper.getHeight() * HOTSEAT_FRACTION),
-                        wallpaper.getWidth(), wallpaper.getHeight())
-                .clearFilters()
-                .generate();
-        extractedColors.updateHotseatPalette(hotseatPalette);
+        Palette[] palettes = new WallpaperColorExtractor(HOTSEAT_FRACTION,
+                getResources().getDimensionPixelSize(R.dimen.status_bar_height),
+                getResources().getDimensionPixelSize(R.dimen.navigation_bar_height))
+                .extract(wallpaper);
+        extractedColors.updatePalette(palettes[WallpaperColorExtractor.REGION_FULL]);
+        extractedColors.updateHotseatPalette(palettes[WallpaperColorExtractor.REGION_HOTSEAT]);
+        extractedColors.updateStatusBarPalette(palettes[WallpaperColorExtractor.REGION_STATUS_BAR]);
+        extractedColors.updateNavigationBarPalette(
+                palettes[WallpaperColorExtractor.REGION_NAVIGATION_BAR]);
+    }
 
-        int statusBarHeight = getResources()
-                .getDimensionPixelSize(R.dimen.status_bar_height);
-        Palette statusBarPalette = Palette.from(wallpaper)
-                .setRegion(0, 0, wallpaper.getWidth(), statusBarHeight)
-                .clearFilters()
-                .generate();
-        extractedColors.updateStatusBarPalette(statusBarPalette);
+    /**
+     * Returns the colors previously extracted from the wallpaper with the given id, or null if
+     * they need to be extracted.
+     */
+    private String getCachedColors(int wallpaperId) {
+        if (wallpaperId == -1) {
+            // No way to tell wallpapers apart
+            return null;
+        }
+        return getCachePrefs().getString(getCacheKey(wallpaperId), null);
+    }
+
+    private void putCachedColors(int wallpaperId, String colorsString) {
+        if (wallpaperId == -1) {
+            return;
+        }
+        SharedPreferences prefs = getCachePrefs();
+        String key = getCacheKey(wallpaperId);
+        // Keep the most recent wallpapers, so switching back and forth stays cheap.
+        ArrayList<String> recentKeys = new ArrayList<>(Arrays.asList(
+                TextUtils.split(prefs.getString(KEY_RECENT_WALLPAPERS, ""), ",")));
+        recentKeys.remove(key);
+        recentKeys.add(0, key);
+        SharedPreferences.Editor editor = prefs.edit();
+        while (recentKeys.size() > MAX_CACHED_WALLPAPERS) {
+            editor.remove(recentKeys.remove(recentKeys.size() - 1));
+        }
+        editor.putString(key, colorsString)
+                .putString(KEY_RECENT_WALLPAPERS, TextUtils.join(",", recentKeys))
+                .apply();
+    }
+
+    private SharedPreferences getCachePrefs() {
+        return getSharedPreferences(LauncherFiles.WALLPAPER_COLORS_PREFERENCES_KEY, MODE_PRIVATE);
+    }
 
-        int navigationBarHeight = getResources()
-                .getDimensionPixelSize(R.dimen.navigation_bar_height);
-        Palette navigationBarPalette = Palette.from(wallpaper)
-                .setRegion(0, wallpaper.getHeight() - navigationBarHeight, wallpaper.getWidth(), wallpaper.getHeight())
-                .clearFilters()
-                .generate();
-        extractedColors.updateNavigationBarPalette(navigationBarPalette);
+    private static String getCacheKey(int wallpaperId) {
+        // Colors extracted by an older version may be missing entries
+        return "colors_" + ExtractedColors.VERSION + "_" + wallpaperId;
     }
 }
@@ -27,6 +27,7 @@ import java.util.List;
 
 import ch.deletescape.lawnchair.Utilities;
 import ch.deletescape.lawnchair.preferences.IPreferenceProvider;
+import ch.deletescape.lawnchair.util.TaskScheduler;
 
 /**
  * Contains helper fields and methods related to extracting colors from the wallpaper.
@@ -43,14 +44,16 @@ public class ExtractionUtils {
      */
     public static void startColorExtractionServiceIfNecessary(final Context context) {
         // Run on a background thread, since the service is asynchronous anyway.
-        Utilities.THREAD_POOL_EXECUTOR.execute(new Runnable() {
-            @Override
-            public void run() {
-                if (hasWallpaperIdChanged(context) || hasExtractionPreferencesChanged(context)) {
-                    startColorExtractionService(context);
-                }
-            }
-        });
+        TaskScheduler.getInstance().execute(TaskScheduler.LANE_BACKGROUND,
+                "startColorExtractionServiceIfNecessary", new Runnable() {
+                    @Override
+                    public void run() {
+                        if (hasWallpaperIdChanged(context)
+                                || hasExtractionPreferencesChanged(context)) {
+                            startColorExtractionService(context);
+                        }
+                    }
+                });
     }
 
     /**
@@ -0,0 +1,336 @@
+package ch.deletescape.lawnchair.dynamicui;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.support.v4.graphics.ColorUtils;
+import android.support.v7.graphics.Palette;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Generates the palettes of the whole wallpaper and of the areas behind the hotseat, status bar
+ * and navigation bar in a single pass.
+ * <p>
+ * The wallpaper is scaled down once, and every pixel is quantized to 15 bits and counted in the
+ * histogram of each region containing it. Each histogram is then reduced to a few swatches with
+ * a median cut, from which the {@link Palette}s are built. This gives the same kind of result as
+ * running {@link Palette.Builder} once per region, without scaling and quantizing the full
+ * wallpaper four times.
+ */
+class WallpaperColorExtractor {
+
+    static final int REGION_FULL = 0;
+    static final int REGION_HOTSEAT = 1;
+    static final int REGION_STATUS_BAR = 2;
+    static final int REGION_NAVIGATION_BAR = 3;
+    private static final int REGION_COUNT = 4;
+
+    // Larger than the default area of Palette, so the thin bar regions still get enough samples
+    private static final int MAX_AREA = 256 * 256;
+    private static final int MAX_COLORS = 16;
+
+    private static final int QUANTIZE_WORD_WIDTH = 5;
+    private static final int QUANTIZE_WORD_MASK = (1 << QUANTIZE_WORD_WIDTH) - 1;
+
+    private static final int COMPONENT_RED = 0;
+    private static final int COMPONENT_GREEN = 1;
+    private static final int COMPONENT_BLUE = 2;
+
+    private final float mHotseatFraction;
+    private final int mStatusBarHeight;
+    private final int mNavigationBarHeight;
+
+    /**
+     * @param hotseatFraction     the fraction of the wallpaper height, counted from the bottom,
+     *                            which is considered to be behind the hotseat
+     * @param statusBarHeight     the height of the status bar in wallpaper pixels
+     * @param navigationBarHeight the height of the navigation bar in wallpaper pixels
+     */
+    WallpaperColorExtractor(float hotseatFraction, int statusBarHeight, int navigationBarHeight) {
+        mHotseatFraction = hotseatFraction;
+        mStatusBarHeight = statusBarHeight;
+        mNavigationBarHeight = navigationBarHeight;
+    }
+
+    /**
+     * Returns the palettes of all regions, indexed by the REGION_* constants.
+     */
+    Palette[] extract(Bitmap wallpaper) {
+        int width = wallpaper.getWidth();
+        int height = wallpaper.getHeight();
+        float scale = 1f;
+        Bitmap scaled = wallpaper;
+        if (width * height > MAX_AREA) {
+            scale = (float) Math.sqrt(MAX_AREA / ((double) width * height));
+            scaled = Bitmap.createScaledBitmap(wallpaper,
+                    Math.max(1, Math.round(width * scale)),
+                    Math.max(1, Math.round(height * scale)), true);
+        }
+        int scaledWidth = scaled.getWidth();
+        int scaledHeight = scaled.getHeight();
+        int[] pixels = new int[scaledWidth * scaledHeight];
+        scaled.getPixels(pixels, 0, scaledWidth, 0, 0, scaledWidth, scaledHeight);
+        if (scaled != wallpaper) {
+            scaled.recycle();
+        }
+
+        int hotseatTop = (int) (scaledHeight * (1 - mHotseatFraction));
+        int statusBarBottom = Math.max(1, (int) Math.ceil(mStatusBarHeight * scale));
+        int navigationBarTop = scaledHeight - Math.max(1, (int) Math.ceil(mNavigationBarHeight * scale));
+
+        int[][] histograms = new int[REGION_COUNT][1 << (3 * QUANTIZE_WORD_WIDTH)];
+        for (int y = 0; y < scaledHeight; y++) {
+            boolean inHotseat = y >= hotseatTop;
+            boolean inStatusBar = y < statusBarBottom;
+            boolean inNavigationBar = y >= navigationBarTop;
+            int rowStart = y * scaledWidth;
+            for (int x = 0; x < scaledWidth; x++) {
+                int quantized = quantizeFromRgb888(pixels[rowStart + x]);
+                histograms[REGION_FULL][quantized]++;
+                if (inHotseat) histograms[REGION_HOTSEAT][quantized]++;
+                if (inStatusBar) histograms[REGION_STATUS_BAR][quantized]++;
+                if (inNavigationBar) histograms[REGION_NAVIGATION_BAR][quantized]++;
+            }
+        }
+
+        Palette[] palettes = new Palette[REGION_COUNT];
+        for (int region = 0; region < REGION_COUNT; region++) {
+            // Like the original palettes, only the full one uses the default filters
+            palettes[region] = Palette.from(
+                    quantize(histograms[region], MAX_COLORS, region == REGION_FULL));
+        }
+        return palettes;
+    }
+
+    /**
+     * Reduces the colors of {@param histogram} to at most {@param maxColors} swatches.
+     */
+    private static List<Palette.Swatch> quantize(int[] histogram, int maxColors, boolean filter) {
+        int distinctCount = 0;
+        for (int color = 0; color < histogram.length; color++) {
+            if (histogram[color] > 0 && filter && shouldIgnoreColor(color)) {
+                histogram[color] = 0;
+            }
+            if (histogram[color] > 0) {
+                distinctCount++;
+            }
+        }
+        int[] colors = new int[distinctCount];
+        int index = 0;
+        for (int color = 0; color < histogram.length; color++) {
+            if (histogram[color] > 0) {
+                colors[index++] = color;
+            }
+        }
+
+        ArrayList<Palette.Swatch> swatches = new ArrayList<>();
+        if (distinctCount <= maxColors) {
+            for (int color : colors) {
+                swatches.add(new Palette.Swatch(approximateToRgb888(color), histogram[color]));
+            }
+            return swatches;
+        }
+
+        // Median cut: keep splitting the largest box until there are enough of them
+        PriorityQueue<Box> boxes = new PriorityQueue<>(maxColors, Box.VOLUME_COMPARATOR);
+        boxes.offer(new Box(colors, histogram, 0, distinctCount - 1));
+        while (boxes.size() < maxColors) {
+            Box box = boxes.poll();
+            if (box == null || !box.canSplit()) {
+                if (box != null) {
+                    boxes.offer(box);
+                }
+                break;
+            }
+            boxes.offer(box.split());
+            boxes.offer(box);
+        }
+        for (Box box : boxes) {
+            swatches.add(box.getAverageColor());
+        }
+        return swatches;
+    }
+
+    private static boolean shouldIgnoreColor(int quantizedColor) {
+        float[] hsl = new float[3];
+        ColorUtils.colorToHSL(approximateToRgb888(quantizedColor), hsl);
+        // Same as the default filter of Palette: close to black, close to white, or close to the
+        // red side of the I line
+        return hsl[2] <= 0.05f || hsl[2] >= 0.95f
+                || (hsl[0] >= 10f && hsl[0] <= 37f && hsl[1] <= 0.82f);
+    }
+
+    private static int quantizeFromRgb888(int color) {
+        int r = Color.red(color) >> (8 - QUANTIZE_WORD_WIDTH);
+        int g = Color.green(color) >> (8 - QUANTIZE_WORD_WIDTH);
+        int b = Color.blue(color) >> (8 - QUANTIZE_WORD_WIDTH);
+        return r << (2 * QUANTIZE_WORD_WIDTH) | g << QUANTIZE_WORD_WIDTH | b;
+    }
+
+    private static int approximateToRgb888(int r, int g, int b) {
+        return Color.rgb(r << (8 - QUANTIZE_WORD_WIDTH), g << (8 - QUANTIZE_WORD_WIDTH),
+                b << (8 - QUANTIZE_WORD_WIDTH));
+    }
+
+    private static int approximateToRgb888(int quantizedColor) {
+        return approximateToRgb888(quantizedRed(quantizedColor), quantizedGreen(quantizedColor),
+                quantizedBlue(quantizedColor));
+    }
+
+    private static int quantizedRed(int color) {
+        return (color >> (2 * QUANTIZE_WORD_WIDTH)) & QUANTIZE_WORD_MASK;
+    }
+
+    private static int quantizedGreen(int color) {
+        return (color >> QUANTIZE_WORD_WIDTH) & QUANTIZE_WORD_MASK;
+    }
+
+    private static int quantizedBlue(int color) {
+        return color & QUANTIZE_WORD_MASK;
+    }
+
+    /**
+     * A range of {@link #mColors} together with the bounding box of its colors.
+     */
+    private static class Box {
+
+        static final Comparator<Box> VOLUME_COMPARATOR = new Comparator<Box>() {
+            @Override
+            public int compare(Box a, Box b) {
+                return b.getVolume() - a.getVolume();
+            }
+        };
+
+        private final int[] mColors;
+        private final int[] mHistogram;
+        private final int mLower;
+        private int mUpper;
+
+        private int mMinRed, mMaxRed;
+        private int mMinGreen, mMaxGreen;
+        private int mMinBlue, mMaxBlue;
+
+        Box(int[] colors, int[] histogram, int lower, int upper) {
+            mColors = colors;
+            mHistogram = histogram;
+            mLower = lower;
+            mUpper = upper;
+            fitBox();
+        }
+
+        int getVolume() {
+            return (mMaxRed - mMinRed + 1) * (mMaxGreen - mMinGreen + 1)
+                    * (mMaxBlue - mMinBlue + 1);
+        }
+
+        boolean canSplit() {
+            return mUpper - mLower + 1 > 1;
+        }
+
+        private void fitBox() {
+            mMinRed = mMinGreen = mMinBlue = Integer.MAX_VALUE;
+            mMaxRed = mMaxGreen = mMaxBlue = Integer.MIN_VALUE;
+            for (int i = mLower; i <= mUpper; i++) {
+                int color = mColors[i];
+                int r = quantizedRed(color);
+                int g = quantizedGreen(color);
+                int b = quantizedBlue(color);
+                mMinRed = Math.min(mMinRed, r);
+                mMaxRed = Math.max(mMaxRed, r);
+                mMinGreen = Math.min(mMinGreen, g);
+                mMaxGreen = Math.max(mMaxGreen, g);
+                mMinBlue = Math.min(mMinBlue, b);
+                mMaxBlue = Math.max(mMaxBlue, b);
+            }
+        }
+
+        /**
+         * Splits this box at the population median of its longest side, keeping the lower half.
+         *
+         * @return the upper half
+         */
+        Box split() {
+            int splitPoint = findSplitPoint();
+            Box newBox = new Box(mColors, mHistogram, splitPoint + 1, mUpper);
+            mUpper = splitPoint;
+            fitBox();
+            return newBox;
+        }
+
+        private int getLongestComponent() {
+            int redLength = mMaxRed - mMinRed;
+            int greenLength = mMaxGreen - mMinGreen;
+            int blueLength = mMaxBlue - mMinBlue;
+            if (redLength >= greenLength && redLength >= blueLength) {
+                return COMPONENT_RED;
+            } else if (greenLength >= redLength && greenLength >= blueLength) {
+                return COMPONENT_GREEN;
+            }
+            return COMPONENT_BLUE;
+        }
+
+        private int findSplitPoint() {
+            int longestComponent = getLongestComponent();
+            // Sort the colors in this box by the longest component, by temporarily moving it to
+            // the most significant bits.
+            swapSignificantComponent(longestComponent);
+            Arrays.sort(mColors, mLower, mUpper + 1);
+            swapSignificantComponent(longestComponent);
+
+            int population = 0;
+            for (int i = mLower; i <= mUpper; i++) {
+                population += mHistogram[mColors[i]];
+            }
+            int midPoint = population / 2;
+            int count = 0;
+            for (int i = mLower; i <= mUpper; i++) {
+                count += mHistogram[mColors[i]];
+                if (count >= midPoint) {
+                    // Never leave the upper half empty
+                    return Math.min(mUpper - 1, i);
+                }
+            }
+            return mLower;
+        }
+
+        private void swapSignificantComponent(int component) {
+            if (component == COMPONENT_RED) {
+                return;
+            }
+            for (int i = mLower; i <= mUpper; i++) {
+                int color = mColors[i];
+                int r = quantizedRed(color);
+                int g = quantizedGreen(color);
+                int b = quantizedBlue(color);
+                if (component == COMPONENT_GREEN) {
+                    mColors[i] = g << (2 * QUANTIZE_WORD_WIDTH) | r << QUANTIZE_WORD_WIDTH | b;
+                } else {
+                    mColors[i] = b << (2 * QUANTIZE_WORD_WIDTH) | g << QUANTIZE_WORD_WIDTH | r;
+                }
+            }
+        }
+
+        Palette.Swatch getAverageColor() {
+            long redSum = 0;
+            long greenSum = 0;
+            long blueSum = 0;
+            int population = 0;
+            for (int i = mLower; i <= mUpper; i++) {
+                int color = mColors[i];
+                int count = mHistogram[color];
+                population += count;
+                redSum += (long) count * quantizedRed(color);
+                greenSum += (long) count * quantizedGreen(color);
+                blueSum += (long) count * quantizedBlue(color);
+            }
+            return new Palette.Swatch(approximateToRgb888(
+                    Math.round(redSum / (float) population),
+                    Math.round(greenSum / (float) population),
+                    Math.round(blueSum / (float) population)), population);
+        }
+    }
+}
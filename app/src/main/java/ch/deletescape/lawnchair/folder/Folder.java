@@ -1428,6 +1428,14 @@ public class Folder extends LinearLayout implements DragSource, View.OnClickList
             mBlurDrawable.stopListening();
     }
 
+    /**
+     * Called when the workspace behind the folder changed while it is open.
+     */
+    public void onBlurredViewChanged() {
+        if (mBlurDrawable != null)
+            mBlurDrawable.invalidateBlurredView();
+    }
+
     @Override
     protected void onLayout(boolean changed, int l, int t, int r, int b) {
         super.onLayout(changed, l, t, r, b);
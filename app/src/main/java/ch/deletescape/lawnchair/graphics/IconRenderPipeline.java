@@ -0,0 +1,163 @@
+package ch.deletescape.lawnchair.graphics;
+
+import android.graphics.Bitmap;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders icon bitmaps on a small pool of worker threads and hands the results back to the
+ * calling thread in the order of the input list.
+ * <p>
+ * {@link ch.deletescape.lawnchair.util.IconNormalizer}, {@link ShadowGenerator} and the icon
+ * canvases are kept per thread, so the renderers do not need any additional locking as long as
+ * they do not touch shared state themselves.
+ */
+public class IconRenderPipeline {
+
+    private static final String TAG = "IconRenderPipeline";
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+    // Leave one core to the UI thread, and don't go overboard on big devices as every worker
+    // holds its own scratch bitmaps.
+    private static final int MAX_PARALLELISM = 4;
+    private static final int KEEP_ALIVE_SECONDS = 5;
+
+    // Number of rendered but not yet delivered icons allowed per worker. This bounds the amount
+    // of bitmaps held in memory when the consumer is slower than the renderers.
+    private static final int WINDOW_PER_WORKER = 2;
+
+    private static IconRenderPipeline sInstance;
+
+    public interface Renderer<T> {
+        /**
+         * Called on a worker thread. May return null if no icon should be rendered for the item.
+         */
+        Bitmap render(T item);
+    }
+
+    public interface Callback<T> {
+        /**
+         * Called on the thread which started the render, in the order of the input list.
+         *
+         * @param icon the rendered icon, or null if rendering failed or was skipped
+         */
+        void onIconRendered(T item, Bitmap icon);
+    }
+
+    private final int mParallelism;
+    private final ThreadPoolExecutor mExecutor;
+
+    private IconRenderPipeline(int parallelism) {
+        mParallelism = parallelism;
+        mExecutor = new ThreadPoolExecutor(parallelism, parallelism,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new RenderThreadFactory());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized IconRenderPipeline getInstance() {
+        if (sInstance == null) {
+            sInstance = new IconRenderPipeline(
+                    Math.max(1, Math.min(CPU_COUNT - 1, MAX_PARALLELISM)));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the number of icons which are rendered concurrently.
+     */
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    /**
+     * Renders all {@param items} and delivers them to {@param callback} in list order. Blocks the
+     * calling thread until the last icon was delivered. The callback is invoked as soon as the
+     * next icon in order is ready, so consumers can start committing results while the remaining
+     * icons are still being rendered.
+     */
+    public <T> void renderInOrder(List<T> items, final Renderer<T> renderer, Callback<T> callback) {
+        int count = items.size();
+        if (count == 0) {
+            return;
+        }
+        if (count == 1 || mParallelism == 1 || Thread.currentThread() instanceof RenderThread) {
+            // Not worth the hand-off, or we would end up waiting on ourselves.
+            for (T item : items) {
+                callback.onIconRendered(item, renderSafely(renderer, item));
+            }
+            return;
+        }
+
+        int window = mParallelism * WINDOW_PER_WORKER;
+        ArrayDeque<Future<Bitmap>> pending = new ArrayDeque<>(window);
+        int submitted = 0;
+        try {
+            for (int delivered = 0; delivered < count; delivered++) {
+                while (submitted < count && pending.size() < window) {
+                    final T item = items.get(submitted++);
+                    pending.add(mExecutor.submit(new Callable<Bitmap>() {
+                        @Override
+                        public Bitmap call() {
+                            return renderSafely(renderer, item);
+                        }
+                    }));
+                }
+                Bitmap icon;
+                try {
+                    icon = pending.poll().get();
+                } catch (ExecutionException e) {
+                    icon = null;
+                }
+                callback.onIconRendered(items.get(delivered), icon);
+            }
+        } catch (InterruptedException e) {
+            for (Future<Bitmap> future : pending) {
+                future.cancel(false);
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static <T> Bitmap renderSafely(Renderer<T> renderer, T item) {
+        try {
+            return renderer.render(item);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to render icon for " + item, e);
+            return null;
+        }
+    }
+
+    private static class RenderThread extends Thread {
+        RenderThread(Runnable runnable, String name) {
+            super(runnable, name);
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            super.run();
+        }
+    }
+
+    private static class RenderThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            return new RenderThread(runnable, "icon-render-" + mCount.getAndIncrement());
+        }
+    }
+}
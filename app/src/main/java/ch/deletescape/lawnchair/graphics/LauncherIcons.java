@@ -30,8 +30,14 @@ import ch.deletescape.lawnchair.shortcuts.ShortcutInfoCompat;
 import ch.deletescape.lawnchair.util.IconNormalizer;
 
 public class LauncherIcons {
-    private static final Canvas sCanvas = new Canvas();
-    private static final Rect sOldBounds = new Rect();
+    private static final ThreadLocal<Canvas> sCanvas = new ThreadLocal<Canvas>() {
+        @Override
+        protected Canvas initialValue() {
+            Canvas canvas = new Canvas();
+            canvas.setDrawFilter(new PaintFlagsDrawFilter(4, 2));
+            return canvas;
+        }
+    };
 
     static class FixedSizeBitmapDrawable extends BitmapDrawable {
         public FixedSizeBitmapDrawable(Bitmap bitmap) {
@@ -49,10 +55,6 @@ public class LauncherIcons {
         }
     }
 
-    static {
-        sCanvas.setDrawFilter(new PaintFlagsDrawFilter(4, 2));
-    }
-
     public static Bitmap createIconBitmap(ShortcutIconResource shortcutIconResource, Context context) {
         try {
             Resources resourcesForApplication = context.getPackageManager().getResourcesForApplication(shortcutIconResource.packageName);
@@ -106,11 +108,10 @@ public class LauncherIcons {
 
     public static Bitmap badgeWithBitmap(Bitmap bitmap, Bitmap bitmap2, Context context) {
         int dimensionPixelSize = context.getResources().getDimensionPixelSize(R.dimen.profile_badge_size);
-        synchronized (sCanvas) {
-            sCanvas.setBitmap(bitmap);
-            sCanvas.drawBitmap(bitmap2, new Rect(0, 0, bitmap2.getWidth(), bitmap2.getHeight()), new Rect(bitmap.getWidth() - dimensionPixelSize, bitmap.getHeight() - dimensionPixelSize, bitmap.getWidth(), bitmap.getHeight()), new Paint(2));
-            sCanvas.setBitmap(null);
-        }
+        Canvas canvas = sCanvas.get();
+        canvas.setBitmap(bitmap);
+        canvas.drawBitmap(bitmap2, new Rect(0, 0, bitmap2.getWidth(), bitmap2.getHeight()), new Rect(bitmap.getWidth() - dimensionPixelSize, bitmap.getHeight() - dimensionPixelSize, bitmap.getWidth(), bitmap.getHeight()), new Paint(2));
+        canvas.setBitmap(null);
         return bitmap;
     }
 
@@ -121,57 +122,55 @@ public class LauncherIcons {
 
     public static Bitmap createIconBitmap(Drawable drawable, Context context, float f) {
         Bitmap createBitmap;
-        synchronized (sCanvas) {
-            int i = LauncherAppState.getInstance().getInvariantDeviceProfile().iconBitmapSize;
-            if (drawable instanceof PaintDrawable) {
-                PaintDrawable paintDrawable = (PaintDrawable) drawable;
-                paintDrawable.setIntrinsicWidth(i);
-                paintDrawable.setIntrinsicHeight(i);
-            } else if (drawable instanceof BitmapDrawable) {
-                BitmapDrawable bitmapDrawable = (BitmapDrawable) drawable;
-                Bitmap bitmap = bitmapDrawable.getBitmap();
-                if (bitmap != null && bitmap.getDensity() == 0) {
-                    bitmapDrawable.setTargetDensity(context.getResources().getDisplayMetrics());
-                }
+        int i = LauncherAppState.getInstance().getInvariantDeviceProfile().iconBitmapSize;
+        if (drawable instanceof PaintDrawable) {
+            PaintDrawable paintDrawable = (PaintDrawable) drawable;
+            paintDrawable.setIntrinsicWidth(i);
+            paintDrawable.setIntrinsicHeight(i);
+        } else if (drawable instanceof BitmapDrawable) {
+            BitmapDrawable bitmapDrawable = (BitmapDrawable) drawable;
+            Bitmap bitmap = bitmapDrawable.getBitmap();
+            if (bitmap != null && bitmap.getDensity() == 0) {
+                bitmapDrawable.setTargetDensity(context.getResources().getDisplayMetrics());
             }
-            int intrinsicWidth = drawable.getIntrinsicWidth();
-            int intrinsicHeight = drawable.getIntrinsicHeight();
-            if (intrinsicWidth <= 0 || intrinsicHeight <= 0) {
-                intrinsicWidth = i;
+        }
+        int intrinsicWidth = drawable.getIntrinsicWidth();
+        int intrinsicHeight = drawable.getIntrinsicHeight();
+        if (intrinsicWidth <= 0 || intrinsicHeight <= 0) {
+            intrinsicWidth = i;
+            intrinsicHeight = i;
+        } else {
+            float f2 = ((float) intrinsicWidth) / ((float) intrinsicHeight);
+            if (intrinsicWidth > intrinsicHeight) {
+                intrinsicWidth = (int) (((float) i) / f2);
                 intrinsicHeight = i;
+            } else if (intrinsicHeight > intrinsicWidth) {
+                intrinsicHeight = (int) (((float) i) * f2);
+                intrinsicWidth = i;
             } else {
-                float f2 = ((float) intrinsicWidth) / ((float) intrinsicHeight);
-                if (intrinsicWidth > intrinsicHeight) {
-                    intrinsicWidth = (int) (((float) i) / f2);
-                    intrinsicHeight = i;
-                } else if (intrinsicHeight > intrinsicWidth) {
-                    intrinsicHeight = (int) (((float) i) * f2);
-                    intrinsicWidth = i;
-                } else {
-                    intrinsicWidth = i;
-                    intrinsicHeight = i;
-                }
-            }
-            createBitmap = Bitmap.createBitmap(i, i, Config.ARGB_8888);
-            Canvas canvas = sCanvas;
-            canvas.setBitmap(createBitmap);
-            int i2 = (i - intrinsicHeight) / 2;
-            int i3 = (i - intrinsicWidth) / 2;
-            sOldBounds.set(drawable.getBounds());
-            if (Utilities.isAdaptive(drawable)) {
-                i2 = Math.min(i2, i3);
-                intrinsicWidth = Math.max(intrinsicHeight, intrinsicWidth);
-                drawable.setBounds(i2, i2, i2 + intrinsicWidth, intrinsicWidth + i2);
-            } else {
-                drawable.setBounds(i2, i3, intrinsicHeight + i2, intrinsicWidth + i3);
+                intrinsicWidth = i;
+                intrinsicHeight = i;
             }
-            canvas.save(Canvas.MATRIX_SAVE_FLAG);
-            canvas.scale(f, f, (float) (i / 2), (float) (i / 2));
-            drawable.draw(canvas);
-            canvas.restore();
-            drawable.setBounds(sOldBounds);
-            canvas.setBitmap(null);
         }
+        createBitmap = Bitmap.createBitmap(i, i, Config.ARGB_8888);
+        Canvas canvas = sCanvas.get();
+        canvas.setBitmap(createBitmap);
+        int i2 = (i - intrinsicHeight) / 2;
+        int i3 = (i - intrinsicWidth) / 2;
+        Rect oldBounds = new Rect(drawable.getBounds());
+        if (Utilities.isAdaptive(drawable)) {
+            i2 = Math.min(i2, i3);
+            intrinsicWidth = Math.max(intrinsicHeight, intrinsicWidth);
+            drawable.setBounds(i2, i2, i2 + intrinsicWidth, intrinsicWidth + i2);
+        } else {
+            drawable.setBounds(i2, i3, intrinsicHeight + i2, intrinsicWidth + i3);
+        }
+        canvas.save(Canvas.MATRIX_SAVE_FLAG);
+        canvas.scale(f, f, (float) (i / 2), (float) (i / 2));
+        drawable.draw(canvas);
+        canvas.restore();
+        drawable.setBounds(oldBounds);
+        canvas.setBitmap(null);
         return createBitmap;
     }
 
@@ -41,9 +41,14 @@ public class ShadowGenerator {
 
     private static final int AMBIENT_SHADOW_ALPHA = 30;
 
-    private static final Object LOCK = new Object();
-    // Singleton object guarded by {@link #LOCK}
-    private static ShadowGenerator sShadowGenerator;
+    // One generator per thread, so that shadows can be drawn in parallel without locking.
+    private static final ThreadLocal<ShadowGenerator> sShadowGenerator =
+            new ThreadLocal<ShadowGenerator>() {
+                @Override
+                protected ShadowGenerator initialValue() {
+                    return new ShadowGenerator();
+                }
+            };
 
     private final int mIconSize;
 
@@ -59,11 +64,11 @@ public class ShadowGenerator {
         mDrawPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
     }
 
-    public synchronized Bitmap recreateIcon(Bitmap icon) {
+    public Bitmap recreateIcon(Bitmap icon) {
         return recreateIcon(icon, mIconSize);
     }
 
-    public synchronized Bitmap recreateIcon(Bitmap icon, int size) {
+    public Bitmap recreateIcon(Bitmap icon, int size) {
         int[] offset = new int[2];
         Bitmap shadow = icon.extractAlpha(mBlurPaint, offset);
         Bitmap result = Bitmap.createBitmap(size, size, Config.ARGB_8888);
@@ -85,7 +90,7 @@ public class ShadowGenerator {
         return result;
     }
 
-    public synchronized Bitmap createShadow(Bitmap icon, int size) {
+    public Bitmap createShadow(Bitmap icon, int size) {
         int[] offset = new int[2];
         Bitmap shadow = icon.extractAlpha(mBlurPaint, offset);
         Bitmap result = Bitmap.createBitmap(size, size, Config.ARGB_8888);
@@ -103,13 +108,11 @@ public class ShadowGenerator {
         return result;
     }
 
+    /**
+     * Returns the generator owned by the calling thread.
+     */
     public static ShadowGenerator getInstance() {
-        synchronized (LOCK) {
-            if (sShadowGenerator == null) {
-                sShadowGenerator = new ShadowGenerator();
-            }
-        }
-        return sShadowGenerator;
+        return sShadowGenerator.get();
     }
 
 
@@ -4,13 +4,13 @@ import android.content.Context;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.ColorFilter;
 import android.graphics.Paint;
 import android.graphics.PixelFormat;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.support.annotation.NonNull;
@@ -34,7 +34,7 @@ public class CustomIconDrawable extends Drawable {
             throws PackageManager.NameNotFoundException {
         mContext = context;
         mIconPack = iconPack;
-        mResources = context.getPackageManager().getResourcesForApplication(iconPack.getPackageName());
+        mResources = iconPack.getResources();
         mOriginalIcon = info.getIcon(DisplayMetrics.DENSITY_XXXHIGH);
 
         if (iconPack.getIconBack() != null) {
@@ -44,7 +44,7 @@ public class CustomIconDrawable extends Drawable {
             mIconUpon = getDrawable(iconPack.getIconUpon());
         }
         if (iconPack.getIconMask() != null) {
-            mIconMask = BitmapFactory.decodeResource(mResources, getIconRes(iconPack.getIconMask()));
+            mIconMask = iconPack.getIconMaskBitmap();
         }
 
         mScale = iconPack.getScale();
@@ -59,7 +59,7 @@ public class CustomIconDrawable extends Drawable {
     }
 
     private int getIconRes(String name) {
-        return mResources.getIdentifier(name, "drawable", mIconPack.getPackageName());
+        return mIconPack.getDrawableId(name);
     }
 
     @Override
@@ -102,8 +102,8 @@ public class CustomIconDrawable extends Drawable {
             Paint clearPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
             clearPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OUT));
 
-            Bitmap scaledMask = Bitmap.createScaledBitmap(mIconMask, width, height, false);
-            canvas.drawBitmap(scaledMask, 0, 0, clearPaint);
+            // Explicit bounds, so that the density of the mask can't scale it once more
+            canvas.drawBitmap(mIconMask, null, new Rect(0, 0, width, height), clearPaint);
         }
 
         return new BitmapDrawable(mContext.getResources(), bitmap);
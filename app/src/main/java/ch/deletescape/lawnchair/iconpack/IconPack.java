@@ -6,18 +6,21 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.Drawable;
-import android.util.ArrayMap;
+import android.util.Log;
 
 import org.xmlpull.v1.XmlPullParser;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import ch.deletescape.lawnchair.FastBitmapDrawable;
 import ch.deletescape.lawnchair.R;
+import ch.deletescape.lawnchair.Utilities;
 import ch.deletescape.lawnchair.compat.LauncherActivityInfoCompat;
 import ch.deletescape.lawnchair.pixelify.PixelIconProvider;
 
@@ -33,20 +36,23 @@ public class IconPack {
     private static final String ATTR_TITLE = "title";
     private static final String ATTR_DRAWABLE = "drawable";
 
+    private static final String TAG = "IconPack";
+
     private final String mIconBack;
     private final String mIconUpon;
     private final String mIconMask;
     private final float mScale;
     private final List<String> mCalendars;
-    private Map<String, IconPackProvider.IconInfo> icons = new ArrayMap<>();
+    private Map<String, IconPackProvider.IconInfo> icons = new HashMap<>();
     private String packageName;
     private Context mContext;
-    private Comparator<IconEntry> mIconComparator = new Comparator<IconEntry>() {
-        @Override
-        public int compare(IconEntry t1, IconEntry t2) {
-            return t1.resourceName.compareTo(t2.resourceName);
-        }
-    };
+    // The resources of the pack and the ids resolved in them, loaded on first use
+    private Resources mResources;
+    private IconPackResourceCache mResourceCache;
+    // The stored form of the pack's xml files, null for the default icon pack
+    private IconPackIndex mIndex;
+    private Bitmap mIconMaskBitmap;
+    private boolean mIconMaskLoaded;
 
     public IconPack(Map<String, IconPackProvider.IconInfo> icons, Context context, String packageName,
                     String iconBack, String iconUpon, String iconMask, float scale, List<String> calendars) {
@@ -60,6 +66,12 @@ public class IconPack {
         mCalendars = calendars;
     }
 
+    IconPack(Context context, String packageName, IconPackIndex index) {
+        this(index.icons, context, packageName, index.iconBack, index.iconUpon, index.iconMask,
+                index.scale, index.calendars);
+        mIndex = index;
+    }
+
     public Drawable getIcon(LauncherActivityInfoCompat info) {
         IconPackProvider.IconInfo iconInfo = icons.get(info.getComponentName().toString());
         if (iconInfo != null && iconInfo.prefix != null) {
@@ -84,20 +96,44 @@ public class IconPack {
         }
     }
 
-    private Resources getResources() throws PackageManager.NameNotFoundException {
-        return mContext.getPackageManager().getResourcesForApplication(packageName);
+    synchronized Resources getResources() throws PackageManager.NameNotFoundException {
+        if (mResources == null) {
+            mResources = mContext.getPackageManager().getResourcesForApplication(packageName);
+        }
+        return mResources;
     }
 
-    private boolean iconExists(Resources res, String name) {
-        return res.getIdentifier(name, "drawable", packageName) != 0;
+    private synchronized IconPackResourceCache getResourceCache()
+            throws PackageManager.NameNotFoundException {
+        if (mResourceCache == null) {
+            mResourceCache = new IconPackResourceCache(mContext, packageName, getResources());
+        }
+        return mResourceCache;
+    }
+
+    /**
+     * Returns the id of the drawable called {@param name} in this pack, or 0 if there is none.
+     */
+    int getDrawableId(String name) {
+        try {
+            return getResourceCache().getDrawableId(name);
+        } catch (PackageManager.NameNotFoundException e) {
+            return 0;
+        }
     }
 
     public Drawable getDrawable(String name) {
+        int resourceId = getDrawableId(name);
+        if (0 != resourceId) {
+            return getDrawable(resourceId);
+        }
+        return null;
+    }
+
+    public Drawable getDrawable(int resId) {
         try {
-            Resources res = getResources();
-            int resourceId = res.getIdentifier(name, "drawable", packageName);
-            if (0 != resourceId) {
-                Bitmap b = BitmapFactory.decodeResource(res, resourceId);
+            Bitmap b = decodeIcon(getResources(), resId);
+            if (b != null) {
                 return new FastBitmapDrawable(b);
             }
         } catch (Exception ignored) {
@@ -105,14 +141,63 @@ public class IconPack {
         return null;
     }
 
-    public Drawable getDrawable(int resId) {
+    /**
+     * Returns the decoded icon mask, which is shared between all icons of this pack and must not
+     * be modified.
+     */
+    synchronized Bitmap getIconMaskBitmap() {
+        if (!mIconMaskLoaded && mIconMask != null) {
+            mIconMaskLoaded = true;
+            int resId = getDrawableId(mIconMask);
+            try {
+                mIconMaskBitmap = resId != 0 ? decodeIcon(getResources(), resId) : null;
+            } catch (PackageManager.NameNotFoundException ignored) {
+            }
+        }
+        return mIconMaskBitmap;
+    }
+
+    /**
+     * Decodes the bitmap {@param resId} at roughly the size of the launcher icons. Packs often
+     * ship huge images, which would otherwise be decoded at full size only to be scaled down
+     * right away.
+     */
+    private static Bitmap decodeIcon(Resources res, int resId) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        opts.inScaled = false;
+        BitmapFactory.decodeResource(res, resId, opts);
+        int size = Math.max(opts.outWidth, opts.outHeight);
+        if (size <= 0) {
+            // Not a bitmap, let the regular decoder deal with it
+            return BitmapFactory.decodeResource(res, resId);
+        }
+
+        int targetSize = Utilities.getIconBitmapSize();
+        int sampleSize = 1;
+        while (size / (sampleSize * 2) >= targetSize) {
+            sampleSize *= 2;
+        }
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = sampleSize;
+        int sampledSize = size / sampleSize;
+        if (sampledSize > targetSize) {
+            // Scale the rest of the way while decoding
+            opts.inScaled = true;
+            opts.inDensity = sampledSize;
+            opts.inTargetDensity = targetSize;
+        }
         try {
-            Resources res = getResources();
-            Bitmap b = BitmapFactory.decodeResource(res, resId);
-            return new FastBitmapDrawable(b);
-        } catch (Exception ignored) {
+            Bitmap bitmap = BitmapFactory.decodeResource(res, resId, opts);
+            if (bitmap != null && opts.inScaled) {
+                // The densities above are only used for the scale, not a screen density
+                bitmap.setDensity(Bitmap.DENSITY_NONE);
+            }
+            return bitmap;
+        } catch (OutOfMemoryError e) {
+            Log.w(TAG, "Failed to decode icon " + resId, e);
+            return null;
         }
-        return null;
     }
 
     public String getPackageName() {
@@ -140,11 +225,43 @@ public class IconPack {
     }
 
     public List<IconCategory> getIconList() {
-        List<IconCategory> categoryList = new ArrayList<>();
+        IconPackIndex.IconList iconList = mIndex != null ? mIndex.getIconList() : null;
+        if (iconList == null) {
+            iconList = parseIconList();
+            if (iconList == null) {
+                return Collections.emptyList();
+            }
+            if (mIndex != null) {
+                mIndex.setIconList(iconList);
+                mIndex.save(mContext);
+            }
+        }
+
+        IconEntry[] entries = new IconEntry[iconList.resIds.length];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = new IconEntry(this, iconList.resIds[i], iconList.resourceNames[i]);
+        }
+        List<IconCategory> categoryList = new ArrayList<>(iconList.categoryTitles.length + 1);
         IconCategory allIcons = new IconCategory(mContext.getString(R.string.all_icons));
         categoryList.add(allIcons);
-        IconCategory category = null;
-        IconEntry entry;
+        for (int item : iconList.sortedItems) {
+            allIcons.addEntry(entries[item]);
+        }
+        for (int i = 0; i < iconList.categoryTitles.length; i++) {
+            IconCategory category = new IconCategory(iconList.categoryTitles[i]);
+            for (int item = iconList.categoryStarts[i]; item < iconList.categoryEnds[i]; item++) {
+                category.addEntry(entries[item]);
+            }
+            categoryList.add(category);
+        }
+        return categoryList;
+    }
+
+    private IconPackIndex.IconList parseIconList() {
+        ArrayList<String> titles = new ArrayList<>();
+        ArrayList<Integer> starts = new ArrayList<>();
+        ArrayList<Integer> resIds = new ArrayList<>();
+        final ArrayList<String> names = new ArrayList<>();
         try {
             Resources res = getResources();
             XmlPullParser parser = IconPackProvider.getXml(mContext, packageName, "drawable");
@@ -152,24 +269,56 @@ public class IconPack {
                 if (parser.getEventType() != XmlPullParser.START_TAG) continue;
                 if (TAG_CATEGORY.equals(parser.getName())) {
                     String title = parser.getAttributeValue(null, ATTR_TITLE);
-                    category = new IconCategory(resolveString(res, title));
-                    categoryList.add(category);
+                    titles.add(resolveString(res, title));
+                    starts.add(resIds.size());
                 } else if (TAG_ITEM.equals(parser.getName())) {
                     int resId = resolveResource(res, parser.getAttributeValue(null, ATTR_DRAWABLE));
                     if (resId != 0) {
-                        entry = new IconEntry(this, resId);
-                        allIcons.addEntry(entry);
-                        if (category != null)
-                            category.addEntry(entry);
+                        resIds.add(resId);
+                        names.add(loadResourceName(res, resId));
                     }
                 }
             }
-            allIcons.sort(mIconComparator);
-            return categoryList;
         } catch (Exception e) {
             e.printStackTrace();
+            return null;
+        }
+
+        int categoryCount = titles.size();
+        int[] categoryStarts = new int[categoryCount];
+        int[] categoryEnds = new int[categoryCount];
+        for (int i = 0; i < categoryCount; i++) {
+            categoryStarts[i] = starts.get(i);
+            categoryEnds[i] = i + 1 < categoryCount ? starts.get(i + 1) : resIds.size();
+        }
+        int itemCount = resIds.size();
+        int[] ids = new int[itemCount];
+        Integer[] order = new Integer[itemCount];
+        for (int i = 0; i < itemCount; i++) {
+            ids[i] = resIds.get(i);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return names.get(a).compareTo(names.get(b));
+            }
+        });
+        int[] sortedItems = new int[itemCount];
+        for (int i = 0; i < itemCount; i++) {
+            sortedItems[i] = order[i];
+        }
+        return new IconPackIndex.IconList(titles.toArray(new String[categoryCount]),
+                categoryStarts, categoryEnds, ids, names.toArray(new String[itemCount]),
+                sortedItems);
+    }
+
+    private static String loadResourceName(Resources res, int resId) {
+        try {
+            return res.getResourceEntryName(resId);
+        } catch (Resources.NotFoundException e) {
+            return "";
         }
-        return Collections.emptyList();
     }
 
     private String resolveString(Resources res, String title) {
@@ -245,18 +394,10 @@ public class IconPack {
         final int resId;
         final String resourceName;
 
-        private IconEntry(IconPack ip, int id) {
+        private IconEntry(IconPack ip, int id, String name) {
             iconPack = ip;
             resId = id;
-            resourceName = loadResourceName();
-        }
-
-        private String loadResourceName() {
-            try {
-                return iconPack.getResources().getResourceEntryName(resId);
-            } catch (Exception e) {
-                return "";
-            }
+            resourceName = name;
         }
 
         Drawable loadDrawable() {
@@ -0,0 +1,351 @@
+package ch.deletescape.lawnchair.iconpack;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ch.deletescape.lawnchair.LauncherFiles;
+import ch.deletescape.lawnchair.LauncherModel;
+
+/**
+ * The parsed contents of an icon pack's appfilter.xml and drawable.xml, which can be stored in a
+ * compact binary file and memory-mapped on later starts instead of parsing the xml again.
+ * <p>
+ * All strings are stored once in a string table and referenced by index, as most packs map many
+ * components to the same drawable. The index is only valid for the exact build of the pack it was
+ * created from.
+ */
+class IconPackIndex {
+
+    private static final String TAG = "IconPackIndex";
+
+    private static final int MAGIC = 0x4c495049;
+    private static final int FILE_VERSION = 1;
+    private static final int NO_STRING = -1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The contents of drawable.xml, as shown by the icon picker.
+     */
+    static class IconList {
+        final String[] categoryTitles;
+        // Range of the items of each category, categories do not include the items declared
+        // before the first category.
+        final int[] categoryStarts;
+        final int[] categoryEnds;
+        final int[] resIds;
+        final String[] resourceNames;
+        // Order of all items by resource name
+        final int[] sortedItems;
+
+        IconList(String[] categoryTitles, int[] categoryStarts, int[] categoryEnds,
+                 int[] resIds, String[] resourceNames, int[] sortedItems) {
+            this.categoryTitles = categoryTitles;
+            this.categoryStarts = categoryStarts;
+            this.categoryEnds = categoryEnds;
+            this.resIds = resIds;
+            this.resourceNames = resourceNames;
+            this.sortedItems = sortedItems;
+        }
+    }
+
+    final Map<String, IconPackProvider.IconInfo> icons;
+    final String iconBack;
+    final String iconUpon;
+    final String iconMask;
+    final float scale;
+    final List<String> calendars;
+
+    private final String mPackageName;
+    private final int mVersionCode;
+    private final long mLastUpdateTime;
+    private IconList mIconList;
+
+    IconPackIndex(PackageInfo packageInfo, Map<String, IconPackProvider.IconInfo> icons,
+                  String iconBack, String iconUpon, String iconMask, float scale,
+                  List<String> calendars) {
+        this(packageInfo.packageName, packageInfo.versionCode, packageInfo.lastUpdateTime, icons,
+                iconBack, iconUpon, iconMask, scale, calendars);
+    }
+
+    private IconPackIndex(String packageName, int versionCode, long lastUpdateTime,
+                          Map<String, IconPackProvider.IconInfo> icons, String iconBack,
+                          String iconUpon, String iconMask, float scale, List<String> calendars) {
+        mPackageName = packageName;
+        mVersionCode = versionCode;
+        mLastUpdateTime = lastUpdateTime;
+        this.icons = icons;
+        this.iconBack = iconBack;
+        this.iconUpon = iconUpon;
+        this.iconMask = iconMask;
+        this.scale = scale;
+        this.calendars = calendars;
+    }
+
+    /**
+     * Returns the parsed drawable.xml, or null if it was not indexed yet.
+     */
+    synchronized IconList getIconList() {
+        return mIconList;
+    }
+
+    synchronized void setIconList(IconList iconList) {
+        mIconList = iconList;
+    }
+
+    /**
+     * Loads the stored index for {@param packageName}, or returns null if there is none for the
+     * installed version of the pack.
+     */
+    static IconPackIndex load(Context context, String packageName) {
+        File file = getFile(context, packageName);
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            PackageInfo info = context.getPackageManager().getPackageInfo(packageName, 0);
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FILE_VERSION
+                    || buffer.getInt() != info.versionCode
+                    || buffer.getLong() != info.lastUpdateTime) {
+                return null;
+            }
+            return read(buffer, info);
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            // Any garbage in the file must only cost parsing the pack again, so that the pack
+            // isn't reported as invalid
+            Log.w(TAG, "Deleting corrupt index for " + packageName, e);
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ignored) {
+                }
+                raf = null;
+            }
+            file.delete();
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static IconPackIndex read(ByteBuffer buffer, PackageInfo info) {
+        String[] strings = new String[getCount(buffer)];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = new byte[getCount(buffer)];
+            buffer.get(bytes);
+            strings[i] = new String(bytes, UTF_8);
+        }
+
+        float scale = buffer.getFloat();
+        String iconBack = getString(strings, buffer.getInt());
+        String iconUpon = getString(strings, buffer.getInt());
+        String iconMask = getString(strings, buffer.getInt());
+
+        int iconCount = getCount(buffer);
+        HashMap<String, IconPackProvider.IconInfo> icons = new HashMap<>(iconCount * 2);
+        for (int i = 0; i < iconCount; i++) {
+            IconPackProvider.IconInfo iconInfo = new IconPackProvider.IconInfo();
+            String component = strings[buffer.getInt()];
+            iconInfo.drawable = getString(strings, buffer.getInt());
+            iconInfo.prefix = getString(strings, buffer.getInt());
+            icons.put(component, iconInfo);
+        }
+
+        int calendarCount = getCount(buffer);
+        ArrayList<String> calendars = new ArrayList<>(calendarCount);
+        for (int i = 0; i < calendarCount; i++) {
+            calendars.add(strings[buffer.getInt()]);
+        }
+
+        IconPackIndex index = new IconPackIndex(info.packageName, info.versionCode,
+                info.lastUpdateTime, icons, iconBack, iconUpon, iconMask, scale, calendars);
+
+        if (buffer.get() != 0) {
+            int categoryCount = getCount(buffer);
+            String[] titles = new String[categoryCount];
+            int[] starts = new int[categoryCount];
+            int[] ends = new int[categoryCount];
+            for (int i = 0; i < categoryCount; i++) {
+                titles[i] = strings[buffer.getInt()];
+                starts[i] = buffer.getInt();
+                ends[i] = buffer.getInt();
+            }
+            int itemCount = getCount(buffer);
+            int[] resIds = new int[itemCount];
+            String[] names = new String[itemCount];
+            int[] sorted = new int[itemCount];
+            for (int i = 0; i < itemCount; i++) {
+                resIds[i] = buffer.getInt();
+                names[i] = strings[buffer.getInt()];
+            }
+            for (int i = 0; i < itemCount; i++) {
+                sorted[i] = buffer.getInt();
+            }
+            index.mIconList = new IconList(titles, starts, ends, resIds, names, sorted);
+        }
+        return index;
+    }
+
+    /**
+     * Reads a count of entries which follow in {@code buffer}, checking it against the bytes
+     * left so that a corrupt count can't make us allocate huge arrays.
+     */
+    private static int getCount(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining()) {
+            throw new IllegalStateException("Invalid count " + count);
+        }
+        return count;
+    }
+
+    private static String getString(String[] strings, int index) {
+        return index == NO_STRING ? null : strings[index];
+    }
+
+    /**
+     * Writes the index to disk on the worker thread.
+     */
+    void save(final Context context) {
+        new Handler(LauncherModel.getWorkerLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                write(getFile(context, mPackageName));
+            }
+        });
+    }
+
+    private void write(File file) {
+        IconList iconList = getIconList();
+        StringTable table = new StringTable();
+        table.add(iconBack);
+        table.add(iconUpon);
+        table.add(iconMask);
+        for (Map.Entry<String, IconPackProvider.IconInfo> entry : icons.entrySet()) {
+            table.add(entry.getKey());
+            table.add(entry.getValue().drawable);
+            table.add(entry.getValue().prefix);
+        }
+        for (String calendar : calendars) {
+            table.add(calendar);
+        }
+        if (iconList != null) {
+            for (String title : iconList.categoryTitles) {
+                table.add(title);
+            }
+            for (String name : iconList.resourceNames) {
+                table.add(name);
+            }
+        }
+
+        file.getParentFile().mkdirs();
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream fos = null;
+        try {
+            fos = atomicFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(mVersionCode);
+            out.writeLong(mLastUpdateTime);
+
+            out.writeInt(table.strings.size());
+            for (String string : table.strings) {
+                byte[] bytes = string.getBytes(UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            out.writeFloat(scale);
+            out.writeInt(table.indexOf(iconBack));
+            out.writeInt(table.indexOf(iconUpon));
+            out.writeInt(table.indexOf(iconMask));
+
+            out.writeInt(icons.size());
+            for (Map.Entry<String, IconPackProvider.IconInfo> entry : icons.entrySet()) {
+                out.writeInt(table.indexOf(entry.getKey()));
+                out.writeInt(table.indexOf(entry.getValue().drawable));
+                out.writeInt(table.indexOf(entry.getValue().prefix));
+            }
+
+            out.writeInt(calendars.size());
+            for (String calendar : calendars) {
+                out.writeInt(table.indexOf(calendar));
+            }
+
+            out.writeBoolean(iconList != null);
+            if (iconList != null) {
+                out.writeInt(iconList.categoryTitles.length);
+                for (int i = 0; i < iconList.categoryTitles.length; i++) {
+                    out.writeInt(table.indexOf(iconList.categoryTitles[i]));
+                    out.writeInt(iconList.categoryStarts[i]);
+                    out.writeInt(iconList.categoryEnds[i]);
+                }
+                out.writeInt(iconList.resIds.length);
+                for (int i = 0; i < iconList.resIds.length; i++) {
+                    out.writeInt(iconList.resIds[i]);
+                    out.writeInt(table.indexOf(iconList.resourceNames[i]));
+                }
+                for (int item : iconList.sortedItems) {
+                    out.writeInt(item);
+                }
+            }
+            out.flush();
+            atomicFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write index for " + mPackageName, e);
+            if (fos != null) {
+                atomicFile.failWrite(fos);
+            }
+        }
+    }
+
+    private static File getFile(Context context, String packageName) {
+        File dir = new File(context.getCacheDir(), LauncherFiles.ICON_PACK_CACHE_DIR);
+        return new File(dir, packageName + ".idx");
+    }
+
+    private static class StringTable {
+        final ArrayList<String> strings = new ArrayList<>();
+        private final HashMap<String, Integer> mIndices = new HashMap<>();
+
+        void add(String string) {
+            if (string != null && !mIndices.containsKey(string)) {
+                mIndices.put(string, strings.size());
+                strings.add(string);
+            }
+        }
+
+        int indexOf(String string) {
+            return string == null ? NO_STRING : mIndices.get(string);
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package ch.deletescape.lawnchair.iconpack;
 
 import android.content.Context;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.ArrayMap;
 import android.util.Xml;
 import android.widget.Toast;
@@ -13,12 +16,14 @@ import org.xmlpull.v1.XmlPullParserFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import ch.deletescape.lawnchair.Utilities;
 
 public class IconPackProvider {
+    // Guarded by the class, icons are rendered on multiple threads at once
     private static Map<String, IconPack> iconPacks = new ArrayMap<>();
 
     private static IconPack getIconPack(String packageName) {
@@ -30,7 +35,7 @@ public class IconPackProvider {
         return loadAndGetIconPack(context, packageName);
     }
 
-    public static IconPack loadAndGetIconPack(Context context, String packageName) {
+    public static synchronized IconPack loadAndGetIconPack(Context context, String packageName) {
         if ("".equals(packageName)) {
             return null;
         }
@@ -47,18 +52,31 @@ public class IconPackProvider {
         try {
             iconPacks.put(packageName, parseAppFilter(context, packageName));
         } catch (Exception e) {
-            Toast.makeText(context, "Invalid IconPack", Toast.LENGTH_SHORT).show();
+            showToast(context, "Invalid IconPack");
             iconPacks.put(packageName, null);
         }
     }
 
     private static IconPack parseAppFilter(Context context, String packageName) throws Exception {
+        // Only parse the xml if there is no index for this version of the pack yet
+        IconPackIndex index = IconPackIndex.load(context, packageName);
+        if (index == null) {
+            index = parseAppFilterXml(context, packageName);
+            index.save(context);
+        }
+        return new IconPack(context, packageName, index);
+    }
+
+    private static IconPackIndex parseAppFilterXml(Context context, String packageName)
+            throws Exception {
+        PackageInfo packageInfo = context.getPackageManager().getPackageInfo(packageName, 0);
         XmlPullParser parser = getXml(context, packageName, "appfilter");
         float scale = 1f;
         String iconBack = null;
         String iconUpon = null;
         String iconMask = null;
-        Map<String, IconInfo> entries = new ArrayMap<>();
+        // Large packs have thousands of entries, which is too many for an ArrayMap
+        Map<String, IconInfo> entries = new HashMap<>();
         List<String> calendars = new ArrayList<>();
         while (parser != null && parser.next() != XmlPullParser.END_DOCUMENT) {
             if (parser.getEventType() != XmlPullParser.START_TAG) {
@@ -120,7 +138,8 @@ public class IconPackProvider {
 
             }
         }
-        return new IconPack(entries, context, packageName, iconBack, iconUpon, iconMask, scale, calendars);
+        return new IconPackIndex(packageInfo, entries, iconBack, iconUpon, iconMask, scale,
+                calendars);
     }
 
     private static String getImg(XmlPullParser parser) {
@@ -150,11 +169,21 @@ public class IconPackProvider {
                 return parser;
             }
         } catch (PackageManager.NameNotFoundException | IOException | XmlPullParserException e) {
-            Toast.makeText(context, "Failed to get AppFilter", Toast.LENGTH_SHORT).show();
+            showToast(context, "Failed to get AppFilter");
         }
         return null;
     }
 
+    private static void showToast(final Context context, final String text) {
+        // Icon packs are loaded on worker threads, which can't show toasts
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(context, text, Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
     public static class IconInfo {
 
         public String drawable;
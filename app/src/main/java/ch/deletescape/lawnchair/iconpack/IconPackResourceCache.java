@@ -0,0 +1,149 @@
+package ch.deletescape.lawnchair.iconpack;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.os.Handler;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import ch.deletescape.lawnchair.LauncherFiles;
+import ch.deletescape.lawnchair.LauncherModel;
+
+/**
+ * Resolves drawable names of an icon pack to resource ids and remembers the results across
+ * restarts, as looking up an identifier by name is slow and packs with thousands of icons used
+ * to resolve all of them again on every start.
+ * <p>
+ * Resource ids are only stable for a single build of the pack, so the persisted ids are dropped
+ * whenever the pack is updated. Names which do not exist are remembered as well.
+ */
+class IconPackResourceCache {
+
+    private static final String TAG = "IconPackResourceCache";
+
+    private static final int FILE_VERSION = 1;
+    private static final long SAVE_DELAY_MS = 1000;
+
+    private final String mPackageName;
+    private final Resources mResources;
+    private final AtomicFile mFile;
+    private final int mVersionCode;
+    private final long mLastUpdateTime;
+    private final Handler mWorkerHandler;
+
+    private final HashMap<String, Integer> mIds = new HashMap<>();
+    private boolean mLoaded;
+    private boolean mSaveScheduled;
+
+    private final Runnable mSaveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            HashMap<String, Integer> ids;
+            synchronized (IconPackResourceCache.this) {
+                mSaveScheduled = false;
+                ids = new HashMap<>(mIds);
+            }
+            save(ids);
+        }
+    };
+
+    IconPackResourceCache(Context context, String packageName, Resources res)
+            throws PackageManager.NameNotFoundException {
+        mPackageName = packageName;
+        mResources = res;
+        PackageInfo info = context.getPackageManager().getPackageInfo(packageName, 0);
+        mVersionCode = info.versionCode;
+        mLastUpdateTime = info.lastUpdateTime;
+        File dir = new File(context.getCacheDir(), LauncherFiles.ICON_PACK_CACHE_DIR);
+        dir.mkdirs();
+        mFile = new AtomicFile(new File(dir, packageName + ".res"));
+        mWorkerHandler = new Handler(LauncherModel.getWorkerLooper());
+    }
+
+    /**
+     * Returns the id of the drawable called {@param name}, or 0 if it does not exist.
+     */
+    synchronized int getDrawableId(String name) {
+        if (!mLoaded) {
+            load();
+            mLoaded = true;
+        }
+        Integer id = mIds.get(name);
+        if (id == null) {
+            id = mResources.getIdentifier(name, "drawable", mPackageName);
+            mIds.put(name, id);
+            if (!mSaveScheduled) {
+                // Icons are usually resolved in bursts, write them out once the burst is over.
+                mSaveScheduled = true;
+                mWorkerHandler.postDelayed(mSaveRunnable, SAVE_DELAY_MS);
+            }
+        }
+        return id;
+    }
+
+    private void load() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != FILE_VERSION || in.readInt() != mVersionCode
+                    || in.readLong() != mLastUpdateTime) {
+                // The pack has changed since, all ids are invalid
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                mIds.put(name, in.readInt());
+            }
+        } catch (FileNotFoundException e) {
+            // Not cached yet
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read resource cache for " + mPackageName, e);
+            mIds.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void save(HashMap<String, Integer> ids) {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(mVersionCode);
+            out.writeLong(mLastUpdateTime);
+            out.writeInt(ids.size());
+            for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write resource cache for " + mPackageName, e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+}
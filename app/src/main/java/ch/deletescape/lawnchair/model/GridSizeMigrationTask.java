@@ -10,14 +10,21 @@ import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.graphics.Point;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
 
 import ch.deletescape.lawnchair.InvariantDeviceProfile;
 import ch.deletescape.lawnchair.ItemInfo;
@@ -34,6 +41,8 @@ import ch.deletescape.lawnchair.config.ProviderConfig;
 import ch.deletescape.lawnchair.preferences.IPreferenceProvider;
 import ch.deletescape.lawnchair.util.GridOccupancy;
 import ch.deletescape.lawnchair.util.LongArrayMap;
+import ch.deletescape.lawnchair.util.TaskScheduler;
+import ch.deletescape.lawnchair.util.Thunk;
 
 /**
  * This class takes care of shrinking the workspace (by maximum of one row and one column), as a
@@ -54,6 +63,16 @@ public class GridSizeMigrationTask {
     private static final float WT_WIDGET_FACTOR = 0.6f;
     private static final float WT_FOLDER_FACTOR = 0.5f;
 
+    // The placement searches for a screen, one per row and column that could be removed and one
+    // for the items carried over, are stopped after this time in total and fall back to the best
+    // placements found so far, as dense screens with several widgets could otherwise block the
+    // loader for seconds.
+    private static final long SCREEN_SEARCH_TIMEOUT_MS = 100;
+    // Limits the memory used to remember the visited grid states of a single search.
+    private static final int MAX_VISITED_STATES = 20000;
+    // Weight losses are sums of floats, this keeps rounding from pruning a placement of equal loss.
+    private static final float WEIGHT_EPSILON = 0.001f;
+
     private final Context mContext;
 
     private final HashMap<String, Point> mWidgetMinSize = new HashMap<>();
@@ -177,8 +196,30 @@ public class GridSizeMigrationTask {
             throw new Exception("Unable to get workspace screens");
         }
 
+        // The placements of the screens don't depend on each other, so they are searched
+        // concurrently while the entries of the next screens are loaded. The first one is searched
+        // on this thread. Applying them carries over the items lost on earlier screens, so that
+        // still happens in order.
+        ArrayList<FutureTask<ScreenPlacement>> searches = new ArrayList<>(allScreens.size());
         for (long screenId : allScreens) {
-            migrateScreen(screenId);
+            final int startY = getStartY(screenId);
+            final ArrayList<DbEntry> items = loadWorkspaceEntries(screenId);
+            FutureTask<ScreenPlacement> search = new FutureTask<>(new Callable<ScreenPlacement>() {
+                @Override
+                public ScreenPlacement call() {
+                    return findScreenPlacement(items, startY);
+                }
+            });
+            if (!searches.isEmpty()) {
+                TaskScheduler.getInstance().execute(TaskScheduler.LANE_UI, search);
+            }
+            searches.add(search);
+        }
+        for (int i = 0; i < searches.size(); i++) {
+            FutureTask<ScreenPlacement> search = searches.get(i);
+            // Searches on this thread unless a worker already picked it up
+            search.run();
+            applyScreenPlacement(allScreens.get(i), search.get());
         }
 
         if (!mCarryOver.isEmpty()) {
@@ -194,7 +235,8 @@ public class GridSizeMigrationTask {
                 // {@link #mCarryOver}, to prevent an infinite loop. If no item could be removed,
                 // break the loop and abort migration by throwing an exception.
                 OptimalPlacementSolution placement = new OptimalPlacementSolution(
-                        new GridOccupancy(mTrgX, mTrgY), deepCopy(mCarryOver), 0, true);
+                        new GridOccupancy(mTrgX, mTrgY), deepCopy(mCarryOver), 0, true,
+                        SystemClock.uptimeMillis() + SCREEN_SEARCH_TIMEOUT_MS);
                 placement.find();
                 if (placement.finalPlacedItems.size() > 0) {
                     long newScreenId = LauncherSettings.Settings.call(
@@ -235,18 +277,29 @@ public class GridSizeMigrationTask {
      * Migrate a particular screen id.
      * Strategy:
      * 1) For all possible combinations of row and column, pick the one which causes the least
-     * data loss: {@link #tryRemove(int, int, int, ArrayList, float[])}
+     * data loss: {@link #tryRemove(int, int, int, ArrayList, float[], long)}
      * 2) Maintain a list of all lost items before this screen, and add any new item lost from
      * this screen to that list as well.
      * 3) If all those items from the above list can be placed on this screen, place them
      * (otherwise they are placed on a new screen).
      */
     protected void migrateScreen(long screenId) {
-        // If we are migrating the first screen, do not touch the first row.
-        int startY = Utilities.getPrefs(LauncherAppState.getInstance().getContext()).getShowPixelBar() && screenId == Workspace.FIRST_SCREEN_ID ? 1 : 0;
+        int startY = getStartY(screenId);
+        applyScreenPlacement(screenId, findScreenPlacement(loadWorkspaceEntries(screenId), startY));
+    }
 
-        ArrayList<DbEntry> items = loadWorkspaceEntries(screenId);
+    private int getStartY(long screenId) {
+        // If we are migrating the first screen, do not touch the first row.
+        return Utilities.getPrefs(LauncherAppState.getInstance().getContext()).getShowPixelBar() && screenId == Workspace.FIRST_SCREEN_ID ? 1 : 0;
+    }
 
+    /**
+     * Finds the row and column to remove from a screen with the least cost, see
+     * {@link #migrateScreen(long)}. Only works on copies of {@code items}, so it is safe to call
+     * for multiple screens concurrently.
+     */
+    @Thunk
+    ScreenPlacement findScreenPlacement(ArrayList<DbEntry> items, int startY) {
         int removedCol = Integer.MAX_VALUE;
         int removedRow = Integer.MAX_VALUE;
 
@@ -259,6 +312,7 @@ public class GridSizeMigrationTask {
         float moveWt = Float.MAX_VALUE;
         float[] outLoss = new float[2];
         ArrayList<DbEntry> finalItems = null;
+        long deadline = SystemClock.uptimeMillis() + SCREEN_SEARCH_TIMEOUT_MS;
 
         // Try removing all possible combinations
         for (int x = 0; x < mSrcX; x++) {
@@ -267,7 +321,8 @@ public class GridSizeMigrationTask {
             for (int y = mSrcY - 1; y >= startY; y--) {
                 // Use a deep copy when trying out a particular combination as it can change
                 // the underlying object.
-                ArrayList<DbEntry> itemsOnScreen = tryRemove(x, y, startY, deepCopy(items), outLoss);
+                ArrayList<DbEntry> itemsOnScreen = tryRemove(x, y, startY, deepCopy(items), outLoss,
+                        deadline);
 
                 if ((outLoss[0] < removeWt) || ((outLoss[0] == removeWt) && (outLoss[1] < moveWt))) {
                     removeWt = outLoss[0];
@@ -288,6 +343,20 @@ public class GridSizeMigrationTask {
             }
         }
 
+        return new ScreenPlacement(items, finalItems, removeWt, startY,
+                deadline - SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Updates the items of a screen to the placement found by {@link #findScreenPlacement}, and
+     * tries to place the items carried over from earlier screens on it.
+     */
+    private void applyScreenPlacement(long screenId, ScreenPlacement screenPlacement) {
+        ArrayList<DbEntry> items = screenPlacement.items;
+        ArrayList<DbEntry> finalItems = screenPlacement.finalItems;
+        float removeWt = screenPlacement.removeWt;
+        int startY = screenPlacement.startY;
+
         LongArrayMap<DbEntry> itemMap = new LongArrayMap<>();
         for (DbEntry e : deepCopy(items)) {
             itemMap.put(e.id, e);
@@ -316,8 +385,11 @@ public class GridSizeMigrationTask {
                 occupied.markCells(item, true);
             }
 
+            // Gets what is left of the time of the screen, counted from now as the screens may
+            // have been searched concurrently long before
             OptimalPlacementSolution placement = new OptimalPlacementSolution(occupied,
-                    deepCopy(mCarryOver), startY, true);
+                    deepCopy(mCarryOver), startY, true,
+                    SystemClock.uptimeMillis() + Math.max(0, screenPlacement.searchTimeLeft));
             placement.find();
             if (placement.lowestWeightLoss == 0) {
                 // All items got placed
@@ -332,6 +404,24 @@ public class GridSizeMigrationTask {
         }
     }
 
+    private static class ScreenPlacement {
+        final ArrayList<DbEntry> items;
+        final ArrayList<DbEntry> finalItems;
+        final float removeWt;
+        final int startY;
+        // The part of the search time of the screen which the search did not use.
+        final long searchTimeLeft;
+
+        ScreenPlacement(ArrayList<DbEntry> items, ArrayList<DbEntry> finalItems, float removeWt,
+                        int startY, long searchTimeLeft) {
+            this.items = items;
+            this.finalItems = finalItems;
+            this.removeWt = removeWt;
+            this.startY = startY;
+            this.searchTimeLeft = searchTimeLeft;
+        }
+    }
+
     /**
      * Updates an item in the DB.
      */
@@ -346,12 +436,14 @@ public class GridSizeMigrationTask {
     /**
      * Tries the remove the provided row and column.
      *
-     * @param items   all the items on the screen under operation
-     * @param outLoss array of size 2. The first entry is filled with weight loss, and the second
-     *                with the overall item movement.
+     * @param items    all the items on the screen under operation
+     * @param outLoss  array of size 2. The first entry is filled with weight loss, and the second
+     *                 with the overall item movement.
+     * @param deadline the {@link SystemClock#uptimeMillis()} at which to stop searching
      */
     private ArrayList<DbEntry> tryRemove(int col, int row, int startY,
-                                         ArrayList<DbEntry> items, float[] outLoss) {
+                                         ArrayList<DbEntry> items, float[] outLoss,
+                                         long deadline) {
         GridOccupancy occupied = new GridOccupancy(mTrgX, mTrgY);
         occupied.markCells(0, 0, mTrgX, startY, true);
 
@@ -376,7 +468,7 @@ public class GridSizeMigrationTask {
         }
 
         OptimalPlacementSolution placement =
-                new OptimalPlacementSolution(occupied, removedItems, startY);
+                new OptimalPlacementSolution(occupied, removedItems, startY, deadline);
         placement.find();
         finalItems.addAll(placement.finalPlacedItems);
         outLoss[0] = placement.lowestWeightLoss;
@@ -384,10 +476,35 @@ public class GridSizeMigrationTask {
         return finalItems;
     }
 
-    private class OptimalPlacementSolution {
+    /**
+     * Branch and bound search for the placement of items on a partially occupied grid, with the
+     * lowest weight loss and, among those, the lowest move cost.
+     * <p>
+     * Besides the weight lost so far, a branch is cut off if the items left can't fit into the
+     * free cells without losing too much weight, or if the same items were left for the same
+     * occupied cells before with a lower weight loss. The search stops at the given deadline,
+     * which is shared by all searches for a screen, keeping the best placement found until then.
+     */
+    @VisibleForTesting
+    class OptimalPlacementSolution {
         private final ArrayList<DbEntry> itemsToPlace;
         private final GridOccupancy occupied;
 
+        // The fewest cells each item can take, and the sum of those for all items starting at an
+        // index.
+        private final int[] minAreas;
+        private final int[] remainingMinAreas;
+        // Item indices by their weight per cell, lowest first.
+        private final Integer[] lossOrder;
+        private int freeCells;
+
+        // The lowest weight loss and, for that loss, the lowest move cost so far for every pair of
+        // occupied cells and next item index.
+        private final HashMap<BitSet, float[]> visitedStates = new HashMap<>();
+        private final long deadline;
+        private int stepCount;
+        private boolean timedOut;
+
         // If set to true, item movement are not considered in move cost, leading to a more
         // linear placement.
         private final boolean ignoreMove;
@@ -399,24 +516,62 @@ public class GridSizeMigrationTask {
         float lowestMoveCost = Float.MAX_VALUE;
         ArrayList<DbEntry> finalPlacedItems;
 
-        public OptimalPlacementSolution(
-                GridOccupancy occupied, ArrayList<DbEntry> itemsToPlace, int startY) {
-            this(occupied, itemsToPlace, startY, false);
+        public OptimalPlacementSolution(GridOccupancy occupied, ArrayList<DbEntry> itemsToPlace,
+                                        int startY, long deadline) {
+            this(occupied, itemsToPlace, startY, false, deadline);
         }
 
+        /**
+         * @param deadline the {@link SystemClock#uptimeMillis()} at which to stop searching
+         */
         public OptimalPlacementSolution(GridOccupancy occupied, ArrayList<DbEntry> itemsToPlace,
-                                        int startY, boolean ignoreMove) {
+                                        int startY, boolean ignoreMove, long deadline) {
             this.occupied = occupied;
             this.itemsToPlace = itemsToPlace;
             this.ignoreMove = ignoreMove;
             this.startY = startY;
+            this.deadline = deadline;
 
             // Sort the items such that larger widgets appear first followed by 1x1 items
             Collections.sort(this.itemsToPlace);
+
+            int count = itemsToPlace.size();
+            minAreas = new int[count];
+            remainingMinAreas = new int[count + 1];
+            lossOrder = new Integer[count];
+            final float[] weightPerCell = new float[count];
+            for (int i = count - 1; i >= 0; i--) {
+                DbEntry item = itemsToPlace.get(i);
+                // Widgets are shrunk by at most one cell in each direction
+                int minW = item.spanX > item.minSpanX ? item.spanX - 1 : item.spanX;
+                int minH = item.spanY > item.minSpanY ? item.spanY - 1 : item.spanY;
+                minAreas[i] = Math.max(1, minW * minH);
+                remainingMinAreas[i] = remainingMinAreas[i + 1] + minAreas[i];
+                weightPerCell[i] = item.weight / minAreas[i];
+                lossOrder[i] = i;
+            }
+            Arrays.sort(lossOrder, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Float.compare(weightPerCell[a], weightPerCell[b]);
+                }
+            });
+
+            for (int y = startY; y < mTrgY; y++) {
+                for (int x = 0; x < mTrgX; x++) {
+                    if (!occupied.cells[x][y]) {
+                        freeCells++;
+                    }
+                }
+            }
         }
 
         public void find() {
             find(0, 0, 0, new ArrayList<DbEntry>());
+            if (timedOut) {
+                Log.w(TAG, "Placement of " + itemsToPlace.size() + " items timed out after "
+                        + stepCount + " steps, using the best one found");
+            }
         }
 
         /**
@@ -429,6 +584,7 @@ public class GridSizeMigrationTask {
          */
         public void find(int index, float weightLoss, float moveCost,
                          ArrayList<DbEntry> itemsPlaced) {
+            stepCount++;
             if ((weightLoss >= lowestWeightLoss) ||
                     ((weightLoss == lowestWeightLoss) && (moveCost >= lowestMoveCost))) {
                 // Abort, as we already have a better solution.
@@ -442,6 +598,16 @@ public class GridSizeMigrationTask {
                 // Keep a deep copy of current configuration as it can change during recursion.
                 finalPlacedItems = deepCopy(itemsPlaced);
                 return;
+
+            } else if (finalPlacedItems != null && (isTimedOut()
+                    || !canImprove(weightLoss + getMinWeightLoss(index), moveCost))) {
+                // Abort, as we are out of time or the remaining items can't fit without doing
+                // worse than the best solution.
+                return;
+
+            } else if (!visit(index, weightLoss, moveCost)) {
+                // Abort, as the remaining items were already tried on the same cells.
+                return;
             }
 
             DbEntry me = itemsToPlace.get(index);
@@ -477,28 +643,28 @@ public class GridSizeMigrationTask {
 
                         if (occupied.isRegionVacant(x, y, myW, myH)) {
                             // place at this position and continue search.
-                            occupied.markCells(me, true);
+                            markPlaced(me, true);
                             find(index + 1, weightLoss, newMoveCost, itemsIncludingMe);
-                            occupied.markCells(me, false);
+                            markPlaced(me, false);
                         }
 
                         // Try resizing horizontally
                         if (myW > me.minSpanX && occupied.isRegionVacant(x, y, myW - 1, myH)) {
                             me.spanX--;
-                            occupied.markCells(me, true);
+                            markPlaced(me, true);
                             // 1 extra move cost
                             find(index + 1, weightLoss, newMoveCost + 1, itemsIncludingMe);
-                            occupied.markCells(me, false);
+                            markPlaced(me, false);
                             me.spanX++;
                         }
 
                         // Try resizing vertically
                         if (myH > me.minSpanY && occupied.isRegionVacant(x, y, myW, myH - 1)) {
                             me.spanY--;
-                            occupied.markCells(me, true);
+                            markPlaced(me, true);
                             // 1 extra move cost
                             find(index + 1, weightLoss, newMoveCost + 1, itemsIncludingMe);
-                            occupied.markCells(me, false);
+                            markPlaced(me, false);
                             me.spanY++;
                         }
 
@@ -507,10 +673,10 @@ public class GridSizeMigrationTask {
                                 occupied.isRegionVacant(x, y, myW - 1, myH - 1)) {
                             me.spanX--;
                             me.spanY--;
-                            occupied.markCells(me, true);
+                            markPlaced(me, true);
                             // 2 extra move cost
                             find(index + 1, weightLoss, newMoveCost + 2, itemsIncludingMe);
-                            occupied.markCells(me, false);
+                            markPlaced(me, false);
                             me.spanX++;
                             me.spanY++;
                         }
@@ -557,9 +723,9 @@ public class GridSizeMigrationTask {
                     if (ignoreMove) {
                         newMoveCost = moveCost;
                     }
-                    occupied.markCells(me, true);
+                    markPlaced(me, true);
                     find(index + 1, weightLoss, newMoveCost, itemsIncludingMe);
-                    occupied.markCells(me, false);
+                    markPlaced(me, false);
                     me.cellX = myX;
                     me.cellY = myY;
 
@@ -582,6 +748,88 @@ public class GridSizeMigrationTask {
                 }
             }
         }
+
+        private void markPlaced(DbEntry item, boolean placed) {
+            occupied.markCells(item, placed);
+            int area = item.spanX * item.spanY;
+            freeCells += placed ? -area : area;
+        }
+
+        /**
+         * Returns a lower bound of the weight lost by the items starting at {@code index}: If
+         * they take more than the free cells even at their smallest, items have to be left out to
+         * make room. The bound is the loss if fractions of items could be left out, lowest weight
+         * per cell first.
+         */
+        private float getMinWeightLoss(int index) {
+            int excess = remainingMinAreas[index] - freeCells;
+            float loss = 0;
+            for (int i = 0; i < lossOrder.length && excess > 0; i++) {
+                int item = lossOrder[i];
+                if (item < index) {
+                    continue;
+                }
+                int area = Math.min(minAreas[item], excess);
+                loss += itemsToPlace.get(item).weight * area / minAreas[item];
+                excess -= area;
+            }
+            return loss;
+        }
+
+        /**
+         * Returns whether a placement losing at least {@code minWeightLoss} at a move cost of at
+         * least {@code minMoveCost} may be better than the best one so far, which is the case if
+         * it may lose less weight, or as much at a lower move cost.
+         */
+        private boolean canImprove(float minWeightLoss, float minMoveCost) {
+            if (minWeightLoss - WEIGHT_EPSILON > lowestWeightLoss) {
+                return false;
+            }
+            // The bound is not exact, within the epsilon the losses may well be equal
+            return minWeightLoss + WEIGHT_EPSILON < lowestWeightLoss
+                    || minMoveCost < lowestMoveCost;
+        }
+
+        /**
+         * Records that the search reached the current occupied cells with the items starting at
+         * {@code index} left, {@code weightLoss} lost and {@code moveCost} spent so far.
+         *
+         * @return false if the same state was reached before with a lower loss, or the same loss
+         * at most the same move cost, so that continuing can't find a better solution.
+         */
+        private boolean visit(int index, float weightLoss, float moveCost) {
+            int cellCount = mTrgX * mTrgY;
+            BitSet state = new BitSet(cellCount + itemsToPlace.size());
+            for (int x = 0; x < mTrgX; x++) {
+                for (int y = startY; y < mTrgY; y++) {
+                    if (occupied.cells[x][y]) {
+                        state.set(x * mTrgY + y);
+                    }
+                }
+            }
+            state.set(cellCount + index);
+
+            float[] visited = visitedStates.get(state);
+            if (visited != null && (visited[0] < weightLoss
+                    || (visited[0] == weightLoss && visited[1] <= moveCost))) {
+                return false;
+            }
+            if (visited != null) {
+                visited[0] = weightLoss;
+                visited[1] = moveCost;
+            } else if (visitedStates.size() < MAX_VISITED_STATES) {
+                visitedStates.put(state, new float[]{weightLoss, moveCost});
+            }
+            return true;
+        }
+
+        private boolean isTimedOut() {
+            // Reading the clock on every step would add up
+            if (!timedOut && (stepCount & 0x3F) == 0) {
+                timedOut = SystemClock.uptimeMillis() > deadline;
+            }
+            return timedOut;
+        }
     }
 
     private ArrayList<DbEntry> loadHotseatEntries() {
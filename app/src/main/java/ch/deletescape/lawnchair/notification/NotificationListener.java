@@ -27,29 +27,45 @@ import android.support.annotation.Nullable;
 import android.support.v4.util.Pair;
 import android.text.TextUtils;
 import android.util.Log;
+import android.view.Choreographer;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import ch.deletescape.lawnchair.LauncherModel;
 import ch.deletescape.lawnchair.Utilities;
 import ch.deletescape.lawnchair.util.PackageUserKey;
+import ch.deletescape.lawnchair.util.Thunk;
 
 /**
  * A {@link NotificationListenerService} that sends updates to its
  * {@link NotificationsChangedListener} when notifications are posted or canceled,
  * as well and when this service first connects. An instance of NotificationListener,
  * and its methods for getting notifications, can be obtained via {@link #getInstanceIfConnected()}.
+ * <p>
+ * Changes are collected per package on the worker thread, and handed over in batches at most
+ * every {@link #UPDATE_DELAY} ms, so that bursts of notifications from a single app cause one
+ * update. The icons to show in the badges of a batch are loaded on the worker thread with a
+ * single binder call, and the batches which arrive within a frame are delivered together.
  */
 public class NotificationListener extends NotificationListenerService {
 
+    private static final String TAG = "NotificationListener";
+
     private static final int MSG_NOTIFICATION_POSTED = 1;
     private static final int MSG_NOTIFICATION_REMOVED = 2;
     private static final int MSG_NOTIFICATION_FULL_REFRESH = 3;
+    private static final int MSG_FLUSH_UPDATES = 4;
+    private static final int MSG_NOTIFICATIONS_CHANGED = 5;
+
+    private static final long UPDATE_DELAY = 100;
 
     private static NotificationListener sNotificationListenerInstance = null;
     private static NotificationsChangedListener sNotificationsChangedListener;
@@ -57,25 +73,55 @@ public class NotificationListener extends NotificationListenerService {
 
     private final Handler mWorkerHandler;
     private final Handler mUiHandler;
+    @Thunk
+    final Choreographer mChoreographer;
 
     private Ranking mTempRanking = new Ranking();
 
+    // Only accessed on the worker thread
+    // The notifications which may be shown in badges, in the order they were posted
+    private final HashMap<PackageUserKey, List<NotificationKeyData>> mNotificationKeys =
+            new HashMap<>();
+    private final HashSet<PackageUserKey> mChangedPackages = new HashSet<>();
+
+    // Only accessed on the UI thread
+    @Thunk
+    NotificationsUpdate mPendingUpdate;
+    @Thunk
+    boolean mDeliveryScheduled;
+
+    // Diagnostics, written on the worker and UI thread without synchronization
+    private int mEventCount;
+    private int mBatchCount;
+    private int mDeliveryCount;
+    private int mDeliveredPackageCount;
+
     private Handler.Callback mWorkerCallback = new Handler.Callback() {
         @Override
         public boolean handleMessage(Message message) {
             try {
                 switch (message.what) {
                     case MSG_NOTIFICATION_POSTED:
-                        mUiHandler.obtainMessage(message.what, message.obj).sendToTarget();
+                        NotificationPostedMsg msg = (NotificationPostedMsg) message.obj;
+                        if (msg.shouldBeFilteredOut) {
+                            removeNotificationKey(msg.packageUserKey, msg.notificationKey);
+                        } else {
+                            addOrUpdateNotificationKey(msg.packageUserKey, msg.notificationKey);
+                        }
                         break;
                     case MSG_NOTIFICATION_REMOVED:
-                        mUiHandler.obtainMessage(message.what, message.obj).sendToTarget();
+                        Pair<PackageUserKey, NotificationKeyData> pair
+                                = (Pair<PackageUserKey, NotificationKeyData>) message.obj;
+                        removeNotificationKey(pair.first, pair.second);
                         break;
                     case MSG_NOTIFICATION_FULL_REFRESH:
-                        final List<StatusBarNotification> activeNotifications = sIsConnected
+                        List<StatusBarNotification> activeNotifications = sIsConnected
                                 ? filterNotifications(getActiveNotifications())
-                                : new ArrayList<StatusBarNotification>();
-                        mUiHandler.obtainMessage(message.what, activeNotifications).sendToTarget();
+                                : null;
+                        refreshNotificationKeys(activeNotifications);
+                        break;
+                    case MSG_FLUSH_UPDATES:
+                        flushUpdates(null);
                         break;
                 }
                 return true;
@@ -90,24 +136,16 @@ public class NotificationListener extends NotificationListenerService {
         @Override
         public boolean handleMessage(Message message) {
             switch (message.what) {
-                case MSG_NOTIFICATION_POSTED:
-                    if (sNotificationsChangedListener != null) {
-                        NotificationPostedMsg msg = (NotificationPostedMsg) message.obj;
-                        sNotificationsChangedListener.onNotificationPosted(msg.packageUserKey,
-                                msg.notificationKey, msg.shouldBeFilteredOut);
+                case MSG_NOTIFICATIONS_CHANGED:
+                    NotificationsUpdate update = (NotificationsUpdate) message.obj;
+                    if (mPendingUpdate == null) {
+                        mPendingUpdate = update;
+                    } else {
+                        mPendingUpdate.merge(update);
                     }
-                    break;
-                case MSG_NOTIFICATION_REMOVED:
-                    if (sNotificationsChangedListener != null) {
-                        Pair<PackageUserKey, NotificationKeyData> pair
-                                = (Pair<PackageUserKey, NotificationKeyData>) message.obj;
-                        sNotificationsChangedListener.onNotificationRemoved(pair.first, pair.second);
-                    }
-                    break;
-                case MSG_NOTIFICATION_FULL_REFRESH:
-                    if (sNotificationsChangedListener != null) {
-                        sNotificationsChangedListener.onNotificationFullRefresh(
-                                (List<StatusBarNotification>) message.obj);
+                    if (!mDeliveryScheduled) {
+                        mDeliveryScheduled = true;
+                        mChoreographer.postFrameCallback(mDeliverUpdate);
                     }
                     break;
             }
@@ -115,10 +153,19 @@ public class NotificationListener extends NotificationListenerService {
         }
     };
 
+    @Thunk
+    final Choreographer.FrameCallback mDeliverUpdate = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            deliverUpdate();
+        }
+    };
+
     public NotificationListener() {
         super();
         mWorkerHandler = new Handler(LauncherModel.getWorkerLooper(), mWorkerCallback);
         mUiHandler = new Handler(Looper.getMainLooper(), mUiCallback);
+        mChoreographer = Choreographer.getInstance();
         sNotificationListenerInstance = this;
     }
 
@@ -187,6 +234,167 @@ public class NotificationListener extends NotificationListenerService {
                 .sendToTarget();
     }
 
+    @Thunk
+    void addOrUpdateNotificationKey(PackageUserKey packageUserKey,
+                                    NotificationKeyData notificationKey) {
+        List<NotificationKeyData> keys = mNotificationKeys.get(packageUserKey);
+        if (keys == null) {
+            keys = new ArrayList<>();
+            mNotificationKeys.put(packageUserKey, keys);
+        }
+        int index = keys.indexOf(notificationKey);
+        if (index == -1) {
+            keys.add(notificationKey);
+        } else {
+            // The notification might show a different icon now, so it is a change regardless
+            keys.set(index, notificationKey);
+        }
+        onPackageChanged(packageUserKey);
+    }
+
+    @Thunk
+    void removeNotificationKey(PackageUserKey packageUserKey,
+                               NotificationKeyData notificationKey) {
+        List<NotificationKeyData> keys = mNotificationKeys.get(packageUserKey);
+        if (keys != null && keys.remove(notificationKey)) {
+            if (keys.isEmpty()) {
+                mNotificationKeys.remove(packageUserKey);
+            }
+            onPackageChanged(packageUserKey);
+        }
+    }
+
+    private void onPackageChanged(PackageUserKey packageUserKey) {
+        mEventCount++;
+        mChangedPackages.add(packageUserKey);
+        if (!mWorkerHandler.hasMessages(MSG_FLUSH_UPDATES)) {
+            mWorkerHandler.sendEmptyMessageDelayed(MSG_FLUSH_UPDATES, UPDATE_DELAY);
+        }
+    }
+
+    /**
+     * Replaces all notifications with {@code activeNotifications} and hands the result over
+     * right away.
+     */
+    @Thunk
+    void refreshNotificationKeys(@Nullable List<StatusBarNotification> activeNotifications) {
+        mChangedPackages.addAll(mNotificationKeys.keySet());
+        mNotificationKeys.clear();
+        HashMap<String, StatusBarNotification> notifications = new HashMap<>();
+        if (activeNotifications != null) {
+            for (StatusBarNotification sbn : activeNotifications) {
+                PackageUserKey packageUserKey = PackageUserKey.fromNotification(sbn);
+                List<NotificationKeyData> keys = mNotificationKeys.get(packageUserKey);
+                if (keys == null) {
+                    keys = new ArrayList<>();
+                    mNotificationKeys.put(packageUserKey, keys);
+                }
+                keys.add(NotificationKeyData.fromNotification(sbn));
+                mChangedPackages.add(packageUserKey);
+                notifications.put(sbn.getKey(), sbn);
+            }
+        }
+        flushUpdates(notifications);
+    }
+
+    /**
+     * Hands the notifications of all changed packages over to the UI thread, together with the
+     * icons to show in their badges.
+     *
+     * @param notifications the active notifications if they are known already, otherwise they
+     *                      are loaded with a single binder call.
+     */
+    @Thunk
+    void flushUpdates(@Nullable Map<String, StatusBarNotification> notifications) {
+        mWorkerHandler.removeMessages(MSG_FLUSH_UPDATES);
+        if (mChangedPackages.isEmpty()) {
+            return;
+        }
+        NotificationsUpdate update = new NotificationsUpdate();
+        ArrayList<String> keysToLoad = new ArrayList<>();
+        for (PackageUserKey packageUserKey : mChangedPackages) {
+            List<NotificationKeyData> keys = mNotificationKeys.get(packageUserKey);
+            if (keys == null) {
+                update.notificationKeys.put(packageUserKey,
+                        Collections.<NotificationKeyData>emptyList());
+            } else {
+                update.notificationKeys.put(packageUserKey, new ArrayList<>(keys));
+                keysToLoad.addAll(NotificationKeyData.extractKeysOnly(keys));
+            }
+        }
+        mChangedPackages.clear();
+
+        if (notifications == null && !keysToLoad.isEmpty() && sIsConnected) {
+            try {
+                StatusBarNotification[] loaded = getActiveNotifications(
+                        keysToLoad.toArray(new String[keysToLoad.size()]));
+                notifications = new HashMap<>();
+                if (loaded != null) {
+                    for (StatusBarNotification sbn : loaded) {
+                        notifications.put(sbn.getKey(), sbn);
+                    }
+                }
+            } catch (SecurityException e) {
+                // Some devices refuse this, the counts are still right without badge icons
+                Log.e(TAG, "Failed to load notifications for badge icons", e);
+            }
+        }
+        if (notifications != null) {
+            for (Map.Entry<PackageUserKey, List<NotificationKeyData>> entry
+                    : update.notificationKeys.entrySet()) {
+                NotificationInfo badgeIcon = getBadgeIcon(entry.getValue(), notifications);
+                if (badgeIcon != null) {
+                    update.badgeIcons.put(entry.getKey(), badgeIcon);
+                }
+            }
+        }
+        mBatchCount++;
+        mUiHandler.obtainMessage(MSG_NOTIFICATIONS_CHANGED, update).sendToTarget();
+    }
+
+    /**
+     * Returns the first notification of {@code keys} whose icon should be shown in the badge.
+     */
+    private NotificationInfo getBadgeIcon(List<NotificationKeyData> keys,
+                                          Map<String, StatusBarNotification> notifications) {
+        for (NotificationKeyData key : keys) {
+            StatusBarNotification sbn = notifications.get(key.notificationKey);
+            if (sbn != null) {
+                NotificationInfo notificationInfo = new NotificationInfo(this, sbn);
+                if (notificationInfo.shouldShowIconInBadge()) {
+                    return notificationInfo;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Thunk
+    void deliverUpdate() {
+        mDeliveryScheduled = false;
+        NotificationsUpdate update = mPendingUpdate;
+        mPendingUpdate = null;
+        // Without a listener the update is dropped, setting one triggers a full refresh anyway
+        if (update != null && sNotificationsChangedListener != null) {
+            mDeliveryCount++;
+            mDeliveredPackageCount += update.notificationKeys.size();
+            sNotificationsChangedListener.onNotificationsChanged(update.notificationKeys,
+                    update.badgeIcons);
+        }
+    }
+
+    public static void dump(String prefix, PrintWriter writer) {
+        NotificationListener instance = sNotificationListenerInstance;
+        if (instance == null) {
+            return;
+        }
+        writer.println(prefix + TAG + ": connected=" + sIsConnected
+                + " events=" + instance.mEventCount
+                + " batches=" + instance.mBatchCount
+                + " deliveries=" + instance.mDeliveryCount
+                + " deliveredPackages=" + instance.mDeliveredPackageCount);
+    }
+
     /** This makes a potentially expensive binder call and should be run on a background thread. */
     public List<StatusBarNotification> getNotificationsForKeys(List<NotificationKeyData> keys) {
         StatusBarNotification[] notifications = NotificationListener.this
@@ -241,11 +449,38 @@ public class NotificationListener extends NotificationListenerService {
         return (isGroupHeader || missingTitleAndText);
     }
 
+    /**
+     * The notifications of the packages which changed since the last update.
+     */
+    private static class NotificationsUpdate {
+        final HashMap<PackageUserKey, List<NotificationKeyData>> notificationKeys =
+                new HashMap<>();
+        final HashMap<PackageUserKey, NotificationInfo> badgeIcons = new HashMap<>();
+
+        /**
+         * Adds the changes of {@code update}, which is newer than this one.
+         */
+        void merge(NotificationsUpdate update) {
+            for (PackageUserKey packageUserKey : update.notificationKeys.keySet()) {
+                badgeIcons.remove(packageUserKey);
+            }
+            notificationKeys.putAll(update.notificationKeys);
+            badgeIcons.putAll(update.badgeIcons);
+        }
+    }
+
     public interface NotificationsChangedListener {
-        void onNotificationPosted(PackageUserKey postedPackageUserKey,
-                                  NotificationKeyData notificationKey, boolean shouldBeFilteredOut);
-        void onNotificationRemoved(PackageUserKey removedPackageUserKey,
-                                   NotificationKeyData notificationKey);
-        void onNotificationFullRefresh(List<StatusBarNotification> activeNotifications);
+        /**
+         * Called on the UI thread, at most once per frame, with all packages whose
+         * notifications changed since the last call.
+         *
+         * @param notificationKeys the notifications to show in the badge of each changed
+         *                         package, in the order they were posted. Empty if the package
+         *                         has none left.
+         * @param badgeIcons the notification whose icon should be shown in the badge, for the
+         *                   changed packages which have one.
+         */
+        void onNotificationsChanged(Map<PackageUserKey, List<NotificationKeyData>> notificationKeys,
+                                    Map<PackageUserKey, NotificationInfo> badgeIcons);
     }
 }
\ No newline at end of file
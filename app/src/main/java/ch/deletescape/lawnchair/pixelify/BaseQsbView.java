@@ -6,7 +6,6 @@ import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.util.AttributeSet;
@@ -16,6 +15,8 @@ import android.view.View.OnClickListener;
 import android.view.animation.AccelerateDecelerateInterpolator;
 import android.widget.FrameLayout;
 
+import java.util.Set;
+
 import ch.deletescape.lawnchair.DeviceProfile;
 import ch.deletescape.lawnchair.Launcher;
 import ch.deletescape.lawnchair.R;
@@ -23,11 +24,10 @@ import ch.deletescape.lawnchair.Utilities;
 import ch.deletescape.lawnchair.compat.LauncherAppsCompat;
 import ch.deletescape.lawnchair.config.FeatureFlags;
 import ch.deletescape.lawnchair.overlay.LawnfeedClient;
-import ch.deletescape.lawnchair.preferences.IPreferenceProvider;
-import ch.deletescape.lawnchair.preferences.PreferenceProvider;
+import ch.deletescape.lawnchair.preferences.PreferenceSnapshot;
 import ch.deletescape.lawnchair.util.PackageManagerHelper;
 
-public abstract class BaseQsbView extends FrameLayout implements OnClickListener, SharedPreferences.OnSharedPreferenceChangeListener {
+public abstract class BaseQsbView extends FrameLayout implements OnClickListener, PreferenceSnapshot.OnChangeListener {
     private static final String TEXT_ASSIST = "com.google.android.googlequicksearchbox.TEXT_ASSIST";
     private static final String VOICE_ASSIST = Intent.ACTION_VOICE_COMMAND;
     protected View mQsbView;
@@ -49,8 +49,9 @@ public abstract class BaseQsbView extends FrameLayout implements OnClickListener
     }
 
     public void applyVoiceSearchPreference() {
-        showMic = Utilities.getPrefs(getContext()).getShowVoiceSearchButton();
-        boolean useWhiteLogo = Utilities.getPrefs(getContext()).getUseWhiteGoogleIcon();
+        PreferenceSnapshot prefs = Utilities.getPrefs(getContext()).getSnapshot();
+        showMic = prefs.getShowVoiceSearchButton();
+        boolean useWhiteLogo = prefs.getUseWhiteGoogleIcon();
         int qsbView = getQsbView(showMic);
         if (qsbView != mQsbViewId || mUseWhiteLogo != useWhiteLogo) {
             mQsbViewId = qsbView;
@@ -85,9 +86,8 @@ public abstract class BaseQsbView extends FrameLayout implements OnClickListener
         if (!Utilities.getPrefs(getContext()).getShowPixelBar()) {
             return;
         }
-        IPreferenceProvider sharedPreferences = PreferenceProvider.INSTANCE.getPreferences(getContext());
         applyVoiceSearchPreference();
-        sharedPreferences.registerOnSharedPreferenceChangeListener(this);
+        Utilities.getPrefs(getContext()).addOnSnapshotChangeListener(this);
         getContext().registerReceiver(packageChangedReceiver, Util.createIntentFilter("android.intent.action.PACKAGE_CHANGED"));
         initializeQsbConnector();
         applyVisibility();
@@ -97,7 +97,7 @@ public abstract class BaseQsbView extends FrameLayout implements OnClickListener
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
         try {
-            Utilities.getPrefs(getContext()).unregisterOnSharedPreferenceChangeListener(this);
+            Utilities.getPrefs(getContext()).removeOnSnapshotChangeListener(this);
             getContext().unregisterReceiver(packageChangedReceiver);
         } catch (IllegalArgumentException ignored) {
             // Not supposed to happen but we'll ignore it
@@ -105,9 +105,9 @@ public abstract class BaseQsbView extends FrameLayout implements OnClickListener
     }
 
     @Override
-    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String str) {
-        if (FeatureFlags.KEY_SHOW_VOICE_SEARCH_BUTTON.equals(str) ||
-                FeatureFlags.KEY_PREF_WHITE_GOOGLE_ICON.equals(str)) {
+    public void onPreferencesChanged(PreferenceSnapshot snapshot, Set<String> changedKeys) {
+        if (changedKeys.contains(FeatureFlags.KEY_SHOW_VOICE_SEARCH_BUTTON) ||
+                changedKeys.contains(FeatureFlags.KEY_PREF_WHITE_GOOGLE_ICON)) {
             applyVoiceSearchPreference();
             applyVisibility();
         }
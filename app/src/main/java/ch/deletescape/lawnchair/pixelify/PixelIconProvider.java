@@ -25,6 +25,7 @@ import org.xmlpull.v1.XmlPullParser;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 
 import ch.deletescape.lawnchair.LauncherModel;
 import ch.deletescape.lawnchair.Utilities;
@@ -118,6 +119,25 @@ public class PixelIconProvider {
         }
     }
 
+    /**
+     * Loads the icon packs which the icons of {@code apps} are taken from, so that rendering
+     * them on multiple threads at once doesn't have to wait for packs being parsed.
+     */
+    public void preloadIconPacks(List<LauncherActivityInfoCompat> apps) {
+        for (LauncherActivityInfoCompat app : apps) {
+            String alternateIcon = mPrefs.alternateIcon(app.getComponentName().flattenToString());
+            if (alternateIcon == null) {
+                continue;
+            }
+            if (alternateIcon.startsWith("iconPacks")) {
+                getIconPack(alternateIcon);
+            } else if (alternateIcon.startsWith("resource")) {
+                String[] parts = alternateIcon.substring(alternateIcon.indexOf('/') + 1).split("/");
+                IconPackProvider.loadAndGetIconPack(mContext, parts[0]);
+            }
+        }
+    }
+
     private IconPack getIconPackForComponent(ComponentName componentName) {
         String alternateIcon = mPrefs.alternateIcon(componentName.flattenToString());
         if (alternateIcon == null) return sIconPack;
@@ -24,14 +24,12 @@ import android.util.Log;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import ch.deletescape.lawnchair.ItemInfo;
 import ch.deletescape.lawnchair.Launcher;
-import ch.deletescape.lawnchair.Utilities;
 import ch.deletescape.lawnchair.badge.BadgeInfo;
 import ch.deletescape.lawnchair.notification.NotificationInfo;
 import ch.deletescape.lawnchair.notification.NotificationKeyData;
@@ -68,151 +66,46 @@ public class PopupDataProvider implements NotificationListener.NotificationsChan
     }
 
     @Override
-    public void onNotificationPosted(PackageUserKey postedPackageUserKey,
-                                     NotificationKeyData notificationKey, boolean shouldBeFilteredOut) {
-        BadgeInfo badgeInfo = mPackageUserToBadgeInfos.get(postedPackageUserKey);
-        boolean badgeShouldBeRefreshed;
-        if (badgeInfo == null) {
-            if (!shouldBeFilteredOut) {
-                BadgeInfo newBadgeInfo = new BadgeInfo(postedPackageUserKey);
-                newBadgeInfo.addOrUpdateNotificationKey(notificationKey);
-                mPackageUserToBadgeInfos.put(postedPackageUserKey, newBadgeInfo);
-                badgeShouldBeRefreshed = true;
-            } else {
-                badgeShouldBeRefreshed = false;
-            }
-        } else {
-            badgeShouldBeRefreshed = shouldBeFilteredOut
-                    ? badgeInfo.removeNotificationKey(notificationKey)
-                    : badgeInfo.addOrUpdateNotificationKey(notificationKey);
-            if (badgeInfo.getNotificationKeys().size() == 0) {
-                mPackageUserToBadgeInfos.remove(postedPackageUserKey);
-            }
-        }
-        updateLauncherIconBadges(Utilities.singletonHashSet(postedPackageUserKey),
-                badgeShouldBeRefreshed);
-    }
-
-    @Override
-    public void onNotificationRemoved(PackageUserKey removedPackageUserKey,
-                                      NotificationKeyData notificationKey) {
-        BadgeInfo oldBadgeInfo = mPackageUserToBadgeInfos.get(removedPackageUserKey);
-        if (oldBadgeInfo != null && oldBadgeInfo.removeNotificationKey(notificationKey)) {
-            if (oldBadgeInfo.getNotificationKeys().size() == 0) {
-                mPackageUserToBadgeInfos.remove(removedPackageUserKey);
-            }
-            updateLauncherIconBadges(Utilities.singletonHashSet(removedPackageUserKey));
-
-            PopupContainerWithArrow openContainer = PopupContainerWithArrow.getOpen(mLauncher);
-            if (openContainer != null) {
-                openContainer.trimNotifications(mPackageUserToBadgeInfos);
-            }
-        }
-    }
-
-    @Override
-    public void onNotificationFullRefresh(List<StatusBarNotification> activeNotifications) {
-        if (activeNotifications == null) return;
-        // This will contain the PackageUserKeys which have updated badges.
-        HashMap<PackageUserKey, BadgeInfo> updatedBadges = new HashMap<>(mPackageUserToBadgeInfos);
-        mPackageUserToBadgeInfos.clear();
-        for (StatusBarNotification notification : activeNotifications) {
-            PackageUserKey packageUserKey = PackageUserKey.fromNotification(notification);
+    public void onNotificationsChanged(Map<PackageUserKey, List<NotificationKeyData>> notificationKeys,
+                                       Map<PackageUserKey, NotificationInfo> badgeIcons) {
+        HashSet<PackageUserKey> updatedBadges = new HashSet<>();
+        for (Map.Entry<PackageUserKey, List<NotificationKeyData>> entry
+                : notificationKeys.entrySet()) {
+            PackageUserKey packageUserKey = entry.getKey();
+            List<NotificationKeyData> keys = entry.getValue();
             BadgeInfo badgeInfo = mPackageUserToBadgeInfos.get(packageUserKey);
+            if (keys.isEmpty()) {
+                if (badgeInfo != null) {
+                    mPackageUserToBadgeInfos.remove(packageUserKey);
+                    updatedBadges.add(packageUserKey);
+                }
+                continue;
+            }
             if (badgeInfo == null) {
                 badgeInfo = new BadgeInfo(packageUserKey);
                 mPackageUserToBadgeInfos.put(packageUserKey, badgeInfo);
             }
-            badgeInfo.addOrUpdateNotificationKey(NotificationKeyData
-                    .fromNotification(notification));
-        }
-
-        // Add and remove from updatedBadges so it contains the PackageUserKeys of updated badges.
-        for (PackageUserKey packageUserKey : mPackageUserToBadgeInfos.keySet()) {
-            BadgeInfo prevBadge = updatedBadges.get(packageUserKey);
-            BadgeInfo newBadge = mPackageUserToBadgeInfos.get(packageUserKey);
-            if (prevBadge == null) {
-                updatedBadges.put(packageUserKey, newBadge);
-            } else {
-                if (!prevBadge.shouldBeInvalidated(newBadge)) {
-                    updatedBadges.remove(packageUserKey);
-                }
+            boolean badgeChanged = badgeInfo.setNotificationKeys(keys);
+            // The notification icon might have changed even if it belongs to the same
+            // notification, so only a badge which neither had nor has one is unchanged.
+            boolean hadNotificationToShow = badgeInfo.hasNotificationToShow();
+            badgeInfo.setNotificationToShow(badgeIcons.get(packageUserKey));
+            if (badgeChanged || hadNotificationToShow || badgeInfo.hasNotificationToShow()) {
+                updatedBadges.add(packageUserKey);
             }
         }
+        if (LOGD) Log.d(TAG, "onNotificationsChanged: " + notificationKeys.size()
+                + " packages changed, " + updatedBadges.size() + " badges updated");
 
-        if (!updatedBadges.isEmpty()) {
-            updateLauncherIconBadges(updatedBadges.keySet());
+        if (updatedBadges.isEmpty()) {
+            return;
         }
+        mLauncher.updateIconBadges(updatedBadges);
 
         PopupContainerWithArrow openContainer = PopupContainerWithArrow.getOpen(mLauncher);
         if (openContainer != null) {
-            openContainer.trimNotifications(updatedBadges);
-        }
-    }
-
-    private void updateLauncherIconBadges(Set<PackageUserKey> updatedBadges) {
-        updateLauncherIconBadges(updatedBadges, true);
-    }
-
-    /**
-     * Updates the icons on launcher (workspace, folders, all apps) to refresh their badges.
-     * @param updatedBadges The packages whose badges should be refreshed (either a notification was
-     *                      added or removed, or the badge should show the notification icon).
-     * @param shouldRefresh An optional parameter that will allow us to only refresh badges that
-     *                      have actually changed. If a notification updated its content but not
-     *                      its count or icon, then the badge doesn't change.
-     */
-    private void updateLauncherIconBadges(Set<PackageUserKey> updatedBadges,
-                                          boolean shouldRefresh) {
-        Iterator<PackageUserKey> iterator = updatedBadges.iterator();
-        while (iterator.hasNext()) {
-            BadgeInfo badgeInfo = mPackageUserToBadgeInfos.get(iterator.next());
-            if (badgeInfo != null && !updateBadgeIcon(badgeInfo) && !shouldRefresh) {
-                // The notification icon isn't used, and the badge hasn't changed
-                // so there is no update to be made.
-                iterator.remove();
-            }
-        }
-        if (!updatedBadges.isEmpty()) {
-            mLauncher.updateIconBadges(updatedBadges);
-        }
-    }
-
-    /**
-     * Determines whether the badge should show a notification icon rather than a number,
-     * and sets that icon on the BadgeInfo if so.
-     * @param badgeInfo The badge to update with an icon (null if it shouldn't show one).
-     * @return Whether the badge icon potentially changed (true unless it stayed null).
-     */
-    private boolean updateBadgeIcon(BadgeInfo badgeInfo) {
-        try {
-            boolean hadNotificationToShow = badgeInfo.hasNotificationToShow();
-            NotificationInfo notificationInfo = null;
-            NotificationListener notificationListener = NotificationListener.getInstanceIfConnected();
-            if (notificationListener != null && badgeInfo.getNotificationKeys().size() >= 1) {
-                // Look for the most recent notification that has an icon that should be shown in badge.
-                for (NotificationKeyData notificationKeyData : badgeInfo.getNotificationKeys()) {
-                    String notificationKey = notificationKeyData.notificationKey;
-                    StatusBarNotification[] activeNotifications = notificationListener
-                            .getActiveNotifications(new String[]{notificationKey});
-                    if (activeNotifications.length == 1) {
-                        notificationInfo = new NotificationInfo(mLauncher, activeNotifications[0]);
-                        if (notificationInfo.shouldShowIconInBadge()) {
-                            // Found an appropriate icon.
-                            break;
-                        } else {
-                            // Keep looking.
-                            notificationInfo = null;
-                        }
-                    }
-                }
-            }
-            badgeInfo.setNotificationToShow(notificationInfo);
-            return hadNotificationToShow || badgeInfo.hasNotificationToShow();
-        } catch(SecurityException e) {
-            Log.e(getClass().getSimpleName(), "F*** Huawei ffs", e);
+            openContainer.trimNotifications(mPackageUserToBadgeInfos);
         }
-        return true;
     }
 
     public void setDeepShortcutMap(MultiHashMap<ComponentKey, String> deepShortcutMapCopy) {
@@ -71,6 +71,7 @@ interface IPreferenceProvider {
     val hotseatShowPageIndicator: Boolean
     val enableHapticFeedback: Boolean
     val keepScrollState: Boolean
+    val rankedSearch: Boolean
     val useFullWidthSearchBar: Boolean
     val showVoiceSearchButton: Boolean
     val showPixelBar: Boolean
@@ -105,6 +106,7 @@ interface IPreferenceProvider {
 
     val blurRadius: Float
     val blurMode : Int
+    val blurEngine: String
     val workSpaceLabelColor: Int
     val allAppsLabelColor: Int
     fun alternateIcon(key: String): String?
@@ -168,6 +170,11 @@ interface IPreferenceProvider {
     fun registerOnSharedPreferenceChangeListener(listener: SharedPreferences.OnSharedPreferenceChangeListener)
     fun unregisterOnSharedPreferenceChangeListener(listener: SharedPreferences.OnSharedPreferenceChangeListener)
 
+    // current values of the settings read on hot paths, replaced as a whole when one changes
+    val snapshot: PreferenceSnapshot
+    fun addOnSnapshotChangeListener(listener: PreferenceSnapshot.OnChangeListener)
+    fun removeOnSnapshotChangeListener(listener: PreferenceSnapshot.OnChangeListener)
+
     fun showSettings(launcher: Launcher, view: View)
 
     fun beginBlockingEdit()
@@ -58,6 +58,7 @@ object PreferenceFlags {
     const val KEY_PREF_HOTSEAT_SHOW_PAGE_INDICATOR = "pref_hotseatShowPageIndicator"
     const val KEY_PREF_HAPTIC_FEEDBACK = "pref_enableHapticFeedback"
     const val KEY_PREF_KEEP_SCROLL_STATE = "pref_keepScrollState"
+    const val KEY_PREF_RANKED_SEARCH = "pref_rankedSearch"
     const val KEY_FULL_WIDTH_SEARCHBAR = "pref_fullWidthSearchbar"
     const val KEY_SHOW_PIXEL_BAR = "pref_showPixelBar"
     const val KEY_SHOW_VOICE_SEARCH_BUTTON = "pref_showMic"
@@ -81,6 +82,7 @@ object PreferenceFlags {
     const val KEY_PREF_ENABLE_BLUR = "pref_enableBlur"
     const val KEY_PREF_BLUR_MODE = "pref_blurMode"
     const val KEY_PREF_BLUR_RADIUS = "pref_blurRadius"
+    const val KEY_PREF_BLUR_ENGINE = "pref_blurEngine"
     const val KEY_PREF_WHITE_GOOGLE_ICON = "pref_enableWhiteGoogleIcon"
     const val KEY_PREF_ROUND_SEARCH_BAR = "pref_useRoundSearchBar"
     const val KEY_PREF_ENABLE_BACKPORT_SHORTCUTS = "pref_enableBackportShortcuts"
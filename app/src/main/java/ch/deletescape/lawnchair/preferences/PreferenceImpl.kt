@@ -85,6 +85,44 @@ open class PreferenceImpl(context: Context) : IPreferenceProvider {
         sharedPrefs.unregisterOnSharedPreferenceChangeListener(listener)
     }
 
+    @Volatile private var mSnapshot: PreferenceSnapshot? = null
+    private val mSnapshotListeners = ArrayList<PreferenceSnapshot.OnChangeListener>()
+    // Held here, as SharedPreferences only keeps weak references to its listeners
+    private val mSnapshotUpdater = SharedPreferences.OnSharedPreferenceChangeListener { _, key ->
+        val old = mSnapshot
+        if (old != null && key in PreferenceSnapshot.KEYS) {
+            val snapshot = PreferenceSnapshot(this)
+            val changedKeys = snapshot.diff(old)
+            if (!changedKeys.isEmpty()) {
+                mSnapshot = snapshot
+                for (listener in ArrayList(mSnapshotListeners)) {
+                    listener.onPreferencesChanged(snapshot, changedKeys)
+                }
+            }
+        }
+    }
+
+    override val snapshot: PreferenceSnapshot
+        get() {
+            return mSnapshot ?: synchronized(this) {
+                mSnapshot ?: run {
+                    // Register first, so that no change can get lost in between
+                    sharedPrefs.registerOnSharedPreferenceChangeListener(mSnapshotUpdater)
+                    PreferenceSnapshot(this).also { mSnapshot = it }
+                }
+            }
+        }
+
+    override fun addOnSnapshotChangeListener(listener: PreferenceSnapshot.OnChangeListener) {
+        // Make sure that changes are tracked from now on
+        snapshot
+        mSnapshotListeners.add(listener)
+    }
+
+    override fun removeOnSnapshotChangeListener(listener: PreferenceSnapshot.OnChangeListener) {
+        mSnapshotListeners.remove(listener)
+    }
+
     override var restoreTaskPending by MutableBooleanPref(PreferenceFlags.RESTORE_TASK_PENDING, false)
     override var appsPendingInstalls by MutableStringSetPref(PreferenceFlags.APPS_PENDING_INSTALL, null)
 
@@ -178,6 +216,7 @@ open class PreferenceImpl(context: Context) : IPreferenceProvider {
 
     override val blurMode by IntPref(PreferenceFlags.KEY_BLUR_MODE, (1 shl 30) - 1)
     override val blurRadius by FloatPref(PreferenceFlags.KEY_BLUR_RADIUS, 75f)
+    override val blurEngine by StringPref(FeatureFlags.KEY_PREF_BLUR_ENGINE, "0")
 
     override var appsViewShown by MutableBooleanPref(PreferenceFlags.APPS_VIEW_SHOWN, false)
 
@@ -217,6 +256,7 @@ open class PreferenceImpl(context: Context) : IPreferenceProvider {
 
     override val enableHapticFeedback by BooleanPref(FeatureFlags.KEY_PREF_HAPTIC_FEEDBACK, false)
     override val keepScrollState by BooleanPref(FeatureFlags.KEY_PREF_KEEP_SCROLL_STATE, false)
+    override val rankedSearch by BooleanPref(FeatureFlags.KEY_PREF_RANKED_SEARCH, true)
     override val useFullWidthSearchBar by BooleanPref(FeatureFlags.KEY_FULL_WIDTH_SEARCHBAR, false)
     override val showVoiceSearchButton by BooleanPref(FeatureFlags.KEY_SHOW_VOICE_SEARCH_BUTTON, false)
     override val showPixelBar by BooleanPref(FeatureFlags.KEY_SHOW_PIXEL_BAR, true)
@@ -8,12 +8,14 @@ object PreferenceProvider {
     private var preferenceIMPL: IPreferenceProvider? = null
 
     fun init(flags: IPreferenceProvider) {
-        preferenceIMPL = flags
+        // Keep an instance created before, listeners might be registered with it already
+        if (preferenceIMPL == null)
+            preferenceIMPL = flags
     }
 
     fun getPreferences(context: Context): IPreferenceProvider {
-        if (preferenceIMPL == null)
-            return PreferenceImpl(context)
-        return preferenceIMPL as IPreferenceProvider
+        // Content providers are created before the application, keep the instance created for
+        // them instead of building a new one on every call until init.
+        return preferenceIMPL ?: PreferenceImpl(context).also { preferenceIMPL = it }
     }
 }
\ No newline at end of file
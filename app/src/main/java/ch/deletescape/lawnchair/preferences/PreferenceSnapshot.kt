@@ -0,0 +1,88 @@
+package ch.deletescape.lawnchair.preferences
+
+import ch.deletescape.lawnchair.config.FeatureFlags
+
+/**
+ * Immutable copy of the settings which are read on hot paths, like inflating icons or laying
+ * out the device profile, so that they are plain field reads instead of SharedPreferences
+ * lookups. The current snapshot is published by [IPreferenceProvider.snapshot] and replaced as
+ * a whole when one of its settings changes, so it is safe to read from any thread.
+ */
+class PreferenceSnapshot(prefs: IPreferenceProvider) {
+
+    // Icons
+    val hideAppLabels = prefs.hideAppLabels
+    val hideAllAppsAppLabels = prefs.hideAllAppsAppLabels
+    val workSpaceLabelColor = prefs.workSpaceLabelColor
+    val iconLabelsInTwoLines = prefs.iconLabelsInTwoLines
+    val allAppsIconPaddingScale = prefs.allAppsIconPaddingScale
+
+    // Hotseat and workspace
+    val hotseatShowArrow = prefs.hotseatShowArrow
+    val hotseatHeightScale = prefs.hotseatHeightScale
+    val transparentHotseat = prefs.transparentHotseat
+    val hideHotseat = prefs.hideHotseat
+    val allowFullWidthWidgets = prefs.allowFullWidthWidgets
+
+    // Wallpaper and blur
+    val centerWallpaper = prefs.centerWallpaper
+    val enableBlur = prefs.enableBlur
+    val blurRadius = prefs.blurRadius
+    val blurMode = prefs.blurMode
+
+    // Search bar
+    val showVoiceSearchButton = prefs.showVoiceSearchButton
+    val useWhiteGoogleIcon = prefs.useWhiteGoogleIcon
+
+    /**
+     * Returns the keys of the settings which differ between this snapshot and [other].
+     */
+    fun diff(other: PreferenceSnapshot): Set<String> {
+        val changed = HashSet<String>()
+        for (field in FIELDS) {
+            if (field.get(this) != field.get(other)) {
+                changed.add(field.key)
+            }
+        }
+        return changed
+    }
+
+    /**
+     * Called on the UI thread after a new snapshot was published.
+     */
+    interface OnChangeListener {
+        /**
+         * @param changedKeys the preference keys of the settings which changed, never empty.
+         */
+        fun onPreferencesChanged(snapshot: PreferenceSnapshot, changedKeys: Set<String>)
+    }
+
+    private class Field(val key: String, val get: (PreferenceSnapshot) -> Any)
+
+    companion object {
+
+        private val FIELDS = arrayOf(
+                Field(FeatureFlags.KEY_PREF_HIDE_APP_LABELS) { it.hideAppLabels },
+                Field(PreferenceFlags.KEY_PREF_HIDE_ALL_APPS_APP_LABELS) { it.hideAllAppsAppLabels },
+                Field(PreferenceFlags.KEY_PREF_WS_LABEL_COLOR) { it.workSpaceLabelColor },
+                Field(PreferenceFlags.KEY_ICON_LABELS_IN_TWO_LINES) { it.iconLabelsInTwoLines },
+                Field(PreferenceFlags.KEY_PREF_ALL_APPS_ICON_PADDING_SCALE) { it.allAppsIconPaddingScale },
+                Field(PreferenceFlags.KEY_PREF_HOTSEAT_SHOW_ARROW) { it.hotseatShowArrow },
+                Field(PreferenceFlags.KEY_PREF_HOTSEAT_HEIGHT_SCALE) { it.hotseatHeightScale },
+                Field(FeatureFlags.KEY_PREF_TRANSPARENT_HOTSEAT) { it.transparentHotseat },
+                Field(FeatureFlags.KEY_PREF_HIDE_HOTSEAT) { it.hideHotseat },
+                Field(FeatureFlags.KEY_PREF_FULL_WIDTH_WIDGETS) { it.allowFullWidthWidgets },
+                Field(PreferenceFlags.KEY_CENTER_WALLPAPER) { it.centerWallpaper },
+                Field(FeatureFlags.KEY_PREF_ENABLE_BLUR) { it.enableBlur },
+                Field(PreferenceFlags.KEY_BLUR_RADIUS) { it.blurRadius },
+                Field(PreferenceFlags.KEY_BLUR_MODE) { it.blurMode },
+                Field(FeatureFlags.KEY_SHOW_VOICE_SEARCH_BUTTON) { it.showVoiceSearchButton },
+                Field(FeatureFlags.KEY_PREF_WHITE_GOOGLE_ICON) { it.useWhiteGoogleIcon })
+
+        /**
+         * Keys of all settings in the snapshot, changes to other keys never replace it.
+         */
+        @JvmField
+        val KEYS: Set<String> = FIELDS.mapTo(HashSet()) { it.key }
+    }
+}
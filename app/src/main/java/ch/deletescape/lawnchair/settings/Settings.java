@@ -83,6 +83,7 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
                     );
                     break;
                 case PreferenceFlags.KEY_PREF_KEEP_SCROLL_STATE:
+                case PreferenceFlags.KEY_PREF_RANKED_SEARCH:
                 case PreferenceFlags.KEY_SHOW_VOICE_SEARCH_BUTTON:
                 case PreferenceFlags.KEY_PREF_WHITE_GOOGLE_ICON:
                     // Ignoring those as we do not need to apply anything special
@@ -90,6 +91,7 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
                 case PreferenceFlags.KEY_PREF_ENABLE_BLUR:
                 case PreferenceFlags.KEY_PREF_BLUR_MODE:
                 case PreferenceFlags.KEY_PREF_BLUR_RADIUS:
+                case PreferenceFlags.KEY_PREF_BLUR_ENGINE:
                     mLauncher.scheduleUpdateWallpaper();
                     break;
                 case PreferenceFlags.KEY_FULL_WIDTH_SEARCHBAR:
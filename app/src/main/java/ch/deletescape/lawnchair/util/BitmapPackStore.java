@@ -0,0 +1,452 @@
+package ch.deletescape.lawnchair.util;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ch.deletescape.lawnchair.LauncherModel;
+
+/**
+ * Stores bitmaps as raw pixels in a single append-only pack file, as an alternative to PNG blobs
+ * in a {@link SQLiteCacheHelper} table. Reading a bitmap is a copy out of the memory-mapped file
+ * instead of a PNG decode.
+ * <p>
+ * Each record holds a key and either the pixels of a bitmap or a tombstone for a removed key. The
+ * index from key to record is rebuilt by scanning the record headers when the store is first
+ * used, and a torn record at the end of the file, e.g. after a crash, is cut off. Replaced and
+ * removed records are dropped by rewriting the file on the worker thread once they make up half
+ * of it. Any IO error is logged and otherwise treated like a missing entry.
+ */
+public class BitmapPackStore {
+    private static final String TAG = "BitmapPackStore";
+
+    private static final int FILE_MAGIC = 0x4c42504b;
+    private static final int FILE_VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int RECORD_MAGIC = 0x42524543;
+
+    private static final byte TYPE_BITMAP = 0;
+    private static final byte TYPE_REMOVED = 1;
+
+    private static final byte CONFIG_ARGB_8888 = 0;
+    private static final byte CONFIG_RGB_565 = 1;
+
+    // magic, type and key length
+    private static final int RECORD_HEADER_SIZE = 4 + 1 + 2;
+    // width, height, config and pixel byte count
+    private static final int BITMAP_HEADER_SIZE = 4 + 4 + 1 + 4;
+
+    private static final long MIN_COMPACT_BYTES = 1024 * 1024;
+    private static final long COMPACT_DELAY_MS = 5000;
+    // Mappings beyond this are replaced by a single one of the whole file
+    private static final int MAX_MAPPINGS = 16;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static class Record {
+        // Position and total size of the record in the file
+        final long start;
+        final int size;
+        // Position of the pixels in the file
+        final long pixelsOffset;
+        final int pixelsLength;
+        final int width;
+        final int height;
+        final Bitmap.Config config;
+
+        Record(long start, int size, long pixelsOffset, int pixelsLength, int width, int height,
+               Bitmap.Config config) {
+            this.start = start;
+            this.size = size;
+            this.pixelsOffset = pixelsOffset;
+            this.pixelsLength = pixelsLength;
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+
+        Record moveTo(long newStart) {
+            return new Record(newStart, size, newStart + pixelsOffset - start, pixelsLength,
+                    width, height, config);
+        }
+    }
+
+    private final File mFile;
+    private final Handler mWorkerHandler;
+    private final HashMap<String, Record> mIndex = new HashMap<>();
+
+    private RandomAccessFile mRaf;
+    private FileChannel mChannel;
+    // Read-only mappings of the file by their start. When a record beyond them is read, only the
+    // part appended since is mapped, so reads don't remap the whole file after each append.
+    private final TreeMap<Long, MappedByteBuffer> mMappings = new TreeMap<>();
+    // End of the mapped part of the file, always at a record boundary
+    private long mMappedLength;
+    // End of the last valid record
+    private long mLength;
+    // Bytes used by replaced records and tombstones
+    private long mDeadBytes;
+    private ByteBuffer mWriteBuffer;
+    private boolean mCompactScheduled;
+
+    private final Runnable mCompactRunnable = new Runnable() {
+        @Override
+        public void run() {
+            compact();
+        }
+    };
+
+    public BitmapPackStore(File file) {
+        mFile = file;
+        mWorkerHandler = new Handler(LauncherModel.getWorkerLooper());
+    }
+
+    /**
+     * Returns a new bitmap with the pixels stored for {@param key}, or null if there are none.
+     */
+    public synchronized Bitmap get(String key) {
+        if (!openLocked()) {
+            return null;
+        }
+        Record record = mIndex.get(key);
+        if (record == null) {
+            return null;
+        }
+        try {
+            if (record.pixelsOffset + record.pixelsLength > mMappedLength) {
+                mapAppended();
+            }
+            // Records are never split between mappings
+            Map.Entry<Long, MappedByteBuffer> mapping = mMappings.floorEntry(record.pixelsOffset);
+            ByteBuffer pixels = mapping.getValue().duplicate();
+            int offset = (int) (record.pixelsOffset - mapping.getKey());
+            pixels.position(offset);
+            pixels.limit(offset + record.pixelsLength);
+            Bitmap bitmap = Bitmap.createBitmap(record.width, record.height, record.config);
+            bitmap.copyPixelsFromBuffer(pixels);
+            return bitmap;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to read " + key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the pixels of {@param bitmap} for {@param key}, replacing any previous bitmap.
+     */
+    public synchronized void put(String key, Bitmap bitmap) {
+        byte config;
+        if (bitmap.getConfig() == Bitmap.Config.RGB_565) {
+            config = CONFIG_RGB_565;
+        } else if (bitmap.getConfig() == Bitmap.Config.ARGB_8888) {
+            config = CONFIG_ARGB_8888;
+        } else {
+            bitmap = bitmap.copy(Bitmap.Config.ARGB_8888, false);
+            if (bitmap == null) {
+                return;
+            }
+            config = CONFIG_ARGB_8888;
+        }
+        byte[] keyBytes = key.getBytes(UTF_8);
+        if (keyBytes.length > 0xffff || !openLocked()) {
+            return;
+        }
+
+        int pixelsLength = bitmap.getByteCount();
+        int headerSize = RECORD_HEADER_SIZE + keyBytes.length + BITMAP_HEADER_SIZE;
+        ByteBuffer buffer = getWriteBuffer(headerSize + pixelsLength);
+        buffer.putInt(RECORD_MAGIC).put(TYPE_BITMAP).putShort((short) keyBytes.length)
+                .put(keyBytes).putInt(bitmap.getWidth()).putInt(bitmap.getHeight()).put(config)
+                .putInt(pixelsLength);
+        bitmap.copyPixelsToBuffer(buffer);
+        buffer.flip();
+
+        long start = mLength;
+        if (append(buffer)) {
+            Record record = new Record(start, buffer.limit(), start + headerSize, pixelsLength,
+                    bitmap.getWidth(), bitmap.getHeight(), getConfig(config));
+            onRecordDropped(mIndex.put(key, record), 0);
+        }
+    }
+
+    public synchronized void remove(String key) {
+        if (openLocked() && mIndex.containsKey(key)) {
+            removeLocked(key);
+        }
+    }
+
+    /**
+     * Removes all bitmaps whose key starts with {@param keyPrefix}.
+     */
+    public synchronized void removeAll(String keyPrefix) {
+        if (!openLocked()) {
+            return;
+        }
+        ArrayList<String> keys = new ArrayList<>();
+        for (String key : mIndex.keySet()) {
+            if (key.startsWith(keyPrefix)) {
+                keys.add(key);
+            }
+        }
+        for (String key : keys) {
+            removeLocked(key);
+        }
+    }
+
+    private void mapAppended() throws IOException {
+        if (mMappings.size() >= MAX_MAPPINGS) {
+            mMappings.clear();
+            mMappedLength = 0;
+        }
+        mMappings.put(mMappedLength, mChannel.map(FileChannel.MapMode.READ_ONLY, mMappedLength,
+                mLength - mMappedLength));
+        mMappedLength = mLength;
+    }
+
+    public synchronized void clear() {
+        closeLocked();
+        mFile.delete();
+    }
+
+    private void removeLocked(String key) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        ByteBuffer buffer = getWriteBuffer(RECORD_HEADER_SIZE + keyBytes.length);
+        buffer.putInt(RECORD_MAGIC).put(TYPE_REMOVED).putShort((short) keyBytes.length)
+                .put(keyBytes);
+        buffer.flip();
+        if (append(buffer)) {
+            onRecordDropped(mIndex.remove(key), buffer.limit());
+        }
+    }
+
+    private void onRecordDropped(Record record, int extraDeadBytes) {
+        mDeadBytes += extraDeadBytes + (record != null ? record.size : 0);
+        if (!mCompactScheduled && mDeadBytes >= MIN_COMPACT_BYTES && mDeadBytes * 2 >= mLength) {
+            mCompactScheduled = true;
+            mWorkerHandler.postDelayed(mCompactRunnable, COMPACT_DELAY_MS);
+        }
+    }
+
+    private ByteBuffer getWriteBuffer(int size) {
+        if (mWriteBuffer == null || mWriteBuffer.capacity() < size) {
+            mWriteBuffer = ByteBuffer.allocate(size);
+        }
+        mWriteBuffer.clear();
+        mWriteBuffer.limit(size);
+        return mWriteBuffer;
+    }
+
+    private boolean append(ByteBuffer buffer) {
+        try {
+            long position = mLength;
+            while (buffer.hasRemaining()) {
+                position += mChannel.write(buffer, position);
+            }
+            mLength = position;
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write to " + mFile, e);
+            // Drop whatever part of the record was written
+            try {
+                mChannel.truncate(mLength);
+            } catch (IOException ignored) {
+            }
+            return false;
+        }
+    }
+
+    private boolean openLocked() {
+        if (mChannel != null) {
+            return true;
+        }
+        try {
+            mFile.getParentFile().mkdirs();
+            mRaf = new RandomAccessFile(mFile, "rw");
+            mChannel = mRaf.getChannel();
+            if (!readIndex()) {
+                mIndex.clear();
+                mChannel.truncate(0);
+                ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+                header.putInt(FILE_MAGIC).putInt(FILE_VERSION).flip();
+                mLength = 0;
+                mDeadBytes = 0;
+                if (!append(header)) {
+                    closeLocked();
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to open " + mFile, e);
+            closeLocked();
+            return false;
+        }
+    }
+
+    /**
+     * Rebuilds the index from the record headers.
+     *
+     * @return false if the file is not a valid pack file.
+     */
+    private boolean readIndex() throws IOException {
+        long size = mChannel.size();
+        if (size < FILE_HEADER_SIZE) {
+            return false;
+        }
+        MappedByteBuffer map = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if (map.getInt() != FILE_MAGIC || map.getInt() != FILE_VERSION) {
+            return false;
+        }
+        mIndex.clear();
+        mDeadBytes = 0;
+        long position = FILE_HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= size) {
+            map.position((int) position);
+            if (map.getInt() != RECORD_MAGIC) {
+                break;
+            }
+            byte type = map.get();
+            int keyLength = map.getShort() & 0xffff;
+            long pixelsOffset = position + RECORD_HEADER_SIZE + keyLength + BITMAP_HEADER_SIZE;
+            if (position + RECORD_HEADER_SIZE + keyLength > size
+                    || (type == TYPE_BITMAP && pixelsOffset > size)) {
+                break;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            map.get(keyBytes);
+            String key = new String(keyBytes, UTF_8);
+            if (type == TYPE_BITMAP) {
+                int width = map.getInt();
+                int height = map.getInt();
+                Bitmap.Config config = getConfig(map.get());
+                int pixelsLength = map.getInt();
+                long end = pixelsOffset + pixelsLength;
+                if (config == null || pixelsLength < 0 || end > size) {
+                    break;
+                }
+                Record record = new Record(position, (int) (end - position), pixelsOffset,
+                        pixelsLength, width, height, config);
+                Record previous = mIndex.put(key, record);
+                mDeadBytes += previous != null ? previous.size : 0;
+                position = end;
+            } else if (type == TYPE_REMOVED) {
+                int recordSize = RECORD_HEADER_SIZE + keyLength;
+                Record previous = mIndex.remove(key);
+                mDeadBytes += recordSize + (previous != null ? previous.size : 0);
+                position += recordSize;
+            } else {
+                break;
+            }
+        }
+        if (position < size) {
+            Log.w(TAG, "Dropping " + (size - position) + " bytes of incomplete records");
+            mChannel.truncate(position);
+        }
+        mLength = position;
+        // Reuse the mapping for reads, it covers at least all records
+        mMappings.clear();
+        mMappings.put(0L, map);
+        mMappedLength = position;
+        return true;
+    }
+
+    /**
+     * Rewrites the file with only the current records.
+     */
+    @Thunk
+    synchronized void compact() {
+        mCompactScheduled = false;
+        if (!openLocked() || mDeadBytes < MIN_COMPACT_BYTES) {
+            return;
+        }
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(tmpFile, "rw");
+            out.setLength(0);
+            FileChannel dst = out.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            header.putInt(FILE_MAGIC).putInt(FILE_VERSION).flip();
+            long position = 0;
+            while (header.hasRemaining()) {
+                position += dst.write(header, position);
+            }
+
+            HashMap<String, Record> index = new HashMap<>(mIndex.size() * 2);
+            for (Map.Entry<String, Record> entry : mIndex.entrySet()) {
+                Record record = entry.getValue();
+                long copied = 0;
+                dst.position(position);
+                while (copied < record.size) {
+                    copied += mChannel.transferTo(record.start + copied, record.size - copied, dst);
+                }
+                index.put(entry.getKey(), record.moveTo(position));
+                position += record.size;
+            }
+            dst.force(false);
+            out.close();
+            out = null;
+
+            if (!tmpFile.renameTo(mFile)) {
+                throw new IOException("Failed to replace " + mFile);
+            }
+            long before = mLength;
+            closeLocked();
+            mRaf = new RandomAccessFile(mFile, "rw");
+            mChannel = mRaf.getChannel();
+            mIndex.putAll(index);
+            mLength = position;
+            Log.d(TAG, "Compacted " + mFile.getName() + " from " + before + " to " + position
+                    + " bytes");
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to compact " + mFile, e);
+            tmpFile.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void closeLocked() {
+        if (mRaf != null) {
+            try {
+                mRaf.close();
+            } catch (IOException ignored) {
+            }
+        }
+        mRaf = null;
+        mChannel = null;
+        mMappings.clear();
+        mMappedLength = 0;
+        mIndex.clear();
+        mLength = 0;
+        mDeadBytes = 0;
+    }
+
+    private static Bitmap.Config getConfig(byte config) {
+        switch (config) {
+            case CONFIG_ARGB_8888:
+                return Bitmap.Config.ARGB_8888;
+            case CONFIG_RGB_565:
+                return Bitmap.Config.RGB_565;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package ch.deletescape.lawnchair.util;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Pool of mutable bitmaps which are no longer used, so that new ones can be made by reconfiguring
+ * them instead of allocating.
+ * <p>
+ * Bitmaps are grouped in size classes by the power of two above their allocation size. A request
+ * is served from its own size class, or from the next larger one which wastes at most three
+ * quarters of the reused allocation. The pool holds a limited number of bytes and drops the
+ * least recently released bitmaps beyond that.
+ * <p>
+ * Only bitmaps which are certainly not referenced anymore may be released to the pool, as the
+ * next {@link #get} will overwrite them.
+ */
+public class BitmapPool {
+
+    private static final long MAX_POOL_BYTES = 8 * 1024 * 1024;
+
+    private static final BitmapPool sInstance = new BitmapPool(
+            (int) Math.min(Runtime.getRuntime().maxMemory() / 32, MAX_POOL_BYTES));
+
+    private final SparseArray<ArrayList<Bitmap>> mSizeClasses = new SparseArray<>();
+    // All pooled bitmaps, least recently released first
+    private final LinkedHashSet<Bitmap> mBitmaps = new LinkedHashSet<>();
+    private final int mMaxSize;
+    private int mSize;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mReleaseCount;
+    private int mRejectCount;
+    private int mEvictionCount;
+
+    public static BitmapPool getInstance() {
+        return sInstance;
+    }
+
+    private BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns a transparent mutable bitmap of the given size and config, reusing a pooled one if
+     * possible.
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = obtain(width, height, config);
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    private synchronized Bitmap obtain(int width, int height, Bitmap.Config config) {
+        int byteCount = width * height * getBytesPerPixel(config);
+        if (byteCount <= 0) {
+            mMissCount++;
+            return null;
+        }
+        int sizeClass = getSizeClass(byteCount);
+        for (int c = sizeClass; c <= sizeClass + 1; c++) {
+            ArrayList<Bitmap> bitmaps = mSizeClasses.get(c);
+            if (bitmaps == null) {
+                continue;
+            }
+            for (int i = bitmaps.size() - 1; i >= 0; i--) {
+                Bitmap bitmap = bitmaps.get(i);
+                if (bitmap.getAllocationByteCount() >= byteCount) {
+                    bitmaps.remove(i);
+                    mBitmaps.remove(bitmap);
+                    mSize -= bitmap.getAllocationByteCount();
+                    bitmap.reconfigure(width, height, config);
+                    mHitCount++;
+                    return bitmap;
+                }
+            }
+        }
+        mMissCount++;
+        return null;
+    }
+
+    /**
+     * Hands {@code bitmap} to the pool, after which the caller must not use it anymore.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || mBitmaps.contains(bitmap)) {
+            return;
+        }
+        int byteCount = bitmap.getAllocationByteCount();
+        if (byteCount > mMaxSize / 4) {
+            // A single bitmap should not take over the pool
+            mRejectCount++;
+            return;
+        }
+        int sizeClass = getSizeClass(byteCount);
+        ArrayList<Bitmap> bitmaps = mSizeClasses.get(sizeClass);
+        if (bitmaps == null) {
+            bitmaps = new ArrayList<>();
+            mSizeClasses.put(sizeClass, bitmaps);
+        }
+        bitmaps.add(bitmap);
+        mBitmaps.add(bitmap);
+        mSize += byteCount;
+        mReleaseCount++;
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Frees pooled bitmaps in response to {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            trimToSize(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(mMaxSize / 2);
+        }
+    }
+
+    private void trimToSize(int maxSize) {
+        Iterator<Bitmap> it = mBitmaps.iterator();
+        while (mSize > maxSize && it.hasNext()) {
+            Bitmap bitmap = it.next();
+            it.remove();
+            int byteCount = bitmap.getAllocationByteCount();
+            mSizeClasses.get(getSizeClass(byteCount)).remove(bitmap);
+            mSize -= byteCount;
+            mEvictionCount++;
+            bitmap.recycle();
+        }
+    }
+
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        int requests = mHitCount + mMissCount;
+        writer.println(prefix + "BitmapPool: size=" + mSize + "/" + mMaxSize
+                + " bitmaps=" + mBitmaps.size());
+        writer.println(prefix + "  hits=" + mHitCount
+                + " misses=" + mMissCount
+                + " hitRate=" + (requests == 0 ? 0 : 100 * mHitCount / requests) + "%"
+                + " released=" + mReleaseCount
+                + " rejected=" + mRejectCount
+                + " evictions=" + mEvictionCount);
+    }
+
+    private static int getSizeClass(int byteCount) {
+        return 32 - Integer.numberOfLeadingZeros(byteCount - 1);
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
@@ -41,8 +41,15 @@ public class IconNormalizer {
 
     private static final int MIN_VISIBLE_ALPHA = 40;
 
-    private static final Object LOCK = new Object();
-    private static IconNormalizer sIconNormalizer;
+    // Each thread gets its own normalizer so that icons can be rendered in parallel without
+    // contending on the scratch bitmap.
+    private static final ThreadLocal<IconNormalizer> sIconNormalizer =
+            new ThreadLocal<IconNormalizer>() {
+                @Override
+                protected IconNormalizer initialValue() {
+                    return new IconNormalizer();
+                }
+            };
 
     private final int mMaxSize;
     private final Bitmap mBitmap;
@@ -78,7 +85,7 @@ public class IconNormalizer {
      *
      * @param outBounds optional rect to receive the fraction distance from each edge.
      */
-    public synchronized float getScale(Drawable d, RectF outBounds) {
+    public float getScale(Drawable d, RectF outBounds) {
         int width = d.getIntrinsicWidth();
         int height = d.getIntrinsicHeight();
         if (width <= 0 || height <= 0) {
@@ -239,12 +246,10 @@ public class IconNormalizer {
         }
     }
 
+    /**
+     * Returns the normalizer owned by the calling thread.
+     */
     public static IconNormalizer getInstance() {
-        synchronized (LOCK) {
-            if (sIconNormalizer == null) {
-                sIconNormalizer = new IconNormalizer();
-            }
-        }
-        return sIconNormalizer;
+        return sIconNormalizer.get();
     }
 }
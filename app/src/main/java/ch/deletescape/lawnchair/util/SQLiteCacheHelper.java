@@ -2,31 +2,140 @@ package ch.deletescape.lawnchair.util;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.AbstractCursor;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteFullException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.text.TextUtils;
 import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import ch.deletescape.lawnchair.LauncherModel;
+
 /**
  * An extension of {@link SQLiteOpenHelper} with utility methods for a single table cache DB.
  * Any exception during write operations are ignored, and any version change causes a DB reset.
+ * <p>
+ * Subclasses can enable write-behind batching using {@link #setBatchedWrites(String...)}. Inserts
+ * are then buffered in memory, coalesced by primary key and committed in a single transaction
+ * once the buffer is full or no write happened for a short while. Rows leave the buffer only once
+ * their transaction committed, and the oldest ones are dropped if commits keep failing. Deletes and
+ * updates flush the buffer first, while queries read the buffered rows along with the DB, so
+ * readers always see their own writes without writing on their thread.
  */
 public abstract class SQLiteCacheHelper {
     private static final String TAG = "SQLiteCacheHelper";
 
+    // Number of buffered rows which trigger an immediate flush.
+    private static final int MAX_PENDING_WRITES = 32;
+    // Number of buffered rows kept while commits fail, older ones are dropped beyond this.
+    private static final int MAX_BUFFERED_ROWS = 8 * MAX_PENDING_WRITES;
+    // Delay after the last buffered write after which the buffer is flushed.
+    private static final long FLUSH_DELAY_MS = 500;
+
     private final String mTableName;
     private final MySQLiteOpenHelper mOpenHelper;
 
     private boolean mIgnoreWrites;
 
+    // Rows waiting to be written, keyed by their primary key. Guarded by itself.
+    private final LinkedHashMap<String, ContentValues> mPendingWrites = new LinkedHashMap<>();
+    // Serializes flushes, so that an older batch can't overwrite a newer one
+    private final Object mFlushLock = new Object();
+    private String[] mKeyColumns;
+    // Pairs of column name and declared type, loaded when first needed
+    private volatile String[] mTableColumns;
+    private Handler mFlushHandler;
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
     public SQLiteCacheHelper(Context context, String name, int version, String tableName) {
         mTableName = tableName;
         mOpenHelper = new MySQLiteOpenHelper(context, name, version);
+        mOpenHelper.setWriteAheadLoggingEnabled(true);
 
         mIgnoreWrites = false;
     }
 
+    /**
+     * Enables buffering of {@link #insertOrReplace(ContentValues)}. Rows with the same values for
+     * {@param keyColumns} replace each other while they are buffered, so these should be the
+     * primary key of the table.
+     */
+    protected void setBatchedWrites(String... keyColumns) {
+        mKeyColumns = keyColumns;
+        mFlushHandler = new Handler(LauncherModel.getWorkerLooper());
+    }
+
+    /**
+     * Writes all buffered rows to the DB in one transaction.
+     */
+    public void flush() {
+        synchronized (mFlushLock) {
+            LinkedHashMap<String, ContentValues> rows;
+            synchronized (mPendingWrites) {
+                if (mPendingWrites.isEmpty()) {
+                    return;
+                }
+                if (mIgnoreWrites) {
+                    mPendingWrites.clear();
+                    return;
+                }
+                rows = new LinkedHashMap<>(mPendingWrites);
+            }
+            if (mFlushHandler != null) {
+                mFlushHandler.removeCallbacks(mFlushRunnable);
+            }
+            boolean committed = false;
+            try {
+                SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+                db.beginTransactionNonExclusive();
+                try {
+                    for (ContentValues values : rows.values()) {
+                        db.insertWithOnConflict(
+                                mTableName, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                committed = true;
+            } catch (SQLiteFullException e) {
+                onDiskFull(e);
+            } catch (SQLiteException e) {
+                Log.d(TAG, "Ignoring sqlite exception, keeping rows for the next flush", e);
+            }
+            synchronized (mPendingWrites) {
+                if (mIgnoreWrites) {
+                    mPendingWrites.clear();
+                } else if (committed) {
+                    for (Map.Entry<String, ContentValues> row : rows.entrySet()) {
+                        // Keep rows which were replaced while committing
+                        if (mPendingWrites.get(row.getKey()) == row.getValue()) {
+                            mPendingWrites.remove(row.getKey());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * @see SQLiteDatabase#delete(String, String, String[])
      */
@@ -34,6 +143,7 @@ public abstract class SQLiteCacheHelper {
         if (mIgnoreWrites) {
             return;
         }
+        flush();
         try {
             mOpenHelper.getWritableDatabase().delete(mTableName, whereClause, whereArgs);
         } catch (SQLiteFullException e) {
@@ -50,6 +160,27 @@ public abstract class SQLiteCacheHelper {
         if (mIgnoreWrites) {
             return;
         }
+        if (mKeyColumns != null) {
+            boolean flushNow;
+            synchronized (mPendingWrites) {
+                mPendingWrites.put(getKey(values), values);
+                if (mPendingWrites.size() > MAX_BUFFERED_ROWS) {
+                    // Commits keep failing, and this is only a cache
+                    Iterator<String> eldest = mPendingWrites.keySet().iterator();
+                    eldest.next();
+                    eldest.remove();
+                    Log.w(TAG, "Too many buffered rows, dropping the oldest one");
+                }
+                flushNow = mPendingWrites.size() >= MAX_PENDING_WRITES;
+            }
+            if (flushNow) {
+                flush();
+            } else {
+                mFlushHandler.removeCallbacks(mFlushRunnable);
+                mFlushHandler.postDelayed(mFlushRunnable, FLUSH_DELAY_MS);
+            }
+            return;
+        }
         try {
             mOpenHelper.getWritableDatabase().insertWithOnConflict(
                     mTableName, null, values, SQLiteDatabase.CONFLICT_REPLACE);
@@ -64,6 +195,7 @@ public abstract class SQLiteCacheHelper {
         if (mIgnoreWrites) {
             return;
         }
+        flush();
         try {
             mOpenHelper.getWritableDatabase().update(mTableName, values, whereClause, whereArgs);
         } catch (SQLiteFullException e) {
@@ -73,6 +205,14 @@ public abstract class SQLiteCacheHelper {
         }
     }
 
+    private String getKey(ContentValues values) {
+        StringBuilder key = new StringBuilder();
+        for (String column : mKeyColumns) {
+            key.append(values.getAsString(column)).append('\u0000');
+        }
+        return key.toString();
+    }
+
     private void onDiskFull(SQLiteFullException e) {
         Log.e(TAG, "Disk full, all write operations will be ignored", e);
         mIgnoreWrites = true;
@@ -82,17 +222,255 @@ public abstract class SQLiteCacheHelper {
      * @see SQLiteDatabase#query(String, String[], String, String[], String, String, String)
      */
     public Cursor query(String[] columns, String selection, String[] selectionArgs) {
-        return mOpenHelper.getReadableDatabase().query(
-                mTableName, columns, selection, selectionArgs, null, null, null);
+        LinkedHashMap<String, ContentValues> pending;
+        synchronized (mPendingWrites) {
+            pending = new LinkedHashMap<>(mPendingWrites);
+        }
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        if (!pending.isEmpty() && Arrays.asList(columns).contains("rowid")) {
+            // Buffered rows don't have a rowid yet
+            flush();
+        } else if (!pending.isEmpty()) {
+            return queryWithPending(db, pending, columns, selection, selectionArgs);
+        }
+        return db.query(mTableName, columns, selection, selectionArgs, null, null, null);
+    }
+
+    private Cursor queryWithPending(SQLiteDatabase db, Map<String, ContentValues> pending,
+                                    String[] columns, String selection, String[] selectionArgs) {
+        MatrixCursor pendingRows = new MatrixCursor(columns);
+        SQLiteStatement matcher = null;
+        try {
+            String[] tableColumns = getTableColumns(db);
+            if (selection != null) {
+                matcher = compileMatcher(db, tableColumns, selection, selectionArgs);
+            }
+            for (ContentValues values : pending.values()) {
+                if (matcher == null || matches(matcher, tableColumns, values)) {
+                    Object[] row = new Object[columns.length];
+                    for (int c = 0; c < columns.length; c++) {
+                        row[c] = values.get(columns[c]);
+                    }
+                    pendingRows.addRow(row);
+                }
+            }
+        } catch (SQLiteException e) {
+            // The selection needs columns which only exist in the DB, like the rowid
+            Log.d(TAG, "Can't match buffered rows, flushing them first", e);
+            pendingRows.close();
+            flush();
+            return db.query(mTableName, columns, selection, selectionArgs, null, null, null);
+        } finally {
+            if (matcher != null) {
+                matcher.close();
+            }
+        }
+
+        // Buffered rows replace the rows with the same key in the DB, which are left out by a
+        // lookup of their key. The key columns are queried too for that if they are not already.
+        ArrayList<String> dbColumns = new ArrayList<>(Arrays.asList(columns));
+        int[] keyIndices = new int[mKeyColumns.length];
+        for (int k = 0; k < mKeyColumns.length; k++) {
+            int index = dbColumns.indexOf(mKeyColumns[k]);
+            if (index < 0) {
+                index = dbColumns.size();
+                dbColumns.add(mKeyColumns[k]);
+            }
+            keyIndices[k] = index;
+        }
+        Cursor dbRows = db.query(mTableName, dbColumns.toArray(new String[dbColumns.size()]),
+                selection, selectionArgs, null, null, null);
+        return new MergeCursor(new Cursor[]{pendingRows,
+                new ReplacedRowsCursor(dbRows, columns, keyIndices, pending.keySet())});
+    }
+
+    /**
+     * Returns the columns of the table, together with their declared types.
+     */
+    private String[] getTableColumns(SQLiteDatabase db) {
+        String[] columns = mTableColumns;
+        if (columns == null) {
+            Cursor c = db.rawQuery("PRAGMA table_info(" + mTableName + ")", null);
+            try {
+                int nameIndex = c.getColumnIndexOrThrow("name");
+                int typeIndex = c.getColumnIndexOrThrow("type");
+                columns = new String[c.getCount() * 2];
+                for (int i = 0; c.moveToNext(); i += 2) {
+                    columns[i] = c.getString(nameIndex);
+                    columns[i + 1] = c.getString(typeIndex);
+                }
+            } finally {
+                c.close();
+            }
+            mTableColumns = columns;
+        }
+        return columns;
+    }
+
+    /**
+     * Compiles a statement which evaluates {@code selection} on a single buffered row bound to
+     * it with {@link #matches}, without writing it. The row has the same column affinities as in
+     * the table, so the selection compares its values just like those of the DB.
+     */
+    private SQLiteStatement compileMatcher(SQLiteDatabase db, String[] tableColumns,
+                                           String selection, String[] selectionArgs) {
+        StringBuilder sql = new StringBuilder("SELECT count(*) FROM (SELECT ");
+        for (int i = 0; i < tableColumns.length; i += 2) {
+            String type = tableColumns[i + 1];
+            sql.append(i == 0 ? "" : ", ");
+            if (TextUtils.isEmpty(type)) {
+                sql.append('?');
+            } else {
+                sql.append("CAST(? AS ").append(type).append(')');
+            }
+            sql.append(" AS ").append(tableColumns[i]);
+        }
+        sql.append(") WHERE ").append(selection);
+        SQLiteStatement statement = db.compileStatement(sql.toString());
+        if (selectionArgs != null) {
+            int first = tableColumns.length / 2 + 1;
+            for (int i = 0; i < selectionArgs.length; i++) {
+                statement.bindString(first + i, selectionArgs[i]);
+            }
+        }
+        return statement;
+    }
+
+    private static boolean matches(SQLiteStatement matcher, String[] tableColumns,
+                                   ContentValues values) {
+        for (int i = 0; i < tableColumns.length; i += 2) {
+            int index = i / 2 + 1;
+            Object value = values.get(tableColumns[i]);
+            if (value == null) {
+                matcher.bindNull(index);
+            } else if (value instanceof byte[]) {
+                matcher.bindBlob(index, (byte[]) value);
+            } else if (value instanceof Float || value instanceof Double) {
+                matcher.bindDouble(index, ((Number) value).doubleValue());
+            } else if (value instanceof Number) {
+                matcher.bindLong(index, ((Number) value).longValue());
+            } else if (value instanceof Boolean) {
+                matcher.bindLong(index, (Boolean) value ? 1 : 0);
+            } else {
+                matcher.bindString(index, value.toString());
+            }
+        }
+        return matcher.simpleQueryForLong() > 0;
     }
 
     public void clear() {
-        mOpenHelper.clearDB(mOpenHelper.getWritableDatabase());
+        synchronized (mFlushLock) {
+            synchronized (mPendingWrites) {
+                mPendingWrites.clear();
+            }
+            mOpenHelper.clearDB(mOpenHelper.getWritableDatabase());
+        }
     }
 
 
     protected abstract void onCreateTable(SQLiteDatabase db);
 
+    /**
+     * Called when the table was created from scratch, like after a version change or
+     * {@link #clear()}, so that subclasses can drop any data they keep alongside it.
+     */
+    protected void onTableReset() {
+    }
+
+    /**
+     * Leaves out the rows of the DB which are replaced by buffered rows, and the key columns which
+     * were only queried to find them.
+     */
+    private static class ReplacedRowsCursor extends AbstractCursor {
+        private final Cursor mCursor;
+        private final String[] mColumns;
+        // Positions in mCursor of the rows which are not replaced
+        private final ArrayList<Integer> mPositions = new ArrayList<>();
+
+        ReplacedRowsCursor(Cursor cursor, String[] columns, int[] keyIndices,
+                           Set<String> replacedKeys) {
+            mCursor = cursor;
+            mColumns = columns;
+            StringBuilder key = new StringBuilder();
+            while (cursor.moveToNext()) {
+                // Same as getKey() for the values of the row
+                key.setLength(0);
+                for (int index : keyIndices) {
+                    key.append(cursor.getString(index)).append('\u0000');
+                }
+                if (!replacedKeys.contains(key.toString())) {
+                    mPositions.add(cursor.getPosition());
+                }
+            }
+        }
+
+        @Override
+        public int getCount() {
+            return mPositions.size();
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumns;
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            return mCursor.moveToPosition(mPositions.get(newPosition));
+        }
+
+        @Override
+        public String getString(int column) {
+            return mCursor.getString(column);
+        }
+
+        @Override
+        public short getShort(int column) {
+            return mCursor.getShort(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return mCursor.getInt(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            return mCursor.getLong(column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return mCursor.getFloat(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return mCursor.getDouble(column);
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            return mCursor.getBlob(column);
+        }
+
+        @Override
+        public int getType(int column) {
+            return mCursor.getType(column);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return mCursor.isNull(column);
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            mCursor.close();
+        }
+    }
+
     /**
      * A private inner class to prevent direct DB access.
      */
@@ -105,6 +483,7 @@ public abstract class SQLiteCacheHelper {
         @Override
         public void onCreate(SQLiteDatabase db) {
             onCreateTable(db);
+            onTableReset();
         }
 
         @Override
@@ -0,0 +1,268 @@
+package ch.deletescape.lawnchair.util;
+
+import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Launcher wide scheduler for background work, running tasks on a fixed number of threads.
+ * <p>
+ * Tasks are queued in lanes which are served in priority order: work the user is waiting for,
+ * prefetches and background maintenance. Every lane has a concurrency cap, and the lower lanes
+ * never take the last free thread, so visible work can always start right away. Tasks can be
+ * submitted with a key, in which case a task which is still queued in the same lane with an
+ * equal key makes the new one redundant. Cancelled {@link Future}s, like those of cancelled
+ * AsyncTasks, are dropped from the queues without taking a thread, and AsyncTasks run through
+ * {@link #executeAsyncTask} are cancelled through {@link AsyncTask#cancel} if they are dropped.
+ */
+public class TaskScheduler {
+
+    private static final String TAG = "TaskScheduler";
+
+    /**
+     * Work the user is waiting for, like previews of visible cells.
+     */
+    public static final int LANE_UI = 0;
+    /**
+     * Work done ahead of time which may never be needed.
+     */
+    public static final int LANE_PREFETCH = 1;
+    /**
+     * Maintenance which nobody waits for.
+     */
+    public static final int LANE_BACKGROUND = 2;
+
+    private static final String[] LANE_NAMES = {"ui", "prefetch", "background"};
+
+    // Prefetches are only useful while they are recent, older ones are dropped beyond this
+    private static final int MAX_PREFETCH_QUEUE_SIZE = 64;
+
+    private static final int THREAD_COUNT = Math.max(2,
+            Runtime.getRuntime().availableProcessors() + 1);
+    private static final int KEEP_ALIVE = 1;
+
+    private static final TaskScheduler sInstance = new TaskScheduler();
+
+    private final ThreadPoolExecutor mThreadPool;
+    private final Lane[] mLanes;
+    private int mRunningCount;
+
+    public static TaskScheduler getInstance() {
+        return sInstance;
+    }
+
+    private TaskScheduler() {
+        // Never holds more tasks than threads, the scheduler only hands over what can run
+        mThreadPool = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, KEEP_ALIVE,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        mThreadPool.allowCoreThreadTimeOut(true);
+
+        mLanes = new Lane[]{
+                new Lane(LANE_UI, THREAD_COUNT, 0),
+                new Lane(LANE_PREFETCH, Math.max(1, THREAD_COUNT / 2), MAX_PREFETCH_QUEUE_SIZE),
+                new Lane(LANE_BACKGROUND, Math.max(1, THREAD_COUNT / 4), 0)};
+    }
+
+    /**
+     * Runs {@code task} in {@code lane}. If the task is dropped from the queue it is cancelled
+     * like through {@link AsyncTask#cancel}, so it gets {@link AsyncTask#onCancelled} rather than
+     * {@link AsyncTask#onPostExecute} with a null result.
+     */
+    public <Params> void executeAsyncTask(final int lane, final AsyncTask<Params, ?, ?> task,
+                                          Params... params) {
+        task.executeOnExecutor(new Executor() {
+            @Override
+            public void execute(@NonNull Runnable runnable) {
+                TaskScheduler.this.execute(lane, null, runnable, task);
+            }
+        }, params);
+    }
+
+    public void execute(int lane, Runnable runnable) {
+        execute(lane, null, runnable);
+    }
+
+    /**
+     * Queues {@code runnable} in {@code lane}.
+     *
+     * @param key if not null, the task is dropped if a task with an equal key is still queued in
+     *            the same lane.
+     * @return false if the task was dropped as a duplicate.
+     */
+    public boolean execute(int lane, Object key, Runnable runnable) {
+        return execute(lane, key, runnable, null);
+    }
+
+    @Thunk
+    synchronized boolean execute(int lane, Object key, Runnable runnable,
+                                 AsyncTask<?, ?, ?> asyncTask) {
+        Lane l = mLanes[lane];
+        l.mSubmittedCount++;
+        if (key != null && l.mKeyedTasks.containsKey(key)) {
+            l.mDedupedCount++;
+            return false;
+        }
+        Task task = new Task(l, key, runnable, asyncTask);
+        l.mQueue.add(task);
+        if (key != null) {
+            l.mKeyedTasks.put(key, task);
+        }
+        if (l.mMaxQueueSize > 0 && l.mQueue.size() > l.mMaxQueueSize) {
+            l.remove(l.mQueue.peekFirst());
+            l.mDroppedCount++;
+        }
+        l.mMaxQueueDepth = Math.max(l.mMaxQueueDepth, l.mQueue.size());
+        dispatch();
+        return true;
+    }
+
+    /**
+     * Removes the task queued in {@code lane} with {@code key}, if it did not start yet.
+     *
+     * @return true if a task was removed.
+     */
+    public synchronized boolean cancel(int lane, Object key) {
+        Lane l = mLanes[lane];
+        Task task = l.mKeyedTasks.get(key);
+        if (task == null) {
+            return false;
+        }
+        l.remove(task);
+        l.mCancelledCount++;
+        return true;
+    }
+
+    private void dispatch() {
+        for (Lane lane : mLanes) {
+            Iterator<Task> it = lane.mQueue.iterator();
+            while (it.hasNext() && mRunningCount < THREAD_COUNT
+                    && lane.mRunningCount < lane.mMaxRunning
+                    // Keep one thread for the UI lane
+                    && (lane.mId == LANE_UI || mRunningCount < THREAD_COUNT - 1)) {
+                Task task = it.next();
+                it.remove();
+                if (task.mKey != null) {
+                    lane.mKeyedTasks.remove(task.mKey);
+                }
+                if (task.mRunnable instanceof Future && ((Future) task.mRunnable).isCancelled()) {
+                    lane.mCancelledCount++;
+                    continue;
+                }
+                long waitTime = SystemClock.uptimeMillis() - task.mQueueTime;
+                lane.mTotalWaitTimeMs += waitTime;
+                lane.mMaxWaitTimeMs = Math.max(lane.mMaxWaitTimeMs, waitTime);
+                lane.mStartedCount++;
+                lane.mRunningCount++;
+                mRunningCount++;
+                mThreadPool.execute(task);
+            }
+        }
+    }
+
+    @Thunk
+    synchronized void onTaskFinished(Lane lane, long runTime) {
+        lane.mRunningCount--;
+        mRunningCount--;
+        lane.mCompletedCount++;
+        lane.mTotalRunTimeMs += runTime;
+        dispatch();
+    }
+
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + TAG + ": threads=" + THREAD_COUNT + " running=" + mRunningCount);
+        for (Lane lane : mLanes) {
+            int started = Math.max(1, lane.mStartedCount);
+            int completed = Math.max(1, lane.mCompletedCount);
+            writer.println(prefix + "  " + LANE_NAMES[lane.mId]
+                    + ": queued=" + lane.mQueue.size()
+                    + " maxQueued=" + lane.mMaxQueueDepth
+                    + " running=" + lane.mRunningCount + "/" + lane.mMaxRunning
+                    + " submitted=" + lane.mSubmittedCount
+                    + " completed=" + lane.mCompletedCount
+                    + " deduped=" + lane.mDedupedCount
+                    + " cancelled=" + lane.mCancelledCount
+                    + " dropped=" + lane.mDroppedCount
+                    + " avgWait=" + lane.mTotalWaitTimeMs / started + "ms"
+                    + " maxWait=" + lane.mMaxWaitTimeMs + "ms"
+                    + " avgRun=" + lane.mTotalRunTimeMs / completed + "ms");
+        }
+    }
+
+    /**
+     * Queue and metrics of a lane, guarded by the scheduler lock.
+     */
+    private static class Lane {
+        final int mId;
+        final int mMaxRunning;
+        final int mMaxQueueSize;
+        final ArrayDeque<Task> mQueue = new ArrayDeque<>();
+        final HashMap<Object, Task> mKeyedTasks = new HashMap<>();
+        int mRunningCount;
+
+        int mSubmittedCount;
+        int mStartedCount;
+        int mCompletedCount;
+        int mDedupedCount;
+        int mCancelledCount;
+        int mDroppedCount;
+        int mMaxQueueDepth;
+        long mTotalWaitTimeMs;
+        long mMaxWaitTimeMs;
+        long mTotalRunTimeMs;
+
+        Lane(int id, int maxRunning, int maxQueueSize) {
+            mId = id;
+            mMaxRunning = maxRunning;
+            mMaxQueueSize = maxQueueSize;
+        }
+
+        void remove(Task task) {
+            mQueue.remove(task);
+            if (task.mKey != null) {
+                mKeyedTasks.remove(task.mKey);
+            }
+            if (task.mAsyncTask != null) {
+                // Cancelling only its future would still deliver a null result
+                task.mAsyncTask.cancel(false);
+            } else if (task.mRunnable instanceof Future) {
+                ((Future) task.mRunnable).cancel(false);
+            }
+        }
+    }
+
+    private class Task implements Runnable {
+        final Lane mLane;
+        final Object mKey;
+        final Runnable mRunnable;
+        // The AsyncTask which mRunnable is the future of, if any
+        final AsyncTask<?, ?, ?> mAsyncTask;
+        final long mQueueTime = SystemClock.uptimeMillis();
+
+        Task(Lane lane, Object key, Runnable runnable, AsyncTask<?, ?, ?> asyncTask) {
+            mLane = lane;
+            mKey = key;
+            mRunnable = runnable;
+            mAsyncTask = asyncTask;
+        }
+
+        @Override
+        public void run() {
+            long start = SystemClock.uptimeMillis();
+            try {
+                mRunnable.run();
+            } finally {
+                onTaskFinished(mLane, SystemClock.uptimeMillis() - start);
+            }
+        }
+    }
+}
@@ -8,11 +8,15 @@ import com.google.android.gms.awareness.state.Weather
 import com.google.android.gms.common.api.GoogleApiClient
 import com.google.android.gms.common.api.ResultCallback
 import java.util.*
+import java.util.concurrent.TimeUnit
 
 class AwarenessWeatherAPI(context: Context) : WeatherAPI(), ResultCallback<WeatherResult> {
 
     override var units = Units.METRIC
     override var city = ""
+    override val provider = PROVIDER_GOOGLE_AWARENESS
+    // Snapshots come from the device and are cheap to get
+    override val cacheTtl = TimeUnit.MINUTES.toMillis(15)
 
     val iconSuffix: String
         get() = if (Calendar.getInstance().apply {
@@ -11,6 +11,7 @@ class OWMWeatherAPI(context: Context) : WeatherAPI(), OpenWeatherMapHelper.Curre
     private val helper = OpenWeatherMapHelper().apply { setApiKey(apiKey) }
 
     override var city: String = ""
+    override val provider = PROVIDER_OPENWEATHERMAP
     override var units: Units = Units.METRIC
         get() = field
         set(value) {
@@ -2,11 +2,18 @@ package ch.deletescape.lawnchair.weather
 
 import android.content.Context
 import java.util.*
+import java.util.concurrent.TimeUnit
 
 abstract class WeatherAPI {
 
     abstract var units: Units
     abstract var city: String
+    abstract val provider: Int
+
+    /**
+     * How long [WeatherCache] serves data of this provider before requesting new data.
+     */
+    open val cacheTtl = TimeUnit.MINUTES.toMillis(30)
 
     var weatherCallback: WeatherCallback? = null
 
@@ -0,0 +1,219 @@
+package ch.deletescape.lawnchair.weather;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import ch.deletescape.lawnchair.LauncherFiles;
+import ch.deletescape.lawnchair.util.Thunk;
+
+/**
+ * Caches the last successful {@link WeatherAPI.WeatherData} per provider, city and units across
+ * process restarts.
+ * <p>
+ * Cached data is handed out right away, and refreshed in the background once it is older than
+ * the TTL of its provider. Concurrent refreshes for the same data, for example from multiple
+ * {@link WeatherHelper}s, share a single request, and failed requests are retried with an
+ * exponential backoff. A request which did not deliver within {@link #PENDING_TIMEOUT} is given
+ * up on and replaced by the next one. Must only be used on the UI thread, which is where the
+ * providers deliver their results.
+ */
+public class WeatherCache {
+
+    private static final String TAG = "WeatherCache";
+
+    private static final long MIN_BACKOFF = 30 * 1000;
+    private static final long MAX_BACKOFF = 30 * 60 * 1000;
+    @VisibleForTesting
+    static final long PENDING_TIMEOUT = 60 * 1000;
+
+    private static WeatherCache sInstance;
+
+    private final SharedPreferences mPrefs;
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+    private final HashMap<String, Request> mRequests = new HashMap<>();
+    private final HashMap<String, Failure> mFailures = new HashMap<>();
+
+    public static WeatherCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new WeatherCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private WeatherCache(Context context) {
+        this(context.getSharedPreferences(
+                LauncherFiles.WEATHER_CACHE_PREFERENCES_KEY, Context.MODE_PRIVATE));
+    }
+
+    @VisibleForTesting
+    WeatherCache(SharedPreferences prefs) {
+        mPrefs = prefs;
+    }
+
+    /**
+     * Delivers the cached data for the current settings of {@code api} to {@code callback}
+     * right away, if there is any, and requests new data if there is none or it is stale.
+     * Unless a request for the same data is already running or backing off, the request is made
+     * with {@code api}.
+     */
+    public void refresh(WeatherAPI api, WeatherAPI.WeatherCallback callback) {
+        final String key = getKey(api);
+        long now = currentTimeMillis();
+        Entry entry = getEntry(key, api.getUnits());
+        if (entry != null) {
+            callback.onWeatherData(entry.data);
+            if (now - entry.time < api.getCacheTtl()) {
+                return;
+            }
+        }
+
+        Request request = mRequests.get(key);
+        if (request != null && now - request.time < PENDING_TIMEOUT) {
+            if (!request.callbacks.contains(callback)) {
+                request.callbacks.add(callback);
+            }
+            return;
+        }
+
+        Failure failure = mFailures.get(key);
+        if (failure != null && now < failure.retryTime) {
+            if (entry == null) {
+                callback.onWeatherData(failure.data);
+            }
+            return;
+        }
+
+        Request newRequest = new Request(now);
+        if (request != null) {
+            // The provider never called back, everyone waiting for it waits for the new request
+            Log.d(TAG, "Weather request timed out, requesting again");
+            newRequest.callbacks.addAll(request.callbacks);
+        }
+        if (!newRequest.callbacks.contains(callback)) {
+            newRequest.callbacks.add(callback);
+        }
+        mRequests.put(key, newRequest);
+        api.setWeatherCallback(new WeatherAPI.WeatherCallback() {
+            @Override
+            public void onWeatherData(@NonNull WeatherAPI.WeatherData data) {
+                onRequestFinished(key, data);
+            }
+        });
+        api.getCurrentWeather();
+    }
+
+    /**
+     * Stops delivering the results of running requests to {@code callback}.
+     */
+    public void removeCallback(WeatherAPI.WeatherCallback callback) {
+        for (Request request : mRequests.values()) {
+            request.callbacks.remove(callback);
+        }
+    }
+
+    @Thunk
+    void onRequestFinished(String key, WeatherAPI.WeatherData data) {
+        // Also completes a request which replaced a timed out one, the data is just as new
+        Request request = mRequests.remove(key);
+        ArrayList<WeatherAPI.WeatherCallback> pending = request != null
+                ? request.callbacks
+                // Providers may deliver more than once per request
+                : new ArrayList<WeatherAPI.WeatherCallback>();
+
+        long now = currentTimeMillis();
+        if (data.getSuccess()) {
+            mFailures.remove(key);
+            Entry entry = new Entry(data, now);
+            mEntries.put(key, entry);
+            mPrefs.edit().putString(key, entry.serialize()).apply();
+        } else {
+            Failure failure = mFailures.get(key);
+            long backoff = failure == null
+                    ? MIN_BACKOFF : Math.min(failure.backoff * 2, MAX_BACKOFF);
+            mFailures.put(key, new Failure(data, backoff, now));
+            Log.d(TAG, "Weather request failed, retrying in " + backoff / 1000 + "s");
+            if (getEntry(key, data.getUnits()) != null) {
+                // Everyone already got the cached data, which beats an error
+                return;
+            }
+        }
+        for (WeatherAPI.WeatherCallback callback : pending) {
+            callback.onWeatherData(data);
+        }
+    }
+
+    @VisibleForTesting
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private Entry getEntry(String key, WeatherAPI.Units units) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = Entry.parse(mPrefs.getString(key, null), units);
+            if (entry != null) {
+                mEntries.put(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    private static String getKey(WeatherAPI api) {
+        return api.getProvider() + "/" + api.getUnits().getLongName() + "/" + api.getCity();
+    }
+
+    private static class Entry {
+        final WeatherAPI.WeatherData data;
+        final long time;
+
+        Entry(WeatherAPI.WeatherData data, long time) {
+            this.data = data;
+            this.time = time;
+        }
+
+        String serialize() {
+            return time + ";" + data.getTemp() + ";" + data.getIcon();
+        }
+
+        static Entry parse(String value, WeatherAPI.Units units) {
+            if (value == null) {
+                return null;
+            }
+            String[] parts = value.split(";", 3);
+            try {
+                return new Entry(new WeatherAPI.WeatherData(true, Integer.parseInt(parts[1]),
+                        parts[2], units), Long.parseLong(parts[0]));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                Log.w(TAG, "Invalid cache entry " + value, e);
+                return null;
+            }
+        }
+    }
+
+    private static class Request {
+        final long time;
+        final ArrayList<WeatherAPI.WeatherCallback> callbacks = new ArrayList<>();
+
+        Request(long time) {
+            this.time = time;
+        }
+    }
+
+    private static class Failure {
+        final WeatherAPI.WeatherData data;
+        final long backoff;
+        final long retryTime;
+
+        Failure(WeatherAPI.WeatherData data, long backoff, long now) {
+            this.data = data;
+            this.backoff = backoff;
+            this.retryTime = now + backoff;
+        }
+    }
+}
@@ -23,6 +23,7 @@ import ch.deletescape.lawnchair.preferences.PreferenceFlags;
 public class WeatherHelper implements SharedPreferences.OnSharedPreferenceChangeListener, Runnable, WeatherAPI.WeatherCallback {
     private static final int DELAY = 500 * 3600;
     private final WeatherAPI mApi;
+    private final WeatherCache mCache;
     private WeatherAPI.WeatherData mWeatherData;
     private TextView mTemperatureView;
     private Handler mHandler;
@@ -41,15 +42,17 @@ public class WeatherHelper implements SharedPreferences.OnSharedPreferenceChange
         prefs.registerOnSharedPreferenceChangeListener(this);
         mApi = WeatherAPI.Companion.create(context,
                 Integer.parseInt(prefs.getWeatherProvider()));
-        mApi.setWeatherCallback(this);
+        mCache = WeatherCache.getInstance(context);
         setCity(prefs.getWeatherCity());
         setUnits(prefs.getWeatherUnit());
-        refresh();
+        // Cached data is delivered right away, post so that the listener is set by then
+        mHandler.post(this);
     }
 
     private void refresh() {
         if (!stopped) {
-            mApi.getCurrentWeather();
+            mHandler.removeCallbacks(this);
+            mCache.refresh(mApi, this);
             mHandler.postDelayed(this, DELAY);
         }
     }
@@ -104,10 +107,11 @@ public class WeatherHelper implements SharedPreferences.OnSharedPreferenceChange
         switch (key) {
             case PreferenceFlags.KEY_WEATHER_UNITS:
                 setUnits(sharedPrefs.getString(PreferenceFlags.KEY_WEATHER_UNITS, PreferenceFlags.PREF_WEATHER_UNIT_METRIC));
-                updateTextView();
+                refresh();
                 break;
             case PreferenceFlags.KEY_WEATHER_CITY:
                 setCity(sharedPrefs.getString(PreferenceFlags.KEY_WEATHER_CITY, mApi.getCity()));
+                refresh();
                 break;
         }
     }
@@ -120,6 +124,7 @@ public class WeatherHelper implements SharedPreferences.OnSharedPreferenceChange
     public void stop() {
         stopped = true;
         mHandler.removeCallbacks(this);
+        mCache.removeCallback(this);
     }
 
     public void setListener(OnWeatherLoadListener listener) {
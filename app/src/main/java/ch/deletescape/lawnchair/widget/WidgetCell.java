@@ -51,8 +51,20 @@ public class WidgetCell extends LinearLayout implements OnLayoutChangeListener {
     }
 
     private void setContainerWidth() {
-        this.mCellSize = (int) (((float) this.launcher.getDeviceProfile().cellWidthPx) * 2.6f);
-        this.mPresetPreviewSize = (int) (((float) this.mCellSize) * 0.8f);
+        this.mCellSize = getCellSize(this.launcher);
+        this.mPresetPreviewSize = getPresetPreviewSize(this.launcher);
+    }
+
+    private static int getCellSize(Launcher launcher) {
+        return (int) (((float) launcher.getDeviceProfile().cellWidthPx) * 2.6f);
+    }
+
+    /**
+     * Returns the size of the previews which cells request, so that previews can be loaded
+     * before their cell is bound.
+     */
+    public static int getPresetPreviewSize(Launcher launcher) {
+        return (int) (((float) getCellSize(launcher)) * 0.8f);
     }
 
     @Override
@@ -73,6 +73,10 @@ public class WidgetsListAdapter extends RecyclerView.Adapter<WidgetsRowViewHolde
         return this.mEntries.get(i).titleSectionName;
     }
 
+    public List<WidgetItem> getWidgets(int i) {
+        return this.mEntries.get(i).widgets;
+    }
+
     public List copyWidgetsForPackageUser(PackageUserKey packageUserKey) {
         for (WidgetListRowEntry widgetListRowEntry : this.mEntries) {
             if (widgetListRowEntry.pkgItem.packageName.equals(packageUserKey.mPackageName)) {
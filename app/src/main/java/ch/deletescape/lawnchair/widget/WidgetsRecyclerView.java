@@ -1,15 +1,38 @@
 package ch.deletescape.lawnchair.widget;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.util.AttributeSet;
 import android.view.View;
 
+import java.util.ArrayList;
+import java.util.Collections;
+
 import ch.deletescape.lawnchair.BaseRecyclerView;
+import ch.deletescape.lawnchair.Launcher;
+import ch.deletescape.lawnchair.LauncherAppState;
+import ch.deletescape.lawnchair.model.WidgetItem;
+import ch.deletescape.lawnchair.util.Thunk;
 
 public class WidgetsRecyclerView extends BaseRecyclerView {
+    // How far ahead of the scroll position previews are prefetched, in addition to the next screen
+    private static final long PREFETCH_LOOKAHEAD_MS = 600;
+    private static final int MAX_PREFETCH_AHEAD_SCREENS = 2;
+    // Scroll events further apart than this start a new velocity estimate
+    private static final long VELOCITY_RESET_MS = 100;
+
     private WidgetsListAdapter mAdapter;
 
+    private final ArrayList<WidgetItem> mPrefetchNextScreen = new ArrayList<>();
+    private final ArrayList<WidgetItem> mPrefetchAhead = new ArrayList<>();
+    private long mLastScrollTime;
+    private float mScrollVelocity;
+    private int mScrollDirection = 1;
+    private int mPrefetchFrom = -1;
+    private int mPrefetchTo = -1;
+
     public WidgetsRecyclerView(Context context) {
         this(context, null);
     }
@@ -27,6 +50,99 @@ public class WidgetsRecyclerView extends BaseRecyclerView {
         super.onFinishInflate();
         addOnItemTouchListener(this);
         setLayoutManager(new LinearLayoutManager(getContext()));
+        addOnScrollListener(new OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                onScrolledBy(dy);
+            }
+
+            @Override
+            public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                if (newState == SCROLL_STATE_IDLE) {
+                    mScrollVelocity = 0;
+                    updatePrefetch();
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mPrefetchFrom = mPrefetchTo = -1;
+        LauncherAppState.getInstance().getWidgetCache().setPrefetchItems(null,
+                Collections.<WidgetItem>emptyList(), Collections.<WidgetItem>emptyList(), 0);
+    }
+
+    @Thunk
+    void onScrolledBy(int dy) {
+        long now = SystemClock.uptimeMillis();
+        long elapsed = now - mLastScrollTime;
+        mLastScrollTime = now;
+        if (dy == 0) {
+            return;
+        }
+        int direction = dy > 0 ? 1 : -1;
+        float velocity = elapsed > 0 ? (float) dy / elapsed : 0;
+        if (direction != mScrollDirection || elapsed > VELOCITY_RESET_MS) {
+            mScrollVelocity = velocity;
+        } else {
+            mScrollVelocity = (mScrollVelocity + velocity) / 2;
+        }
+        mScrollDirection = direction;
+        updatePrefetch();
+    }
+
+    /**
+     * Prefetches the previews of the screen of rows following the visible ones in scroll
+     * direction, and of as many further rows as the current velocity scrolls into view within
+     * {@link #PREFETCH_LOOKAHEAD_MS}. Rows bound by the adapter load their own previews first.
+     */
+    @Thunk
+    void updatePrefetch() {
+        if (mAdapter == null || isModelNotReady() || getChildCount() == 0) {
+            return;
+        }
+        LinearLayoutManager layoutManager = (LinearLayoutManager) getLayoutManager();
+        int first = layoutManager.findFirstVisibleItemPosition();
+        int last = layoutManager.findLastVisibleItemPosition();
+        int rowHeight = getChildAt(0).getHeight();
+        if (first == NO_POSITION || last == NO_POSITION || rowHeight == 0) {
+            return;
+        }
+        int screenRows = last - first + 1;
+        int aheadRows = Math.min(screenRows * MAX_PREFETCH_AHEAD_SCREENS,
+                (int) (Math.abs(mScrollVelocity) * PREFETCH_LOOKAHEAD_MS / rowHeight));
+
+        int from;
+        int to;
+        if (mScrollDirection > 0) {
+            from = last + 1;
+            to = Math.min(mAdapter.getItemCount() - 1, last + screenRows + aheadRows);
+        } else {
+            from = first - 1;
+            to = Math.max(0, first - screenRows - aheadRows);
+        }
+        if (from == mPrefetchFrom && to == mPrefetchTo) {
+            return;
+        }
+        mPrefetchFrom = from;
+        mPrefetchTo = to;
+
+        mPrefetchNextScreen.clear();
+        mPrefetchAhead.clear();
+        int count = Math.abs(to - from) + 1;
+        for (int i = 0; i < count; i++) {
+            int position = from + i * mScrollDirection;
+            if (position < 0 || position >= mAdapter.getItemCount()) {
+                break;
+            }
+            (i < screenRows ? mPrefetchNextScreen : mPrefetchAhead)
+                    .addAll(mAdapter.getWidgets(position));
+        }
+        Launcher launcher = Launcher.getLauncher(getContext());
+        LauncherAppState.getInstance().getWidgetCache().setPrefetchItems(launcher,
+                mPrefetchNextScreen, mPrefetchAhead, WidgetCell.getPresetPreviewSize(launcher));
     }
 
     @Override
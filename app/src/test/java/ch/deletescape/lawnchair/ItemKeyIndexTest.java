@@ -0,0 +1,215 @@
+package ch.deletescape.lawnchair;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.os.Process;
+import android.os.UserHandle;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ch.deletescape.lawnchair.shortcuts.ShortcutInfoCompat;
+import ch.deletescape.lawnchair.shortcuts.ShortcutKey;
+import ch.deletescape.lawnchair.util.ComponentKey;
+import ch.deletescape.lawnchair.util.PackageUserKey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link ItemKeyIndex}, and a benchmark of the update fan-out compared to visiting all
+ * items like {@code Workspace.mapOverItems} does. Runs on Robolectric, since the keys depend on
+ * {@link ComponentName} and {@link UserHandle} implementing equals and hashCode.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 26)
+public class ItemKeyIndexTest {
+
+    private static final int BENCHMARK_PACKAGES = 200;
+    private static final int BENCHMARK_ITEMS_PER_PACKAGE = 10;
+    private static final int BENCHMARK_ROUNDS = 200;
+
+    private UserHandle mUser;
+    private ItemKeyIndex<String> mIndex;
+
+    @Before
+    public void setUp() {
+        mUser = Process.myUserHandle();
+        mIndex = new ItemKeyIndex<>();
+    }
+
+    @Test
+    public void testLookupsByKey() {
+        ShortcutInfo app = app("com.example", "Main");
+        ShortcutInfo otherApp = app("com.example", "Settings");
+        ShortcutInfo shortcut = deepShortcut("com.example", "compose");
+        LauncherAppWidgetInfo widget = widget("com.example", "ClockWidget");
+        ShortcutInfo bookmark = new ShortcutInfo();
+        bookmark.intent = new Intent(Intent.ACTION_VIEW);
+        bookmark.user = mUser;
+        mIndex.add(app, "app");
+        mIndex.add(otherApp, "otherApp");
+        mIndex.add(shortcut, "shortcut");
+        mIndex.add(widget, "widget");
+        mIndex.add(bookmark, "bookmark");
+
+        assertEquals(5, mIndex.size());
+        assertEquals(4, mIndex.getForPackage(new PackageUserKey("com.example", mUser)).size());
+        assertEquals(Collections.singletonList("app"), mIndex.getForComponent(componentKey(app)));
+        assertEquals(Collections.singletonList("widget"),
+                mIndex.getForComponent(new ComponentKey(widget.providerName, mUser)));
+        assertEquals(Collections.singletonList("shortcut"),
+                mIndex.getForShortcut(ShortcutKey.fromItemInfo(shortcut)));
+        assertEquals(Collections.singletonList("bookmark"), mIndex.getWithoutPackage());
+        assertTrue(mIndex.getForPackage(new PackageUserKey("com.other", mUser)).isEmpty());
+        assertEquals("otherApp", mIndex.get(otherApp));
+    }
+
+    @Test
+    public void testReindexMovesChangedTarget() {
+        ShortcutInfo promise = app("com.example", "Main");
+        mIndex.add(promise, "promise");
+        assertFalse(mIndex.reindex(promise));
+
+        ComponentKey oldKey = componentKey(promise);
+        promise.intent.setComponent(new ComponentName("com.example", "Launcher"));
+        assertTrue(mIndex.reindex(promise));
+        assertTrue(mIndex.getForComponent(oldKey).isEmpty());
+        assertEquals(Collections.singletonList("promise"),
+                mIndex.getForComponent(componentKey(promise)));
+        assertEquals(1, mIndex.getForPackage(new PackageUserKey("com.example", mUser)).size());
+
+        promise.intent.setComponent(new ComponentName("com.other", "Launcher"));
+        assertTrue(mIndex.reindex(promise));
+        assertTrue(mIndex.getForPackage(new PackageUserKey("com.example", mUser)).isEmpty());
+        assertEquals(1, mIndex.getPackageCount());
+        assertFalse(mIndex.reindex(app("com.example", "Main")));
+    }
+
+    @Test
+    public void testAddingAgainReplacesValue() {
+        ShortcutInfo app = app("com.example", "Main");
+        mIndex.add(app, "old");
+        mIndex.add(app, "new");
+        assertEquals(1, mIndex.size());
+        assertEquals(Collections.singletonList("new"), mIndex.getForComponent(componentKey(app)));
+    }
+
+    @Test
+    public void testClear() {
+        ShortcutInfo app = app("com.example", "Main");
+        mIndex.add(app, "app");
+        mIndex.clear();
+        assertEquals(0, mIndex.size());
+        assertNull(mIndex.get(app));
+        assertTrue(mIndex.getForComponent(componentKey(app)).isEmpty());
+    }
+
+    /**
+     * Compares updating the items of one component through the index with visiting every item,
+     * for a workspace with many pages and folders. Only the results are checked, the timings are
+     * printed for comparison.
+     */
+    @Test
+    public void benchmarkUpdateFanOut() {
+        ArrayList<ItemInfo> items = new ArrayList<>();
+        for (int p = 0; p < BENCHMARK_PACKAGES; p++) {
+            String packageName = "com.example.app" + p;
+            for (int i = 0; i < BENCHMARK_ITEMS_PER_PACKAGE; i++) {
+                ItemInfo info = i % 3 == 0
+                        ? deepShortcut(packageName, "shortcut" + i) : app(packageName, "A" + i);
+                items.add(info);
+                mIndex.add(info, packageName + "/" + i);
+            }
+        }
+        ArrayList<ComponentKey> targets = new ArrayList<>();
+        for (int p = 0; p < BENCHMARK_PACKAGES; p += 7) {
+            targets.add(componentKey(items.get(p * BENCHMARK_ITEMS_PER_PACKAGE + 1)));
+        }
+
+        // Warm up both paths before measuring
+        int indexed = lookUpAll(targets, BENCHMARK_ROUNDS);
+        int scanned = scanAll(items, targets, BENCHMARK_ROUNDS);
+        assertEquals(scanned, indexed);
+
+        long start = System.nanoTime();
+        indexed = lookUpAll(targets, BENCHMARK_ROUNDS);
+        long indexTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        scanned = scanAll(items, targets, BENCHMARK_ROUNDS);
+        long scanTime = System.nanoTime() - start;
+        assertEquals(scanned, indexed);
+        assertEquals(targets.size() * BENCHMARK_ROUNDS, indexed);
+
+        int updates = targets.size() * BENCHMARK_ROUNDS;
+        System.out.println("ItemKeyIndex fan-out, " + items.size() + " items, " + updates
+                + " updates: index " + indexTime / updates + " ns/update, visiting all items "
+                + scanTime / updates + " ns/update");
+    }
+
+    private int lookUpAll(List<ComponentKey> targets, int rounds) {
+        int found = 0;
+        for (int r = 0; r < rounds; r++) {
+            for (ComponentKey key : targets) {
+                found += mIndex.getForComponent(key).size();
+            }
+        }
+        return found;
+    }
+
+    private static int scanAll(List<ItemInfo> items, List<ComponentKey> targets, int rounds) {
+        int found = 0;
+        for (int r = 0; r < rounds; r++) {
+            for (ComponentKey key : targets) {
+                for (ItemInfo info : items) {
+                    if (info.itemType != LauncherSettings.Favorites.ITEM_TYPE_DEEP_SHORTCUT
+                            && key.componentName.equals(info.getTargetComponent())
+                            && key.user.equals(info.user)) {
+                        found++;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    private ComponentKey componentKey(ItemInfo info) {
+        return new ComponentKey(info.getTargetComponent(), info.user);
+    }
+
+    private ShortcutInfo app(String packageName, String className) {
+        ShortcutInfo info = new ShortcutInfo();
+        info.itemType = LauncherSettings.Favorites.ITEM_TYPE_APPLICATION;
+        info.intent = new Intent(Intent.ACTION_MAIN)
+                .setComponent(new ComponentName(packageName, packageName + "." + className));
+        info.user = mUser;
+        return info;
+    }
+
+    private ShortcutInfo deepShortcut(String packageName, String id) {
+        ShortcutInfo info = new ShortcutInfo();
+        info.itemType = LauncherSettings.Favorites.ITEM_TYPE_DEEP_SHORTCUT;
+        info.intent = new Intent(Intent.ACTION_MAIN)
+                .setPackage(packageName)
+                .setComponent(new ComponentName(packageName, packageName + ".Main"))
+                .putExtra(ShortcutInfoCompat.EXTRA_SHORTCUT_ID, id);
+        info.user = mUser;
+        return info;
+    }
+
+    private LauncherAppWidgetInfo widget(String packageName, String className) {
+        LauncherAppWidgetInfo info = new LauncherAppWidgetInfo(1,
+                new ComponentName(packageName, packageName + "." + className));
+        info.user = mUser;
+        return info;
+    }
+}
@@ -0,0 +1,302 @@
+package ch.deletescape.lawnchair.model;
+
+import android.graphics.Point;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+
+import ch.deletescape.lawnchair.LauncherSettings.Favorites;
+import ch.deletescape.lawnchair.model.GridSizeMigrationTask.DbEntry;
+import ch.deletescape.lawnchair.util.GridOccupancy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the placement search of {@link GridSizeMigrationTask}, comparing its branch and
+ * bound search with an exhaustive one on synthetic dense screens. Both have to find placements of
+ * the same cost, the timings are printed for comparison.
+ */
+public class GridSizeMigrationTaskTest {
+
+    private static final int GRID_X = 5;
+    private static final int GRID_Y = 5;
+    private static final int LAYOUT_COUNT = 30;
+    private static final float WEIGHT_DELTA = 0.01f;
+
+    @Test
+    public void testSameCostAsExhaustiveSearch() {
+        GridSizeMigrationTask task = createTask();
+        long searchTime = 0;
+        long exhaustiveTime = 0;
+        for (int seed = 0; seed < LAYOUT_COUNT; seed++) {
+            Random random = new Random(seed);
+            GridOccupancy occupied = createOccupied(random);
+            ArrayList<DbEntry> items = createItems(random);
+
+            long start = System.nanoTime();
+            GridSizeMigrationTask.OptimalPlacementSolution solution = task.new
+                    OptimalPlacementSolution(copy(occupied), deepCopy(items), 0, Long.MAX_VALUE);
+            solution.find();
+            searchTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            ExhaustivePlacementSolution exhaustive =
+                    new ExhaustivePlacementSolution(copy(occupied), deepCopy(items));
+            exhaustive.find();
+            exhaustiveTime += System.nanoTime() - start;
+
+            String layout = "layout " + seed;
+            assertEquals(layout, exhaustive.lowestWeightLoss, solution.lowestWeightLoss,
+                    WEIGHT_DELTA);
+            assertEquals(layout, exhaustive.lowestMoveCost, solution.lowestMoveCost, 0);
+            assertFits(occupied, solution.finalPlacedItems);
+        }
+        System.out.println("Placement of " + LAYOUT_COUNT + " dense " + GRID_X + "x" + GRID_Y
+                + " screens: branch and bound " + searchTime / 1000000 + " ms, exhaustive "
+                + exhaustiveTime / 1000000 + " ms");
+    }
+
+    @Test
+    public void testExpiredDeadlineKeepsFirstPlacement() {
+        GridSizeMigrationTask task = createTask();
+        for (int seed = 0; seed < LAYOUT_COUNT; seed++) {
+            Random random = new Random(seed);
+            GridOccupancy occupied = createOccupied(random);
+            GridSizeMigrationTask.OptimalPlacementSolution solution = task.new
+                    OptimalPlacementSolution(copy(occupied), createItems(random), 0,
+                    Long.MIN_VALUE);
+            solution.find();
+            assertNotNull(solution.finalPlacedItems);
+            assertFits(occupied, solution.finalPlacedItems);
+        }
+    }
+
+    private static GridSizeMigrationTask createTask() {
+        // The constructors of the stubbed Point don't set the fields
+        Point size = new Point();
+        size.x = GRID_X;
+        size.y = GRID_Y;
+        return new GridSizeMigrationTask(null, new HashSet<String>(), size, size);
+    }
+
+    /**
+     * Returns a grid with about half of the cells taken by the items which stayed in place.
+     */
+    private static GridOccupancy createOccupied(Random random) {
+        GridOccupancy occupied = new GridOccupancy(GRID_X, GRID_Y);
+        for (int x = 0; x < GRID_X; x++) {
+            for (int y = 0; y < GRID_Y; y++) {
+                occupied.cells[x][y] = random.nextBoolean();
+            }
+        }
+        return occupied;
+    }
+
+    /**
+     * Returns a few widgets and more icons than fit into the free cells, placed like on a
+     * screen one row and column larger, weighted like {@link GridSizeMigrationTask} does.
+     */
+    private static ArrayList<DbEntry> createItems(Random random) {
+        ArrayList<DbEntry> items = new ArrayList<>();
+        long id = 0;
+        int widgetCount = 4 + random.nextInt(2);
+        for (int i = 0; i < widgetCount; i++) {
+            DbEntry widget = createEntry(id++, random);
+            widget.itemType = Favorites.ITEM_TYPE_APPWIDGET;
+            widget.spanX = 1 + random.nextInt(3);
+            widget.spanY = widget.spanX == 1 ? 2 : 1 + random.nextInt(2);
+            widget.minSpanX = random.nextBoolean() ? widget.spanX : Math.max(1, widget.spanX - 1);
+            widget.minSpanY = random.nextBoolean() ? widget.spanY : Math.max(1, widget.spanY - 1);
+            widget.weight = 2 + 0.6f * widget.spanX * widget.spanY;
+            items.add(widget);
+        }
+        int iconCount = 8 + random.nextInt(5);
+        for (int i = 0; i < iconCount; i++) {
+            DbEntry icon = createEntry(id++, random);
+            boolean isApp = random.nextBoolean();
+            icon.itemType = isApp ? Favorites.ITEM_TYPE_APPLICATION : Favorites.ITEM_TYPE_SHORTCUT;
+            icon.weight = isApp ? 0.8f : 1;
+            items.add(icon);
+        }
+        return items;
+    }
+
+    private static DbEntry createEntry(long id, Random random) {
+        DbEntry entry = new DbEntry();
+        entry.id = id;
+        entry.cellX = random.nextInt(GRID_X + 1);
+        entry.cellY = random.nextInt(GRID_Y + 1);
+        entry.spanX = entry.spanY = 1;
+        return entry;
+    }
+
+    private static void assertFits(GridOccupancy occupied, ArrayList<DbEntry> placedItems) {
+        GridOccupancy cells = copy(occupied);
+        for (DbEntry item : placedItems) {
+            assertTrue("item " + item.id + " out of bounds", item.cellX >= 0 && item.cellY >= 0
+                    && item.cellX + item.spanX <= GRID_X && item.cellY + item.spanY <= GRID_Y);
+            assertTrue("item " + item.id + " overlaps", cells.isRegionVacant(
+                    item.cellX, item.cellY, item.spanX, item.spanY));
+            cells.markCells(item, true);
+        }
+    }
+
+    private static GridOccupancy copy(GridOccupancy occupied) {
+        GridOccupancy copy = new GridOccupancy(GRID_X, GRID_Y);
+        occupied.copyTo(copy);
+        return copy;
+    }
+
+    private static ArrayList<DbEntry> deepCopy(ArrayList<DbEntry> src) {
+        ArrayList<DbEntry> dup = new ArrayList<>(src.size());
+        for (DbEntry e : src) {
+            dup.add(e.copy());
+        }
+        return dup;
+    }
+
+    /**
+     * The exhaustive backtracking search the placement search started out as, which tries every
+     * position and resize of each widget, as reference.
+     */
+    private static class ExhaustivePlacementSolution {
+        private final ArrayList<DbEntry> itemsToPlace;
+        private final GridOccupancy occupied;
+
+        float lowestWeightLoss = Float.MAX_VALUE;
+        float lowestMoveCost = Float.MAX_VALUE;
+        ArrayList<DbEntry> finalPlacedItems;
+
+        ExhaustivePlacementSolution(GridOccupancy occupied, ArrayList<DbEntry> itemsToPlace) {
+            this.occupied = occupied;
+            this.itemsToPlace = itemsToPlace;
+            Collections.sort(this.itemsToPlace);
+        }
+
+        void find() {
+            find(0, 0, 0, new ArrayList<DbEntry>());
+        }
+
+        private void find(int index, float weightLoss, float moveCost,
+                          ArrayList<DbEntry> itemsPlaced) {
+            if ((weightLoss >= lowestWeightLoss) ||
+                    ((weightLoss == lowestWeightLoss) && (moveCost >= lowestMoveCost))) {
+                return;
+            } else if (index >= itemsToPlace.size()) {
+                lowestWeightLoss = weightLoss;
+                lowestMoveCost = moveCost;
+                finalPlacedItems = deepCopy(itemsPlaced);
+                return;
+            }
+
+            DbEntry me = itemsToPlace.get(index);
+            int myX = me.cellX;
+            int myY = me.cellY;
+
+            ArrayList<DbEntry> itemsIncludingMe = new ArrayList<>(itemsPlaced.size() + 1);
+            itemsIncludingMe.addAll(itemsPlaced);
+            itemsIncludingMe.add(me);
+
+            if (me.spanX > 1 || me.spanY > 1) {
+                int myW = me.spanX;
+                int myH = me.spanY;
+
+                for (int y = 0; y < GRID_Y; y++) {
+                    for (int x = 0; x < GRID_X; x++) {
+                        float newMoveCost = moveCost;
+                        if (x != myX) {
+                            me.cellX = x;
+                            newMoveCost++;
+                        }
+                        if (y != myY) {
+                            me.cellY = y;
+                            newMoveCost++;
+                        }
+
+                        if (occupied.isRegionVacant(x, y, myW, myH)) {
+                            occupied.markCells(me, true);
+                            find(index + 1, weightLoss, newMoveCost, itemsIncludingMe);
+                            occupied.markCells(me, false);
+                        }
+                        if (myW > me.minSpanX && occupied.isRegionVacant(x, y, myW - 1, myH)) {
+                            me.spanX--;
+                            occupied.markCells(me, true);
+                            find(index + 1, weightLoss, newMoveCost + 1, itemsIncludingMe);
+                            occupied.markCells(me, false);
+                            me.spanX++;
+                        }
+                        if (myH > me.minSpanY && occupied.isRegionVacant(x, y, myW, myH - 1)) {
+                            me.spanY--;
+                            occupied.markCells(me, true);
+                            find(index + 1, weightLoss, newMoveCost + 1, itemsIncludingMe);
+                            occupied.markCells(me, false);
+                            me.spanY++;
+                        }
+                        if (myH > me.minSpanY && myW > me.minSpanX &&
+                                occupied.isRegionVacant(x, y, myW - 1, myH - 1)) {
+                            me.spanX--;
+                            me.spanY--;
+                            occupied.markCells(me, true);
+                            find(index + 1, weightLoss, newMoveCost + 2, itemsIncludingMe);
+                            occupied.markCells(me, false);
+                            me.spanX++;
+                            me.spanY++;
+                        }
+                        me.cellX = myX;
+                        me.cellY = myY;
+                    }
+                }
+                find(index + 1, weightLoss + me.weight, moveCost, itemsPlaced);
+            } else {
+                int newDistance = Integer.MAX_VALUE;
+                int newX = Integer.MAX_VALUE, newY = Integer.MAX_VALUE;
+                for (int y = 0; y < GRID_Y; y++) {
+                    for (int x = 0; x < GRID_X; x++) {
+                        if (!occupied.cells[x][y]) {
+                            int dist = (me.cellX - x) * (me.cellX - x)
+                                    + (me.cellY - y) * (me.cellY - y);
+                            if (dist < newDistance) {
+                                newX = x;
+                                newY = y;
+                                newDistance = dist;
+                            }
+                        }
+                    }
+                }
+
+                if (newX < GRID_X && newY < GRID_Y) {
+                    float newMoveCost = moveCost;
+                    if (newX != myX) {
+                        me.cellX = newX;
+                        newMoveCost++;
+                    }
+                    if (newY != myY) {
+                        me.cellY = newY;
+                        newMoveCost++;
+                    }
+                    occupied.markCells(me, true);
+                    find(index + 1, weightLoss, newMoveCost, itemsIncludingMe);
+                    occupied.markCells(me, false);
+                    me.cellX = myX;
+                    me.cellY = myY;
+
+                    if (index + 1 < itemsToPlace.size()
+                            && itemsToPlace.get(index + 1).weight >= me.weight) {
+                        find(index + 1, weightLoss + me.weight, moveCost, itemsPlaced);
+                    }
+                } else {
+                    for (int i = index + 1; i < itemsToPlace.size(); i++) {
+                        weightLoss += itemsToPlace.get(i).weight;
+                    }
+                    find(itemsToPlace.size(), weightLoss + me.weight, moveCost, itemsPlaced);
+                }
+            }
+        }
+    }
+}
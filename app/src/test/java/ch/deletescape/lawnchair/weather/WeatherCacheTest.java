@@ -0,0 +1,342 @@
+package ch.deletescape.lawnchair.weather;
+
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link WeatherCache}, with fake providers which only deliver when told to.
+ */
+public class WeatherCacheTest {
+
+    private static final long TTL = 10 * 60 * 1000;
+
+    private TestWeatherCache mCache;
+    private FakeWeatherAPI mApi;
+    private RecordingCallback mCallback;
+
+    @Before
+    public void setUp() {
+        mCache = new TestWeatherCache(new FakePreferences());
+        mApi = new FakeWeatherAPI();
+        mCallback = new RecordingCallback();
+    }
+
+    @Test
+    public void testConcurrentRefreshesShareRequest() {
+        FakeWeatherAPI otherApi = new FakeWeatherAPI();
+        RecordingCallback otherCallback = new RecordingCallback();
+        mCache.refresh(mApi, mCallback);
+        mCache.refresh(otherApi, otherCallback);
+        assertEquals(1, mApi.mRequestCount);
+        assertEquals(0, otherApi.mRequestCount);
+
+        WeatherAPI.WeatherData data = success(20);
+        mApi.deliver(data);
+        assertEquals(data, mCallback.last());
+        assertEquals(data, otherCallback.last());
+    }
+
+    @Test
+    public void testRefreshWithinTtlIsServedFromCache() {
+        mCache.refresh(mApi, mCallback);
+        mApi.deliver(success(20));
+
+        mCache.mTime += TTL - 1;
+        RecordingCallback callback = new RecordingCallback();
+        mCache.refresh(mApi, callback);
+        assertEquals(1, mApi.mRequestCount);
+        assertEquals(20, callback.last().getTemp());
+    }
+
+    @Test
+    public void testStaleDataIsServedAndRefreshed() {
+        mCache.refresh(mApi, mCallback);
+        mApi.deliver(success(20));
+
+        mCache.mTime += TTL;
+        mCache.refresh(mApi, mCallback);
+        assertEquals(2, mApi.mRequestCount);
+        assertEquals(20, mCallback.last().getTemp());
+
+        mApi.deliver(success(21));
+        assertEquals(21, mCallback.last().getTemp());
+    }
+
+    @Test
+    public void testDifferentSettingsDoNotShareData() {
+        mCache.refresh(mApi, mCallback);
+        mApi.deliver(success(20));
+
+        FakeWeatherAPI otherApi = new FakeWeatherAPI();
+        otherApi.setCity("Zurich");
+        RecordingCallback otherCallback = new RecordingCallback();
+        mCache.refresh(otherApi, otherCallback);
+        assertEquals(1, otherApi.mRequestCount);
+        assertTrue(otherCallback.mData.isEmpty());
+    }
+
+    @Test
+    public void testPendingRequestIsReplacedAfterTimeout() {
+        mCache.refresh(mApi, mCallback);
+
+        mCache.mTime += WeatherCache.PENDING_TIMEOUT - 1;
+        FakeWeatherAPI otherApi = new FakeWeatherAPI();
+        RecordingCallback otherCallback = new RecordingCallback();
+        mCache.refresh(otherApi, otherCallback);
+        assertEquals(0, otherApi.mRequestCount);
+
+        mCache.mTime += 1;
+        mCache.refresh(otherApi, otherCallback);
+        assertEquals(1, otherApi.mRequestCount);
+
+        // Everyone who waited for the first request gets the result of the new one
+        otherApi.deliver(success(20));
+        assertEquals(20, mCallback.last().getTemp());
+        assertEquals(1, otherCallback.mData.size());
+    }
+
+    @Test
+    public void testFailedRequestBacksOff() {
+        mCache.refresh(mApi, mCallback);
+        WeatherAPI.WeatherData failure = new WeatherAPI.WeatherData(false, -1, "-1",
+                WeatherAPI.Units.METRIC);
+        mApi.deliver(failure);
+        assertEquals(failure, mCallback.last());
+
+        mCache.mTime += 1000;
+        mCache.refresh(mApi, mCallback);
+        assertEquals(1, mApi.mRequestCount);
+        assertEquals(2, mCallback.mData.size());
+
+        mCache.mTime += 60 * 1000;
+        mCache.refresh(mApi, mCallback);
+        assertEquals(2, mApi.mRequestCount);
+    }
+
+    @Test
+    public void testRemovedCallbackIsNotCalled() {
+        mCache.refresh(mApi, mCallback);
+        mCache.removeCallback(mCallback);
+        mApi.deliver(success(20));
+        assertTrue(mCallback.mData.isEmpty());
+    }
+
+    private static WeatherAPI.WeatherData success(int temp) {
+        return new WeatherAPI.WeatherData(true, temp, "01d", WeatherAPI.Units.METRIC);
+    }
+
+    private static class TestWeatherCache extends WeatherCache {
+        long mTime = 1000000;
+
+        TestWeatherCache(SharedPreferences prefs) {
+            super(prefs);
+        }
+
+        @Override
+        long currentTimeMillis() {
+            return mTime;
+        }
+    }
+
+    private static class FakeWeatherAPI extends WeatherAPI {
+        private Units mUnits = Units.METRIC;
+        private String mCity = "Lucerne";
+        int mRequestCount;
+
+        @NonNull
+        @Override
+        public Units getUnits() {
+            return mUnits;
+        }
+
+        @Override
+        public void setUnits(@NonNull Units units) {
+            mUnits = units;
+        }
+
+        @NonNull
+        @Override
+        public String getCity() {
+            return mCity;
+        }
+
+        @Override
+        public void setCity(@NonNull String city) {
+            mCity = city;
+        }
+
+        @Override
+        public int getProvider() {
+            return PROVIDER_OPENWEATHERMAP;
+        }
+
+        @Override
+        public long getCacheTtl() {
+            return TTL;
+        }
+
+        @Override
+        public void getCurrentWeather() {
+            mRequestCount++;
+        }
+
+        void deliver(WeatherData data) {
+            onWeatherData(data);
+        }
+    }
+
+    private static class RecordingCallback implements WeatherAPI.WeatherCallback {
+        final ArrayList<WeatherAPI.WeatherData> mData = new ArrayList<>();
+
+        @Override
+        public void onWeatherData(@NonNull WeatherAPI.WeatherData data) {
+            mData.add(data);
+        }
+
+        WeatherAPI.WeatherData last() {
+            return mData.get(mData.size() - 1);
+        }
+    }
+
+    private static class FakePreferences implements SharedPreferences {
+        final HashMap<String, Object> mValues = new HashMap<>();
+
+        @Override
+        public Map<String, ?> getAll() {
+            return mValues;
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return mValues.containsKey(key) ? (String) mValues.get(key) : defValue;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            return mValues.containsKey(key) ? (Set<String>) mValues.get(key) : defValues;
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return mValues.containsKey(key) ? (Integer) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            return mValues.containsKey(key) ? (Long) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return mValues.containsKey(key) ? (Float) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return mValues.containsKey(key) ? (Boolean) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return mValues.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return new FakeEditor();
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+        }
+
+        private class FakeEditor implements Editor {
+            private final HashMap<String, Object> mChanges = new HashMap<>();
+            private boolean mClear;
+
+            private Editor put(String key, Object value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putString(String key, String value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor putStringSet(String key, Set<String> values) {
+                return put(key, values);
+            }
+
+            @Override
+            public Editor putInt(String key, int value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor putLong(String key, long value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor putFloat(String key, float value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor putBoolean(String key, boolean value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor remove(String key) {
+                return put(key, null);
+            }
+
+            @Override
+            public Editor clear() {
+                mClear = true;
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                if (mClear) {
+                    mValues.clear();
+                }
+                for (Map.Entry<String, Object> change : mChanges.entrySet()) {
+                    if (change.getValue() == null) {
+                        mValues.remove(change.getKey());
+                    } else {
+                        mValues.put(change.getKey(), change.getValue());
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public void apply() {
+                commit();
+            }
+        }
+    }
+}